@@ -0,0 +1,744 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Links the resolvable private addresses a device rotates through into one cluster, so a phone
+ * or tag that changes address every 15 minutes reads as one device rather than dozens.
+ *
+ * Each address gets a fingerprint of the parts of its first advertisement that survive a
+ * rotation: flags, listed 16-bit services, the layout of its manufacturer data (company, length
+ * and leading type byte), the UUID, length and first bytes of its service data, and its TX
+ * power. Once an address goes quiet for the departure time, it is handed off to a new address
+ * with the same fingerprint that first appeared within the hand-off window after it, provided
+ * their advertising intervals agree (allowing for missed advertisements) and no other address
+ * of its cluster is still active. Among several candidates the closest in RSSI, time and
+ * interval wins, but only by a clear margin; otherwise the hand-off is counted as ambiguous
+ * and not made. The match is tried in both orders, since the old address is only known to
+ * have left some time after the new one appears.
+ *
+ * Clusters are kept in a union-find over per-address entries, with each cluster's members
+ * also linked in a circular list so the whole cluster can be freed once all its addresses have
+ * been forgotten. Entries live in primitive arrays and pending hand-offs in per-fingerprint
+ * lists threaded through them, so recording an advertisement costs a hash lookup and nothing
+ * is allocated per advertisement. Only addresses shaped like resolvable private addresses (top
+ * two bits 01) are tracked; others never rotate.
+ *
+ * Not thread safe: call everything but the statistics getters on the ingestion thread.
+ */
+public class AddressClusterer {
+
+    /**
+     * Returned by {@link #clusterOf(long)} for addresses not linked to any other.
+     */
+    public static final int NO_CLUSTER = -1;
+
+    /**
+     * Sightings closer than the shortest legal advertising interval are duplicates, not a
+     * measure of it.
+     */
+    private static final long MIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /**
+     * Bytes of service data after the UUID that go into the fingerprint.
+     */
+    private static final int SERVICE_DATA_PREFIX = 2;
+
+    /**
+     * A hand-off weighs at most this many candidates, so a fingerprint shared by many devices
+     * (phones of one model) can't make it slow. Lists only hold addresses recent enough to
+     * match, so walking past the rest is bounded too.
+     */
+    private static final int MAX_CANDIDATES = 32;
+
+    /**
+     * Candidates are ranked by how much the RSSI changed between them, how many advertisements
+     * they'd have missed in between and how far apart their intervals are, in units of
+     * {@link #SCORE_UNIT}. Each doubling of the advertisements missed, which scan duty cycles
+     * make common, costs as much as this many dB of RSSI.
+     */
+    private static final int RSSI_PER_DOUBLING = 4;
+
+    private static final long SCORE_UNIT = 256;
+
+    /**
+     * A new address's RSSI is compared as it was over this many sightings.
+     */
+    private static final int FIRST_RSSI_SAMPLES = 4;
+
+    /**
+     * A hand-off is only made if the best candidate beats the next best by this much; a wrong
+     * link hides a device, which is worse than showing one twice.
+     */
+    private static final long MARGIN = 2 * SCORE_UNIT;
+
+    private static final int NONE = -1;
+
+    /**
+     * Fingerprint of addresses seen without a payload, which are never linked.
+     */
+    private static final long NO_FINGERPRINT = -1;
+
+    private static final byte ACTIVE = 0;
+    private static final byte DEPARTED = 1;
+    private static final byte FORGOTTEN = 2;
+
+    private static final byte LIST_NONE = 0;
+    private static final byte LIST_ARRIVALS = 1;
+    private static final byte LIST_DEPARTED = 2;
+
+    private final long mDepartureNanos;
+
+    private final long mHandoffNanos;
+
+    /**
+     * Addresses waiting in a hand-off list longer than this can no longer be matched.
+     */
+    private final long mRetainNanos;
+
+    private final MacIndex mIndex = new MacIndex();
+
+    /**
+     * Finds addresses that have gone quiet.
+     */
+    private final ExpiryWheel mActivity;
+
+    private final ExpiryWheel.Listener mDepartureListener = new ExpiryWheel.Listener() {
+        @Override
+        public void onExpired(long key, long lastSeenNanos) {
+            depart(key);
+        }
+    };
+
+    // Heads of the hand-off lists, keyed by fingerprint: new addresses waiting for an old one
+    // to leave, and departed addresses waiting for a successor.
+
+    private final MacIndex mArrivals = new MacIndex();
+
+    private final MacIndex mDeparted = new MacIndex();
+
+    private final AdvertisementParser mParser = new AdvertisementParser();
+
+    // Per-entry state, indexed by entry number.
+
+    private long[] mAddresses;
+
+    private long[] mFingerprints;
+
+    private long[] mFirstSeen;
+
+    private long[] mLastSeen;
+
+    /**
+     * Shortest gap between sightings, or 0 until there have been two.
+     */
+    private long[] mIntervals;
+
+    /**
+     * Smoothed RSSI in sixteenths of a dB, and its value over the first few sightings.
+     */
+    private int[] mRssi;
+
+    private int[] mFirstRssi;
+
+    private int[] mSamples;
+
+    private int[] mParent;
+
+    /**
+     * Next member of the entry's cluster, circularly; also links the free list.
+     */
+    private int[] mNextMember;
+
+    private int[] mListNext;
+
+    private int[] mListPrev;
+
+    private byte[] mStates;
+
+    private byte[] mLists;
+
+    // Per-cluster state, valid at roots only.
+
+    private int[] mClusterIds;
+
+    private int[] mMembers;
+
+    /**
+     * Members neither departed nor forgotten.
+     */
+    private int[] mActive;
+
+    /**
+     * Members not yet forgotten.
+     */
+    private int[] mLive;
+
+    private int mEntryCount;
+
+    private int mFreeList = NONE;
+
+    private int mNextClusterId = 1;
+
+    // Statistics, written on the ingestion thread and readable from any.
+
+    private volatile int mClusterCount;
+
+    private volatile long mAddressCount;
+
+    private volatile long mLinkCount;
+
+    private volatile long mAmbiguousCount;
+
+    private volatile long mRetiredCount;
+
+    private volatile long mRetiredLinkedCount;
+
+    private volatile long mLinkedLifetimeNanos;
+
+    /**
+     * @param departureNanos how long an address may go unseen before it is taken to have
+     *                       rotated away; must exceed scan pauses and batching delays
+     * @param handoffNanos   how soon after an address leaves its successor must first appear
+     * @param tickNanos      resolution of departure times
+     */
+    public AddressClusterer(long departureNanos, long handoffNanos, long tickNanos) {
+        if (handoffNanos <= 0) {
+            throw new IllegalArgumentException("hand-off window must be positive");
+        }
+        mDepartureNanos = departureNanos;
+        mHandoffNanos = handoffNanos;
+        mRetainNanos = 2 * departureNanos + handoffNanos + tickNanos;
+        mActivity = new ExpiryWheel(departureNanos, tickNanos);
+        allocateEntries(16);
+    }
+
+    /**
+     * True if the address could be a resolvable private address, which is all that rotates.
+     */
+    public static boolean isResolvable(long address) {
+        return (address >>> 46) == 1;
+    }
+
+    /**
+     * Records an advertisement, starting to track its address if it is new.
+     *
+     * @param scanRecord the advertisement's payload, or null; only read for new addresses
+     */
+    public void record(long address, long timestampNanos, int rssi, byte[] scanRecord) {
+        if (!isResolvable(address)) {
+            return;
+        }
+        int entry = mIndex.get(address);
+        if (entry == MacIndex.NO_SLOT) {
+            arrive(address, timestampNanos, rssi, scanRecord);
+            return;
+        }
+        long delta = timestampNanos - mLastSeen[entry];
+        if (delta >= MIN_INTERVAL_NANOS && (mIntervals[entry] == 0 || delta < mIntervals[entry])) {
+            mIntervals[entry] = delta;
+        }
+        if (delta > 0) {
+            mLastSeen[entry] = timestampNanos;
+        }
+        mRssi[entry] += (rssi * 16 - mRssi[entry]) / 4;
+        if (mSamples[entry] < FIRST_RSSI_SAMPLES) {
+            mFirstRssi[entry] = mRssi[entry];
+            mSamples[entry]++;
+        }
+        if (mStates[entry] != ACTIVE) {
+            // Back after a pause: it didn't rotate after all.
+            int root = find(entry);
+            if (mLists[entry] != LIST_NONE) {
+                unlist(entry);
+            }
+            if (mStates[entry] == FORGOTTEN) {
+                mLive[root]++;
+            }
+            mStates[entry] = ACTIVE;
+            mActive[root]++;
+        }
+        mActivity.touch(address, timestampNanos);
+    }
+
+    /**
+     * Hands off addresses that have been quiet for the departure time.
+     */
+    public void advance(long nowNanos) {
+        mActivity.advance(nowNanos, mDepartureListener);
+    }
+
+    /**
+     * Stops tracking an address, normally once it has been gone long enough to be forgotten
+     * everywhere else. Its cluster is freed once all of its addresses have been.
+     */
+    public void forget(long address) {
+        int entry = mIndex.get(address);
+        if (entry == MacIndex.NO_SLOT || mStates[entry] == FORGOTTEN) {
+            return;
+        }
+        mActivity.remove(address);
+        if (mLists[entry] != LIST_NONE) {
+            unlist(entry);
+        }
+        int root = find(entry);
+        if (mStates[entry] == ACTIVE) {
+            mActive[root]--;
+        }
+        mStates[entry] = FORGOTTEN;
+        if (--mLive[root] == 0) {
+            retire(root);
+        }
+    }
+
+    /**
+     * Returns the id of the cluster linking the address to others, or {@link #NO_CLUSTER} if
+     * it isn't tracked or hasn't been linked. Ids are stable while the cluster lives.
+     */
+    public int clusterOf(long address) {
+        int entry = mIndex.get(address);
+        return entry == MacIndex.NO_SLOT ? NO_CLUSTER : mClusterIds[find(entry)];
+    }
+
+    /**
+     * Returns how many addresses are in the address's cluster, or 0 if it isn't tracked.
+     */
+    public int clusterSizeOf(long address) {
+        int entry = mIndex.get(address);
+        return entry == MacIndex.NO_SLOT ? 0 : mMembers[find(entry)];
+    }
+
+    /**
+     * Number of addresses tracked.
+     */
+    public int size() {
+        return mIndex.size();
+    }
+
+    /**
+     * Number of clusters tracked, counting unlinked addresses as clusters of one.
+     */
+    public int getClusterCount() {
+        return mClusterCount;
+    }
+
+    public long getAddressCount() {
+        return mAddressCount;
+    }
+
+    /**
+     * Rotations recognised, each linking a new address to an old one.
+     */
+    public long getLinkCount() {
+        return mLinkCount;
+    }
+
+    /**
+     * Hand-offs not made because no candidate stood out from the rest.
+     */
+    public long getAmbiguousCount() {
+        return mAmbiguousCount;
+    }
+
+    /**
+     * Clusters freed after all their addresses were forgotten.
+     */
+    public long getRetiredCount() {
+        return mRetiredCount;
+    }
+
+    /**
+     * Mean time an address was in use before rotating, or 0 if none has rotated.
+     */
+    public long getMeanRotationNanos() {
+        long links = mLinkCount;
+        return links == 0 ? 0 : mLinkedLifetimeNanos / links;
+    }
+
+    public void describe(StringBuilder text) {
+        long addresses = mAddressCount;
+        long links = mLinkCount;
+        text.append("Rotating addresses: ").append(size()).append(" tracked in ")
+                .append(mClusterCount).append(" devices; ").append(addresses)
+                .append(" seen, ").append(links).append(" rotations linked (")
+                .append(mAmbiguousCount).append(" ambiguous), ").append(mRetiredCount)
+                .append(" devices retired (").append(mRetiredLinkedCount)
+                .append(" rotating)");
+        if (links > 0) {
+            text.append(", address kept ")
+                    .append(TimeUnit.NANOSECONDS.toSeconds(getMeanRotationNanos()))
+                    .append(" s on average");
+        }
+        text.append('\n');
+    }
+
+    public void clear() {
+        mIndex.clear();
+        mActivity.clear();
+        mArrivals.clear();
+        mDeparted.clear();
+        mEntryCount = 0;
+        mFreeList = NONE;
+        mClusterCount = 0;
+    }
+
+    private void arrive(long address, long timestampNanos, int rssi, byte[] scanRecord) {
+        int entry = newEntry();
+        mAddresses[entry] = address;
+        mFingerprints[entry] = scanRecord == null ? NO_FINGERPRINT
+                : fingerprint(mParser.parse(scanRecord));
+        mFirstSeen[entry] = timestampNanos;
+        mLastSeen[entry] = timestampNanos;
+        mIntervals[entry] = 0;
+        mRssi[entry] = rssi * 16;
+        mFirstRssi[entry] = rssi * 16;
+        mSamples[entry] = 1;
+        mParent[entry] = entry;
+        mNextMember[entry] = entry;
+        mStates[entry] = ACTIVE;
+        mLists[entry] = LIST_NONE;
+        mClusterIds[entry] = NO_CLUSTER;
+        mMembers[entry] = 1;
+        mActive[entry] = 1;
+        mLive[entry] = 1;
+        mIndex.put(address, entry);
+        mActivity.touch(address, timestampNanos);
+        mAddressCount++;
+        mClusterCount++;
+        if (mFingerprints[entry] == NO_FINGERPRINT) {
+            return;
+        }
+
+        int previous = match(mDeparted, entry, false, timestampNanos);
+        if (previous != NONE) {
+            link(previous, entry);
+        } else {
+            push(mArrivals, LIST_ARRIVALS, entry);
+        }
+    }
+
+    private void depart(long address) {
+        int entry = mIndex.get(address);
+        if (entry == MacIndex.NO_SLOT) {
+            return;
+        }
+        if (mLists[entry] != LIST_NONE) {
+            unlist(entry);
+        }
+        mStates[entry] = DEPARTED;
+        int root = find(entry);
+        if (--mActive[root] > 0 || mFingerprints[entry] == NO_FINGERPRINT) {
+            // Another address of the device is still about, so this one was superseded, or
+            // there is nothing to match it by.
+            return;
+        }
+        long now = mLastSeen[entry] + mDepartureNanos;
+        int next = match(mArrivals, entry, true, now);
+        if (next != NONE) {
+            link(entry, next);
+        } else {
+            push(mDeparted, LIST_DEPARTED, entry);
+        }
+    }
+
+    /**
+     * Finds the best partner for the entry in its fingerprint's list, dropping list entries
+     * too old to match anything any more.
+     *
+     * @param older true if the entry is the departed side, searching arrivals
+     * @return the partner, or {@link #NONE}
+     */
+    private int match(MacIndex lists, int entry, boolean older, long nowNanos) {
+        int candidate = lists.get(mFingerprints[entry]);
+        if (candidate == MacIndex.NO_SLOT) {
+            return NONE;
+        }
+        int best = NONE;
+        long bestScore = Long.MAX_VALUE;
+        long runnerUpScore = Long.MAX_VALUE;
+        long cutoff = nowNanos - mRetainNanos;
+        int examined = 0;
+        while (candidate != NONE && examined < MAX_CANDIDATES) {
+            int next = mListNext[candidate];
+            if (older ? mFirstSeen[candidate] < cutoff : mLastSeen[candidate] < cutoff) {
+                // Lists are newest first, so the rest are stale as well.
+                while (candidate != NONE) {
+                    next = mListNext[candidate];
+                    unlist(candidate);
+                    candidate = next;
+                }
+                break;
+            }
+            long score = older ? score(entry, candidate) : score(candidate, entry);
+            if (score >= 0 && find(candidate) != find(entry)
+                    && (older || mActive[find(candidate)] == 0)) {
+                examined++;
+                if (score < bestScore) {
+                    runnerUpScore = bestScore;
+                    bestScore = score;
+                    best = candidate;
+                } else if (score < runnerUpScore) {
+                    runnerUpScore = score;
+                }
+            }
+            candidate = next;
+        }
+        if (runnerUpScore != Long.MAX_VALUE && runnerUpScore - bestScore < MARGIN) {
+            mAmbiguousCount++;
+            return NONE;
+        }
+        return best;
+    }
+
+    /**
+     * Ranks a hand-off from one address to the next, lower being likelier, or returns -1 if
+     * the pair can't be the same device.
+     */
+    private long score(int older, int newer) {
+        long gap = mFirstSeen[newer] - mLastSeen[older];
+        if (gap <= 0 || gap > mHandoffNanos) {
+            return -1;
+        }
+        long interval = mIntervals[older];
+        // With no interval to go on, count the gap in seconds.
+        long missed = gap / (interval != 0 ? interval : TimeUnit.SECONDS.toNanos(1));
+        long score = Math.abs(mRssi[older] - mFirstRssi[newer]) * SCORE_UNIT
+                / (16 * RSSI_PER_DOUBLING);
+        score += (64 - Long.numberOfLeadingZeros(missed)) * SCORE_UNIT;
+        long mismatch = intervalMismatch(interval, mIntervals[newer]);
+        if (mismatch < 0) {
+            return -1;
+        }
+        return score + mismatch;
+    }
+
+    /**
+     * Returns how far the longer interval is from the nearest multiple of the shorter, in
+     * quarters of the shorter scaled to {@link #SCORE_UNIT}, or -1 if it's more than a quarter
+     * off. Missed advertisements make the gaps seen multiples of the real interval, more so for
+     * an address seen only a few times. Unknown intervals agree with anything.
+     */
+    private static long intervalMismatch(long a, long b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        long shorter = Math.min(a, b);
+        long longer = Math.max(a, b);
+        long multiple = (longer + shorter / 2) / shorter;
+        long offBy = Math.abs(longer - multiple * shorter) * 4;
+        return offBy > shorter ? -1 : offBy * SCORE_UNIT / shorter;
+    }
+
+    /**
+     * Merges the clusters of a departed address and the address that replaced it.
+     */
+    private void link(int older, int newer) {
+        if (mLists[newer] != LIST_NONE) {
+            unlist(newer);
+        }
+        if (mLists[older] != LIST_NONE) {
+            unlist(older);
+        }
+        int a = find(older);
+        int b = find(newer);
+        int id = mClusterIds[a] != NO_CLUSTER ? mClusterIds[a]
+                : mClusterIds[b] != NO_CLUSTER ? mClusterIds[b] : mNextClusterId++;
+        if (mMembers[a] < mMembers[b]) {
+            int swap = a;
+            a = b;
+            b = swap;
+        }
+        mParent[b] = a;
+        mMembers[a] += mMembers[b];
+        mActive[a] += mActive[b];
+        mLive[a] += mLive[b];
+        mClusterIds[a] = id;
+        // Splice the two circular member lists together.
+        int next = mNextMember[a];
+        mNextMember[a] = mNextMember[b];
+        mNextMember[b] = next;
+
+        mClusterCount--;
+        mLinkedLifetimeNanos += mLastSeen[older] - mFirstSeen[older];
+        mLinkCount++;
+    }
+
+    /**
+     * Frees every member of a cluster whose addresses have all been forgotten.
+     */
+    private void retire(int root) {
+        if (mMembers[root] > 1) {
+            mRetiredLinkedCount++;
+        }
+        int entry = root;
+        do {
+            int next = mNextMember[entry];
+            mIndex.remove(mAddresses[entry]);
+            freeEntry(entry);
+            entry = next;
+        } while (entry != root);
+        mClusterCount--;
+        mRetiredCount++;
+    }
+
+    private int find(int entry) {
+        while (mParent[entry] != entry) {
+            // Path halving.
+            mParent[entry] = mParent[mParent[entry]];
+            entry = mParent[entry];
+        }
+        return entry;
+    }
+
+    private void push(MacIndex lists, byte list, int entry) {
+        long fingerprint = mFingerprints[entry];
+        int head = lists.get(fingerprint);
+        if (head == MacIndex.NO_SLOT) {
+            head = NONE;
+        } else {
+            mListPrev[head] = entry;
+        }
+        mListNext[entry] = head;
+        mListPrev[entry] = NONE;
+        mLists[entry] = list;
+        lists.put(fingerprint, entry);
+    }
+
+    private void unlist(int entry) {
+        MacIndex lists = mLists[entry] == LIST_ARRIVALS ? mArrivals : mDeparted;
+        int next = mListNext[entry];
+        int prev = mListPrev[entry];
+        if (prev == NONE) {
+            if (next == NONE) {
+                lists.remove(mFingerprints[entry]);
+            } else {
+                lists.put(mFingerprints[entry], next);
+            }
+        } else {
+            mListNext[prev] = next;
+        }
+        if (next != NONE) {
+            mListPrev[next] = prev;
+        }
+        mLists[entry] = LIST_NONE;
+    }
+
+    /**
+     * Folds the parts of an advertisement that a device keeps across rotations into 62 bits,
+     * leaving the negative keys {@link MacIndex} reserves unused.
+     */
+    private static long fingerprint(AdvertisementParser parser) {
+        long hash = 0xcbf29ce484222325L;
+        hash = mix(hash, parser.getFlags());
+        hash = mix(hash, parser.getTxPowerLevel());
+        for (int i = 0; i < parser.getServiceUuid16Count(); i++) {
+            hash = mix(hash, parser.getServiceUuid16(i));
+        }
+        for (int i = 0; i < parser.getManufacturerDataCount(); i++) {
+            int length = parser.getManufacturerDataLength(i);
+            hash = mix(hash, parser.getManufacturerId(i));
+            hash = mix(hash, length);
+            if (length > 0) {
+                hash = mix(hash, parser.u8(parser.getManufacturerDataOffset(i)));
+            }
+        }
+        for (int i = 0; i < parser.getServiceDataCount(); i++) {
+            int length = parser.getServiceDataLength(i);
+            if (parser.getServiceDataUuidWidth(i) == 16) {
+                hash = mix(hash, parser.getServiceDataUuid128Msb(i));
+                hash = mix(hash, parser.getServiceDataUuid128Lsb(i));
+            } else {
+                hash = mix(hash, parser.getServiceDataUuid(i));
+            }
+            hash = mix(hash, length);
+            int offset = parser.getServiceDataOffset(i);
+            for (int j = 0; j < Math.min(length, SERVICE_DATA_PREFIX); j++) {
+                hash = mix(hash, parser.u8(offset + j));
+            }
+        }
+        return hash >>> 2;
+    }
+
+    private static long mix(long hash, long value) {
+        // FNV-1a over whole values, then a Murmur3 round so nearby values spread out.
+        hash = (hash ^ value) * 0x100000001b3L;
+        hash ^= hash >>> 33;
+        return hash * 0xff51afd7ed558ccdL;
+    }
+
+    private int newEntry() {
+        if (mFreeList != NONE) {
+            int entry = mFreeList;
+            mFreeList = mNextMember[entry];
+            return entry;
+        }
+        if (mEntryCount == mAddresses.length) {
+            allocateEntries(mEntryCount * 2);
+        }
+        return mEntryCount++;
+    }
+
+    private void freeEntry(int entry) {
+        mNextMember[entry] = mFreeList;
+        mFreeList = entry;
+    }
+
+    private void allocateEntries(int capacity) {
+        if (mAddresses == null) {
+            mAddresses = new long[capacity];
+            mFingerprints = new long[capacity];
+            mFirstSeen = new long[capacity];
+            mLastSeen = new long[capacity];
+            mIntervals = new long[capacity];
+            mRssi = new int[capacity];
+            mFirstRssi = new int[capacity];
+            mSamples = new int[capacity];
+            mParent = new int[capacity];
+            mNextMember = new int[capacity];
+            mListNext = new int[capacity];
+            mListPrev = new int[capacity];
+            mStates = new byte[capacity];
+            mLists = new byte[capacity];
+            mClusterIds = new int[capacity];
+            mMembers = new int[capacity];
+            mActive = new int[capacity];
+            mLive = new int[capacity];
+            return;
+        }
+        mAddresses = Arrays.copyOf(mAddresses, capacity);
+        mFingerprints = Arrays.copyOf(mFingerprints, capacity);
+        mFirstSeen = Arrays.copyOf(mFirstSeen, capacity);
+        mLastSeen = Arrays.copyOf(mLastSeen, capacity);
+        mIntervals = Arrays.copyOf(mIntervals, capacity);
+        mRssi = Arrays.copyOf(mRssi, capacity);
+        mFirstRssi = Arrays.copyOf(mFirstRssi, capacity);
+        mSamples = Arrays.copyOf(mSamples, capacity);
+        mParent = Arrays.copyOf(mParent, capacity);
+        mNextMember = Arrays.copyOf(mNextMember, capacity);
+        mListNext = Arrays.copyOf(mListNext, capacity);
+        mListPrev = Arrays.copyOf(mListPrev, capacity);
+        mStates = Arrays.copyOf(mStates, capacity);
+        mLists = Arrays.copyOf(mLists, capacity);
+        mClusterIds = Arrays.copyOf(mClusterIds, capacity);
+        mMembers = Arrays.copyOf(mMembers, capacity);
+        mActive = Arrays.copyOf(mActive, capacity);
+        mLive = Arrays.copyOf(mLive, capacity);
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads back the segments written by {@link AdvertisementLogWriter}, oldest first, whether
+ * still raw or compressed by {@link LogCompactor}.
+ *
+ * Records are handed to a {@link RecordVisitor} one at a time; the scan record buffer passed to
+ * the visitor is reused and is only valid for the duration of the callback. Reading stops at
+ * the first incomplete record of a segment, or the first whose checksum doesn't match, which
+ * is what a torn write at the tail looks like.
+ */
+public class AdvertisementLogReader {
+
+    /**
+     * Receives the records of a log in write order.
+     */
+    public interface RecordVisitor {
+
+        /**
+         * @param scanRecord the raw advertisement bytes between position and limit
+         * @return false to stop reading
+         */
+        boolean onRecord(long timestampNanos, long address, int rssi, int txPower,
+                         ByteBuffer scanRecord);
+    }
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final File mDirectory;
+
+    private final ByteBuffer mBuffer;
+
+    private long mValidLength;
+
+    /**
+     * Records passed on by the time filter of {@link #read} in the current segment.
+     */
+    private long mFiltered;
+
+    public AdvertisementLogReader(File directory) {
+        mDirectory = directory;
+        mBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns the segment files in the directory in the order they were written.
+     */
+    public static File[] listSegments(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            if (AdvertisementLogWriter.parseSegmentSequence(file.getName()) >= 0) {
+                files[count++] = file;
+            }
+        }
+        File[] segments = Arrays.copyOf(files, count);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Returns the files holding the log, raw and compressed segments, in the order they were
+     * written.
+     */
+    public static File[] listLogFiles(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        return files == null ? new File[0] : selectLogFiles(files);
+    }
+
+    /**
+     * Picks the files holding the log out of a directory listing, in the order they were
+     * written. Compaction can leave redundant files behind if it is interrupted: a raw
+     * segment next to its compressed copy, or segments already merged into a later
+     * compressed one. Those are left out.
+     */
+    public static File[] selectLogFiles(File[] files) throws IOException {
+        TreeMap<Long, File> bySequence = new TreeMap<>();
+        for (File file : files) {
+            long sequence = CompressedSegment.parseSegmentSequence(file.getName());
+            if (sequence >= 0) {
+                bySequence.put(sequence, file);
+            }
+        }
+        for (File file : files) {
+            long sequence = AdvertisementLogWriter.parseSegmentSequence(file.getName());
+            if (sequence >= 0 && !bySequence.containsKey(sequence)) {
+                bySequence.put(sequence, file);
+            }
+        }
+        ArrayList<File> selected = new ArrayList<>(bySequence.size());
+        long coveredFrom = Long.MAX_VALUE;
+        for (Map.Entry<Long, File> entry : bySequence.descendingMap().entrySet()) {
+            if (entry.getKey() >= coveredFrom) {
+                continue;
+            }
+            File file = entry.getValue();
+            if (CompressedSegment.parseSegmentSequence(file.getName()) >= 0) {
+                try {
+                    coveredFrom = Math.min(coveredFrom,
+                            CompressedSegment.readFirstSequence(file));
+                } catch (FileNotFoundException e) {
+                    // Compacted away since the listing.
+                    continue;
+                }
+            }
+            selected.add(file);
+        }
+        Collections.reverse(selected);
+        return selected.toArray(new File[selected.size()]);
+    }
+
+    /**
+     * Visits every record of every segment.
+     *
+     * @return the number of records visited
+     */
+    public long readAll(RecordVisitor visitor) throws IOException {
+        return read(Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Visits the records received between {@code fromNanos} and {@code toNanos} inclusive.
+     * Compressed segments are searched through their block index; raw segments, normally only
+     * the newest few, are read in full and filtered.
+     *
+     * @return the number of records visited
+     */
+    public long read(long fromNanos, long toNanos, RecordVisitor visitor) throws IOException {
+        long count = 0;
+        for (File file : listLogFiles(mDirectory)) {
+            long read;
+            try {
+                read = readFile(file, fromNanos, toNanos, visitor);
+            } catch (FileNotFoundException e) {
+                // Compacted away since the listing.
+                continue;
+            }
+            if (read < 0) {
+                return count - read - 1;
+            }
+            count += read;
+        }
+        return count;
+    }
+
+    /**
+     * Visits the records of one file from {@link #listLogFiles}, raw or compressed, received
+     * between {@code fromNanos} and {@code toNanos} inclusive.
+     *
+     * @return the number of records visited, or {@code -(count + 1)} if the visitor asked to
+     *         stop
+     * @throws FileNotFoundException if the file has been compacted away since it was listed
+     */
+    public long readFile(File file, final long fromNanos, final long toNanos,
+                         final RecordVisitor visitor) throws IOException {
+        if (AdvertisementLogWriter.parseSegmentSequence(file.getName()) >= 0) {
+            RecordVisitor filter = new RecordVisitor() {
+                @Override
+                public boolean onRecord(long timestampNanos, long address, int rssi,
+                                        int txPower, ByteBuffer scanRecord) {
+                    if (timestampNanos < fromNanos || timestampNanos > toNanos) {
+                        return true;
+                    }
+                    mFiltered++;
+                    return visitor.onRecord(timestampNanos, address, rssi, txPower,
+                            scanRecord);
+                }
+            };
+            mFiltered = 0;
+            long read = readSegment(file, filter);
+            return read < 0 ? -(mFiltered + 1) : mFiltered;
+        }
+        CompressedSegment segment = CompressedSegment.open(file);
+        try {
+            return segment.read(fromNanos, toNanos, visitor);
+        } finally {
+            segment.close();
+        }
+    }
+
+    /**
+     * Length of the segment last passed to {@link #readSegment} up to the end of the last
+     * record visited, which is where a torn tail starts.
+     */
+    public long getValidLength() {
+        return mValidLength;
+    }
+
+    /**
+     * Visits the records of a single segment.
+     *
+     * @return the number of records visited, or {@code -(count + 1)} if the visitor asked to
+     *         stop
+     */
+    public long readSegment(File segment, RecordVisitor visitor) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            mBuffer.clear();
+            fill(channel);
+            if (mBuffer.remaining() < AdvertisementLogWriter.SEGMENT_HEADER_SIZE
+                    || mBuffer.getInt() != AdvertisementLogWriter.SEGMENT_MAGIC) {
+                throw new IOException("Not an advertisement log segment: " + segment);
+            }
+            short version = mBuffer.getShort();
+            int headerSize;
+            if (version == AdvertisementLogWriter.FORMAT_VERSION) {
+                headerSize = AdvertisementLogWriter.RECORD_HEADER_SIZE;
+            } else if (version == AdvertisementLogWriter.FORMAT_VERSION_UNCHECKED) {
+                headerSize = AdvertisementLogWriter.RECORD_HEADER_SIZE_UNCHECKED;
+            } else {
+                throw new IOException("Unsupported log version " + version + " in " + segment);
+            }
+            boolean checksummed = headerSize == AdvertisementLogWriter.RECORD_HEADER_SIZE;
+            mBuffer.position(AdvertisementLogWriter.SEGMENT_HEADER_SIZE);
+            mValidLength = AdvertisementLogWriter.SEGMENT_HEADER_SIZE;
+            // File offset of the start of the buffer.
+            long bufferOffset = 0;
+
+            long count = 0;
+            while (true) {
+                if (mBuffer.remaining() < headerSize) {
+                    bufferOffset += mBuffer.position();
+                    mBuffer.compact();
+                    fill(channel);
+                    if (mBuffer.remaining() < headerSize) {
+                        return count;
+                    }
+                }
+                int start = mBuffer.position();
+                int length = mBuffer.getInt(start);
+                if (length < headerSize - 4 || length > headerSize - 4
+                        + AdvertisementLogWriter.MAX_SCAN_RECORD_LENGTH) {
+                    return count;
+                }
+                if (mBuffer.remaining() < length + 4) {
+                    bufferOffset += mBuffer.position();
+                    mBuffer.compact();
+                    fill(channel);
+                    if (mBuffer.remaining() < length + 4) {
+                        return count;
+                    }
+                    start = mBuffer.position();
+                }
+                if (checksummed && mBuffer.getInt(start + 4)
+                        != AdvertisementLogWriter.recordChecksum(mBuffer, start, length + 4)) {
+                    return count;
+                }
+                mBuffer.position(checksummed ? start + 8 : start + 4);
+                long timestampNanos = mBuffer.getLong();
+                long address = MacAddresses.get(mBuffer);
+                int rssi = mBuffer.get();
+                int txPower = mBuffer.get();
+                int end = start + 4 + length;
+
+                int limit = mBuffer.limit();
+                mBuffer.limit(end);
+                boolean more = visitor.onRecord(timestampNanos, address, rssi, txPower, mBuffer);
+                mBuffer.limit(limit);
+                mBuffer.position(end);
+                mValidLength = bufferOffset + end;
+                count++;
+                if (!more) {
+                    return -(count + 1);
+                }
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads from the channel into the buffer until it is full or the file ends, then flips it.
+     */
+    private void fill(FileChannel channel) throws IOException {
+        while (mBuffer.hasRemaining()) {
+            if (channel.read(mBuffer) < 0) {
+                break;
+            }
+        }
+        mBuffer.flip();
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Persists every received advertisement into append-only binary segment files.
+ *
+ * Each segment starts with a fixed header and is followed by length-prefixed records:
+ * <pre>
+ *   int   length of the rest of the record
+ *   int   CRC-32C of the length and of everything after this field
+ *   long  timestamp, nanoseconds since the Unix epoch
+ *   byte[6] device address
+ *   byte  RSSI in dBm
+ *   byte  TX power level in dBm, or {@link #TX_POWER_UNKNOWN}
+ *   byte[] raw scan record
+ * </pre>
+ *
+ * Records are staged in a preallocated direct buffer and only handed to the
+ * {@link FileChannel} when the buffer is full, so appending does not allocate. Segments are
+ * rolled once they reach a size limit and fsync is batched: the channel is forced every
+ * {@code syncEveryRecords} records or {@code syncIntervalNanos}, whichever comes first. The
+ * interval is only checked as records arrive, so the owner also calls {@link #syncIfDue}
+ * periodically to bound how long records stay unsynced once appends stop.
+ * Closed segments are handed to a {@link SegmentListener}, normally a {@link LogCompactor}
+ * that compresses them in the background.
+ *
+ * The segments double as a write-ahead log. Android kills background processes without
+ * warning and a device can lose power between syncs, so the newest segment may end in a
+ * partly written record or in garbage the file system never finished writing. Each record
+ * carries a checksum, and a new writer first recovers the newest segment by truncating it
+ * after its last intact record; a segment whose header never made it to disk is deleted. Only
+ * the newest segment needs this, since a segment is synced before the next one is opened.
+ *
+ * This class has no Android dependencies and is not thread safe; callers must confine it to
+ * a single thread.
+ */
+public class AdvertisementLogWriter implements Closeable {
+
+    /**
+     * Told about each segment once it is complete.
+     */
+    public interface SegmentListener {
+
+        /**
+         * Called on the writer's thread after {@code segment} has been synced and closed, when
+         * the writer rolls to the next segment or is closed. The writer never touches the file
+         * again.
+         */
+        void onSegmentClosed(File segment);
+    }
+
+    /**
+     * "ADVL", written at the start of every segment.
+     */
+    public static final int SEGMENT_MAGIC = 0x4144564C;
+
+    public static final short FORMAT_VERSION = 2;
+
+    /**
+     * Version of segments written before records carried a checksum. They are still read, and
+     * recovered by record length alone.
+     */
+    public static final short FORMAT_VERSION_UNCHECKED = 1;
+
+    /**
+     * Magic, version, a reserved short and the segment creation time in epoch milliseconds.
+     */
+    public static final int SEGMENT_HEADER_SIZE = 4 + 2 + 2 + 8;
+
+    /**
+     * Bytes that precede the scan record: length, checksum, timestamp, address, RSSI and TX
+     * power.
+     */
+    public static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + MacAddresses.LENGTH + 1 + 1;
+
+    /**
+     * Record header size in {@link #FORMAT_VERSION_UNCHECKED} segments, which lack the
+     * checksum.
+     */
+    public static final int RECORD_HEADER_SIZE_UNCHECKED = RECORD_HEADER_SIZE - 4;
+
+    /**
+     * Largest scan record accepted, matching the extended advertising data limit.
+     */
+    public static final int MAX_SCAN_RECORD_LENGTH = 1650;
+
+    /**
+     * Value stored when the advertisement did not include a TX power level.
+     */
+    public static final byte TX_POWER_UNKNOWN = 127;
+
+    public static final String SEGMENT_PREFIX = "adv-";
+
+    public static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final AdvertisementLogReader.RecordVisitor COUNT_RECORDS =
+            new AdvertisementLogReader.RecordVisitor() {
+                @Override
+                public boolean onRecord(long timestampNanos, long address, int rssi,
+                                        int txPower, ByteBuffer scanRecord) {
+                    return true;
+                }
+            };
+
+    private final File mDirectory;
+
+    private final long mSegmentSizeBytes;
+
+    private final int mSyncEveryRecords;
+
+    private final long mSyncIntervalNanos;
+
+    private final ByteBuffer mBuffer;
+
+    private RandomAccessFile mFile;
+
+    private File mSegmentFile;
+
+    private SegmentListener mSegmentListener;
+
+    private FileChannel mChannel;
+
+    private long mSegmentSequence;
+
+    private long mSegmentBytes;
+
+    private int mRecordsSinceSync;
+
+    private long mLastSyncNanos;
+
+    private long mRecordCount;
+
+    private long mSyncCount;
+
+    private int mSegmentCount;
+
+    private long mRecoveredRecords;
+
+    private long mTruncatedBytes;
+
+    private long mRecoveryNanos;
+
+    /**
+     * Opens a writer that starts a fresh segment in {@code directory}, after any segments
+     * already present, raw or compressed. The newest existing segment is recovered first if it
+     * is still raw.
+     *
+     * @param segmentSizeBytes  roll to a new segment once the current one reaches this size
+     * @param syncEveryRecords  force the file to disk after this many records
+     * @param syncIntervalNanos force the file to disk when this much time has passed since
+     *                          the last sync, even if fewer records were written
+     */
+    public AdvertisementLogWriter(File directory, long segmentSizeBytes, int syncEveryRecords,
+                                  long syncIntervalNanos) throws IOException {
+        if (segmentSizeBytes < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE
+                + MAX_SCAN_RECORD_LENGTH) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSizeBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create log directory " + directory);
+        }
+        mDirectory = directory;
+        mSegmentSizeBytes = segmentSizeBytes;
+        mSyncEveryRecords = Math.max(1, syncEveryRecords);
+        mSyncIntervalNanos = syncIntervalNanos;
+        mBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+        mSegmentSequence = findLastSegmentSequence(directory);
+        File last = new File(directory, segmentName(mSegmentSequence));
+        if (last.exists()) {
+            recover(last);
+        }
+        openNextSegment();
+    }
+
+    /**
+     * Appends one advertisement to the log.
+     *
+     * @param timestampNanos time the advertisement was received, nanoseconds since the epoch
+     * @param address        device address packed with {@link MacAddresses#pack(String)}
+     * @param rssi           received signal strength in dBm
+     * @param txPower        advertised TX power level in dBm, or {@link #TX_POWER_UNKNOWN}
+     * @param scanRecord     raw advertisement bytes, may be null
+     */
+    public void append(long timestampNanos, long address, int rssi, int txPower,
+                       byte[] scanRecord, int offset, int length) throws IOException {
+        if (scanRecord == null) {
+            length = 0;
+        }
+        if (length > MAX_SCAN_RECORD_LENGTH) {
+            length = MAX_SCAN_RECORD_LENGTH;
+        }
+        int recordSize = RECORD_HEADER_SIZE + length;
+
+        if (mSegmentBytes + mBuffer.position() + recordSize > mSegmentSizeBytes) {
+            rollSegment();
+        }
+        if (mBuffer.remaining() < recordSize) {
+            flush();
+        }
+
+        int start = mBuffer.position();
+        mBuffer.putInt(recordSize - 4);
+        mBuffer.putInt(0);
+        mBuffer.putLong(timestampNanos);
+        MacAddresses.put(mBuffer, address);
+        mBuffer.put((byte) rssi);
+        mBuffer.put((byte) txPower);
+        if (length > 0) {
+            mBuffer.put(scanRecord, offset, length);
+        }
+        mBuffer.putInt(start + 4, recordChecksum(mBuffer, start, recordSize));
+        mRecordCount++;
+
+        if (++mRecordsSinceSync >= mSyncEveryRecords
+                || System.nanoTime() - mLastSyncNanos >= mSyncIntervalNanos) {
+            sync();
+        }
+    }
+
+    /**
+     * Convenience overload for a whole scan record.
+     */
+    public void append(long timestampNanos, long address, int rssi, int txPower,
+                       byte[] scanRecord) throws IOException {
+        append(timestampNanos, address, rssi, txPower, scanRecord, 0,
+                scanRecord == null ? 0 : scanRecord.length);
+    }
+
+    /**
+     * Hands any staged records to the file channel without forcing them to disk.
+     */
+    public void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mSegmentBytes += mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * Syncs if records have been appended since the last sync and it was at least
+     * {@code syncIntervalNanos} before {@code nowNanos}, a {@link System#nanoTime()} value.
+     *
+     * @return true if the log was synced
+     */
+    public boolean syncIfDue(long nowNanos) throws IOException {
+        if (mRecordsSinceSync == 0 || nowNanos - mLastSyncNanos < mSyncIntervalNanos) {
+            return false;
+        }
+        sync();
+        return true;
+    }
+
+    /**
+     * Flushes staged records and forces the current segment to disk.
+     */
+    public void sync() throws IOException {
+        flush();
+        mChannel.force(false);
+        mRecordsSinceSync = 0;
+        mLastSyncNanos = System.nanoTime();
+        mSyncCount++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            sync();
+        } finally {
+            mFile.close();
+            mFile = null;
+            mChannel = null;
+        }
+        if (mSegmentListener != null) {
+            mSegmentListener.onSegmentClosed(mSegmentFile);
+        }
+    }
+
+    /**
+     * Sets the listener told about segments as they are closed, or null.
+     */
+    public void setSegmentListener(SegmentListener listener) {
+        mSegmentListener = listener;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Total records appended by this writer.
+     */
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Number of times the log has been forced to disk.
+     */
+    public long getSyncCount() {
+        return mSyncCount;
+    }
+
+    /**
+     * Sequence number of the segment being written.
+     */
+    public long getSegmentSequence() {
+        return mSegmentSequence;
+    }
+
+    /**
+     * Number of segments opened by this writer.
+     */
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    /**
+     * Complete records found in the segment recovered when this writer was opened.
+     */
+    public long getRecoveredRecords() {
+        return mRecoveredRecords;
+    }
+
+    /**
+     * Bytes of torn or corrupt records cut off the recovered segment.
+     */
+    public long getTruncatedBytes() {
+        return mTruncatedBytes;
+    }
+
+    /**
+     * Time spent recovering the newest segment when this writer was opened.
+     */
+    public long getRecoveryNanos() {
+        return mRecoveryNanos;
+    }
+
+    /**
+     * Returns the checksum of the {@code recordSize}-byte record starting at {@code start}:
+     * the CRC-32C of its length field followed by everything after the checksum field.
+     */
+    static int recordChecksum(ByteBuffer buffer, int start, int recordSize) {
+        int crc = Crc32c.compute(buffer, start, 4);
+        return Crc32c.update(crc, buffer, start + 8, recordSize - 8);
+    }
+
+    /**
+     * Returns the file name used for the segment with the given sequence number. Names sort
+     * lexicographically in write order.
+     */
+    public static String segmentName(long sequence) {
+        StringBuilder name = new StringBuilder(SEGMENT_PREFIX);
+        String digits = Long.toString(sequence);
+        for (int i = digits.length(); i < 12; i++) {
+            name.append('0');
+        }
+        return name.append(digits).append(SEGMENT_SUFFIX).toString();
+    }
+
+    /**
+     * Parses the sequence number out of a segment file name, or returns -1 if the name does
+     * not belong to a segment.
+     */
+    public static long parseSegmentSequence(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        sync();
+        mFile.close();
+        File closed = mSegmentFile;
+        openNextSegment();
+        if (mSegmentListener != null) {
+            mSegmentListener.onSegmentClosed(closed);
+        }
+    }
+
+    private void openNextSegment() throws IOException {
+        mSegmentSequence++;
+        mSegmentFile = new File(mDirectory, segmentName(mSegmentSequence));
+        mFile = new RandomAccessFile(mSegmentFile, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mSegmentBytes = 0;
+        mSegmentCount++;
+
+        mBuffer.putInt(SEGMENT_MAGIC);
+        mBuffer.putShort(FORMAT_VERSION);
+        mBuffer.putShort((short) 0);
+        mBuffer.putLong(System.currentTimeMillis());
+        sync();
+    }
+
+    /**
+     * Truncates {@code segment} after its last intact record, or deletes it if its header is
+     * missing or unreadable, and syncs the result so the cut survives another crash.
+     */
+    private void recover(File segment) throws IOException {
+        long start = System.nanoTime();
+        long validLength = 0;
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            long length = file.length();
+            // A header that never fully reached the disk reads as a short file, zeros or
+            // garbage; such a segment can't hold any records.
+            if (length >= SEGMENT_HEADER_SIZE && file.readInt() == SEGMENT_MAGIC) {
+                short version = file.readShort();
+                if (version == FORMAT_VERSION || version == FORMAT_VERSION_UNCHECKED) {
+                    AdvertisementLogReader reader = new AdvertisementLogReader(mDirectory);
+                    mRecoveredRecords = reader.readSegment(segment, COUNT_RECORDS);
+                    validLength = reader.getValidLength();
+                }
+            }
+            if (validLength < length) {
+                file.setLength(validLength);
+                file.getFD().sync();
+                mTruncatedBytes = length - validLength;
+            }
+        } finally {
+            file.close();
+        }
+        if (validLength == 0 && !segment.delete()) {
+            throw new IOException("Unable to delete torn segment " + segment);
+        }
+        mRecoveryNanos = System.nanoTime() - start;
+    }
+
+    private static long findLastSegmentSequence(File directory) {
+        long last = 0;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                last = Math.max(last, parseSegmentSequence(name));
+                last = Math.max(last, CompressedSegment.parseSegmentSequence(name));
+            }
+        }
+        return last;
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable, allocation-free parser for raw advertisement payloads.
+ *
+ * A payload is a sequence of AD structures, each a length byte followed by a type byte and
+ * {@code length - 1} bytes of data. {@link #parse} walks the structures once, in place, and
+ * only records where each field lives; the typed accessors then read the values straight out
+ * of the caller's {@code byte[]} or {@link ByteBuffer}. One parser instance is meant to be
+ * reused for every advertisement on a thread, unlike {@code android.bluetooth.le.ScanRecord}
+ * which builds lists, maps and {@code ParcelUuid}s for each one.
+ *
+ * UUIDs are returned as numbers: 16 and 32-bit UUIDs as ints, 128-bit UUIDs as their most and
+ * least significant longs (the same halves as {@link java.util.UUID}). Accessor indexes refer
+ * to the order fields appear in the payload. Not thread safe.
+ */
+public class AdvertisementParser {
+
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_SERVICE_UUIDS_16_INCOMPLETE = 0x02;
+    public static final int TYPE_SERVICE_UUIDS_16_COMPLETE = 0x03;
+    public static final int TYPE_SERVICE_UUIDS_32_INCOMPLETE = 0x04;
+    public static final int TYPE_SERVICE_UUIDS_32_COMPLETE = 0x05;
+    public static final int TYPE_SERVICE_UUIDS_128_INCOMPLETE = 0x06;
+    public static final int TYPE_SERVICE_UUIDS_128_COMPLETE = 0x07;
+    public static final int TYPE_LOCAL_NAME_SHORT = 0x08;
+    public static final int TYPE_LOCAL_NAME_COMPLETE = 0x09;
+    public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int TYPE_SERVICE_DATA_16 = 0x16;
+    public static final int TYPE_SERVICE_DATA_32 = 0x20;
+    public static final int TYPE_SERVICE_DATA_128 = 0x21;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    /**
+     * Returned by {@link #getTxPowerLevel()} when absent, matching {@code ScanRecord}.
+     */
+    public static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+
+    /**
+     * Fields of one kind beyond this many are ignored. A legacy 31-byte advertisement can't
+     * hold more than this, and extended advertisements rarely do.
+     */
+    public static final int MAX_FIELDS = 16;
+
+    /**
+     * Upper 64 bits of the Bluetooth base UUID, {@code 0000xxxx-0000-1000-8000-00805F9B34FB}.
+     */
+    public static final long BASE_UUID_MSB = 0x0000000000001000L;
+
+    public static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private byte[] mArray;
+
+    private ByteBuffer mBuffer;
+
+    private int mStart;
+
+    private int mEnd;
+
+    private boolean mTruncated;
+
+    private int mFlags;
+
+    private int mTxPowerLevel;
+
+    private int mNameOffset;
+
+    private int mNameLength;
+
+    private boolean mNameComplete;
+
+    // Offsets of each UUID value.
+    private final int[] mUuid16 = new int[MAX_FIELDS];
+    private int mUuid16Count;
+    private final int[] mUuid32 = new int[MAX_FIELDS];
+    private int mUuid32Count;
+    private final int[] mUuid128 = new int[MAX_FIELDS];
+    private int mUuid128Count;
+
+    // Manufacturer data: offset of the company ID, and length of the data following it.
+    private final int[] mManufacturerOffset = new int[MAX_FIELDS];
+    private final int[] mManufacturerLength = new int[MAX_FIELDS];
+    private int mManufacturerCount;
+
+    // Service data: offset of the UUID, its width in bytes, and length of the data after it.
+    private final int[] mServiceDataOffset = new int[MAX_FIELDS];
+    private final int[] mServiceDataUuidWidth = new int[MAX_FIELDS];
+    private final int[] mServiceDataLength = new int[MAX_FIELDS];
+    private int mServiceDataCount;
+
+    /**
+     * Parses {@code length} bytes of {@code data} starting at {@code offset}. The array is
+     * referenced, not copied, until the next call.
+     *
+     * @return this parser, for chaining
+     */
+    public AdvertisementParser parse(byte[] data, int offset, int length) {
+        mArray = data;
+        mBuffer = null;
+        return parse(offset, offset + length);
+    }
+
+    public AdvertisementParser parse(byte[] data) {
+        return parse(data, 0, data == null ? 0 : data.length);
+    }
+
+    /**
+     * Parses the bytes between the buffer's position and limit, without changing either.
+     */
+    public AdvertisementParser parse(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return parse(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        }
+        mArray = null;
+        mBuffer = buffer;
+        return parse(buffer.position(), buffer.limit());
+    }
+
+    private AdvertisementParser parse(int start, int end) {
+        mStart = start;
+        mEnd = mArray == null && mBuffer == null ? start : end;
+        mTruncated = false;
+        mFlags = -1;
+        mTxPowerLevel = TX_POWER_UNKNOWN;
+        mNameOffset = -1;
+        mNameLength = 0;
+        mNameComplete = false;
+        mUuid16Count = 0;
+        mUuid32Count = 0;
+        mUuid128Count = 0;
+        mManufacturerCount = 0;
+        mServiceDataCount = 0;
+
+        int position = mStart;
+        while (position < mEnd) {
+            int length = u8(position);
+            if (length == 0) {
+                // Zero length marks the start of the padding.
+                break;
+            }
+            if (position + 1 + length > mEnd) {
+                mTruncated = true;
+                break;
+            }
+            int type = u8(position + 1);
+            int data = position + 2;
+            int dataLength = length - 1;
+            switch (type) {
+                case TYPE_FLAGS:
+                    if (dataLength >= 1) {
+                        mFlags = u8(data);
+                    }
+                    break;
+                case TYPE_SERVICE_UUIDS_16_INCOMPLETE:
+                case TYPE_SERVICE_UUIDS_16_COMPLETE:
+                    mUuid16Count = addOffsets(mUuid16, mUuid16Count, data, dataLength, 2);
+                    break;
+                case TYPE_SERVICE_UUIDS_32_INCOMPLETE:
+                case TYPE_SERVICE_UUIDS_32_COMPLETE:
+                    mUuid32Count = addOffsets(mUuid32, mUuid32Count, data, dataLength, 4);
+                    break;
+                case TYPE_SERVICE_UUIDS_128_INCOMPLETE:
+                case TYPE_SERVICE_UUIDS_128_COMPLETE:
+                    mUuid128Count = addOffsets(mUuid128, mUuid128Count, data, dataLength, 16);
+                    break;
+                case TYPE_LOCAL_NAME_SHORT:
+                case TYPE_LOCAL_NAME_COMPLETE:
+                    // Prefer the complete name if both are present.
+                    if (mNameOffset < 0 || type == TYPE_LOCAL_NAME_COMPLETE) {
+                        mNameOffset = data;
+                        mNameLength = dataLength;
+                        mNameComplete = type == TYPE_LOCAL_NAME_COMPLETE;
+                    }
+                    break;
+                case TYPE_TX_POWER_LEVEL:
+                    if (dataLength >= 1) {
+                        mTxPowerLevel = s8(data);
+                    }
+                    break;
+                case TYPE_SERVICE_DATA_16:
+                    addServiceData(data, dataLength, 2);
+                    break;
+                case TYPE_SERVICE_DATA_32:
+                    addServiceData(data, dataLength, 4);
+                    break;
+                case TYPE_SERVICE_DATA_128:
+                    addServiceData(data, dataLength, 16);
+                    break;
+                case TYPE_MANUFACTURER_DATA:
+                    if (dataLength >= 2 && mManufacturerCount < MAX_FIELDS) {
+                        mManufacturerOffset[mManufacturerCount] = data;
+                        mManufacturerLength[mManufacturerCount] = dataLength - 2;
+                        mManufacturerCount++;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            position += 1 + length;
+        }
+        return this;
+    }
+
+    private static int addOffsets(int[] offsets, int count, int data, int dataLength,
+                                  int width) {
+        for (int i = 0; i + width <= dataLength && count < MAX_FIELDS; i += width) {
+            offsets[count++] = data + i;
+        }
+        return count;
+    }
+
+    private void addServiceData(int data, int dataLength, int uuidWidth) {
+        if (dataLength >= uuidWidth && mServiceDataCount < MAX_FIELDS) {
+            mServiceDataOffset[mServiceDataCount] = data;
+            mServiceDataUuidWidth[mServiceDataCount] = uuidWidth;
+            mServiceDataLength[mServiceDataCount] = dataLength - uuidWidth;
+            mServiceDataCount++;
+        }
+    }
+
+    /**
+     * True if the last AD structure claimed more bytes than the payload holds. Fields parsed
+     * before it are still available.
+     */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    /**
+     * Returns the advertising flags, or -1 if absent.
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * Returns the advertised TX power level in dBm, or {@link #TX_POWER_UNKNOWN}.
+     */
+    public int getTxPowerLevel() {
+        return mTxPowerLevel;
+    }
+
+    public boolean hasLocalName() {
+        return mNameOffset >= 0;
+    }
+
+    public boolean isLocalNameComplete() {
+        return mNameComplete;
+    }
+
+    /**
+     * Appends the local name to {@code out}, decoding it as UTF-8.
+     *
+     * @return false if the advertisement has no local name
+     */
+    public boolean appendLocalName(StringBuilder out) {
+        if (mNameOffset < 0) {
+            return false;
+        }
+        int end = mNameOffset + mNameLength;
+        int i = mNameOffset;
+        while (i < end) {
+            int b = u8(i++);
+            if (b < 0x80) {
+                out.append((char) b);
+            } else if (b >= 0xC0 && b < 0xE0 && i < end) {
+                out.append((char) (((b & 0x1F) << 6) | (u8(i++) & 0x3F)));
+            } else if (b >= 0xE0 && b < 0xF0 && i + 1 < end) {
+                out.append((char) (((b & 0x0F) << 12) | ((u8(i) & 0x3F) << 6)
+                        | (u8(i + 1) & 0x3F)));
+                i += 2;
+            } else {
+                // Four byte sequences and malformed input become a replacement character.
+                out.append('\uFFFD');
+                while (i < end && (u8(i) & 0xC0) == 0x80) {
+                    i++;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Convenience that allocates a String; prefer {@link #appendLocalName} on hot paths.
+     */
+    public String getLocalName() {
+        if (mNameOffset < 0) {
+            return null;
+        }
+        StringBuilder name = new StringBuilder(mNameLength);
+        appendLocalName(name);
+        return name.toString();
+    }
+
+    public int getServiceUuid16Count() {
+        return mUuid16Count;
+    }
+
+    public int getServiceUuid16(int index) {
+        return u16le(mUuid16[index]);
+    }
+
+    public int getServiceUuid32Count() {
+        return mUuid32Count;
+    }
+
+    public int getServiceUuid32(int index) {
+        return s32le(mUuid32[index]);
+    }
+
+    public int getServiceUuid128Count() {
+        return mUuid128Count;
+    }
+
+    public long getServiceUuid128Msb(int index) {
+        return s64le(mUuid128[index] + 8);
+    }
+
+    public long getServiceUuid128Lsb(int index) {
+        return s64le(mUuid128[index]);
+    }
+
+    /**
+     * True if the 16-bit service UUID is listed, either directly or as a 128-bit UUID built on
+     * the Bluetooth base UUID.
+     */
+    public boolean hasServiceUuid16(int uuid) {
+        for (int i = 0; i < mUuid16Count; i++) {
+            if (getServiceUuid16(i) == uuid) {
+                return true;
+            }
+        }
+        long msb = BASE_UUID_MSB | ((long) uuid << 32);
+        for (int i = 0; i < mUuid128Count; i++) {
+            if (getServiceUuid128Msb(i) == msb && getServiceUuid128Lsb(i) == BASE_UUID_LSB) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getManufacturerDataCount() {
+        return mManufacturerCount;
+    }
+
+    /**
+     * Returns the Bluetooth SIG company identifier of the given manufacturer data field.
+     */
+    public int getManufacturerId(int index) {
+        return u16le(mManufacturerOffset[index]);
+    }
+
+    /**
+     * Offset, in the parsed array or buffer, of the data following the company identifier.
+     */
+    public int getManufacturerDataOffset(int index) {
+        return mManufacturerOffset[index] + 2;
+    }
+
+    public int getManufacturerDataLength(int index) {
+        return mManufacturerLength[index];
+    }
+
+    /**
+     * Returns the index of the first manufacturer data field from the company, or -1.
+     */
+    public int findManufacturerData(int companyId) {
+        for (int i = 0; i < mManufacturerCount; i++) {
+            if (getManufacturerId(i) == companyId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getServiceDataCount() {
+        return mServiceDataCount;
+    }
+
+    /**
+     * Width in bytes (2, 4 or 16) of the UUID that keys the given service data field.
+     */
+    public int getServiceDataUuidWidth(int index) {
+        return mServiceDataUuidWidth[index];
+    }
+
+    /**
+     * Returns the UUID of a 16 or 32-bit service data field.
+     */
+    public int getServiceDataUuid(int index) {
+        int offset = mServiceDataOffset[index];
+        return mServiceDataUuidWidth[index] == 2 ? u16le(offset) : s32le(offset);
+    }
+
+    public long getServiceDataUuid128Msb(int index) {
+        return s64le(mServiceDataOffset[index] + 8);
+    }
+
+    public long getServiceDataUuid128Lsb(int index) {
+        return s64le(mServiceDataOffset[index]);
+    }
+
+    /**
+     * Offset, in the parsed array or buffer, of the data following the service UUID.
+     */
+    public int getServiceDataOffset(int index) {
+        return mServiceDataOffset[index] + mServiceDataUuidWidth[index];
+    }
+
+    public int getServiceDataLength(int index) {
+        return mServiceDataLength[index];
+    }
+
+    /**
+     * Returns the index of the first service data field keyed by the 16-bit UUID, or -1.
+     */
+    public int findServiceData16(int uuid) {
+        for (int i = 0; i < mServiceDataCount; i++) {
+            if (mServiceDataUuidWidth[i] == 2 && u16le(mServiceDataOffset[i]) == uuid) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Raw access to the parsed bytes, by absolute offset, for decoders layered on top.
+
+    public int u8(int offset) {
+        return (mArray != null ? mArray[offset] : mBuffer.get(offset)) & 0xFF;
+    }
+
+    public int s8(int offset) {
+        return mArray != null ? mArray[offset] : mBuffer.get(offset);
+    }
+
+    public int u16le(int offset) {
+        return u8(offset) | (u8(offset + 1) << 8);
+    }
+
+    public int u16be(int offset) {
+        return (u8(offset) << 8) | u8(offset + 1);
+    }
+
+    public int s32le(int offset) {
+        return u16le(offset) | (u16le(offset + 2) << 16);
+    }
+
+    public int s32be(int offset) {
+        return (u16be(offset) << 16) | u16be(offset + 2);
+    }
+
+    public long s64le(int offset) {
+        return (s32le(offset) & 0xFFFFFFFFL) | ((long) s32le(offset + 4) << 32);
+    }
+
+    public long s64be(int offset) {
+        return ((long) s32be(offset) << 32) | (s32be(offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.Arrays;
+
+/**
+ * Table of beacon frame decoders, looked up by where a frame lives in the advertisement rather
+ * than tried one after another.
+ *
+ * Manufacturer-specific frames are keyed by company ID and the two bytes that follow it (the
+ * beacon code); service data frames by 16-bit service UUID and their first byte (the frame
+ * type). {@link #decode} turns each field of a parsed record into one of those keys and looks
+ * it up in a {@link MacIndex}, so a new frame type is a new table entry, not a new branch.
+ * Neither lookup nor the built-in decoders allocate. Not thread safe once in use; register
+ * everything up front.
+ */
+public class BeaconDecoders {
+
+    /**
+     * Decodes one frame into an event.
+     */
+    public interface Decoder {
+
+        /**
+         * @param record the parsed advertisement; read the frame with its raw accessors
+         * @param offset offset of the frame: just past the company ID for manufacturer data,
+         *               just past the service UUID for service data
+         * @param length bytes available from {@code offset}
+         * @return false if the frame is malformed, in which case {@code event} is ignored
+         */
+        boolean decode(AdvertisementParser record, int offset, int length, BeaconEvent event);
+    }
+
+    /**
+     * Company ID that matches manufacturer data from any company.
+     */
+    public static final int ANY_COMPANY = 0x10000;
+
+    public static final int COMPANY_APPLE = 0x004C;
+
+    public static final int SERVICE_EDDYSTONE = 0xFEAA;
+
+    private static final long SOURCE_MANUFACTURER = 1L << 40;
+
+    private static final long SOURCE_SERVICE_16 = 2L << 40;
+
+    private final MacIndex mTable = new MacIndex();
+
+    private Decoder[] mDecoders = new Decoder[8];
+
+    private int mDecoderCount;
+
+    /**
+     * Returns a table with the iBeacon, AltBeacon and Eddystone UID/URL/TLM/EID decoders.
+     */
+    public static BeaconDecoders createDefault() {
+        BeaconDecoders decoders = new BeaconDecoders();
+        decoders.registerManufacturer(COMPANY_APPLE, 0x0215, new IBeaconDecoder());
+        decoders.registerManufacturer(ANY_COMPANY, 0xBEAC, new AltBeaconDecoder());
+        decoders.registerService16(SERVICE_EDDYSTONE, 0x00, new EddystoneUidDecoder());
+        decoders.registerService16(SERVICE_EDDYSTONE, 0x10, new EddystoneUrlDecoder());
+        decoders.registerService16(SERVICE_EDDYSTONE, 0x20, new EddystoneTlmDecoder());
+        decoders.registerService16(SERVICE_EDDYSTONE, 0x30, new EddystoneEidDecoder());
+        return decoders;
+    }
+
+    /**
+     * Registers a decoder for manufacturer data whose first two bytes after the company ID
+     * are {@code beaconCode}, big-endian. A decoder for a specific company takes precedence
+     * over one registered for {@link #ANY_COMPANY}.
+     */
+    public void registerManufacturer(int companyId, int beaconCode, Decoder decoder) {
+        register(manufacturerKey(companyId, beaconCode), decoder);
+    }
+
+    /**
+     * Registers a decoder for service data under a 16-bit UUID whose first byte is
+     * {@code frameType}.
+     */
+    public void registerService16(int serviceUuid, int frameType, Decoder decoder) {
+        register(serviceKey(serviceUuid, frameType), decoder);
+    }
+
+    /**
+     * Decodes the first beacon frame found in {@code record}.
+     *
+     * @return true if {@code event} now holds a frame; otherwise it is reset
+     */
+    public boolean decode(AdvertisementParser record, BeaconEvent event) {
+        event.reset();
+        for (int i = 0; i < record.getManufacturerDataCount(); i++) {
+            int offset = record.getManufacturerDataOffset(i);
+            int length = record.getManufacturerDataLength(i);
+            if (length < 2) {
+                continue;
+            }
+            int companyId = record.getManufacturerId(i);
+            int beaconCode = record.u16be(offset);
+            int slot = mTable.get(manufacturerKey(companyId, beaconCode));
+            if (slot == MacIndex.NO_SLOT) {
+                slot = mTable.get(manufacturerKey(ANY_COMPANY, beaconCode));
+            }
+            if (slot != MacIndex.NO_SLOT) {
+                event.setCompanyId(companyId);
+                if (mDecoders[slot].decode(record, offset, length, event)) {
+                    return true;
+                }
+                event.reset();
+            }
+        }
+        for (int i = 0; i < record.getServiceDataCount(); i++) {
+            int length = record.getServiceDataLength(i);
+            if (record.getServiceDataUuidWidth(i) != 2 || length < 1) {
+                continue;
+            }
+            int offset = record.getServiceDataOffset(i);
+            int slot = mTable.get(serviceKey(record.getServiceDataUuid(i), record.u8(offset)));
+            if (slot != MacIndex.NO_SLOT) {
+                if (mDecoders[slot].decode(record, offset, length, event)) {
+                    return true;
+                }
+                event.reset();
+            }
+        }
+        return false;
+    }
+
+    private void register(long key, Decoder decoder) {
+        int slot = mTable.get(key);
+        if (slot == MacIndex.NO_SLOT) {
+            if (mDecoderCount == mDecoders.length) {
+                mDecoders = Arrays.copyOf(mDecoders, mDecoderCount * 2);
+            }
+            slot = mDecoderCount++;
+            mTable.put(key, slot);
+        }
+        mDecoders[slot] = decoder;
+    }
+
+    private static long manufacturerKey(int companyId, int beaconCode) {
+        return SOURCE_MANUFACTURER | ((long) companyId << 16) | beaconCode;
+    }
+
+    private static long serviceKey(int serviceUuid, int frameType) {
+        return SOURCE_SERVICE_16 | ((long) serviceUuid << 16) | frameType;
+    }
+
+    /**
+     * Apple iBeacon: code 0x0215, 16-byte proximity UUID, major, minor, power at 1 m.
+     */
+    static final class IBeaconDecoder implements Decoder {
+
+        @Override
+        public boolean decode(AdvertisementParser record, int offset, int length,
+                BeaconEvent event) {
+            if (length < 23) {
+                return false;
+            }
+            event.setType(BeaconEvent.TYPE_IBEACON);
+            event.setId(record.s64be(offset + 2), record.s64be(offset + 10));
+            event.setMajorMinor(record.u16be(offset + 18), record.u16be(offset + 20));
+            event.setTxPower(record.s8(offset + 22));
+            return true;
+        }
+    }
+
+    /**
+     * AltBeacon: code 0xBEAC, 20-byte beacon ID (read as UUID, major and minor), reference
+     * RSSI at 1 m and a reserved byte.
+     */
+    static final class AltBeaconDecoder implements Decoder {
+
+        @Override
+        public boolean decode(AdvertisementParser record, int offset, int length,
+                BeaconEvent event) {
+            if (length < 24) {
+                return false;
+            }
+            event.setType(BeaconEvent.TYPE_ALTBEACON);
+            event.setId(record.s64be(offset + 2), record.s64be(offset + 10));
+            event.setMajorMinor(record.u16be(offset + 18), record.u16be(offset + 20));
+            event.setTxPower(record.s8(offset + 22));
+            return true;
+        }
+    }
+
+    /**
+     * Eddystone-UID: frame type, power at 0 m, 10-byte namespace, 6-byte instance.
+     */
+    static final class EddystoneUidDecoder implements Decoder {
+
+        @Override
+        public boolean decode(AdvertisementParser record, int offset, int length,
+                BeaconEvent event) {
+            if (length < 18) {
+                return false;
+            }
+            event.setType(BeaconEvent.TYPE_EDDYSTONE_UID);
+            event.setTxPower(record.s8(offset + 1));
+            event.setId(record.s64be(offset + 2), record.s64be(offset + 10));
+            return true;
+        }
+    }
+
+    /**
+     * Eddystone-URL: frame type, power at 0 m, scheme prefix, encoded URL.
+     */
+    static final class EddystoneUrlDecoder implements Decoder {
+
+        @Override
+        public boolean decode(AdvertisementParser record, int offset, int length,
+                BeaconEvent event) {
+            if (length < 3 || record.u8(offset + 2) > 3) {
+                return false;
+            }
+            event.setType(BeaconEvent.TYPE_EDDYSTONE_URL);
+            event.setTxPower(record.s8(offset + 1));
+            event.setUrl(record, record.u8(offset + 2), offset + 3, length - 3);
+            return true;
+        }
+    }
+
+    /**
+     * Unencrypted Eddystone-TLM: frame type, version 0, battery mV, 8.8 temperature,
+     * advertising count and uptime in tenths of a second, all big-endian.
+     */
+    static final class EddystoneTlmDecoder implements Decoder {
+
+        @Override
+        public boolean decode(AdvertisementParser record, int offset, int length,
+                BeaconEvent event) {
+            if (length < 14 || record.u8(offset + 1) != 0) {
+                return false;
+            }
+            event.setType(BeaconEvent.TYPE_EDDYSTONE_TLM);
+            event.setTelemetry(record.u16be(offset + 2),
+                    (short) record.u16be(offset + 4),
+                    record.s32be(offset + 6) & 0xFFFFFFFFL,
+                    record.s32be(offset + 10) & 0xFFFFFFFFL);
+            return true;
+        }
+    }
+
+    /**
+     * Eddystone-EID: frame type, power at 0 m, 8-byte ephemeral ID.
+     */
+    static final class EddystoneEidDecoder implements Decoder {
+
+        @Override
+        public boolean decode(AdvertisementParser record, int offset, int length,
+                BeaconEvent event) {
+            if (length < 10) {
+                return false;
+            }
+            event.setType(BeaconEvent.TYPE_EDDYSTONE_EID);
+            event.setTxPower(record.s8(offset + 1));
+            event.setId(record.s64be(offset + 2), 0);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.UUID;
+
+/**
+ * One decoded beacon frame, filled in by {@link BeaconDecoders}. Every field is a primitive so
+ * a single instance can be reused for each advertisement; which fields are meaningful depends
+ * on {@link #getType()}:
+ *
+ * <ul>
+ * <li>iBeacon and AltBeacon: proximity UUID as {@link #getIdMsb()}/{@link #getIdLsb()},
+ * major, minor, calibrated power at 1 m and the company ID.</li>
+ * <li>Eddystone-UID: the 10-byte namespace followed by the 6-byte instance, packed big-endian
+ * into {@link #getIdMsb()}/{@link #getIdLsb()}, and calibrated power at 0 m.</li>
+ * <li>Eddystone-URL: scheme and encoded URL, expanded by {@link #appendUrl(StringBuilder)}.</li>
+ * <li>Eddystone-TLM: battery voltage, temperature, advertising and uptime counters.</li>
+ * <li>Eddystone-EID: the 8-byte ephemeral ID in {@link #getIdMsb()}.</li>
+ * </ul>
+ *
+ * Not thread safe.
+ */
+public class BeaconEvent {
+
+    public static final int TYPE_NONE = 0;
+    public static final int TYPE_IBEACON = 1;
+    public static final int TYPE_ALTBEACON = 2;
+    public static final int TYPE_EDDYSTONE_UID = 3;
+    public static final int TYPE_EDDYSTONE_URL = 4;
+    public static final int TYPE_EDDYSTONE_TLM = 5;
+    public static final int TYPE_EDDYSTONE_EID = 6;
+
+    /**
+     * Temperature reported by TLM frames from beacons without a sensor.
+     */
+    public static final int TEMPERATURE_UNSUPPORTED = -0x8000;
+
+    private static final String[] URL_SCHEMES = {
+            "http://www.", "https://www.", "http://", "https://",
+    };
+
+    private static final String[] URL_EXPANSIONS = {
+            ".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/", ".gov/",
+            ".com", ".org", ".edu", ".net", ".info", ".biz", ".gov",
+    };
+
+    private int mType;
+
+    private int mCompanyId;
+
+    private int mTxPower;
+
+    private long mIdMsb;
+
+    private long mIdLsb;
+
+    private int mMajor;
+
+    private int mMinor;
+
+    private int mBatteryMillivolts;
+
+    private int mTemperature;
+
+    private long mAdvertisingCount;
+
+    private long mUptimeDeciseconds;
+
+    private AdvertisementParser mRecord;
+
+    private int mUrlScheme;
+
+    private int mUrlOffset;
+
+    private int mUrlLength;
+
+    public BeaconEvent() {
+        reset();
+    }
+
+    public void reset() {
+        mType = TYPE_NONE;
+        mCompanyId = -1;
+        mTxPower = AdvertisementParser.TX_POWER_UNKNOWN;
+        mIdMsb = 0;
+        mIdLsb = 0;
+        mMajor = 0;
+        mMinor = 0;
+        mBatteryMillivolts = 0;
+        mTemperature = TEMPERATURE_UNSUPPORTED;
+        mAdvertisingCount = 0;
+        mUptimeDeciseconds = 0;
+        mRecord = null;
+        mUrlScheme = 0;
+        mUrlOffset = 0;
+        mUrlLength = 0;
+    }
+
+    // Setters used by decoders. Each decoder sets the type first, then the fields for it.
+
+    public void setType(int type) {
+        mType = type;
+    }
+
+    public void setCompanyId(int companyId) {
+        mCompanyId = companyId;
+    }
+
+    public void setTxPower(int txPower) {
+        mTxPower = txPower;
+    }
+
+    public void setId(long msb, long lsb) {
+        mIdMsb = msb;
+        mIdLsb = lsb;
+    }
+
+    public void setMajorMinor(int major, int minor) {
+        mMajor = major;
+        mMinor = minor;
+    }
+
+    public void setTelemetry(int batteryMillivolts, int temperature, long advertisingCount,
+            long uptimeDeciseconds) {
+        mBatteryMillivolts = batteryMillivolts;
+        mTemperature = temperature;
+        mAdvertisingCount = advertisingCount;
+        mUptimeDeciseconds = uptimeDeciseconds;
+    }
+
+    /**
+     * Points the event at an encoded URL inside {@code record}, which must not be re-parsed
+     * until the URL has been read.
+     */
+    public void setUrl(AdvertisementParser record, int scheme, int offset, int length) {
+        mRecord = record;
+        mUrlScheme = scheme;
+        mUrlOffset = offset;
+        mUrlLength = length;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public boolean isBeacon() {
+        return mType != TYPE_NONE;
+    }
+
+    /**
+     * Company ID from the manufacturer data, or -1 for Eddystone frames.
+     */
+    public int getCompanyId() {
+        return mCompanyId;
+    }
+
+    /**
+     * Calibrated TX power in dBm, or {@link AdvertisementParser#TX_POWER_UNKNOWN}.
+     */
+    public int getTxPower() {
+        return mTxPower;
+    }
+
+    public long getIdMsb() {
+        return mIdMsb;
+    }
+
+    public long getIdLsb() {
+        return mIdLsb;
+    }
+
+    /**
+     * The Eddystone-UID instance: the low 6 bytes of {@link #getIdLsb()}.
+     */
+    public long getInstance() {
+        return mIdLsb & 0xFFFFFFFFFFFFL;
+    }
+
+    public int getMajor() {
+        return mMajor;
+    }
+
+    public int getMinor() {
+        return mMinor;
+    }
+
+    public int getBatteryMillivolts() {
+        return mBatteryMillivolts;
+    }
+
+    /**
+     * Beacon temperature as signed 8.8 fixed point degrees Celsius, or
+     * {@link #TEMPERATURE_UNSUPPORTED}.
+     */
+    public int getTemperature() {
+        return mTemperature;
+    }
+
+    public float getTemperatureCelsius() {
+        return mTemperature / 256f;
+    }
+
+    public long getAdvertisingCount() {
+        return mAdvertisingCount;
+    }
+
+    /**
+     * Time since the beacon powered up, in tenths of a second.
+     */
+    public long getUptimeDeciseconds() {
+        return mUptimeDeciseconds;
+    }
+
+    /**
+     * Appends the expanded Eddystone-URL.
+     *
+     * @return false if this isn't a URL frame
+     */
+    public boolean appendUrl(StringBuilder out) {
+        if (mType != TYPE_EDDYSTONE_URL) {
+            return false;
+        }
+        out.append(URL_SCHEMES[mUrlScheme]);
+        for (int i = 0; i < mUrlLength; i++) {
+            int c = mRecord.u8(mUrlOffset + i);
+            if (c < URL_EXPANSIONS.length) {
+                out.append(URL_EXPANSIONS[c]);
+            } else if (c > 0x20 && c < 0x7F) {
+                out.append((char) c);
+            } else {
+                out.append('\uFFFD');
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends a one line, human-readable summary of the frame.
+     */
+    public void describe(StringBuilder out) {
+        switch (mType) {
+            case TYPE_IBEACON:
+            case TYPE_ALTBEACON:
+                out.append(mType == TYPE_IBEACON ? "iBeacon " : "AltBeacon ")
+                        .append(new UUID(mIdMsb, mIdLsb))
+                        .append(" major ").append(mMajor)
+                        .append(" minor ").append(mMinor);
+                break;
+            case TYPE_EDDYSTONE_UID:
+                out.append("Eddystone-UID ");
+                appendHex(out, mIdMsb, 8);
+                appendHex(out, mIdLsb >>> 48, 2);
+                out.append(' ');
+                appendHex(out, getInstance(), 6);
+                break;
+            case TYPE_EDDYSTONE_URL:
+                out.append("Eddystone-URL ");
+                appendUrl(out);
+                break;
+            case TYPE_EDDYSTONE_TLM:
+                out.append("Eddystone-TLM ").append(mBatteryMillivolts).append(" mV");
+                if (mTemperature != TEMPERATURE_UNSUPPORTED) {
+                    out.append(' ').append(getTemperatureCelsius()).append(" \u00B0C");
+                }
+                out.append(" uptime ").append(mUptimeDeciseconds / 10).append(" s");
+                break;
+            case TYPE_EDDYSTONE_EID:
+                out.append("Eddystone-EID ");
+                appendHex(out, mIdMsb, 8);
+                break;
+            default:
+                return;
+        }
+        if (mTxPower != AdvertisementParser.TX_POWER_UNKNOWN) {
+            out.append(", ").append(mTxPower).append(" dBm");
+        }
+    }
+
+    private static void appendHex(StringBuilder out, long value, int bytes) {
+        for (int shift = bytes * 8 - 4; shift >= 0; shift -= 4) {
+            out.append(Character.forDigit((int) (value >>> shift) & 0xF, 16));
+        }
+    }
+}
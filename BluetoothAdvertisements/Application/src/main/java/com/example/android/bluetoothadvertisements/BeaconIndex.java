@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The secondary index of one {@link CompressedSegment}, mapping beacon identifiers
+ * ({@link BeaconKey}) and RSSI to the ordinals of the segment's records, so that a query
+ * reads only the blocks holding matches; see {@link BeaconQuery}.
+ *
+ * An index file, written by {@link BeaconIndexWriter} next to its segment, is laid out as:
+ * <pre>
+ *   header    int magic, short version, short reserved, int checksum of the segment (see
+ *             {@link CompressedSegment#getChecksum}), int record count, int key count
+ *   keys      one {@link #KEY_ENTRY_SIZE}-byte entry per key, sorted by key: int kind, int
+ *             third value, long first and second values, then the offset, length and
+ *             CRC-32C of its postings
+ *             int CRC-32C of the header and keys
+ *   postings  each key's {@link RoaringBitmap} of record ordinals
+ *   rssi      {@link #RSSI_BITS} bitmaps, slice {@code i} holding the records whose
+ *             {@code rssi + 128} has bit {@code i} set, then an int CRC-32C of them
+ * </pre>
+ *
+ * The keys form a single sorted run per segment: identifiers sharing a prefix, such as a
+ * proximity UUID, are adjacent, so a {@link BeaconKey.Range} is a binary search and a scan.
+ * Opening an index reads only its header and keys; postings and slices are read and checked
+ * when a query needs them. RSSI thresholds are answered from the slices without touching the
+ * records (O'Neil and Quass, "Improved query performance with variant indexes"). Segments
+ * are immutable, so an index is written once, when its segment is; one whose checksum doesn't
+ * match the segment's is stale, left by an interrupted merge, and ignored. Instances keep the
+ * file open and reuse a buffer, so they are not thread safe.
+ */
+public class BeaconIndex implements Closeable {
+
+    /**
+     * "ADVI".
+     */
+    public static final int INDEX_MAGIC = 0x41445649;
+
+    public static final short FORMAT_VERSION = 1;
+
+    public static final int HEADER_SIZE = 4 + 2 + 2 + 4 + 4 + 4;
+
+    public static final int KEY_ENTRY_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+
+    public static final int RSSI_BITS = 8;
+
+    public static final String INDEX_SUFFIX = ".logi";
+
+    private static final int ENTRY_KIND = 0;
+    private static final int ENTRY_THIRD = 4;
+    private static final int ENTRY_FIRST = 8;
+    private static final int ENTRY_SECOND = 16;
+    private static final int ENTRY_OFFSET = 24;
+    private static final int ENTRY_LENGTH = 28;
+    private static final int ENTRY_CRC = 32;
+
+    private final File mFile;
+
+    private final RandomAccessFile mRandomAccessFile;
+
+    private final int mSegmentChecksum;
+
+    private final int mRecordCount;
+
+    private final int mKeyCount;
+
+    /**
+     * The header and key entries.
+     */
+    private final ByteBuffer mKeys;
+
+    private final long mPostingsStart;
+
+    private final long mSlicesStart;
+
+    private final long mLength;
+
+    private byte[] mBuffer = new byte[4096];
+
+    private RoaringBitmap[] mRssiSlices;
+
+    private BeaconIndex(File file, RandomAccessFile raf) throws IOException {
+        mFile = file;
+        mRandomAccessFile = raf;
+        mLength = raf.length();
+        if (mLength < HEADER_SIZE + 4 + 4) {
+            throw new IOException("Not a beacon index: " + file);
+        }
+        raf.seek(0);
+        if (raf.readInt() != INDEX_MAGIC) {
+            throw new IOException("Not a beacon index: " + file);
+        }
+        short version = raf.readShort();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported beacon index version " + version + " in " + file);
+        }
+        raf.seek(HEADER_SIZE - 4);
+        int keyCount = raf.readInt();
+        if (keyCount < 0
+                || HEADER_SIZE + (long) keyCount * KEY_ENTRY_SIZE + 4 + 4 > mLength) {
+            throw new IOException("Corrupt beacon index: " + file);
+        }
+        byte[] keys = new byte[HEADER_SIZE + keyCount * KEY_ENTRY_SIZE + 4];
+        raf.seek(0);
+        raf.readFully(keys);
+        mKeys = ByteBuffer.wrap(keys);
+        if (Crc32c.compute(keys, 0, keys.length - 4) != mKeys.getInt(keys.length - 4)) {
+            throw new IOException("Checksum mismatch in the keys of " + file);
+        }
+        mSegmentChecksum = mKeys.getInt(8);
+        mRecordCount = mKeys.getInt(12);
+        mKeyCount = keyCount;
+        mPostingsStart = keys.length;
+        long postingsLength = 0;
+        if (mKeyCount > 0) {
+            int last = HEADER_SIZE + (mKeyCount - 1) * KEY_ENTRY_SIZE;
+            postingsLength = (long) mKeys.getInt(last + ENTRY_OFFSET)
+                    + mKeys.getInt(last + ENTRY_LENGTH);
+        }
+        mSlicesStart = mPostingsStart + postingsLength;
+        if (postingsLength < 0 || mSlicesStart > mLength - 4) {
+            throw new IOException("Corrupt beacon index: " + file);
+        }
+    }
+
+    /**
+     * Opens an index file, reading its keys. Close it when done.
+     */
+    public static BeaconIndex open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new BeaconIndex(file, raf);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRandomAccessFile.close();
+    }
+
+    /**
+     * Returns the index file of a compressed segment.
+     */
+    public static File indexFile(File segment) {
+        String name = segment.getName();
+        if (name.endsWith(CompressedSegment.SEGMENT_SUFFIX)) {
+            name = name.substring(0, name.length() - CompressedSegment.SEGMENT_SUFFIX.length());
+        }
+        return new File(segment.getParentFile(), name + INDEX_SUFFIX);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getSizeBytes() {
+        return mLength;
+    }
+
+    /**
+     * Checksum of the segment the index was built from.
+     */
+    public int getSegmentChecksum() {
+        return mSegmentChecksum;
+    }
+
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    public int getKeyCount() {
+        return mKeyCount;
+    }
+
+    /**
+     * Returns whether the index was built from this segment.
+     */
+    public boolean matches(CompressedSegment segment) {
+        return mSegmentChecksum == segment.getChecksum()
+                && mRecordCount == segment.getRecordCount();
+    }
+
+    /**
+     * Returns the ordinals of the records carrying any key in the range.
+     */
+    public RoaringBitmap lookup(BeaconKey.Range range) throws IOException {
+        BeaconKey low = range.getLow();
+        BeaconKey high = range.getHigh();
+        // First entry not below the low key.
+        int from = 0;
+        int to = mKeyCount;
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (compareEntry(middle, low) < 0) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        int end = from;
+        while (end < mKeyCount && compareEntry(end, high) <= 0) {
+            end++;
+        }
+        if (from == end) {
+            return new RoaringBitmap();
+        }
+        // The keys' postings are adjacent too, so they are read at once.
+        int start = postingsOffset(from);
+        ByteBuffer buffer = read(mPostingsStart + start, postingsOffset(end - 1)
+                + mKeys.getInt(HEADER_SIZE + (end - 1) * KEY_ENTRY_SIZE + ENTRY_LENGTH) - start);
+        List<RoaringBitmap> postings = new ArrayList<>(end - from);
+        for (int key = from; key < end; key++) {
+            int entry = HEADER_SIZE + key * KEY_ENTRY_SIZE;
+            int offset = mKeys.getInt(entry + ENTRY_OFFSET) - start;
+            int length = mKeys.getInt(entry + ENTRY_LENGTH);
+            if (Crc32c.compute(mBuffer, offset, length) != mKeys.getInt(entry + ENTRY_CRC)) {
+                throw new IOException("Checksum mismatch in the postings of " + mFile);
+            }
+            buffer.limit(offset + length);
+            buffer.position(offset);
+            postings.add(RoaringBitmap.deserialize(buffer));
+        }
+        return postings.size() == 1 ? postings.get(0) : RoaringBitmap.or(postings);
+    }
+
+    /**
+     * Returns the candidates whose RSSI is at least {@code minRssi}, using the bit slices: a
+     * candidate is kept once it has a 1 where the threshold has a 0, with the bits above
+     * equal, or if it equals the threshold in every bit.
+     */
+    public RoaringBitmap filterRssi(RoaringBitmap candidates, int minRssi) throws IOException {
+        int threshold = minRssi + 128;
+        if (threshold <= 0 || candidates.isEmpty()) {
+            return candidates;
+        }
+        if (threshold > 0xFF) {
+            return new RoaringBitmap();
+        }
+        RoaringBitmap[] slices = getRssiSlices();
+        RoaringBitmap greater = new RoaringBitmap();
+        RoaringBitmap equal = candidates;
+        for (int bit = RSSI_BITS - 1; bit >= 0 && !equal.isEmpty(); bit--) {
+            if ((threshold & 1 << bit) != 0) {
+                equal = equal.and(slices[bit]);
+            } else {
+                greater = greater.or(equal.and(slices[bit]));
+                equal = equal.andNot(slices[bit]);
+            }
+        }
+        return greater.or(equal);
+    }
+
+    private int compareEntry(int key, BeaconKey other) {
+        int entry = HEADER_SIZE + key * KEY_ENTRY_SIZE;
+        return BeaconKey.compare(mKeys.getInt(entry + ENTRY_KIND),
+                mKeys.getLong(entry + ENTRY_FIRST), mKeys.getLong(entry + ENTRY_SECOND),
+                mKeys.getInt(entry + ENTRY_THIRD), other.getKind(), other.getFirst(),
+                other.getSecond(), other.getThird());
+    }
+
+    /**
+     * Offset of a key's postings from the start of the postings, checked against the file.
+     */
+    private int postingsOffset(int key) throws IOException {
+        int entry = HEADER_SIZE + key * KEY_ENTRY_SIZE;
+        int offset = mKeys.getInt(entry + ENTRY_OFFSET);
+        int length = mKeys.getInt(entry + ENTRY_LENGTH);
+        if (offset < 0 || length < 0 || offset > mSlicesStart - mPostingsStart - length) {
+            throw new IOException("Corrupt beacon index: " + mFile);
+        }
+        return offset;
+    }
+
+    private RoaringBitmap[] getRssiSlices() throws IOException {
+        if (mRssiSlices == null) {
+            int length = (int) (mLength - 4 - mSlicesStart);
+            ByteBuffer buffer = read(mSlicesStart, length + 4);
+            if (Crc32c.compute(mBuffer, 0, length) != buffer.getInt(length)) {
+                throw new IOException("Checksum mismatch in the RSSI slices of " + mFile);
+            }
+            buffer.limit(length);
+            RoaringBitmap[] slices = new RoaringBitmap[RSSI_BITS];
+            for (int bit = 0; bit < RSSI_BITS; bit++) {
+                slices[bit] = RoaringBitmap.deserialize(buffer);
+            }
+            mRssiSlices = slices;
+        }
+        return mRssiSlices;
+    }
+
+    /**
+     * Reads part of the file into {@link #mBuffer}, returning a view of it.
+     */
+    private ByteBuffer read(long position, int length) throws IOException {
+        if (length > mBuffer.length) {
+            mBuffer = new byte[Math.max(length, mBuffer.length * 2)];
+        }
+        mRandomAccessFile.seek(position);
+        mRandomAccessFile.readFully(mBuffer, 0, length);
+        return ByteBuffer.wrap(mBuffer, 0, length);
+    }
+}
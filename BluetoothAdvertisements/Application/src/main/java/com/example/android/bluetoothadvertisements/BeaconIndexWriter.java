@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Builds the {@link BeaconIndex} of a compressed segment from its records, as
+ * {@link LogCompactor} writes them.
+ *
+ * Each record is given with its ordinal, its position in the segment. Its keys, found by a
+ * {@link BeaconKey.Extractor}, are looked up by a 64-bit hash in a {@link MacIndex} and the
+ * ordinal added to each key's posting list; ordinals only grow, so that appends to the last
+ * container of the bitmap. The RSSI goes into eight bit-sliced bitmaps, slice {@code i}
+ * holding the ordinals of records whose {@code rssi + 128} has bit {@code i} set. Not thread
+ * safe.
+ */
+public class BeaconIndexWriter {
+
+    private final BeaconKey.Extractor mExtractor = new BeaconKey.Extractor();
+
+    private final KeyAdder mAdder = new KeyAdder();
+
+    /**
+     * Hash of each key to its number. Colliding keys take the next free hash.
+     */
+    private final MacIndex mKeyNumbers = new MacIndex();
+
+    private int[] mKinds = new int[64];
+
+    private long[] mFirsts = new long[64];
+
+    private long[] mSeconds = new long[64];
+
+    private int[] mThirds = new int[64];
+
+    private RoaringBitmap[] mPostings = new RoaringBitmap[64];
+
+    private int mKeyCount;
+
+    private final RoaringBitmap[] mRssiSlices = new RoaringBitmap[BeaconIndex.RSSI_BITS];
+
+    private int mOrdinal;
+
+    private long mSizeBytes;
+
+    public BeaconIndexWriter() {
+        for (int i = 0; i < mRssiSlices.length; i++) {
+            mRssiSlices[i] = new RoaringBitmap();
+        }
+    }
+
+    /**
+     * Adds a record. The scan record is read between its position and limit, which are left
+     * unchanged.
+     *
+     * @param ordinal the record's position in the segment, larger than the last one's
+     */
+    public void add(int ordinal, int rssi, ByteBuffer scanRecord) {
+        mOrdinal = ordinal;
+        mExtractor.extract(scanRecord, mAdder);
+        int unsigned = (rssi + 128) & 0xFF;
+        while (unsigned != 0) {
+            int bit = Integer.numberOfTrailingZeros(unsigned);
+            mRssiSlices[bit].add(ordinal);
+            unsigned &= unsigned - 1;
+        }
+    }
+
+    public int getKeyCount() {
+        return mKeyCount;
+    }
+
+    /**
+     * Size of the file last written.
+     */
+    public long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    /**
+     * Writes the index to {@code file}, replacing anything already there, and forces it to
+     * disk.
+     *
+     * @param segmentChecksum {@link CompressedSegmentWriter#getChecksum} of the segment
+     * @param recordCount     records in the segment
+     */
+    public void write(File file, int segmentChecksum, int recordCount) throws IOException {
+        Integer[] order = new Integer[mKeyCount];
+        for (int i = 0; i < mKeyCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer x, Integer y) {
+                return BeaconKey.compare(mKinds[x], mFirsts[x], mSeconds[x], mThirds[x],
+                        mKinds[y], mFirsts[y], mSeconds[y], mThirds[y]);
+            }
+        });
+        int postingsLength = 0;
+        for (int i = 0; i < mKeyCount; i++) {
+            postingsLength += mPostings[i].getSerializedSize();
+        }
+        int slicesLength = 0;
+        for (RoaringBitmap slice : mRssiSlices) {
+            slicesLength += slice.getSerializedSize();
+        }
+        int postingsStart = BeaconIndex.HEADER_SIZE + mKeyCount * BeaconIndex.KEY_ENTRY_SIZE + 4;
+        ByteBuffer buffer = ByteBuffer.allocate(postingsStart + postingsLength + slicesLength + 4);
+        buffer.putInt(BeaconIndex.INDEX_MAGIC);
+        buffer.putShort(BeaconIndex.FORMAT_VERSION);
+        buffer.putShort((short) 0);
+        buffer.putInt(segmentChecksum);
+        buffer.putInt(recordCount);
+        buffer.putInt(mKeyCount);
+        buffer.position(postingsStart);
+        for (int i = 0; i < mKeyCount; i++) {
+            int key = order[i];
+            int offset = buffer.position();
+            mPostings[key].serialize(buffer);
+            int entry = BeaconIndex.HEADER_SIZE + i * BeaconIndex.KEY_ENTRY_SIZE;
+            buffer.putInt(entry, mKinds[key]);
+            buffer.putInt(entry + 4, mThirds[key]);
+            buffer.putLong(entry + 8, mFirsts[key]);
+            buffer.putLong(entry + 16, mSeconds[key]);
+            buffer.putInt(entry + 24, offset - postingsStart);
+            buffer.putInt(entry + 28, buffer.position() - offset);
+            buffer.putInt(entry + 32,
+                    Crc32c.compute(buffer.array(), offset, buffer.position() - offset));
+        }
+        buffer.putInt(postingsStart - 4, Crc32c.compute(buffer.array(), 0, postingsStart - 4));
+        int slicesStart = buffer.position();
+        for (RoaringBitmap slice : mRssiSlices) {
+            slice.serialize(buffer);
+        }
+        buffer.putInt(Crc32c.compute(buffer.array(), slicesStart, slicesLength));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(buffer.array());
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+        mSizeBytes = buffer.capacity();
+    }
+
+    private void addKey(int kind, long first, long second, int third) {
+        long hash = kind;
+        hash = (hash ^ first) * 0x9E3779B97F4A7C15L;
+        hash = (hash ^ second) * 0x9E3779B97F4A7C15L;
+        hash = (hash ^ third) * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 29;
+        while (true) {
+            if (hash == -1) {
+                // The empty key of a MacIndex.
+                hash = 0;
+            }
+            int key = mKeyNumbers.get(hash);
+            if (key == MacIndex.NO_SLOT) {
+                key = newKey(kind, first, second, third);
+                mKeyNumbers.put(hash, key);
+            } else if (mKinds[key] != kind || mFirsts[key] != first
+                    || mSeconds[key] != second || mThirds[key] != third) {
+                hash++;
+                continue;
+            }
+            mPostings[key].add(mOrdinal);
+            return;
+        }
+    }
+
+    private int newKey(int kind, long first, long second, int third) {
+        if (mKeyCount == mKinds.length) {
+            int capacity = mKeyCount * 2;
+            mKinds = Arrays.copyOf(mKinds, capacity);
+            mFirsts = Arrays.copyOf(mFirsts, capacity);
+            mSeconds = Arrays.copyOf(mSeconds, capacity);
+            mThirds = Arrays.copyOf(mThirds, capacity);
+            mPostings = Arrays.copyOf(mPostings, capacity);
+        }
+        int key = mKeyCount++;
+        mKinds[key] = kind;
+        mFirsts[key] = first;
+        mSeconds[key] = second;
+        mThirds[key] = third;
+        mPostings[key] = new RoaringBitmap();
+        return key;
+    }
+
+    private final class KeyAdder implements BeaconKey.KeyVisitor {
+
+        @Override
+        public void onKey(int kind, long first, long second, int third) {
+            addKey(kind, first, second, third);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An identifier a stored advertisement can be looked up by in a {@link BeaconIndex}: the
+ * company ID of its manufacturer data, or the ID of the beacon frame it carries.
+ *
+ * Every key is four numbers, a kind and three values, compared in that order:
+ * <ul>
+ * <li>{@link #KIND_MANUFACTURER}: the company ID, 0, 0</li>
+ * <li>{@link #KIND_IBEACON} and {@link #KIND_ALTBEACON}: the two halves of the ID as
+ *     {@link BeaconEvent#getIdMsb} and {@link BeaconEvent#getIdLsb}, then major and minor as
+ *     {@code major << 16 | minor}</li>
+ * <li>{@link #KIND_EDDYSTONE_UID}: the 10-byte namespace and 6-byte instance packed into two
+ *     longs as {@link BeaconEvent} does, then 0</li>
+ * </ul>
+ * so the keys sharing a proximity UUID, a UUID and major, or an Eddystone namespace sort
+ * next to each other and a {@link Range} finds them all.
+ */
+public final class BeaconKey implements Comparable<BeaconKey> {
+
+    public static final int KIND_MANUFACTURER = 1;
+    public static final int KIND_IBEACON = 2;
+    public static final int KIND_ALTBEACON = 3;
+    public static final int KIND_EDDYSTONE_UID = 4;
+
+    /**
+     * Receives the keys of one scan record from an {@link Extractor}.
+     */
+    public interface KeyVisitor {
+
+        void onKey(int kind, long first, long second, int third);
+    }
+
+    private final int mKind;
+
+    private final long mFirst;
+
+    private final long mSecond;
+
+    private final int mThird;
+
+    public BeaconKey(int kind, long first, long second, int third) {
+        mKind = kind;
+        mFirst = first;
+        mSecond = second;
+        mThird = third;
+    }
+
+    public static BeaconKey manufacturer(int companyId) {
+        return new BeaconKey(KIND_MANUFACTURER, companyId, 0, 0);
+    }
+
+    public static BeaconKey iBeacon(long uuidMsb, long uuidLsb, int major, int minor) {
+        return new BeaconKey(KIND_IBEACON, uuidMsb, uuidLsb, major << 16 | minor);
+    }
+
+    public static BeaconKey eddystoneUid(long idMsb, long idLsb) {
+        return new BeaconKey(KIND_EDDYSTONE_UID, idMsb, idLsb, 0);
+    }
+
+    public int getKind() {
+        return mKind;
+    }
+
+    public long getFirst() {
+        return mFirst;
+    }
+
+    public long getSecond() {
+        return mSecond;
+    }
+
+    public int getThird() {
+        return mThird;
+    }
+
+    @Override
+    public int compareTo(BeaconKey other) {
+        return compare(mKind, mFirst, mSecond, mThird,
+                other.mKind, other.mFirst, other.mSecond, other.mThird);
+    }
+
+    /**
+     * Orders two keys given as their parts.
+     */
+    public static int compare(int kind, long first, long second, int third,
+                              int otherKind, long otherFirst, long otherSecond, int otherThird) {
+        if (kind != otherKind) {
+            return kind < otherKind ? -1 : 1;
+        }
+        if (first != otherFirst) {
+            return first < otherFirst ? -1 : 1;
+        }
+        if (second != otherSecond) {
+            return second < otherSecond ? -1 : 1;
+        }
+        if (third != otherThird) {
+            return third < otherThird ? -1 : 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof BeaconKey)) {
+            return false;
+        }
+        BeaconKey other = (BeaconKey) o;
+        return mKind == other.mKind && mFirst == other.mFirst && mSecond == other.mSecond
+                && mThird == other.mThird;
+    }
+
+    @Override
+    public int hashCode() {
+        long hash = mKind;
+        hash = hash * 31 + mFirst;
+        hash = hash * 31 + mSecond;
+        hash = hash * 31 + mThird;
+        return (int) (hash ^ hash >>> 32);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d:%016x:%016x:%08x", mKind, mFirst, mSecond, mThird);
+    }
+
+    /**
+     * The keys from one key to another, both inclusive.
+     */
+    public static final class Range {
+
+        private final BeaconKey mLow;
+
+        private final BeaconKey mHigh;
+
+        public Range(BeaconKey low, BeaconKey high) {
+            if (low.compareTo(high) > 0) {
+                throw new IllegalArgumentException("Empty range " + low + ".." + high);
+            }
+            mLow = low;
+            mHigh = high;
+        }
+
+        public static Range of(BeaconKey key) {
+            return new Range(key, key);
+        }
+
+        public static Range manufacturer(int companyId) {
+            return of(BeaconKey.manufacturer(companyId));
+        }
+
+        /**
+         * Every iBeacon with this proximity UUID.
+         */
+        public static Range iBeacon(long uuidMsb, long uuidLsb) {
+            return new Range(new BeaconKey(KIND_IBEACON, uuidMsb, uuidLsb, Integer.MIN_VALUE),
+                    new BeaconKey(KIND_IBEACON, uuidMsb, uuidLsb, Integer.MAX_VALUE));
+        }
+
+        /**
+         * Every iBeacon with this proximity UUID and major.
+         */
+        public static Range iBeacon(long uuidMsb, long uuidLsb, int major) {
+            return new Range(BeaconKey.iBeacon(uuidMsb, uuidLsb, major, 0),
+                    BeaconKey.iBeacon(uuidMsb, uuidLsb, major, 0xFFFF));
+        }
+
+        public static Range iBeacon(long uuidMsb, long uuidLsb, int major, int minor) {
+            return of(BeaconKey.iBeacon(uuidMsb, uuidLsb, major, minor));
+        }
+
+        /**
+         * Every Eddystone-UID beacon in a namespace, given as its first 8 bytes and last 2.
+         */
+        public static Range eddystoneNamespace(long namespaceMsb, int namespaceLsb) {
+            long instances = (long) (namespaceLsb & 0xFFFF) << 48;
+            return new Range(BeaconKey.eddystoneUid(namespaceMsb, instances),
+                    BeaconKey.eddystoneUid(namespaceMsb, instances | 0xFFFFFFFFFFFFL));
+        }
+
+        public BeaconKey getLow() {
+            return mLow;
+        }
+
+        public BeaconKey getHigh() {
+            return mHigh;
+        }
+
+        public boolean contains(int kind, long first, long second, int third) {
+            return compare(kind, first, second, third,
+                    mLow.mKind, mLow.mFirst, mLow.mSecond, mLow.mThird) >= 0
+                    && compare(kind, first, second, third,
+                    mHigh.mKind, mHigh.mFirst, mHigh.mSecond, mHigh.mThird) <= 0;
+        }
+
+        @Override
+        public String toString() {
+            return mLow + ".." + mHigh;
+        }
+    }
+
+    /**
+     * Finds the keys of scan records. Reuses its parser, so not thread safe.
+     */
+    public static final class Extractor {
+
+        private final AdvertisementParser mParser = new AdvertisementParser();
+
+        private final BeaconDecoders mDecoders = BeaconDecoders.createDefault();
+
+        private final BeaconEvent mEvent = new BeaconEvent();
+
+        /**
+         * Passes each key of a scan record, read between its position and limit, to the
+         * visitor: one per manufacturer data field and one for a decoded beacon ID.
+         */
+        public void extract(ByteBuffer scanRecord, KeyVisitor visitor) {
+            mParser.parse(scanRecord);
+            for (int i = 0; i < mParser.getManufacturerDataCount(); i++) {
+                visitor.onKey(KIND_MANUFACTURER, mParser.getManufacturerId(i), 0, 0);
+            }
+            if (!mDecoders.decode(mParser, mEvent)) {
+                return;
+            }
+            switch (mEvent.getType()) {
+                case BeaconEvent.TYPE_IBEACON:
+                    visitor.onKey(KIND_IBEACON, mEvent.getIdMsb(), mEvent.getIdLsb(),
+                            mEvent.getMajor() << 16 | mEvent.getMinor());
+                    break;
+                case BeaconEvent.TYPE_ALTBEACON:
+                    visitor.onKey(KIND_ALTBEACON, mEvent.getIdMsb(), mEvent.getIdLsb(),
+                            mEvent.getMajor() << 16 | mEvent.getMinor());
+                    break;
+                case BeaconEvent.TYPE_EDDYSTONE_UID:
+                    visitor.onKey(KIND_EDDYSTONE_UID, mEvent.getIdMsb(), mEvent.getIdLsb(), 0);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
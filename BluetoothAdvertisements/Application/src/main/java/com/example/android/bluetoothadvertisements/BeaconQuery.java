@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the stored advertisements of beacons by identifier, time range and minimum RSSI.
+ *
+ * For each compressed segment with a current {@link BeaconIndex}, the postings of the keys
+ * in the range are intersected with the ordinals of the blocks overlapping the time range and
+ * with those at or above the RSSI threshold, all as {@link RoaringBitmap}s; only the blocks
+ * holding what's left are decompressed, and the records read are checked against the exact
+ * time range. Raw segments, which compaction hasn't reached yet, and segments whose index is
+ * missing or stale are scanned, decoding every record. Compaction is paused, through
+ * {@link LogCompactor#pause}, while a query runs. Not thread safe.
+ */
+public class BeaconQuery {
+
+    private final File mDirectory;
+
+    private final AdvertisementLogReader mReader;
+
+    private final BeaconKey.Extractor mExtractor = new BeaconKey.Extractor();
+
+    // Statistics, over every query so far.
+
+    private int mIndexedSegments;
+
+    private int mScannedSegments;
+
+    private long mCandidates;
+
+    private long mBlocksRead;
+
+    public BeaconQuery(File directory) {
+        mDirectory = directory;
+        mReader = new AdvertisementLogReader(directory);
+    }
+
+    /**
+     * Visits the records carrying a key in {@code range}, received between {@code fromNanos}
+     * and {@code toNanos} inclusive with an RSSI of at least {@code minRssi}, in log order.
+     *
+     * @return the number of records visited
+     */
+    public long run(BeaconKey.Range range, long fromNanos, long toNanos, int minRssi,
+                    AdvertisementLogReader.RecordVisitor visitor) throws IOException {
+        LogCompactor.pause();
+        try {
+            long count = 0;
+            for (File file : AdvertisementLogReader.listLogFiles(mDirectory)) {
+                long read;
+                try {
+                    read = runFile(file, range, fromNanos, toNanos, minRssi, visitor);
+                } catch (FileNotFoundException e) {
+                    // Compacted away since the listing.
+                    continue;
+                }
+                if (read < 0) {
+                    return count - read - 1;
+                }
+                count += read;
+            }
+            return count;
+        } finally {
+            LogCompactor.resume();
+        }
+    }
+
+    /**
+     * @return the number of records visited, or {@code -(count + 1)} if the visitor asked to
+     *         stop
+     */
+    private long runFile(File file, BeaconKey.Range range, long fromNanos, long toNanos,
+                         int minRssi, AdvertisementLogReader.RecordVisitor visitor)
+            throws IOException {
+        ScanFilter filter = new ScanFilter(range, minRssi, visitor);
+        if (CompressedSegment.parseSegmentSequence(file.getName()) < 0) {
+            mScannedSegments++;
+            long read = mReader.readFile(file, fromNanos, toNanos, filter);
+            return read < 0 ? -(filter.mCount + 1) : filter.mCount;
+        }
+        CompressedSegment segment = CompressedSegment.open(file);
+        try {
+            if (segment.getMinTimestampNanos() > toNanos
+                    || segment.getMaxTimestampNanos() < fromNanos) {
+                return 0;
+            }
+            RoaringBitmap candidates = findCandidates(segment, range, fromNanos, toNanos,
+                    minRssi);
+            long read;
+            if (candidates == null) {
+                mScannedSegments++;
+                read = segment.read(fromNanos, toNanos, filter);
+                read = read < 0 ? -(filter.mCount + 1) : filter.mCount;
+            } else {
+                mIndexedSegments++;
+                mCandidates += candidates.getCardinality();
+                read = candidates.isEmpty() ? 0
+                        : segment.read(candidates, fromNanos, toNanos, visitor);
+            }
+            mBlocksRead += segment.getBlocksRead();
+            return read;
+        } finally {
+            segment.close();
+        }
+    }
+
+    /**
+     * Returns the ordinals of the segment's records that may match, from its index, or null
+     * if it has none that matches the segment or the index is damaged.
+     */
+    private static RoaringBitmap findCandidates(CompressedSegment segment,
+                                                BeaconKey.Range range, long fromNanos,
+                                                long toNanos, int minRssi) throws IOException {
+        BeaconIndex index;
+        try {
+            index = BeaconIndex.open(BeaconIndex.indexFile(segment.getFile()));
+        } catch (IOException e) {
+            // Missing, or damaged: the segment is still there to scan.
+            return null;
+        }
+        try {
+            if (!index.matches(segment)) {
+                return null;
+            }
+            RoaringBitmap candidates = index.lookup(range);
+            if (!candidates.isEmpty() && (fromNanos > segment.getMinTimestampNanos()
+                    || toNanos < segment.getMaxTimestampNanos())) {
+                candidates = candidates.and(segment.getOrdinalsBetween(fromNanos, toNanos));
+            }
+            return index.filterRssi(candidates, minRssi);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * Segments searched through their index.
+     */
+    public int getIndexedSegmentCount() {
+        return mIndexedSegments;
+    }
+
+    /**
+     * Segments read in full, for lack of a current index.
+     */
+    public int getScannedSegmentCount() {
+        return mScannedSegments;
+    }
+
+    /**
+     * Records the indexes pointed at, before the exact time check.
+     */
+    public long getCandidateCount() {
+        return mCandidates;
+    }
+
+    /**
+     * Blocks of compressed segments decompressed.
+     */
+    public long getBlocksRead() {
+        return mBlocksRead;
+    }
+
+    /**
+     * Summarizes the queries run so far.
+     */
+    public void describe(StringBuilder out) {
+        out.append("Beacon queries: ").append(mIndexedSegments).append(" segments indexed, ")
+                .append(mScannedSegments).append(" scanned, ").append(mCandidates)
+                .append(" candidates, ").append(mBlocksRead).append(" blocks read\n");
+    }
+
+    /**
+     * Passes on the records of a scanned segment that match the query.
+     */
+    private final class ScanFilter implements AdvertisementLogReader.RecordVisitor,
+            BeaconKey.KeyVisitor {
+
+        private final BeaconKey.Range mRange;
+
+        private final int mMinRssi;
+
+        private final AdvertisementLogReader.RecordVisitor mVisitor;
+
+        private boolean mMatch;
+
+        long mCount;
+
+        ScanFilter(BeaconKey.Range range, int minRssi,
+                   AdvertisementLogReader.RecordVisitor visitor) {
+            mRange = range;
+            mMinRssi = minRssi;
+            mVisitor = visitor;
+        }
+
+        @Override
+        public boolean onRecord(long timestampNanos, long address, int rssi, int txPower,
+                                ByteBuffer scanRecord) {
+            if (rssi < mMinRssi) {
+                return true;
+            }
+            mMatch = false;
+            mExtractor.extract(scanRecord, this);
+            if (!mMatch) {
+                return true;
+            }
+            mCount++;
+            return mVisitor.onRecord(timestampNanos, address, rssi, txPower, scanRecord);
+        }
+
+        @Override
+        public void onKey(int kind, long first, long second, int third) {
+            mMatch |= mRange.contains(kind, first, second, third);
+        }
+    }
+}
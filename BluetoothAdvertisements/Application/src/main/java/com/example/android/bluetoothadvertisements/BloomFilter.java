@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over long keys, such as packed addresses or dictionary ids.
+ *
+ * Sized at about 10 bits per expected key with 4 probes, for roughly a 1% false positive rate.
+ * The probes come from one 64-bit hash by double hashing. A filter is serialized as an int
+ * word count followed by the words, and can be queried in place with
+ * {@link #mightContain(ByteBuffer, int, long)}, e.g. straight from a memory-mapped file.
+ */
+public class BloomFilter {
+
+    private static final int BITS_PER_KEY = 10;
+
+    private static final int PROBES = 4;
+
+    private final long[] mWords;
+
+    private final int mMask;
+
+    public BloomFilter(int expectedKeys) {
+        int bits = 64;
+        while (bits < (long) expectedKeys * BITS_PER_KEY && bits < (1 << 30)) {
+            bits <<= 1;
+        }
+        mWords = new long[bits >>> 6];
+        mMask = bits - 1;
+    }
+
+    public void add(long key) {
+        long hash = mix(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            int bit = (h1 + i * h2) & mMask;
+            mWords[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(long key) {
+        long hash = mix(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            int bit = (h1 + i * h2) & mMask;
+            if ((mWords[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Bytes {@link #writeTo} will write.
+     */
+    public int getSerializedSize() {
+        return 4 + 8 * mWords.length;
+    }
+
+    public void writeTo(ByteBuffer out) {
+        out.putInt(mWords.length);
+        for (long word : mWords) {
+            out.putLong(word);
+        }
+    }
+
+    /**
+     * Queries a filter serialized at {@code offset} of {@code buffer} without copying it. Does
+     * not move the buffer's position.
+     */
+    public static boolean mightContain(ByteBuffer buffer, int offset, long key) {
+        int words = buffer.getInt(offset);
+        int mask = (words << 6) - 1;
+        long hash = mix(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((buffer.getLong(offset + 4 + 8 * (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Bytes taken by the filter serialized at {@code offset}.
+     */
+    public static int serializedSize(ByteBuffer buffer, int offset) {
+        return 4 + 8 * buffer.getInt(offset);
+    }
+
+    private static long mix(long key) {
+        // Murmur3 finalizer, as in MacIndex.
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Queries the partitions written by {@link ColumnarLogWriter}, e.g. "RSSI of device X between
+ * 14:00 and 15:00".
+ *
+ * File names say which hour each partition holds, so only the partitions overlapping a query
+ * are opened; their footers then rule out whole partitions and blocks before anything is
+ * decoded. Partitions are memory-mapped once and kept for later queries; call
+ * {@link #refresh()} to pick up ones closed since, and drop ones deleted by retention.
+ * Incomplete partitions are skipped: the one still being written, and any left by a writer
+ * that was killed until the next writer repairs them.
+ */
+public class ColumnarLogReader {
+
+    /**
+     * Receives matching records, in write order within each partition.
+     */
+    public interface RecordVisitor {
+
+        /**
+         * @return false to stop reading
+         */
+        boolean onRecord(long timestampNanos, long address, int rssi);
+    }
+
+    private final File mDirectory;
+
+    private File[] mFiles;
+
+    private long[] mHours;
+
+    private final HashMap<String, ColumnarPartition> mOpen = new HashMap<>();
+
+    private int mSkippedCount;
+
+    public ColumnarLogReader(File directory) {
+        mDirectory = directory;
+        refresh();
+    }
+
+    /**
+     * Lists the partitions again.
+     */
+    public void refresh() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            if (ColumnarLogWriter.parsePartitionHour(file.getName()) >= 0) {
+                files[count++] = file;
+            }
+        }
+        mFiles = Arrays.copyOf(files, count);
+        Arrays.sort(mFiles);
+        mHours = new long[count];
+        for (int i = 0; i < count; i++) {
+            mHours[i] = ColumnarLogWriter.parsePartitionHour(mFiles[i].getName());
+        }
+        // Retry partitions that were incomplete, in case they have been closed since, and
+        // forget deleted ones.
+        mOpen.values().removeAll(Collections.singleton((ColumnarPartition) null));
+        HashSet<String> names = new HashSet<>();
+        for (File file : mFiles) {
+            names.add(file.getName());
+        }
+        mOpen.keySet().retainAll(names);
+    }
+
+    /**
+     * Number of partition files found, complete or not.
+     */
+    public int getPartitionCount() {
+        return mFiles.length;
+    }
+
+    /**
+     * Partitions that could not be opened so far, normally because they are incomplete.
+     */
+    public int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * Visits one device's records in {@code [fromNanos, toNanos]} with RSSI at least
+     * {@code minRssi}.
+     *
+     * @return false if the visitor asked to stop
+     */
+    public boolean query(long address, long fromNanos, long toNanos, int minRssi,
+            RecordVisitor visitor) {
+        long firstHour = ColumnarPartition.hourOf(fromNanos);
+        long lastHour = ColumnarPartition.hourOf(toNanos);
+        // Sorted by name, hence by hour.
+        int i = Arrays.binarySearch(mHours, firstHour);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        while (i > 0 && mHours[i - 1] == firstHour) {
+            i--;
+        }
+        for (; i < mFiles.length && mHours[i] <= lastHour; i++) {
+            ColumnarPartition partition = partition(mFiles[i]);
+            if (partition != null
+                    && !partition.scan(fromNanos, toNanos, address, minRssi, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visits every device's records in {@code [fromNanos, toNanos]}.
+     *
+     * @return false if the visitor asked to stop
+     */
+    public boolean scan(long fromNanos, long toNanos, RecordVisitor visitor) {
+        return query(ColumnarPartition.ANY_ADDRESS, fromNanos, toNanos, Integer.MIN_VALUE,
+                visitor);
+    }
+
+    private ColumnarPartition partition(File file) {
+        String name = file.getName();
+        ColumnarPartition partition = mOpen.get(name);
+        if (partition == null && !mOpen.containsKey(name)) {
+            try {
+                partition = ColumnarPartition.open(file);
+            } catch (IOException e) {
+                // Still being written, or its writer was killed; the raw log has the records.
+                mSkippedCount++;
+            }
+            // Incomplete partitions are remembered too, until the next refresh.
+            mOpen.put(name, partition);
+        }
+        return partition;
+    }
+}
@@ -0,0 +1,748 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes advertisements into hourly {@link ColumnarPartition} files for querying.
+ *
+ * Each record's timestamp picks its partition. Columns are encoded as records arrive into
+ * per-block buffers, which are written out whenever a block fills, so memory stays bounded by
+ * the block size and the number of distinct devices per hour. A partition only becomes
+ * readable when its footer is written on close. Scan results can arrive late, e.g. in a
+ * controller batch, so the previous hour's partition stays open until records are
+ * {@code lateGraceNanos} past its end; anything older than that is counted in
+ * {@link #getLateCount()} and skipped. The raw {@link AdvertisementLogWriter} log remains the
+ * complete record.
+ *
+ * So that a killed writer doesn't lose its open hours, each block is preceded by a checkpoint
+ * from which the footer can be rebuilt:
+ * <pre>
+ *   int     magic, {@link #CHECKPOINT_MAGIC}
+ *   int     number of devices first seen in the block
+ *   byte[6] their addresses, in id order
+ *   byte[]  the block's {@link ColumnarPartition#BLOCK_ENTRY_SIZE}-byte footer entry
+ *   int     length of the block's columns and bloom filter, which follow
+ *   int     CRC-32C of the columns and bloom filter
+ *   int     CRC-32C of the checkpoint up to here
+ * </pre>
+ * On open, a writer cuts every partition without a footer off after its last intact block and
+ * closes it, or deletes it if no block survived. Only the block being built when the writer
+ * died is lost. Partitions whose hour ended more than {@code retentionNanos} before the newest
+ * record are deleted as new hours start, as compaction does for the raw log.
+ *
+ * Partition files are named by hour and a sequence number, so restarting within an hour adds a
+ * partition rather than replacing one.
+ *
+ * This class has no Android dependencies and is not thread safe; callers must confine it to
+ * a single thread.
+ */
+public class ColumnarLogWriter implements Closeable {
+
+    public static final String PARTITION_PREFIX = "col-";
+
+    public static final String PARTITION_SUFFIX = ".cols";
+
+    /**
+     * "ADVK", at the start of every block checkpoint.
+     */
+    static final int CHECKPOINT_MAGIC = 0x4144564B;
+
+    /**
+     * Checkpoint size without its addresses: magic, address count, block entry, block length,
+     * block checksum and checkpoint checksum.
+     */
+    static final int CHECKPOINT_FIXED_SIZE = 4 + 4 + ColumnarPartition.BLOCK_ENTRY_SIZE + 4 + 4
+            + 4;
+
+    private final File mDirectory;
+
+    private final int mBlockRecords;
+
+    private final long mLateGraceNanos;
+
+    private final long mRetentionNanos;
+
+    private Partition mCurrent;
+
+    private Partition mPrevious;
+
+    private long mRecordCount;
+
+    private long mLateCount;
+
+    private int mPartitionCount;
+
+    private int mRecoveredPartitions;
+
+    private long mRecoveredRecords;
+
+    private long mTruncatedBytes;
+
+    private int mExpiredPartitions;
+
+    /**
+     * Opens a writer over {@code directory}, first recovering any partitions a killed writer
+     * left without a footer.
+     *
+     * @param blockRecords   records per block; the unit queries skip or decode
+     * @param lateGraceNanos how far past the end of an hour records for it are still accepted
+     * @param retentionNanos how long partitions are kept after their hour ends
+     */
+    public ColumnarLogWriter(File directory, int blockRecords, long lateGraceNanos,
+                             long retentionNanos) throws IOException {
+        if (blockRecords < 1) {
+            throw new IllegalArgumentException("blockRecords must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create partition directory " + directory);
+        }
+        mDirectory = directory;
+        mBlockRecords = blockRecords;
+        mLateGraceNanos = lateGraceNanos;
+        mRetentionNanos = retentionNanos;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (parsePartitionHour(file.getName()) >= 0) {
+                    recover(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends one advertisement.
+     *
+     * @param timestampNanos time the advertisement was received, nanoseconds since the epoch
+     * @param address        device address packed with {@link MacAddresses#pack(String)}
+     * @return false if the record was too late for its partition and skipped
+     */
+    public boolean append(long timestampNanos, long address, int rssi) throws IOException {
+        long hour = ColumnarPartition.hourOf(timestampNanos);
+        Partition partition;
+        if (mCurrent == null || hour > mCurrent.mHour) {
+            if (mPrevious != null) {
+                mPrevious.close();
+            }
+            mPrevious = mCurrent;
+            mCurrent = openPartition(hour);
+            partition = mCurrent;
+            deleteExpired(timestampNanos);
+        } else if (hour == mCurrent.mHour) {
+            partition = mCurrent;
+        } else if (mPrevious != null && hour == mPrevious.mHour) {
+            partition = mPrevious;
+        } else {
+            mLateCount++;
+            return false;
+        }
+        partition.append(timestampNanos, address, rssi);
+        mRecordCount++;
+
+        if (mPrevious != null && timestampNanos
+                >= (mPrevious.mHour + 1) * ColumnarPartition.HOUR_NANOS + mLateGraceNanos) {
+            mPrevious.close();
+            mPrevious = null;
+        }
+        return true;
+    }
+
+    /**
+     * Closes every open partition, making them readable. Later appends open new ones.
+     */
+    public void closePartitions() throws IOException {
+        try {
+            if (mPrevious != null) {
+                mPrevious.close();
+            }
+        } finally {
+            mPrevious = null;
+            Partition current = mCurrent;
+            mCurrent = null;
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closePartitions();
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Total records appended, excluding late ones.
+     */
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Records skipped because their partition had already been closed.
+     */
+    public long getLateCount() {
+        return mLateCount;
+    }
+
+    /**
+     * Number of partitions opened by this writer.
+     */
+    public int getPartitionCount() {
+        return mPartitionCount;
+    }
+
+    /**
+     * Incomplete partitions repaired when this writer was opened.
+     */
+    public int getRecoveredPartitions() {
+        return mRecoveredPartitions;
+    }
+
+    /**
+     * Records kept in the partitions repaired when this writer was opened.
+     */
+    public long getRecoveredRecords() {
+        return mRecoveredRecords;
+    }
+
+    /**
+     * Bytes of unfinished blocks cut off, or incomplete partitions deleted, on open.
+     */
+    public long getTruncatedBytes() {
+        return mTruncatedBytes;
+    }
+
+    /**
+     * Partitions deleted because they fell out of the retention window.
+     */
+    public int getExpiredPartitions() {
+        return mExpiredPartitions;
+    }
+
+    /**
+     * Returns the file name of a partition. Names sort lexicographically by hour.
+     */
+    public static String partitionName(long hour, int sequence) {
+        StringBuilder name = new StringBuilder(PARTITION_PREFIX);
+        appendPadded(name, hour, 8);
+        name.append('-');
+        appendPadded(name, sequence, 3);
+        return name.append(PARTITION_SUFFIX).toString();
+    }
+
+    /**
+     * Parses the hour out of a partition file name, or returns -1 if the name does not belong
+     * to a partition.
+     */
+    public static long parsePartitionHour(String name) {
+        if (!name.startsWith(PARTITION_PREFIX) || !name.endsWith(PARTITION_SUFFIX)) {
+            return -1;
+        }
+        int dash = name.indexOf('-', PARTITION_PREFIX.length());
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PARTITION_PREFIX.length(), dash));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void appendPadded(StringBuilder out, long value, int width) {
+        String digits = Long.toString(value);
+        for (int i = digits.length(); i < width; i++) {
+            out.append('0');
+        }
+        out.append(digits);
+    }
+
+    private Partition openPartition(long hour) throws IOException {
+        int sequence = 0;
+        File file;
+        do {
+            file = new File(mDirectory, partitionName(hour, sequence++));
+        } while (file.exists());
+        mPartitionCount++;
+        return Partition.create(file, hour, mBlockRecords);
+    }
+
+    /**
+     * Deletes partitions whose hour ended more than the retention before {@code nowNanos}.
+     * Open partitions are never old enough.
+     */
+    private void deleteExpired(long nowNanos) {
+        String[] names = mDirectory.list();
+        if (names == null) {
+            return;
+        }
+        long cutoff = nowNanos - mRetentionNanos;
+        for (String name : names) {
+            long hour = parsePartitionHour(name);
+            if (hour >= 0 && (hour + 1) * ColumnarPartition.HOUR_NANOS <= cutoff
+                    && new File(mDirectory, name).delete()) {
+                mExpiredPartitions++;
+            }
+        }
+    }
+
+    /**
+     * Writes the footer of a partition left without one, keeping the blocks before the first
+     * torn or missing checkpoint. Complete partitions are left alone.
+     */
+    private void recover(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        Partition partition;
+        try {
+            long length = raf.length();
+            if (isComplete(raf, length)) {
+                raf.close();
+                return;
+            }
+            partition = new Partition(raf, parsePartitionHour(file.getName()), mBlockRecords);
+            partition.recoverBlocks(length);
+            if (partition.mBlockCount == 0) {
+                raf.close();
+                if (!file.delete()) {
+                    throw new IOException("Unable to delete incomplete partition " + file);
+                }
+                mTruncatedBytes += length;
+                return;
+            }
+            mTruncatedBytes += length - partition.mPosition;
+            raf.setLength(partition.mPosition);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        // Closes the file.
+        partition.close();
+        mRecoveredPartitions++;
+        mRecoveredRecords += partition.mRecordCount;
+    }
+
+    private static boolean isComplete(RandomAccessFile raf, long length) throws IOException {
+        if (length < ColumnarPartition.HEADER_SIZE + ColumnarPartition.TRAILER_SIZE) {
+            return false;
+        }
+        raf.seek(length - ColumnarPartition.TRAILER_SIZE);
+        long footerOffset = raf.readLong();
+        int footerLength = raf.readInt();
+        return raf.readInt() == ColumnarPartition.PARTITION_MAGIC
+                && footerOffset >= ColumnarPartition.HEADER_SIZE
+                && footerOffset + footerLength == length - ColumnarPartition.TRAILER_SIZE;
+    }
+
+    /**
+     * Growable byte array holding one encoded column of the block being built.
+     */
+    private static final class Column {
+
+        byte[] mBytes = new byte[1024];
+
+        int mLength;
+
+        void putVarint(long value) {
+            if (mLength + 10 > mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, mBytes.length * 2);
+            }
+            while ((value & ~0x7FL) != 0) {
+                mBytes[mLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mBytes[mLength++] = (byte) value;
+        }
+
+        void putZigZag(long value) {
+            putVarint((value << 1) ^ (value >> 63));
+        }
+    }
+
+    /**
+     * A partition being written.
+     */
+    private static final class Partition {
+
+        final long mHour;
+
+        private final int mBlockRecords;
+
+        private final RandomAccessFile mFile;
+
+        private final FileChannel mChannel;
+
+        private long mPosition;
+
+        // Device dictionary: packed address to id, and ids back to addresses.
+
+        private final MacIndex mIds = new MacIndex();
+
+        private long[] mAddresses = new long[64];
+
+        /**
+         * Ids below this have had their address written in a checkpoint.
+         */
+        private int mCheckpointedDevices;
+
+        /**
+         * For each id, the block it was last seen in plus one, to count distinct devices.
+         */
+        private int[] mLastBlock = new int[64];
+
+        // Block being built.
+
+        private final Column mTimestamps = new Column();
+
+        private final Column mDevices = new Column();
+
+        private final Column mRssi = new Column();
+
+        private int[] mBlockIds = new int[64];
+
+        private int mBlockDeviceCount;
+
+        private int mBlockRecordCount;
+
+        private long mBlockFirst;
+
+        private long mBlockPrevious;
+
+        private long mBlockMinTimestamp;
+
+        private long mBlockMaxTimestamp;
+
+        private int mBlockMinRssi;
+
+        private int mBlockMaxRssi;
+
+        /**
+         * Footer entries of the blocks written so far.
+         */
+        private ByteBuffer mEntries = ByteBuffer.allocate(16 * ColumnarPartition.BLOCK_ENTRY_SIZE);
+
+        private int mBlockCount;
+
+        // Partition totals.
+
+        private int mRecordCount;
+
+        private long mMinTimestamp = Long.MAX_VALUE;
+
+        private long mMaxTimestamp = Long.MIN_VALUE;
+
+        private int mMinRssi = Integer.MAX_VALUE;
+
+        private int mMaxRssi = Integer.MIN_VALUE;
+
+        Partition(RandomAccessFile file, long hour, int blockRecords) {
+            mHour = hour;
+            mBlockRecords = blockRecords;
+            mFile = file;
+            mChannel = file.getChannel();
+        }
+
+        /**
+         * Creates an empty partition file and writes its header.
+         */
+        static Partition create(File file, long hour, int blockRecords) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            Partition partition = new Partition(raf, hour, blockRecords);
+            try {
+                raf.setLength(0);
+                ByteBuffer header = ByteBuffer.allocate(ColumnarPartition.HEADER_SIZE);
+                header.putInt(ColumnarPartition.PARTITION_MAGIC);
+                header.putShort(ColumnarPartition.FORMAT_VERSION);
+                header.putShort((short) 0);
+                header.putLong(hour * ColumnarPartition.HOUR_NANOS / 1000000L);
+                header.flip();
+                partition.write(header);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+            return partition;
+        }
+
+        /**
+         * Reads back the checkpoints of a file {@code length} bytes long that was never
+         * closed, up to the first one that is torn or whose block is, and leaves the partition
+         * positioned after the last intact block, ready to be closed. Leaves it without blocks
+         * if the header itself is missing.
+         */
+        void recoverBlocks(long length) throws IOException {
+            if (length < ColumnarPartition.HEADER_SIZE) {
+                return;
+            }
+            mFile.seek(0);
+            if (mFile.readInt() != ColumnarPartition.PARTITION_MAGIC
+                    || mFile.readShort() != ColumnarPartition.FORMAT_VERSION) {
+                return;
+            }
+            mPosition = ColumnarPartition.HEADER_SIZE;
+            byte[] checkpoint = new byte[CHECKPOINT_FIXED_SIZE];
+            byte[] block = new byte[0];
+            while (length - mPosition >= CHECKPOINT_FIXED_SIZE) {
+                mFile.seek(mPosition);
+                if (mFile.readInt() != CHECKPOINT_MAGIC) {
+                    return;
+                }
+                int devices = mFile.readInt();
+                long size = CHECKPOINT_FIXED_SIZE + (long) devices * MacAddresses.LENGTH;
+                if (devices < 0 || size > length - mPosition) {
+                    return;
+                }
+                if (checkpoint.length < size) {
+                    checkpoint = new byte[(int) size];
+                }
+                mFile.seek(mPosition);
+                mFile.readFully(checkpoint, 0, (int) size);
+                ByteBuffer buffer = ByteBuffer.wrap(checkpoint, 0, (int) size);
+                if (Crc32c.compute(checkpoint, 0, (int) size - 4)
+                        != buffer.getInt((int) size - 4)) {
+                    return;
+                }
+                int entry = 8 + devices * MacAddresses.LENGTH;
+                int blockLength = buffer.getInt(entry + ColumnarPartition.BLOCK_ENTRY_SIZE);
+                int blockChecksum = buffer.getInt(entry + ColumnarPartition.BLOCK_ENTRY_SIZE + 4);
+                if (blockLength < 0 || blockLength > length - mPosition - size) {
+                    return;
+                }
+                if (block.length < blockLength) {
+                    block = new byte[blockLength];
+                }
+                try {
+                    mFile.readFully(block, 0, blockLength);
+                } catch (EOFException e) {
+                    return;
+                }
+                if (Crc32c.compute(block, 0, blockLength) != blockChecksum) {
+                    return;
+                }
+
+                buffer.position(8);
+                for (int i = 0; i < devices; i++) {
+                    addDevice(MacAddresses.get(buffer));
+                }
+                mCheckpointedDevices = mIds.size();
+                buffer.limit(entry + ColumnarPartition.BLOCK_ENTRY_SIZE);
+                addEntry(buffer.slice());
+                // The entry starts with the block's count, first, min and max timestamps, and
+                // min and max RSSI.
+                mRecordCount += buffer.getInt();
+                buffer.getLong();
+                mMinTimestamp = Math.min(mMinTimestamp, buffer.getLong());
+                mMaxTimestamp = Math.max(mMaxTimestamp, buffer.getLong());
+                mMinRssi = Math.min(mMinRssi, buffer.getInt());
+                mMaxRssi = Math.max(mMaxRssi, buffer.getInt());
+                mBlockCount++;
+                mPosition += size + blockLength;
+            }
+        }
+
+        void append(long timestampNanos, long address, int rssi) throws IOException {
+            int id = mIds.get(address);
+            if (id == MacIndex.NO_SLOT) {
+                id = addDevice(address);
+            }
+            if (mBlockRecordCount == 0) {
+                mBlockFirst = timestampNanos;
+                mBlockPrevious = timestampNanos;
+                mBlockMinTimestamp = timestampNanos;
+                mBlockMaxTimestamp = timestampNanos;
+                mBlockMinRssi = rssi;
+                mBlockMaxRssi = rssi;
+            }
+            if (mLastBlock[id] != mBlockCount + 1) {
+                mLastBlock[id] = mBlockCount + 1;
+                if (mBlockDeviceCount == mBlockIds.length) {
+                    mBlockIds = Arrays.copyOf(mBlockIds, mBlockDeviceCount * 2);
+                }
+                mBlockIds[mBlockDeviceCount++] = id;
+            }
+
+            mTimestamps.putZigZag(timestampNanos - mBlockPrevious);
+            mDevices.putVarint(id);
+            mRssi.putZigZag(rssi + ColumnarPartition.RSSI_BIAS);
+            mBlockPrevious = timestampNanos;
+            mBlockMinTimestamp = Math.min(mBlockMinTimestamp, timestampNanos);
+            mBlockMaxTimestamp = Math.max(mBlockMaxTimestamp, timestampNanos);
+            mBlockMinRssi = Math.min(mBlockMinRssi, rssi);
+            mBlockMaxRssi = Math.max(mBlockMaxRssi, rssi);
+
+            if (++mBlockRecordCount == mBlockRecords) {
+                writeBlock();
+            }
+        }
+
+        private int addDevice(long address) {
+            int id = mIds.size();
+            if (id == mAddresses.length) {
+                mAddresses = Arrays.copyOf(mAddresses, id * 2);
+                mLastBlock = Arrays.copyOf(mLastBlock, id * 2);
+            }
+            mAddresses[id] = address;
+            mIds.put(address, id);
+            return id;
+        }
+
+        private void addEntry(ByteBuffer entry) {
+            if (mEntries.remaining() < ColumnarPartition.BLOCK_ENTRY_SIZE) {
+                ByteBuffer entries = ByteBuffer.allocate(mEntries.capacity() * 2);
+                mEntries.flip();
+                entries.put(mEntries);
+                mEntries = entries;
+            }
+            mEntries.put(entry);
+        }
+
+        /**
+         * Writes the block's checkpoint, then its columns and bloom filter.
+         */
+        private void writeBlock() throws IOException {
+            BloomFilter bloom = new BloomFilter(mBlockDeviceCount);
+            for (int i = 0; i < mBlockDeviceCount; i++) {
+                bloom.add(mBlockIds[i]);
+            }
+            ByteBuffer bloomBytes = ByteBuffer.allocate(bloom.getSerializedSize());
+            bloom.writeTo(bloomBytes);
+            int blockLength = mTimestamps.mLength + mDevices.mLength + mRssi.mLength
+                    + bloomBytes.capacity();
+            int blockChecksum = Crc32c.compute(mTimestamps.mBytes, 0, mTimestamps.mLength);
+            blockChecksum = Crc32c.update(blockChecksum, mDevices.mBytes, 0, mDevices.mLength);
+            blockChecksum = Crc32c.update(blockChecksum, mRssi.mBytes, 0, mRssi.mLength);
+            blockChecksum = Crc32c.update(blockChecksum, bloomBytes.array(), 0,
+                    bloomBytes.capacity());
+
+            int devices = mIds.size() - mCheckpointedDevices;
+            ByteBuffer checkpoint = ByteBuffer.allocate(CHECKPOINT_FIXED_SIZE
+                    + devices * MacAddresses.LENGTH);
+            long columns = mPosition + checkpoint.capacity();
+            checkpoint.putInt(CHECKPOINT_MAGIC);
+            checkpoint.putInt(devices);
+            for (int id = mCheckpointedDevices; id < mIds.size(); id++) {
+                MacAddresses.put(checkpoint, mAddresses[id]);
+            }
+            int entry = checkpoint.position();
+            checkpoint.putInt(mBlockRecordCount);
+            checkpoint.putLong(mBlockFirst);
+            checkpoint.putLong(mBlockMinTimestamp);
+            checkpoint.putLong(mBlockMaxTimestamp);
+            checkpoint.putInt(mBlockMinRssi);
+            checkpoint.putInt(mBlockMaxRssi);
+            checkpoint.putLong(columns);
+            checkpoint.putInt(mTimestamps.mLength);
+            checkpoint.putInt(mDevices.mLength);
+            checkpoint.putInt(mRssi.mLength);
+            checkpoint.putLong(columns + blockLength - bloomBytes.capacity());
+            checkpoint.putInt(blockLength);
+            checkpoint.putInt(blockChecksum);
+            checkpoint.putInt(Crc32c.compute(checkpoint.array(), 0, checkpoint.position()));
+            checkpoint.flip();
+            write(checkpoint);
+            write(ByteBuffer.wrap(mTimestamps.mBytes, 0, mTimestamps.mLength));
+            write(ByteBuffer.wrap(mDevices.mBytes, 0, mDevices.mLength));
+            write(ByteBuffer.wrap(mRssi.mBytes, 0, mRssi.mLength));
+            bloomBytes.flip();
+            write(bloomBytes);
+
+            checkpoint.position(entry);
+            checkpoint.limit(entry + ColumnarPartition.BLOCK_ENTRY_SIZE);
+            addEntry(checkpoint.slice());
+            mCheckpointedDevices = mIds.size();
+            mBlockCount++;
+
+            mRecordCount += mBlockRecordCount;
+            mMinTimestamp = Math.min(mMinTimestamp, mBlockMinTimestamp);
+            mMaxTimestamp = Math.max(mMaxTimestamp, mBlockMaxTimestamp);
+            mMinRssi = Math.min(mMinRssi, mBlockMinRssi);
+            mMaxRssi = Math.max(mMaxRssi, mBlockMaxRssi);
+
+            mTimestamps.mLength = 0;
+            mDevices.mLength = 0;
+            mRssi.mLength = 0;
+            mBlockDeviceCount = 0;
+            mBlockRecordCount = 0;
+        }
+
+        /**
+         * Writes the last block, the footer and the trailer, and closes the file.
+         */
+        void close() throws IOException {
+            try {
+                if (mBlockRecordCount > 0) {
+                    writeBlock();
+                }
+                int deviceCount = mIds.size();
+                BloomFilter bloom = new BloomFilter(deviceCount);
+                long[] sorted = Arrays.copyOf(mAddresses, deviceCount);
+                Arrays.sort(sorted);
+                for (long address : sorted) {
+                    bloom.add(address);
+                }
+
+                int footerLength = 32 + (MacAddresses.LENGTH + 4) * deviceCount
+                        + bloom.getSerializedSize() + 4 + mEntries.position();
+                ByteBuffer footer = ByteBuffer.allocate(footerLength
+                        + ColumnarPartition.TRAILER_SIZE);
+                footer.putInt(mRecordCount);
+                footer.putLong(mRecordCount > 0 ? mMinTimestamp : 0);
+                footer.putLong(mRecordCount > 0 ? mMaxTimestamp : 0);
+                footer.putInt(mRecordCount > 0 ? mMinRssi : 0);
+                footer.putInt(mRecordCount > 0 ? mMaxRssi : 0);
+                footer.putInt(deviceCount);
+                for (int id = 0; id < deviceCount; id++) {
+                    MacAddresses.put(footer, mAddresses[id]);
+                }
+                for (long address : sorted) {
+                    footer.putInt(mIds.get(address));
+                }
+                bloom.writeTo(footer);
+                footer.putInt(mBlockCount);
+                mEntries.flip();
+                footer.put(mEntries);
+
+                footer.putLong(mPosition);
+                footer.putInt(footerLength);
+                footer.putInt(ColumnarPartition.PARTITION_MAGIC);
+                footer.flip();
+                write(footer);
+                mChannel.force(false);
+            } finally {
+                mFile.close();
+            }
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                mPosition += mChannel.write(buffer);
+            }
+        }
+    }
+}
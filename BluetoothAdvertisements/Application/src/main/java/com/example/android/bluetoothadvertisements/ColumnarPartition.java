@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One hour of advertisements stored by column, read through a {@link MappedByteBuffer}.
+ *
+ * A partition file, written by {@link ColumnarLogWriter}, is laid out as:
+ * <pre>
+ *   header   int magic, short version, short reserved, long hour start in epoch millis
+ *   blocks   for each block of up to a few thousand records:
+ *              checkpoint  see {@link ColumnarLogWriter}; lets a killed writer's partition be
+ *                          closed later, and is skipped by readers
+ *              timestamps  zig-zag varint deltas, the first from the block's first timestamp
+ *              devices     varint dictionary ids
+ *              RSSI        zig-zag varint of RSSI + {@link #RSSI_BIAS}, one byte in practice
+ *              bloom       {@link BloomFilter} over the block's dictionary ids
+ *   footer   int record count, long min and max timestamp, int min and max RSSI
+ *            int device count, then 6-byte addresses in id order and ids in address order
+ *            {@link BloomFilter} over the partition's addresses
+ *            int block count, then one {@link #BLOCK_ENTRY_SIZE}-byte entry per block
+ *   trailer  long footer offset, int footer length, int magic
+ * </pre>
+ *
+ * Every block entry carries its record count, first, min and max timestamps, min and max RSSI
+ * and where its columns and bloom filter are, so a query only decodes blocks that may match
+ * its time range, device and RSSI threshold. A device is found by checking the partition's
+ * bloom filter and then binary searching the address-ordered ids, all in the mapped file.
+ *
+ * A partition is immutable once written. Reads use absolute gets only, so one instance may be
+ * queried from several threads at once.
+ */
+public class ColumnarPartition {
+
+    /**
+     * "ADVC", at the start and end of every partition.
+     */
+    public static final int PARTITION_MAGIC = 0x41445643;
+
+    public static final short FORMAT_VERSION = 1;
+
+    public static final int HEADER_SIZE = 4 + 2 + 2 + 8;
+
+    public static final int TRAILER_SIZE = 8 + 4 + 4;
+
+    /**
+     * Record count, first, min and max timestamps, min and max RSSI, column offset, the three
+     * column lengths and the bloom filter offset.
+     */
+    public static final int BLOCK_ENTRY_SIZE = 4 + 8 + 8 + 8 + 4 + 4 + 8 + 4 + 4 + 4 + 8;
+
+    /**
+     * Added to RSSI before zig-zag encoding, so the usual -127..-1 dBm take one byte.
+     */
+    public static final int RSSI_BIAS = 64;
+
+    public static final long HOUR_NANOS = 3600L * 1000000000L;
+
+    /**
+     * Passed to {@link #scan} to match every device.
+     */
+    public static final long ANY_ADDRESS = -1;
+
+    public static final int NO_ID = -1;
+
+    // Offsets within a block entry.
+    private static final int ENTRY_COUNT = 0;
+    private static final int ENTRY_FIRST_TIMESTAMP = 4;
+    private static final int ENTRY_MIN_TIMESTAMP = 12;
+    private static final int ENTRY_MAX_TIMESTAMP = 20;
+    private static final int ENTRY_MIN_RSSI = 28;
+    private static final int ENTRY_MAX_RSSI = 32;
+    private static final int ENTRY_COLUMNS = 36;
+    private static final int ENTRY_TIMESTAMPS_LENGTH = 44;
+    private static final int ENTRY_DEVICES_LENGTH = 48;
+    private static final int ENTRY_RSSI_LENGTH = 52;
+    private static final int ENTRY_BLOOM = 56;
+
+    private final File mFile;
+
+    private final MappedByteBuffer mBuffer;
+
+    private final long mHourStartMillis;
+
+    private final int mRecordCount;
+
+    private final long mMinTimestampNanos;
+
+    private final long mMaxTimestampNanos;
+
+    private final int mMinRssi;
+
+    private final int mMaxRssi;
+
+    private final int mDeviceCount;
+
+    private final int mAddressesOffset;
+
+    private final int mSortedIdsOffset;
+
+    private final int mBloomOffset;
+
+    private final int mBlockCount;
+
+    private final int mBlocksOffset;
+
+    private ColumnarPartition(File file, MappedByteBuffer buffer) throws IOException {
+        mFile = file;
+        mBuffer = buffer;
+        int size = buffer.capacity();
+        if (size < HEADER_SIZE + TRAILER_SIZE || buffer.getInt(0) != PARTITION_MAGIC
+                || buffer.getInt(size - 4) != PARTITION_MAGIC) {
+            throw new IOException("Not a complete partition: " + file);
+        }
+        if (buffer.getShort(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported partition version " + buffer.getShort(4));
+        }
+        mHourStartMillis = buffer.getLong(8);
+        long footerOffset = buffer.getLong(size - TRAILER_SIZE);
+        int footerLength = buffer.getInt(size - TRAILER_SIZE + 8);
+        if (footerOffset < HEADER_SIZE || footerOffset + footerLength != size - TRAILER_SIZE) {
+            throw new IOException("Corrupt partition footer: " + file);
+        }
+        int p = (int) footerOffset;
+        mRecordCount = buffer.getInt(p);
+        mMinTimestampNanos = buffer.getLong(p + 4);
+        mMaxTimestampNanos = buffer.getLong(p + 12);
+        mMinRssi = buffer.getInt(p + 20);
+        mMaxRssi = buffer.getInt(p + 24);
+        mDeviceCount = buffer.getInt(p + 28);
+        mAddressesOffset = p + 32;
+        mSortedIdsOffset = mAddressesOffset + MacAddresses.LENGTH * mDeviceCount;
+        mBloomOffset = mSortedIdsOffset + 4 * mDeviceCount;
+        int blockCountOffset = mBloomOffset + BloomFilter.serializedSize(buffer, mBloomOffset);
+        mBlockCount = buffer.getInt(blockCountOffset);
+        mBlocksOffset = blockCountOffset + 4;
+        if (mBlocksOffset + (long) mBlockCount * BLOCK_ENTRY_SIZE != size - TRAILER_SIZE) {
+            throw new IOException("Corrupt partition footer: " + file);
+        }
+    }
+
+    /**
+     * Maps a partition file.
+     *
+     * @throws IOException if it can't be read or is incomplete, e.g. its writer was killed
+     *                     before closing it
+     */
+    public static ColumnarPartition open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Partition too large: " + file);
+            }
+            // The mapping stays valid after the file is closed.
+            return new ColumnarPartition(file,
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } finally {
+            raf.close();
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getHourStartMillis() {
+        return mHourStartMillis;
+    }
+
+    public long getSizeBytes() {
+        return mBuffer.capacity();
+    }
+
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    public long getMinTimestampNanos() {
+        return mMinTimestampNanos;
+    }
+
+    public long getMaxTimestampNanos() {
+        return mMaxTimestampNanos;
+    }
+
+    public int getMinRssi() {
+        return mMinRssi;
+    }
+
+    public int getMaxRssi() {
+        return mMaxRssi;
+    }
+
+    public int getDeviceCount() {
+        return mDeviceCount;
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /**
+     * Returns the packed address with the given dictionary id.
+     */
+    public long addressOf(int id) {
+        int offset = mAddressesOffset + MacAddresses.LENGTH * id;
+        long high = mBuffer.getShort(offset) & 0xFFFFL;
+        long low = mBuffer.getInt(offset + 2) & 0xFFFFFFFFL;
+        return (high << 32) | low;
+    }
+
+    /**
+     * Returns the device's dictionary id, or {@link #NO_ID} if it isn't in this partition.
+     */
+    public int idOf(long address) {
+        if (!BloomFilter.mightContain(mBuffer, mBloomOffset, address)) {
+            return NO_ID;
+        }
+        int low = 0;
+        int high = mDeviceCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = mBuffer.getInt(mSortedIdsOffset + 4 * mid);
+            long candidate = addressOf(id);
+            if (candidate < address) {
+                low = mid + 1;
+            } else if (candidate > address) {
+                high = mid - 1;
+            } else {
+                return id;
+            }
+        }
+        return NO_ID;
+    }
+
+    /**
+     * Hands the visitor every record with a timestamp in {@code [fromNanos, toNanos]}, from
+     * the given device (or {@link #ANY_ADDRESS}) and with RSSI at least {@code minRssi}, in
+     * write order.
+     *
+     * @return false if the visitor asked to stop
+     */
+    public boolean scan(long fromNanos, long toNanos, long address, int minRssi,
+            ColumnarLogReader.RecordVisitor visitor) {
+        if (fromNanos > mMaxTimestampNanos || toNanos < mMinTimestampNanos
+                || minRssi > mMaxRssi) {
+            return true;
+        }
+        int wantedId = NO_ID;
+        if (address != ANY_ADDRESS) {
+            wantedId = idOf(address);
+            if (wantedId == NO_ID) {
+                return true;
+            }
+        }
+        for (int block = 0; block < mBlockCount; block++) {
+            int entry = mBlocksOffset + block * BLOCK_ENTRY_SIZE;
+            if (fromNanos > mBuffer.getLong(entry + ENTRY_MAX_TIMESTAMP)
+                    || toNanos < mBuffer.getLong(entry + ENTRY_MIN_TIMESTAMP)
+                    || minRssi > mBuffer.getInt(entry + ENTRY_MAX_RSSI)) {
+                continue;
+            }
+            if (wantedId != NO_ID && !BloomFilter.mightContain(mBuffer,
+                    (int) mBuffer.getLong(entry + ENTRY_BLOOM), wantedId)) {
+                continue;
+            }
+            if (!scanBlock(entry, fromNanos, toNanos, wantedId, minRssi, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean scanBlock(int entry, long fromNanos, long toNanos, int wantedId, int minRssi,
+            ColumnarLogReader.RecordVisitor visitor) {
+        ByteBuffer buffer = mBuffer;
+        int count = buffer.getInt(entry + ENTRY_COUNT);
+        long timestamp = buffer.getLong(entry + ENTRY_FIRST_TIMESTAMP);
+        int timestamps = (int) buffer.getLong(entry + ENTRY_COLUMNS);
+        int devices = timestamps + buffer.getInt(entry + ENTRY_TIMESTAMPS_LENGTH);
+        int rssis = devices + buffer.getInt(entry + ENTRY_DEVICES_LENGTH);
+        for (int i = 0; i < count; i++) {
+            // Three varints decoded inline; each is at most 10 bytes.
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(timestamps++);
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            timestamp += (delta >>> 1) ^ -(delta & 1);
+
+            int id = 0;
+            shift = 0;
+            do {
+                b = buffer.get(devices++);
+                id |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            int zigzag = 0;
+            shift = 0;
+            do {
+                b = buffer.get(rssis++);
+                zigzag |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            if (wantedId != NO_ID && id != wantedId) {
+                continue;
+            }
+            int rssi = ((zigzag >>> 1) ^ -(zigzag & 1)) - RSSI_BIAS;
+            if (timestamp < fromNanos || timestamp > toNanos || rssi < minRssi) {
+                continue;
+            }
+            if (!visitor.onRecord(timestamp, addressOf(id), rssi)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the hour, counted from the epoch, that a timestamp falls in.
+     */
+    public static long hourOf(long timestampNanos) {
+        long hour = timestampNanos / HOUR_NANOS;
+        return timestampNanos < 0 && hour * HOUR_NANOS != timestampNanos ? hour - 1 : hour;
+    }
+}
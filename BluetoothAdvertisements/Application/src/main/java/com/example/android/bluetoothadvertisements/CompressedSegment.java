@@ -0,0 +1,551 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * A closed advertisement log segment after compression by {@link LogCompactor}, read by time.
+ *
+ * A compressed segment file, written by {@link CompressedSegmentWriter}, is laid out as:
+ * <pre>
+ *   header   int magic, short version, short reserved, long first raw segment sequence
+ *   blocks   LZ4 blocks ({@link Lz4Block}), each up to {@link #BLOCK_SIZE} bytes of records:
+ *              zig-zag varint timestamp delta, the first from the block's first timestamp
+ *              varint device: 1 + its number in the device table, or 0 followed by the
+ *                6-byte address once the table is full
+ *              byte RSSI, byte TX power
+ *              varint scan record: 2 * its length followed by the bytes, or 2 * the number
+ *                of its dictionary entry + 1
+ *   footer   int record count, long min and max timestamp, int device count, int dictionary
+ *            entry count, int block count, the device table of 6-byte addresses, one length
+ *            byte per dictionary entry, the entries' bytes, one {@link #BLOCK_ENTRY_SIZE}-byte
+ *            entry per block, and a CRC-32C of all that
+ *   trailer  long footer offset, int footer length, int magic
+ * </pre>
+ *
+ * Beacons repeat the same payload from the same address over and over, and at a busy site a
+ * block holds too few advertisements of each to repeat there. So devices are numbered, and
+ * scan records seen more than once are stored once, per segment rather than per block, which
+ * takes most of each beacon record out before LZ4 sees it; LZ4 then finds what's left in
+ * common, such as the headers of changing telemetry. The footer is also a sparse time index:
+ * each block entry carries its first, min and max timestamps, so reading a time range only
+ * decompresses the blocks that overlap it. Each entry also has a CRC-32C of the block's
+ * compressed bytes.
+ *
+ * A segment is named after the sequence number of the last raw segment whose records it
+ * holds, and its header records the first: after compaction merges several segments, the
+ * merged file covers that whole range. Instances keep the file open and reuse their buffers,
+ * so they are not thread safe.
+ */
+public class CompressedSegment implements Closeable {
+
+    /**
+     * "ADVZ", at the start and end of every compressed segment.
+     */
+    public static final int SEGMENT_MAGIC = 0x4144565A;
+
+    public static final short FORMAT_VERSION = 1;
+
+    public static final int HEADER_SIZE = 4 + 2 + 2 + 8;
+
+    public static final int TRAILER_SIZE = 8 + 4 + 4;
+
+    /**
+     * Record count, first, min and max timestamps, file offset, compressed and uncompressed
+     * lengths, and the CRC of the compressed bytes.
+     */
+    public static final int BLOCK_ENTRY_SIZE = 4 + 8 + 8 + 8 + 8 + 4 + 4 + 4;
+
+    /**
+     * Largest uncompressed block. Records never straddle blocks.
+     */
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * Largest device table; addresses beyond it are stored inline.
+     */
+    public static final int MAX_DEVICES = 64 * 1024;
+
+    public static final int MAX_DICTIONARY_ENTRIES = 64 * 1024;
+
+    public static final int MAX_DICTIONARY_BYTES = 1024 * 1024;
+
+    /**
+     * Longest scan record the dictionary holds, so entry lengths fit a byte. Legacy
+     * advertisements with their scan responses are at most 62 bytes.
+     */
+    public static final int MAX_DICTIONARY_RECORD_LENGTH = 255;
+
+    public static final String SEGMENT_SUFFIX = ".logz";
+
+    private static final int FOOTER_FIXED_SIZE = 4 + 8 + 8 + 4 + 4 + 4;
+
+    private static final int ENTRY_COUNT = 0;
+    private static final int ENTRY_FIRST_TIMESTAMP = 4;
+    private static final int ENTRY_MIN_TIMESTAMP = 12;
+    private static final int ENTRY_MAX_TIMESTAMP = 20;
+    private static final int ENTRY_OFFSET = 28;
+    private static final int ENTRY_COMPRESSED_LENGTH = 36;
+    private static final int ENTRY_LENGTH = 40;
+    private static final int ENTRY_CRC = 44;
+
+    private final File mFile;
+
+    private final RandomAccessFile mRandomAccessFile;
+
+    private final long mFirstSequence;
+
+    private final int mRecordCount;
+
+    private final int mChecksum;
+
+    private final long mMinTimestamp;
+
+    private final long mMaxTimestamp;
+
+    private final int mBlockCount;
+
+    private final ByteBuffer mEntries;
+
+    private final long[] mDeviceAddresses;
+
+    /**
+     * Start of each dictionary entry in {@link #mDictionary}, plus the end of the last.
+     */
+    private final int[] mEntryOffsets;
+
+    private final ByteBuffer mDictionary;
+
+    private final byte[] mCompressed = new byte[Lz4Block.maxCompressedLength(BLOCK_SIZE)];
+
+    private final byte[] mBlock = new byte[BLOCK_SIZE];
+
+    private final ByteBuffer mBlockBuffer = ByteBuffer.wrap(mBlock);
+
+    /**
+     * View of one inline scan record, handed to visitors.
+     */
+    private final ByteBuffer mScanRecord = ByteBuffer.wrap(mBlock);
+
+    private int mBlocksRead;
+
+    private CompressedSegment(File file, RandomAccessFile raf) throws IOException {
+        mFile = file;
+        mRandomAccessFile = raf;
+        long length = raf.length();
+        if (length < HEADER_SIZE + TRAILER_SIZE) {
+            throw new IOException("Not a compressed log segment: " + file);
+        }
+        raf.seek(0);
+        if (raf.readInt() != SEGMENT_MAGIC) {
+            throw new IOException("Not a compressed log segment: " + file);
+        }
+        short version = raf.readShort();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported compressed log version " + version + " in "
+                    + file);
+        }
+        raf.readShort();
+        mFirstSequence = raf.readLong();
+
+        raf.seek(length - TRAILER_SIZE);
+        long footerOffset = raf.readLong();
+        int footerLength = raf.readInt();
+        if (raf.readInt() != SEGMENT_MAGIC || footerOffset < HEADER_SIZE
+                || footerOffset + footerLength != length - TRAILER_SIZE
+                || footerLength < FOOTER_FIXED_SIZE + 4) {
+            throw new IOException("Incomplete compressed log segment: " + file);
+        }
+        byte[] footer = new byte[footerLength];
+        raf.seek(footerOffset);
+        raf.readFully(footer);
+        ByteBuffer buffer = ByteBuffer.wrap(footer);
+        mChecksum = buffer.getInt(footerLength - 4);
+        if (Crc32c.compute(footer, 0, footerLength - 4) != mChecksum) {
+            throw new IOException("Checksum mismatch in the footer of " + file);
+        }
+        buffer.limit(footerLength - 4);
+        mRecordCount = buffer.getInt();
+        mMinTimestamp = buffer.getLong();
+        mMaxTimestamp = buffer.getLong();
+        int devices = buffer.getInt();
+        int entries = buffer.getInt();
+        mBlockCount = buffer.getInt();
+        if (devices < 0 || devices > MAX_DEVICES || entries < 0
+                || entries > MAX_DICTIONARY_ENTRIES || mBlockCount < 0
+                || buffer.remaining() < (long) devices * MacAddresses.LENGTH + entries
+                        + (long) mBlockCount * BLOCK_ENTRY_SIZE) {
+            throw new IOException("Corrupt footer in " + file);
+        }
+        mDeviceAddresses = new long[devices];
+        for (int device = 0; device < devices; device++) {
+            mDeviceAddresses[device] = MacAddresses.get(buffer);
+        }
+        mEntryOffsets = new int[entries + 1];
+        int dictionaryStart = buffer.position() + entries;
+        int offset = dictionaryStart;
+        for (int entry = 0; entry < entries; entry++) {
+            mEntryOffsets[entry] = offset;
+            offset += buffer.get() & 0xFF;
+        }
+        mEntryOffsets[entries] = offset;
+        if (buffer.limit() - offset != mBlockCount * BLOCK_ENTRY_SIZE) {
+            throw new IOException("Corrupt footer in " + file);
+        }
+        mDictionary = ByteBuffer.wrap(footer);
+        buffer.position(offset);
+        mEntries = buffer.slice();
+    }
+
+    /**
+     * Opens a compressed segment, reading its footer. Close it when done.
+     */
+    public static CompressedSegment open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new CompressedSegment(file, raf);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the first raw segment sequence held by a compressed segment, reading only its
+     * header.
+     */
+    public static long readFirstSequence(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < HEADER_SIZE || raf.readInt() != SEGMENT_MAGIC) {
+                throw new IOException("Not a compressed log segment: " + file);
+            }
+            raf.readInt();
+            return raf.readLong();
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRandomAccessFile.close();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getSizeBytes() {
+        return mFile.length();
+    }
+
+    /**
+     * Sequence number of the first raw segment this one holds records of.
+     */
+    public long getFirstSequence() {
+        return mFirstSequence;
+    }
+
+    /**
+     * Sequence number of the last raw segment this one holds records of.
+     */
+    public long getLastSequence() {
+        return parseSegmentSequence(mFile.getName());
+    }
+
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    public long getMinTimestampNanos() {
+        return mMinTimestamp;
+    }
+
+    public long getMaxTimestampNanos() {
+        return mMaxTimestamp;
+    }
+
+    /**
+     * CRC-32C of the footer, which covers the block checksums, so it identifies the
+     * segment's content; see {@link BeaconIndex}.
+     */
+    public int getChecksum() {
+        return mChecksum;
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    public int getDeviceCount() {
+        return mDeviceAddresses.length;
+    }
+
+    public int getDictionaryEntryCount() {
+        return mEntryOffsets.length - 1;
+    }
+
+    /**
+     * Blocks decompressed by this instance so far.
+     */
+    public int getBlocksRead() {
+        return mBlocksRead;
+    }
+
+    /**
+     * Visits every record of the segment, in write order.
+     *
+     * @return as for {@link #read(long, long, AdvertisementLogReader.RecordVisitor)}
+     */
+    public long readAll(AdvertisementLogReader.RecordVisitor visitor) throws IOException {
+        return read(Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Visits the records received between {@code fromNanos} and {@code toNanos} inclusive, in
+     * write order, decompressing only the blocks whose time span overlaps the range. The scan
+     * record buffer passed to the visitor is only valid during the callback.
+     *
+     * @return the number of records visited, or {@code -(count + 1)} if the visitor asked to
+     *         stop
+     */
+    public long read(long fromNanos, long toNanos, AdvertisementLogReader.RecordVisitor visitor)
+            throws IOException {
+        return read(null, fromNanos, toNanos, visitor);
+    }
+
+    /**
+     * Visits the records whose ordinals, their positions in the segment from 0, are in
+     * {@code ordinals} and that were received between {@code fromNanos} and {@code toNanos}
+     * inclusive, in write order. Only the blocks holding such records are decompressed.
+     *
+     * @param ordinals the records to visit, or null for all of them
+     * @return as for {@link #read(long, long, AdvertisementLogReader.RecordVisitor)}
+     */
+    public long read(RoaringBitmap ordinals, long fromNanos, long toNanos,
+                     AdvertisementLogReader.RecordVisitor visitor) throws IOException {
+        long count = 0;
+        if (mRecordCount == 0 || fromNanos > mMaxTimestamp || toNanos < mMinTimestamp) {
+            return count;
+        }
+        int first = 0;
+        for (int block = 0; block < mBlockCount; block++) {
+            int entry = block * BLOCK_ENTRY_SIZE;
+            int records = mEntries.getInt(entry + ENTRY_COUNT);
+            int blockFirst = first;
+            first += records;
+            if (mEntries.getLong(entry + ENTRY_MIN_TIMESTAMP) > toNanos
+                    || mEntries.getLong(entry + ENTRY_MAX_TIMESTAMP) < fromNanos) {
+                continue;
+            }
+            if (ordinals != null) {
+                int next = ordinals.nextValue(blockFirst);
+                if (next < 0) {
+                    break;
+                }
+                if (next >= first) {
+                    continue;
+                }
+            }
+            long read = readRecords(block, blockFirst, ordinals, fromNanos, toNanos, visitor);
+            if (read < 0) {
+                return -(count - read - 1) - 1;
+            }
+            count += read;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the ordinals of the records in the blocks whose time span overlaps the range,
+     * from the block index alone: a superset of those received in it.
+     */
+    public RoaringBitmap getOrdinalsBetween(long fromNanos, long toNanos) {
+        RoaringBitmap ordinals = new RoaringBitmap();
+        int first = 0;
+        for (int block = 0; block < mBlockCount; block++) {
+            int entry = block * BLOCK_ENTRY_SIZE;
+            int records = mEntries.getInt(entry + ENTRY_COUNT);
+            if (mEntries.getLong(entry + ENTRY_MIN_TIMESTAMP) <= toNanos
+                    && mEntries.getLong(entry + ENTRY_MAX_TIMESTAMP) >= fromNanos
+                    && records > 0) {
+                ordinals.addRange(first, first + records);
+            }
+            first += records;
+        }
+        return ordinals;
+    }
+
+    /**
+     * Decompresses one block and visits its records that pass the filters.
+     *
+     * @param first ordinal of the block's first record
+     * @return as for {@link #read(long, long, AdvertisementLogReader.RecordVisitor)}
+     */
+    private long readRecords(int block, int first, RoaringBitmap ordinals, long fromNanos,
+                             long toNanos, AdvertisementLogReader.RecordVisitor visitor)
+            throws IOException {
+        int entry = block * BLOCK_ENTRY_SIZE;
+        int length = readBlock(entry);
+        int records = mEntries.getInt(entry + ENTRY_COUNT);
+        long timestamp = mEntries.getLong(entry + ENTRY_FIRST_TIMESTAMP);
+        long count = 0;
+        int pos = 0;
+        // The next record to visit, walking the ordinals rather than looking each one up.
+        int next = ordinals == null ? first : ordinals.nextValue(first);
+        for (int i = 0; i < records; i++) {
+            // A record is at least five bytes. Past that, a malformed one decodes as garbage
+            // from the rest of the array and fails one of the checks below.
+            if (length - pos < 5) {
+                throw corrupt(block);
+            }
+            long zigZag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = mBlock[pos++];
+                zigZag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            timestamp += (zigZag >>> 1) ^ -(zigZag & 1);
+
+            int device = 0;
+            shift = 0;
+            do {
+                b = mBlock[pos++];
+                device |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            long address;
+            if (device == 0) {
+                address = MacAddresses.get(mBlockBuffer, pos);
+                pos += MacAddresses.LENGTH;
+            } else if (--device < mDeviceAddresses.length && device >= 0) {
+                address = mDeviceAddresses[device];
+            } else {
+                throw corrupt(block);
+            }
+            int rssi = mBlock[pos++];
+            int txPower = mBlock[pos++];
+
+            int reference = 0;
+            shift = 0;
+            do {
+                b = mBlock[pos++];
+                reference |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            ByteBuffer scanRecord;
+            if ((reference & 1) != 0) {
+                int dictionaryEntry = reference >>> 1;
+                if (dictionaryEntry >= mEntryOffsets.length - 1) {
+                    throw corrupt(block);
+                }
+                scanRecord = mDictionary;
+                scanRecord.limit(mEntryOffsets[dictionaryEntry + 1]);
+                scanRecord.position(mEntryOffsets[dictionaryEntry]);
+            } else {
+                int recordLength = reference >>> 1;
+                if (recordLength > length - pos) {
+                    throw corrupt(block);
+                }
+                scanRecord = mScanRecord;
+                scanRecord.limit(pos + recordLength);
+                scanRecord.position(pos);
+                pos += recordLength;
+            }
+            if (pos > length) {
+                throw corrupt(block);
+            }
+
+            if (ordinals != null) {
+                if (first + i != next) {
+                    continue;
+                }
+                next = ordinals.nextValue(next + 1);
+            }
+            if (timestamp < fromNanos || timestamp > toNanos) {
+                continue;
+            }
+            count++;
+            if (!visitor.onRecord(timestamp, address, rssi, txPower, scanRecord)) {
+                return -(count + 1);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads, checks and decompresses one block into {@link #mBlock}.
+     *
+     * @return the uncompressed length
+     */
+    private int readBlock(int entry) throws IOException {
+        int block = entry / BLOCK_ENTRY_SIZE;
+        int compressedLength = mEntries.getInt(entry + ENTRY_COMPRESSED_LENGTH);
+        int length = mEntries.getInt(entry + ENTRY_LENGTH);
+        if (compressedLength < 0 || compressedLength > mCompressed.length || length < 0
+                || length > BLOCK_SIZE) {
+            throw corrupt(block);
+        }
+        mRandomAccessFile.seek(mEntries.getLong(entry + ENTRY_OFFSET));
+        mRandomAccessFile.readFully(mCompressed, 0, compressedLength);
+        if (Crc32c.compute(mCompressed, 0, compressedLength)
+                != mEntries.getInt(entry + ENTRY_CRC)) {
+            throw new IOException("Checksum mismatch in block " + block + " of " + mFile);
+        }
+        // The block array is sized to the limit, so decoding past the real length throws.
+        if (Lz4Block.decompress(mCompressed, 0, compressedLength, mBlock) != length) {
+            throw corrupt(block);
+        }
+        mBlocksRead++;
+        return length;
+    }
+
+    private IOException corrupt(int block) {
+        return new IOException("Corrupt block " + block + " in " + mFile);
+    }
+
+    /**
+     * Returns the file name of the compressed segment named after raw segment
+     * {@code sequence}.
+     */
+    public static String segmentName(long sequence) {
+        String raw = AdvertisementLogWriter.segmentName(sequence);
+        return raw.substring(0, raw.length() - AdvertisementLogWriter.SEGMENT_SUFFIX.length())
+                + SEGMENT_SUFFIX;
+    }
+
+    /**
+     * Parses the sequence number out of a compressed segment file name, or returns -1 if the
+     * name does not belong to a compressed segment.
+     */
+    public static long parseSegmentSequence(String name) {
+        if (!name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        return AdvertisementLogWriter.parseSegmentSequence(
+                name.substring(0, name.length() - SEGMENT_SUFFIX.length())
+                        + AdvertisementLogWriter.SEGMENT_SUFFIX);
+    }
+}
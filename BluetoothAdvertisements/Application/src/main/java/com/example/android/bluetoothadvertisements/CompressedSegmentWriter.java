@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes one {@link CompressedSegment} file from records appended in log order.
+ *
+ * Records are encoded into an uncompressed block, which is compressed with {@link Lz4Block}
+ * and written once the next record might not fit. Devices are numbered in the order they first
+ * appear. Scan records only go to the dictionary if {@link #addCandidate} saw them more than
+ * once in a first pass over the same records; without that pass every scan record is stored
+ * inline. The dictionary, the block index and the trailer are written and the file forced to
+ * disk on {@link #close()}; until then the file is incomplete and {@link CompressedSegment#open}
+ * refuses it. Not thread safe.
+ */
+public class CompressedSegmentWriter implements Closeable {
+
+    /**
+     * Largest encoded record: timestamp, device reference and address, RSSI, TX power, scan
+     * record reference and bytes.
+     */
+    private static final int MAX_RECORD_SIZE = 10 + 5 + MacAddresses.LENGTH + 1 + 1 + 5
+            + AdvertisementLogWriter.MAX_SCAN_RECORD_LENGTH;
+
+    /**
+     * Slots of the table remembering scan record hashes seen once by {@link #addCandidate}.
+     * A slot is overwritten on collision, so it takes bounded memory, at the cost of missing
+     * a repeat now and then.
+     */
+    private static final int SEEN_SLOTS = 1 << 16;
+
+    /**
+     * Marks a candidate that has not been appended yet, so has no dictionary entry.
+     */
+    private static final int NOT_STORED = Integer.MAX_VALUE;
+
+    private final File mFile;
+
+    private final RandomAccessFile mRandomAccessFile;
+
+    private final Lz4Block mCompressor = new Lz4Block();
+
+    private final byte[] mBlock = new byte[CompressedSegment.BLOCK_SIZE];
+
+    private final ByteBuffer mBlockBuffer = ByteBuffer.wrap(mBlock);
+
+    private final byte[] mCompressed =
+            new byte[Lz4Block.maxCompressedLength(CompressedSegment.BLOCK_SIZE)];
+
+    /**
+     * Block index entries of the blocks written so far.
+     */
+    private ByteBuffer mEntries = ByteBuffer.allocate(64 * CompressedSegment.BLOCK_ENTRY_SIZE);
+
+    /**
+     * Devices of the segment, mapped to their number.
+     */
+    private final MacIndex mDevices = new MacIndex();
+
+    private long[] mDeviceAddresses = new long[256];
+
+    private long[] mSeen;
+
+    /**
+     * Hashes of scan records seen more than once, mapped to their dictionary entry, or to
+     * {@link #NOT_STORED}.
+     */
+    private final MacIndex mCandidates = new MacIndex();
+
+    private byte[] mDictionary = new byte[4096];
+
+    private int mDictionaryLength;
+
+    private int[] mEntryOffsets = new int[256];
+
+    private int mEntryCount;
+
+    private int mBlockLength;
+
+    private int mBlockRecords;
+
+    private long mBlockFirstTimestamp;
+
+    private long mBlockMinTimestamp;
+
+    private long mBlockMaxTimestamp;
+
+    private long mLastTimestamp;
+
+    private long mPosition;
+
+    private int mRecordCount;
+
+    private long mMinTimestamp = Long.MAX_VALUE;
+
+    private long mMaxTimestamp = Long.MIN_VALUE;
+
+    private int mBlockCount;
+
+    private long mUncompressedBytes;
+
+    private int mDictionaryRecords;
+
+    private int mChecksum;
+
+    /**
+     * Creates {@code file}, replacing anything already there.
+     *
+     * @param firstSequence sequence number of the first raw segment whose records will be
+     *                      appended
+     */
+    public CompressedSegmentWriter(File file, long firstSequence) throws IOException {
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mRandomAccessFile.setLength(0);
+        ByteBuffer header = ByteBuffer.allocate(CompressedSegment.HEADER_SIZE);
+        header.putInt(CompressedSegment.SEGMENT_MAGIC);
+        header.putShort(CompressedSegment.FORMAT_VERSION);
+        header.putShort((short) 0);
+        header.putLong(firstSequence);
+        mRandomAccessFile.write(header.array());
+        mPosition = CompressedSegment.HEADER_SIZE;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Bytes written so far, header and blocks only until the writer is closed.
+     */
+    public long getSizeBytes() {
+        return mPosition;
+    }
+
+    /**
+     * Bytes of encoded records before LZ4, for comparing the two stages.
+     */
+    public long getUncompressedBytes() {
+        return mUncompressedBytes;
+    }
+
+    public int getDeviceCount() {
+        return mDevices.size();
+    }
+
+    public int getDictionaryEntryCount() {
+        return mEntryCount;
+    }
+
+    /**
+     * Records whose scan record refers to a dictionary entry.
+     */
+    public int getDictionaryRecordCount() {
+        return mDictionaryRecords;
+    }
+
+    /**
+     * {@link CompressedSegment#getChecksum} of the segment, once the writer is closed.
+     */
+    public int getChecksum() {
+        return mChecksum;
+    }
+
+    /**
+     * Notes a scan record that is going to be appended, in a first pass over the records. The
+     * scan record is read between its position and limit, which are left unchanged.
+     */
+    public void addCandidate(ByteBuffer scanRecord) {
+        int length = scanRecord.remaining();
+        if (length == 0 || length > CompressedSegment.MAX_DICTIONARY_RECORD_LENGTH
+                || mCandidates.size() >= CompressedSegment.MAX_DICTIONARY_ENTRIES) {
+            return;
+        }
+        if (mSeen == null) {
+            mSeen = new long[SEEN_SLOTS];
+        }
+        long hash = hash(scanRecord, scanRecord.position(), length);
+        int slot = (int) (hash ^ hash >>> 32) & (SEEN_SLOTS - 1);
+        if (mSeen[slot] != hash) {
+            mSeen[slot] = hash;
+        } else if (mCandidates.get(hash) == MacIndex.NO_SLOT) {
+            mCandidates.put(hash, NOT_STORED);
+        }
+    }
+
+    /**
+     * Appends one record. The scan record is read between its position and limit, which are
+     * left unchanged.
+     */
+    public void append(long timestampNanos, long address, int rssi, int txPower,
+                       ByteBuffer scanRecord) throws IOException {
+        if (mBlockLength + MAX_RECORD_SIZE > mBlock.length) {
+            writeBlock();
+        }
+        if (mBlockRecords == 0) {
+            mBlockFirstTimestamp = timestampNanos;
+            mBlockMinTimestamp = timestampNanos;
+            mBlockMaxTimestamp = timestampNanos;
+            mLastTimestamp = timestampNanos;
+        }
+        long delta = timestampNanos - mLastTimestamp;
+        putVarint((delta << 1) ^ (delta >> 63));
+        mLastTimestamp = timestampNanos;
+        mBlockMinTimestamp = Math.min(mBlockMinTimestamp, timestampNanos);
+        mBlockMaxTimestamp = Math.max(mBlockMaxTimestamp, timestampNanos);
+
+        int device = mDevices.get(address);
+        if (device == MacIndex.NO_SLOT && mDevices.size() < CompressedSegment.MAX_DEVICES) {
+            device = mDevices.size();
+            mDevices.put(address, device);
+            if (device == mDeviceAddresses.length) {
+                mDeviceAddresses = Arrays.copyOf(mDeviceAddresses, device * 2);
+            }
+            mDeviceAddresses[device] = address;
+        }
+        if (device == MacIndex.NO_SLOT) {
+            mBlock[mBlockLength++] = 0;
+            MacAddresses.put(mBlockBuffer, mBlockLength, address);
+            mBlockLength += MacAddresses.LENGTH;
+        } else {
+            putVarint(device + 1);
+        }
+        mBlock[mBlockLength++] = (byte) rssi;
+        mBlock[mBlockLength++] = (byte) txPower;
+
+        int start = scanRecord.position();
+        int length = Math.min(scanRecord.remaining(),
+                AdvertisementLogWriter.MAX_SCAN_RECORD_LENGTH);
+        int entry = dictionaryEntry(scanRecord, start, length);
+        if (entry >= 0) {
+            putVarint(2L * entry + 1);
+            mDictionaryRecords++;
+        } else {
+            putVarint(2L * length);
+            scanRecord.get(mBlock, mBlockLength, length);
+            scanRecord.position(start);
+            mBlockLength += length;
+        }
+
+        mBlockRecords++;
+        mRecordCount++;
+        mMinTimestamp = Math.min(mMinTimestamp, timestampNanos);
+        mMaxTimestamp = Math.max(mMaxTimestamp, timestampNanos);
+    }
+
+    /**
+     * Writes the last block, the footer and the trailer, and forces the file to disk.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mBlockRecords > 0) {
+                writeBlock();
+            }
+            mEntries.flip();
+            int devices = mDevices.size();
+            int footerLength = 4 + 8 + 8 + 4 + 4 + 4 + devices * MacAddresses.LENGTH
+                    + mEntryCount + mDictionaryLength + mEntries.remaining() + 4;
+            ByteBuffer footer = ByteBuffer.allocate(footerLength + CompressedSegment.TRAILER_SIZE);
+            footer.putInt(mRecordCount);
+            footer.putLong(mRecordCount > 0 ? mMinTimestamp : 0);
+            footer.putLong(mRecordCount > 0 ? mMaxTimestamp : 0);
+            footer.putInt(devices);
+            footer.putInt(mEntryCount);
+            footer.putInt(mBlockCount);
+            for (int device = 0; device < devices; device++) {
+                MacAddresses.put(footer, mDeviceAddresses[device]);
+            }
+            for (int entry = 0; entry < mEntryCount; entry++) {
+                int end = entry + 1 < mEntryCount ? mEntryOffsets[entry + 1] : mDictionaryLength;
+                footer.put((byte) (end - mEntryOffsets[entry]));
+            }
+            footer.put(mDictionary, 0, mDictionaryLength);
+            footer.put(mEntries);
+            mChecksum = Crc32c.compute(footer.array(), 0, footer.position());
+            footer.putInt(mChecksum);
+            footer.putLong(mPosition);
+            footer.putInt(footerLength);
+            footer.putInt(CompressedSegment.SEGMENT_MAGIC);
+            mRandomAccessFile.write(footer.array());
+            mPosition += footer.capacity();
+            mRandomAccessFile.getFD().sync();
+        } finally {
+            mRandomAccessFile.close();
+        }
+    }
+
+    /**
+     * Returns the dictionary entry holding the scan record, adding it if it is a candidate
+     * seen for the first time, or -1 if it is to be stored inline.
+     */
+    private int dictionaryEntry(ByteBuffer scanRecord, int start, int length) {
+        if (mCandidates.size() == 0 || length == 0
+                || length > CompressedSegment.MAX_DICTIONARY_RECORD_LENGTH) {
+            return -1;
+        }
+        long hash = hash(scanRecord, start, length);
+        int entry = mCandidates.get(hash);
+        if (entry == MacIndex.NO_SLOT) {
+            return -1;
+        }
+        if (entry != NOT_STORED) {
+            // Hashes can collide, so check it is the same scan record.
+            int offset = mEntryOffsets[entry];
+            int end = entry + 1 < mEntryCount ? mEntryOffsets[entry + 1] : mDictionaryLength;
+            if (end - offset != length) {
+                return -1;
+            }
+            for (int i = 0; i < length; i++) {
+                if (scanRecord.get(start + i) != mDictionary[offset + i]) {
+                    return -1;
+                }
+            }
+            return entry;
+        }
+        if (mDictionaryLength + length > CompressedSegment.MAX_DICTIONARY_BYTES) {
+            return -1;
+        }
+        entry = mEntryCount++;
+        if (entry == mEntryOffsets.length) {
+            mEntryOffsets = Arrays.copyOf(mEntryOffsets, entry * 2);
+        }
+        mEntryOffsets[entry] = mDictionaryLength;
+        if (mDictionaryLength + length > mDictionary.length) {
+            mDictionary = Arrays.copyOf(mDictionary,
+                    Math.max(mDictionary.length * 2, mDictionaryLength + length));
+        }
+        for (int i = 0; i < length; i++) {
+            mDictionary[mDictionaryLength++] = scanRecord.get(start + i);
+        }
+        mCandidates.put(hash, entry);
+        return entry;
+    }
+
+    /**
+     * 64-bit FNV-1a, never -1, which {@link MacIndex} keeps for empty buckets.
+     */
+    private static long hash(ByteBuffer buffer, int start, int length) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = start; i < start + length; i++) {
+            hash = (hash ^ (buffer.get(i) & 0xFF)) * 0x100000001B3L;
+        }
+        return hash == -1 ? 0 : hash;
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            mBlock[mBlockLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mBlock[mBlockLength++] = (byte) value;
+    }
+
+    private void writeBlock() throws IOException {
+        int compressedLength = mCompressor.compress(mBlock, 0, mBlockLength, mCompressed);
+        mRandomAccessFile.write(mCompressed, 0, compressedLength);
+
+        if (mEntries.remaining() < CompressedSegment.BLOCK_ENTRY_SIZE) {
+            ByteBuffer entries = ByteBuffer.allocate(mEntries.capacity() * 2);
+            mEntries.flip();
+            entries.put(mEntries);
+            mEntries = entries;
+        }
+        mEntries.putInt(mBlockRecords);
+        mEntries.putLong(mBlockFirstTimestamp);
+        mEntries.putLong(mBlockMinTimestamp);
+        mEntries.putLong(mBlockMaxTimestamp);
+        mEntries.putLong(mPosition);
+        mEntries.putInt(compressedLength);
+        mEntries.putInt(mBlockLength);
+        mEntries.putInt(Crc32c.compute(mCompressed, 0, compressedLength));
+
+        mPosition += compressedLength;
+        mUncompressedBytes += mBlockLength;
+        mBlockCount++;
+        mBlockLength = 0;
+        mBlockRecords = 0;
+    }
+}
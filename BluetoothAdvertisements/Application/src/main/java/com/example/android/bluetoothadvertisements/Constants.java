@@ -35,4 +35,153 @@ public class Constants {
 
     public static final int REQUEST_ENABLE_BT = 1;
 
+    /**
+     * Directory, relative to the app's files dir, holding the raw advertisement log.
+     */
+    public static final String LOG_DIRECTORY = "advertisements";
+
+    /**
+     * Roll to a new log segment every 16 MB.
+     */
+    public static final long LOG_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Force the log to disk every 1000 advertisements, or once a second if it's quieter.
+     */
+    public static final int LOG_SYNC_EVERY_RECORDS = 1000;
+
+    public static final long LOG_SYNC_INTERVAL_NANOS = 1000000000L;
+
+    /**
+     * Keep a week of advertisements; compaction, and the columnar store as hours start, drop
+     * anything older.
+     */
+    public static final long LOG_RETENTION_NANOS = 7L * 24 * 3600 * 1000000000L;
+
+    /**
+     * Merge compressed log segments smaller than 8 MB into segments of up to 16 MB.
+     */
+    public static final long LOG_MERGE_TARGET_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Directory, relative to the app's external files dir, receiving exports of the log.
+     */
+    public static final String EXPORT_DIRECTORY = "exports";
+
+    /**
+     * Exports read the log in 4 chunks of up to 4096 records and 256 KB of scan records,
+     * about 1.4 MB in all however long the log.
+     */
+    public static final int EXPORT_CHUNK_RECORDS = 4096;
+
+    public static final int EXPORT_CHUNK_BYTES = 256 * 1024;
+
+    public static final int EXPORT_CHUNKS = 4;
+
+    /**
+     * Directory, relative to the app's files dir, holding the hourly columnar partitions.
+     */
+    public static final String COLUMNAR_DIRECTORY = "columns";
+
+    /**
+     * Columnar partitions are written in blocks of 4096 records, the unit queries skip.
+     */
+    public static final int COLUMNAR_BLOCK_RECORDS = 4096;
+
+    /**
+     * Batched scan results can arrive well after they were received, so an hour's partition
+     * is kept open for a minute into the next.
+     */
+    public static final long COLUMNAR_LATE_GRACE_NANOS = 60000000000L;
+
+    /**
+     * Directory, relative to the app's files dir, holding per-minute and per-hour rollups of
+     * the scan, kept as long as the log. A busy minute takes a few KB.
+     */
+    public static final String ROLLUP_DIRECTORY = "rollups";
+
+    /**
+     * File, relative to the app's files dir, interning device addresses to int ids. Room for
+     * 262,144 devices, in a sparse 3 MB file, after which it starts over.
+     */
+    public static final String DEVICE_DICTIONARY_FILE = "devices.dict";
+
+    public static final int DEVICE_DICTIONARY_MAX_DEVICES = 1 << 18;
+
+    /**
+     * Scan results that may wait for the ingestion thread before new ones are dropped.
+     */
+    public static final int INGEST_QUEUE_CAPACITY = 4096;
+
+    /**
+     * The device list is refreshed at most this often (4 Hz).
+     */
+    public static final long UI_REFRESH_INTERVAL_NANOS = 250000000L;
+
+    /**
+     * How long the controller may hold scan results before delivering them as a batch.
+     */
+    public static final long SCAN_REPORT_DELAY_MILLIS = 5000;
+
+    /**
+     * While batch scanning, explicitly flush the controller's results this often.
+     */
+    public static final long SCAN_FLUSH_INTERVAL_MILLIS = 30000;
+
+    /**
+     * The scan scheduler scans for 20 seconds, pauses for 10, and repeats until stopped.
+     */
+    public static final long SCAN_ON_WINDOW_MILLIS = 20000;
+
+    public static final long SCAN_OFF_WINDOW_MILLIS = 10000;
+
+    /**
+     * Results per second, scaled to a scanner listening all the time, below which the scheduler
+     * moves to a more aggressive scan mode and above which it moves to a more frugal one.
+     */
+    public static final double SCAN_SPARSE_RESULTS_PER_SECOND = 20;
+
+    public static final double SCAN_DENSE_RESULTS_PER_SECOND = 200;
+
+    /**
+     * RSSI history is kept for up to 2048 devices, 32 samples each (about 768 KB).
+     */
+    public static final int RSSI_HISTORY_MAX_DEVICES = 2048;
+
+    public static final int RSSI_HISTORY_WINDOW = 32;
+
+    /**
+     * A rotating address quiet for 20 seconds, longer than a scan pause plus a batch delay,
+     * has rotated away; an address first seen within 15 seconds of that may be its successor.
+     */
+    public static final long CLUSTER_DEPARTURE_NANOS = 20000000000L;
+
+    public static final long CLUSTER_HANDOFF_NANOS = 15000000000L;
+
+    /**
+     * The noisiest devices and manufacturers are ranked over the last minute, in 12 slices of
+     * 5 seconds. With 256 counters per slice, any device sending over 1/256 of a slice's
+     * advertisements, a 20 ms advertiser among 10,000 others, is always found; there are far
+     * fewer manufacturers. The ranking is refreshed once a second.
+     */
+    public static final int HEAVY_HITTER_DEVICE_CAPACITY = 256;
+
+    public static final int HEAVY_HITTER_MANUFACTURER_CAPACITY = 32;
+
+    public static final int HEAVY_HITTER_SLICES = 12;
+
+    public static final long HEAVY_HITTER_SLICE_NANOS = 5000000000L;
+
+    public static final long HEAVY_HITTER_SPAN_NANOS = 60000000000L;
+
+    public static final int HEAVY_HITTER_RANKED = 5;
+
+    public static final long HEAVY_HITTER_REFRESH_NANOS = 1000000000L;
+
+    /**
+     * Statistics of the state only the ingestion thread touches are rebuilt there once a
+     * second, for the scan stats dialog.
+     */
+    public static final long INGEST_STATS_REFRESH_NANOS = 1000000000L;
+
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC-32C (Castagnoli), as used by iSCSI, ext4 and most write-ahead logs.
+ *
+ * {@code java.util.zip.CRC32C} only exists from API 26, so this is a table-driven version that
+ * works on every supported release. It processes eight bytes per step with eight 256-entry
+ * tables ("slicing-by-8"), and reads buffers with absolute gets so neither the position nor
+ * the limit of the caller's buffer moves.
+ */
+public final class Crc32c {
+
+    /**
+     * Reflected Castagnoli polynomial.
+     */
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    private static final int[] TABLE = new int[8 * 256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc >>> 1) ^ (POLYNOMIAL & -(crc & 1));
+            }
+            TABLE[i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            int crc = TABLE[i];
+            for (int slice = 1; slice < 8; slice++) {
+                crc = (crc >>> 8) ^ TABLE[crc & 0xFF];
+                TABLE[slice * 256 + i] = crc;
+            }
+        }
+    }
+
+    private Crc32c() {
+    }
+
+    /**
+     * Returns the CRC of {@code length} bytes of {@code buffer} starting at {@code offset}.
+     */
+    public static int compute(ByteBuffer buffer, int offset, int length) {
+        return update(0, buffer, offset, length);
+    }
+
+    /**
+     * Continues a CRC returned by {@link #compute} or {@link #update} over more bytes, so a
+     * record can be checksummed in pieces.
+     */
+    public static int update(int crc, ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            return update(crc, buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+        int[] table = TABLE;
+        crc = ~crc;
+        int end = offset + length;
+        for (; offset + 8 <= end; offset += 8) {
+            int low = crc ^ (buffer.get(offset) & 0xFF
+                    | (buffer.get(offset + 1) & 0xFF) << 8
+                    | (buffer.get(offset + 2) & 0xFF) << 16
+                    | buffer.get(offset + 3) << 24);
+            crc = table[7 * 256 + (low & 0xFF)]
+                    ^ table[6 * 256 + ((low >>> 8) & 0xFF)]
+                    ^ table[5 * 256 + ((low >>> 16) & 0xFF)]
+                    ^ table[4 * 256 + (low >>> 24)]
+                    ^ table[3 * 256 + (buffer.get(offset + 4) & 0xFF)]
+                    ^ table[2 * 256 + (buffer.get(offset + 5) & 0xFF)]
+                    ^ table[256 + (buffer.get(offset + 6) & 0xFF)]
+                    ^ table[buffer.get(offset + 7) & 0xFF];
+        }
+        for (; offset < end; offset++) {
+            crc = (crc >>> 8) ^ table[(crc ^ buffer.get(offset)) & 0xFF];
+        }
+        return ~crc;
+    }
+
+    /**
+     * Returns the CRC of {@code length} bytes of {@code bytes} starting at {@code offset}.
+     */
+    public static int compute(byte[] bytes, int offset, int length) {
+        return update(0, bytes, offset, length);
+    }
+
+    /**
+     * Array version of {@link #update(int, ByteBuffer, int, int)}, which is several times
+     * faster than going through a direct buffer a byte at a time.
+     */
+    public static int update(int crc, byte[] bytes, int offset, int length) {
+        int[] table = TABLE;
+        crc = ~crc;
+        int end = offset + length;
+        for (; offset + 8 <= end; offset += 8) {
+            int low = crc ^ (bytes[offset] & 0xFF
+                    | (bytes[offset + 1] & 0xFF) << 8
+                    | (bytes[offset + 2] & 0xFF) << 16
+                    | bytes[offset + 3] << 24);
+            crc = table[7 * 256 + (low & 0xFF)]
+                    ^ table[6 * 256 + ((low >>> 8) & 0xFF)]
+                    ^ table[5 * 256 + ((low >>> 16) & 0xFF)]
+                    ^ table[4 * 256 + (low >>> 24)]
+                    ^ table[3 * 256 + (bytes[offset + 4] & 0xFF)]
+                    ^ table[2 * 256 + (bytes[offset + 5] & 0xFF)]
+                    ^ table[256 + (bytes[offset + 6] & 0xFF)]
+                    ^ table[bytes[offset + 7] & 0xFF];
+        }
+        for (; offset < end; offset++) {
+            crc = (crc >>> 8) ^ table[(crc ^ bytes[offset]) & 0xFF];
+        }
+        return ~crc;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Persistent interning of device addresses to dense int ids, kept in a memory-mapped file.
+ *
+ * Every address seen gets the next id, 0, 1, 2..., and keeps it across restarts, so stores
+ * and indexes can key devices by a 4-byte id rather than a 17-character string or an 8-byte
+ * packed address. The file is sized for {@code maxDevices} up front and holds:
+ * <pre>
+ *   header     int magic, short version, short state, int max devices, int device count
+ *   table      open-addressing hash table of id + 1 (0 when empty), twice max devices rounded
+ *              up to a power of two, probed linearly from a hash of the address
+ *   addresses  one long packed address per id
+ * </pre>
+ * Nothing grows or moves once the file is mapped, so the only heap used is the mapping
+ * itself, however many devices are known. Unwritten pages of the file stay sparse on disk.
+ *
+ * Devices using rotating private addresses get a new one every few minutes, so a long-running
+ * logger eventually fills any fixed capacity. Rather than refusing new devices from then on,
+ * the dictionary rolls over: it forgets every device and starts again from id 0, in a new
+ * {@link #getGeneration() generation}. An id only names a device within its generation. The
+ * state field marks a rollover in progress, so one interrupted by the process being killed is
+ * finished on the next open.
+ *
+ * One thread, the writer, interns addresses. Any thread may look them up without locking: the
+ * writer stores a new address before linking it into the table and publishes it by bumping a
+ * volatile count, and readers ignore ids at or above the count they read first. Writes to the
+ * mapping survive the process being killed; the count is re-read from the header on open.
+ */
+public class DeviceDictionary implements Closeable {
+
+    public static final int NO_ID = -1;
+
+    /**
+     * "ADVD", at the start of the file.
+     */
+    public static final int DICTIONARY_MAGIC = 0x41445644;
+
+    public static final short FORMAT_VERSION = 1;
+
+    public static final int HEADER_SIZE = 4 + 2 + 2 + 4 + 4;
+
+    private static final int STATE_OFFSET = 6;
+
+    private static final int COUNT_OFFSET = 12;
+
+    private static final short STATE_CLEARING = 1;
+
+    private final File mFile;
+
+    private final MappedByteBuffer mBuffer;
+
+    private final int mMaxDevices;
+
+    private final int mTableMask;
+
+    private final int mAddressesOffset;
+
+    /**
+     * Number of ids handed out. Written by the writer after the id's address and table slot.
+     */
+    private volatile int mCount;
+
+    /**
+     * Rollovers since the dictionary was opened.
+     */
+    private volatile int mGeneration;
+
+    /**
+     * Opens the dictionary in {@code file}, creating it if needed.
+     *
+     * @param maxDevices capacity of a new file; an existing file keeps the capacity it was
+     *                   created with
+     */
+    public DeviceDictionary(File file, int maxDevices) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() >= HEADER_SIZE) {
+                raf.seek(0);
+                if (raf.readInt() != DICTIONARY_MAGIC) {
+                    throw new IOException("Not a device dictionary: " + file);
+                }
+                if (raf.readShort() != FORMAT_VERSION) {
+                    throw new IOException("Unsupported device dictionary version: " + file);
+                }
+                raf.readShort();
+                maxDevices = raf.readInt();
+            } else if (maxDevices < 1) {
+                throw new IllegalArgumentException("maxDevices must be positive");
+            }
+            int tableSize = tableSizeFor(maxDevices);
+            long size = HEADER_SIZE + 4L * tableSize + 8L * maxDevices;
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many devices: " + maxDevices);
+            }
+            // Mapping beyond the end extends the file, sparsely.
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mMaxDevices = maxDevices;
+            mTableMask = tableSize - 1;
+            mAddressesOffset = HEADER_SIZE + 4 * tableSize;
+        } finally {
+            // The mapping stays valid after the file is closed.
+            raf.close();
+        }
+        mFile = file;
+        if (mBuffer.getInt(0) != DICTIONARY_MAGIC) {
+            mBuffer.putInt(0, DICTIONARY_MAGIC);
+            mBuffer.putShort(4, FORMAT_VERSION);
+            mBuffer.putShort(STATE_OFFSET, (short) 0);
+            mBuffer.putInt(8, mMaxDevices);
+            mBuffer.putInt(COUNT_OFFSET, 0);
+        }
+        if (mBuffer.getShort(STATE_OFFSET) == STATE_CLEARING) {
+            clear();
+        }
+        mCount = Math.min(mBuffer.getInt(COUNT_OFFSET), mMaxDevices);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getMaxDevices() {
+        return mMaxDevices;
+    }
+
+    /**
+     * Number of devices known.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Number of times the dictionary filled up and started over since it was opened. Ids
+     * handed out in an earlier generation may name other devices now.
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Describes how full the dictionary is.
+     */
+    public void describe(StringBuilder text) {
+        int count = mCount;
+        text.append("Device dictionary: ").append(count).append(" of ").append(mMaxDevices)
+                .append(" ids (").append(count * 100L / mMaxDevices).append("%), ")
+                .append(mGeneration).append(" rollovers\n");
+    }
+
+    // Writer thread.
+
+    /**
+     * Returns the device's id, giving it the next one if it hasn't been seen before. If the
+     * dictionary is full, it first rolls over to a new generation and the device gets id 0.
+     *
+     * @param address packed with {@link MacAddresses#pack(String)}
+     */
+    public int intern(long address) {
+        int count = mCount;
+        int bucket = bucketOf(address);
+        while (true) {
+            int slot = HEADER_SIZE + 4 * bucket;
+            int entry = mBuffer.getInt(slot);
+            if (entry == 0) {
+                if (count == mMaxDevices) {
+                    rollOver();
+                    count = 0;
+                    bucket = bucketOf(address);
+                    continue;
+                }
+                mBuffer.putLong(mAddressesOffset + 8 * count, address);
+                mBuffer.putInt(slot, count + 1);
+                mBuffer.putInt(COUNT_OFFSET, count + 1);
+                mCount = count + 1;
+                return count;
+            }
+            int id = entry - 1;
+            // Slots left behind by a write the process didn't finish point at or past the
+            // count; the address stored there decides.
+            if (id < count && mBuffer.getLong(mAddressesOffset + 8 * id) == address) {
+                return id;
+            }
+            bucket = (bucket + 1) & mTableMask;
+        }
+    }
+
+    /**
+     * Forgets every device. Readers first see the count drop to zero, so they ignore the table
+     * while it is cleared and only match ids of the new generation afterwards.
+     */
+    private void rollOver() {
+        mBuffer.putShort(STATE_OFFSET, STATE_CLEARING);
+        mBuffer.putInt(COUNT_OFFSET, 0);
+        mCount = 0;
+        clear();
+        mGeneration++;
+    }
+
+    /**
+     * Empties the table and ends the rollover. The addresses are left, past the count.
+     */
+    private void clear() {
+        for (int slot = HEADER_SIZE; slot < mAddressesOffset; slot += 4) {
+            mBuffer.putInt(slot, 0);
+        }
+        mBuffer.putInt(COUNT_OFFSET, 0);
+        mBuffer.putShort(STATE_OFFSET, (short) 0);
+    }
+
+    /**
+     * Forces the mapping to disk, so ids survive the device losing power too.
+     */
+    public void sync() {
+        mBuffer.force();
+    }
+
+    @Override
+    public void close() {
+        sync();
+    }
+
+    // Any thread.
+
+    /**
+     * Returns the device's id, or {@link #NO_ID} if it has never been interned.
+     */
+    public int idOf(long address) {
+        int count = mCount;
+        int bucket = bucketOf(address);
+        while (true) {
+            int entry = mBuffer.getInt(HEADER_SIZE + 4 * bucket);
+            if (entry == 0) {
+                return NO_ID;
+            }
+            int id = entry - 1;
+            if (id < count && mBuffer.getLong(mAddressesOffset + 8 * id) == address) {
+                return id;
+            }
+            bucket = (bucket + 1) & mTableMask;
+        }
+    }
+
+    /**
+     * Returns the packed address of an id handed out by {@link #intern} in the current
+     * generation.
+     */
+    public long addressOf(int id) {
+        if (id < 0 || id >= mCount) {
+            throw new IndexOutOfBoundsException("No device " + id);
+        }
+        return mBuffer.getLong(mAddressesOffset + 8 * id);
+    }
+
+    private int bucketOf(long address) {
+        // Murmur3 finalizer, as in MacIndex.
+        long h = address;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & mTableMask;
+    }
+
+    private static int tableSizeFor(int maxDevices) {
+        int size = 16;
+        while (size < 2L * maxDevices) {
+            size <<= 1;
+        }
+        return size;
+    }
+}
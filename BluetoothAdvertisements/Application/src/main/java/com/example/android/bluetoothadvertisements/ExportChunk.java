@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed-capacity batch of logged advertisements, stored by column in primitive arrays,
+ * handed from the reader thread of a {@link LogExporter} to its {@link ExportFormat}.
+ *
+ * Chunks are allocated once per export and recycled, so an export's memory does not grow
+ * with the size of the log. Not thread safe; the exporter hands each chunk over through a
+ * blocking queue.
+ */
+public class ExportChunk {
+
+    private final long[] mTimestamps;
+
+    private final long[] mAddresses;
+
+    private final byte[] mRssi;
+
+    private final byte[] mTxPower;
+
+    /**
+     * End of each record's scan record in {@link #mScanRecords}; each starts where the one
+     * before it ends.
+     */
+    private final int[] mScanRecordEnds;
+
+    private final byte[] mScanRecords;
+
+    private int mSize;
+
+    /**
+     * @param capacity        records the chunk holds
+     * @param scanRecordBytes bytes of scan records the chunk holds, at least
+     *                        {@link AdvertisementLogWriter#MAX_SCAN_RECORD_LENGTH}
+     */
+    public ExportChunk(int capacity, int scanRecordBytes) {
+        if (capacity < 1 || scanRecordBytes < AdvertisementLogWriter.MAX_SCAN_RECORD_LENGTH) {
+            throw new IllegalArgumentException("Chunk too small");
+        }
+        mTimestamps = new long[capacity];
+        mAddresses = new long[capacity];
+        mRssi = new byte[capacity];
+        mTxPower = new byte[capacity];
+        mScanRecordEnds = new int[capacity];
+        mScanRecords = new byte[scanRecordBytes];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Returns true if a record with a scan record of {@code scanRecordLength} bytes still fits.
+     */
+    public boolean fits(int scanRecordLength) {
+        return mSize < mTimestamps.length
+                && getScanRecordEnd() + scanRecordLength <= mScanRecords.length;
+    }
+
+    /**
+     * Adds a record, which must fit. The scan record is read between its position and limit,
+     * which are left unchanged.
+     */
+    public void add(long timestampNanos, long address, int rssi, int txPower,
+                    ByteBuffer scanRecord) {
+        int start = getScanRecordEnd();
+        int position = scanRecord.position();
+        int length = scanRecord.remaining();
+        scanRecord.get(mScanRecords, start, length);
+        scanRecord.position(position);
+        mTimestamps[mSize] = timestampNanos;
+        mAddresses[mSize] = address;
+        mRssi[mSize] = (byte) rssi;
+        mTxPower[mSize] = (byte) txPower;
+        mScanRecordEnds[mSize] = start + length;
+        mSize++;
+    }
+
+    public long getTimestampNanos(int index) {
+        return mTimestamps[index];
+    }
+
+    public long getAddress(int index) {
+        return mAddresses[index];
+    }
+
+    public int getRssi(int index) {
+        return mRssi[index];
+    }
+
+    public int getTxPower(int index) {
+        return mTxPower[index];
+    }
+
+    /**
+     * The array holding every record's scan record, back to back.
+     */
+    public byte[] getScanRecordBytes() {
+        return mScanRecords;
+    }
+
+    public int getScanRecordOffset(int index) {
+        return index == 0 ? 0 : mScanRecordEnds[index - 1];
+    }
+
+    public int getScanRecordLength(int index) {
+        return mScanRecordEnds[index] - getScanRecordOffset(index);
+    }
+
+    private int getScanRecordEnd() {
+        return mSize == 0 ? 0 : mScanRecordEnds[mSize - 1];
+    }
+}
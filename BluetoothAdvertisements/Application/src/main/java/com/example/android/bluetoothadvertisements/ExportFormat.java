@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Turns the chunks of advertisements a {@link LogExporter} reads into an export file.
+ *
+ * Three formats are built in: {@link Csv}, {@link JsonLines} and the binary {@link Columnar};
+ * others can be plugged in by extending this class. A format writes each chunk to the stream
+ * before the next one is handed over, so it must not keep references to a chunk. Formats may
+ * keep state across chunks, so use a new instance per export.
+ */
+public abstract class ExportFormat {
+
+    /**
+     * File name extension, without the dot.
+     */
+    public abstract String getFileExtension();
+
+    public abstract String getMimeType();
+
+    /**
+     * Called once before the first chunk.
+     */
+    public void begin(OutputStream out) throws IOException {
+    }
+
+    public abstract void write(ExportChunk chunk, OutputStream out) throws IOException;
+
+    /**
+     * Called once after the last chunk, unless the export failed or was cancelled.
+     */
+    public void finish(OutputStream out) throws IOException {
+    }
+
+    /**
+     * Returns a new instance of the built-in format with the given file extension, or null.
+     */
+    public static ExportFormat forExtension(String extension) {
+        switch (extension) {
+            case Csv.EXTENSION:
+                return new Csv();
+            case JsonLines.EXTENSION:
+                return new JsonLines();
+            case Columnar.EXTENSION:
+                return new Columnar();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Base for text formats, which format rows into a reused byte buffer rather than through
+     * Strings, so exporting allocates nothing per row.
+     */
+    public abstract static class Text extends ExportFormat {
+
+        private static final byte[] HEX_DIGITS = {
+                '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+        private static final int FLUSH_SIZE = 64 * 1024;
+
+        /**
+         * Longest row, with room for the names and punctuation of any of the built-in formats.
+         */
+        private static final int MAX_ROW_LENGTH = 256
+                + 2 * AdvertisementLogWriter.MAX_SCAN_RECORD_LENGTH;
+
+        private final byte[] mBuffer = new byte[FLUSH_SIZE + MAX_ROW_LENGTH];
+
+        private int mLength;
+
+        private final byte[] mDigits = new byte[20];
+
+        @Override
+        public void write(ExportChunk chunk, OutputStream out) throws IOException {
+            for (int i = 0; i < chunk.size(); i++) {
+                writeRow(chunk, i);
+                if (mLength >= FLUSH_SIZE) {
+                    out.write(mBuffer, 0, mLength);
+                    mLength = 0;
+                }
+            }
+        }
+
+        @Override
+        public void finish(OutputStream out) throws IOException {
+            out.write(mBuffer, 0, mLength);
+            mLength = 0;
+        }
+
+        /**
+         * Formats one row, of at most {@link #MAX_ROW_LENGTH} bytes, through the append methods.
+         */
+        protected abstract void writeRow(ExportChunk chunk, int index);
+
+        protected void append(char c) {
+            mBuffer[mLength++] = (byte) c;
+        }
+
+        /**
+         * Appends ASCII text.
+         */
+        protected void append(String text) {
+            for (int i = 0; i < text.length(); i++) {
+                mBuffer[mLength++] = (byte) text.charAt(i);
+            }
+        }
+
+        protected void append(long value) {
+            if (value == Long.MIN_VALUE) {
+                append("-9223372036854775808");
+                return;
+            }
+            if (value < 0) {
+                mBuffer[mLength++] = '-';
+                value = -value;
+            }
+            int digits = 0;
+            do {
+                mDigits[digits++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            while (digits > 0) {
+                mBuffer[mLength++] = mDigits[--digits];
+            }
+        }
+
+        /**
+         * Appends a packed address in the colon separated form of {@link MacAddresses#unpack}.
+         */
+        protected void appendAddress(long address) {
+            for (int i = MacAddresses.LENGTH - 1; i >= 0; i--) {
+                int value = (int) (address >>> (8 * i)) & 0xFF;
+                mBuffer[mLength++] = HEX_DIGITS[value >>> 4];
+                mBuffer[mLength++] = HEX_DIGITS[value & 0x0F];
+                if (i > 0) {
+                    mBuffer[mLength++] = ':';
+                }
+            }
+        }
+
+        protected void appendHex(byte[] bytes, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                mBuffer[mLength++] = HEX_DIGITS[(bytes[i] >>> 4) & 0x0F];
+                mBuffer[mLength++] = HEX_DIGITS[bytes[i] & 0x0F];
+            }
+        }
+    }
+
+    /**
+     * Comma separated values with a header row. TX power is left empty when not advertised,
+     * and the scan record is in hex.
+     */
+    public static class Csv extends Text {
+
+        public static final String EXTENSION = "csv";
+
+        @Override
+        public String getFileExtension() {
+            return EXTENSION;
+        }
+
+        @Override
+        public String getMimeType() {
+            return "text/csv";
+        }
+
+        @Override
+        public void begin(OutputStream out) throws IOException {
+            append("timestamp_nanos,address,rssi,tx_power,scan_record\n");
+        }
+
+        @Override
+        protected void writeRow(ExportChunk chunk, int index) {
+            append(chunk.getTimestampNanos(index));
+            append(',');
+            appendAddress(chunk.getAddress(index));
+            append(',');
+            append(chunk.getRssi(index));
+            append(',');
+            int txPower = chunk.getTxPower(index);
+            if (txPower != AdvertisementLogWriter.TX_POWER_UNKNOWN) {
+                append(txPower);
+            }
+            append(',');
+            appendHex(chunk.getScanRecordBytes(), chunk.getScanRecordOffset(index),
+                    chunk.getScanRecordLength(index));
+            append('\n');
+        }
+    }
+
+    /**
+     * One JSON object per line. TX power is null when not advertised, and the scan record is
+     * in hex.
+     */
+    public static class JsonLines extends Text {
+
+        public static final String EXTENSION = "jsonl";
+
+        @Override
+        public String getFileExtension() {
+            return EXTENSION;
+        }
+
+        @Override
+        public String getMimeType() {
+            return "application/x-ndjson";
+        }
+
+        @Override
+        protected void writeRow(ExportChunk chunk, int index) {
+            append("{\"timestampNanos\":");
+            append(chunk.getTimestampNanos(index));
+            append(",\"address\":\"");
+            appendAddress(chunk.getAddress(index));
+            append("\",\"rssi\":");
+            append(chunk.getRssi(index));
+            append(",\"txPower\":");
+            int txPower = chunk.getTxPower(index);
+            if (txPower != AdvertisementLogWriter.TX_POWER_UNKNOWN) {
+                append(txPower);
+            } else {
+                append("null");
+            }
+            append(",\"scanRecord\":\"");
+            appendHex(chunk.getScanRecordBytes(), chunk.getScanRecordOffset(index),
+                    chunk.getScanRecordLength(index));
+            append("\"}\n");
+        }
+    }
+
+    /**
+     * A binary file of row groups, each storing one chunk column by column, for tools that
+     * only want some of the columns. Laid out as:
+     * <pre>
+     *   header     int magic, short version, short reserved
+     *   row group  int magic, int row count, long min and max timestamp, int length of the
+     *              columns that follow, then each column as an int length and its bytes:
+     *                timestamps    zig-zag varint deltas, the first from the min timestamp
+     *                addresses     6 bytes each
+     *                RSSI          1 byte each
+     *                TX power      1 byte each, {@link AdvertisementLogWriter#TX_POWER_UNKNOWN}
+     *                              when not advertised
+     *                scan records  varint length of each, then all their bytes
+     *   footer     int magic, long row count, int row group count, long min and max
+     *              timestamp
+     * </pre>
+     * Row groups carry their own length and time span, so a reader can skip those it doesn't
+     * need. There is no index at the end, which keeps the writer's memory constant and lets
+     * the file go to a stream that can't seek.
+     */
+    public static class Columnar extends ExportFormat {
+
+        public static final String EXTENSION = "advc";
+
+        /**
+         * "ADVX", at the start of the file.
+         */
+        public static final int FILE_MAGIC = 0x41445658;
+
+        /**
+         * "ROWS", at the start of every row group.
+         */
+        public static final int ROW_GROUP_MAGIC = 0x524F5753;
+
+        /**
+         * "END!", at the start of the footer.
+         */
+        public static final int FOOTER_MAGIC = 0x454E4421;
+
+        public static final short FORMAT_VERSION = 1;
+
+        public static final int ROW_GROUP_HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+        private byte[] mGroup = new byte[64 * 1024];
+
+        private int mLength;
+
+        private long mRowCount;
+
+        private int mRowGroupCount;
+
+        private long mMinTimestamp = Long.MAX_VALUE;
+
+        private long mMaxTimestamp = Long.MIN_VALUE;
+
+        @Override
+        public String getFileExtension() {
+            return EXTENSION;
+        }
+
+        @Override
+        public String getMimeType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public void begin(OutputStream out) throws IOException {
+            mLength = 0;
+            putInt(FILE_MAGIC);
+            putInt(FORMAT_VERSION << 16);
+            out.write(mGroup, 0, mLength);
+        }
+
+        @Override
+        public void write(ExportChunk chunk, OutputStream out) throws IOException {
+            int rows = chunk.size();
+            if (rows == 0) {
+                return;
+            }
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < rows; i++) {
+                min = Math.min(min, chunk.getTimestampNanos(i));
+                max = Math.max(max, chunk.getTimestampNanos(i));
+            }
+            int scanRecordBytes = chunk.getScanRecordOffset(rows - 1)
+                    + chunk.getScanRecordLength(rows - 1);
+            // Worst case: 10-byte deltas, 5-byte lengths.
+            ensureCapacity(ROW_GROUP_HEADER_SIZE + 5 * 4 + rows * (10 + 6 + 1 + 1 + 5)
+                    + scanRecordBytes);
+            mLength = 0;
+            putInt(ROW_GROUP_MAGIC);
+            putInt(rows);
+            putLong(min);
+            putLong(max);
+            int columnsLength = mLength;
+            putInt(0);
+
+            int column = startColumn();
+            long previous = min;
+            for (int i = 0; i < rows; i++) {
+                long delta = chunk.getTimestampNanos(i) - previous;
+                putVarint((delta << 1) ^ (delta >> 63));
+                previous = chunk.getTimestampNanos(i);
+            }
+            endColumn(column);
+
+            column = startColumn();
+            for (int i = 0; i < rows; i++) {
+                long address = chunk.getAddress(i);
+                for (int shift = 40; shift >= 0; shift -= 8) {
+                    mGroup[mLength++] = (byte) (address >>> shift);
+                }
+            }
+            endColumn(column);
+
+            column = startColumn();
+            for (int i = 0; i < rows; i++) {
+                mGroup[mLength++] = (byte) chunk.getRssi(i);
+            }
+            endColumn(column);
+
+            column = startColumn();
+            for (int i = 0; i < rows; i++) {
+                mGroup[mLength++] = (byte) chunk.getTxPower(i);
+            }
+            endColumn(column);
+
+            column = startColumn();
+            for (int i = 0; i < rows; i++) {
+                putVarint(chunk.getScanRecordLength(i));
+            }
+            System.arraycopy(chunk.getScanRecordBytes(), 0, mGroup, mLength, scanRecordBytes);
+            mLength += scanRecordBytes;
+            endColumn(column);
+
+            patchInt(columnsLength, mLength - columnsLength - 4);
+            out.write(mGroup, 0, mLength);
+
+            mRowCount += rows;
+            mRowGroupCount++;
+            mMinTimestamp = Math.min(mMinTimestamp, min);
+            mMaxTimestamp = Math.max(mMaxTimestamp, max);
+        }
+
+        @Override
+        public void finish(OutputStream out) throws IOException {
+            mLength = 0;
+            putInt(FOOTER_MAGIC);
+            putLong(mRowCount);
+            putInt(mRowGroupCount);
+            putLong(mRowCount > 0 ? mMinTimestamp : 0);
+            putLong(mRowCount > 0 ? mMaxTimestamp : 0);
+            out.write(mGroup, 0, mLength);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (mGroup.length < capacity) {
+                mGroup = new byte[Math.max(capacity, mGroup.length * 2)];
+            }
+        }
+
+        private int startColumn() {
+            int start = mLength;
+            mLength += 4;
+            return start;
+        }
+
+        private void endColumn(int start) {
+            patchInt(start, mLength - start - 4);
+        }
+
+        private void putInt(int value) {
+            patchInt(mLength, value);
+            mLength += 4;
+        }
+
+        private void patchInt(int offset, int value) {
+            mGroup[offset] = (byte) (value >>> 24);
+            mGroup[offset + 1] = (byte) (value >>> 16);
+            mGroup[offset + 2] = (byte) (value >>> 8);
+            mGroup[offset + 3] = (byte) value;
+        }
+
+        private void putLong(long value) {
+            putInt((int) (value >>> 32));
+            putInt((int) value);
+        }
+
+        private void putVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                mGroup[mLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mGroup[mLength++] = (byte) value;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+/**
+ * Finds the keys seen most often over a sliding window, such as the devices or manufacturers
+ * flooding the air, in fixed memory and constant time per occurrence.
+ *
+ * Time is cut into slices, each counted by its own Space-Saving summary of {@code capacity}
+ * counters: a key not being counted takes over the counter with the smallest count, and
+ * inherits that count as its possible overcount. Any key seen in more than 1/capacity of a
+ * slice's occurrences is guaranteed a counter. Counters are kept in buckets of equal count,
+ * linked in count order, so an occurrence only ever moves its counter to the next bucket. A
+ * ring of slices makes the window slide: a new slice reuses the oldest one's summary, and
+ * {@link #rank} merges the slices a span covers, keeping both an upper and a lower bound on
+ * every key's count.
+ *
+ * Everything lives in primitive arrays sized up front, so nothing is allocated while
+ * counting. Not thread safe.
+ */
+public class HeavyHitters {
+
+    /**
+     * The top keys over a span, from the most frequent down. Immutable once returned by
+     * {@link #rank}, so it may be handed to another thread.
+     */
+    public static final class Ranking {
+
+        private final long[] mKeys;
+
+        private final long[] mCounts;
+
+        private final long[] mGuaranteed;
+
+        private int mSize;
+
+        private long mTotal;
+
+        private long mSpanNanos;
+
+        public Ranking(int size) {
+            if (size < 1) {
+                throw new IllegalArgumentException("size must be positive");
+            }
+            mKeys = new long[size];
+            mCounts = new long[size];
+            mGuaranteed = new long[size];
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public long getKey(int index) {
+            return mKeys[index];
+        }
+
+        /**
+         * Occurrences of the key over the span at most, counting it as the least counted key
+         * in slices that had no counter for it.
+         */
+        public long getCount(int index) {
+            return mCounts[index];
+        }
+
+        /**
+         * Occurrences of the key over the span that are certain, at most {@link #getCount}.
+         */
+        public long getGuaranteed(int index) {
+            return mGuaranteed[index];
+        }
+
+        /**
+         * Occurrences of every key over the span.
+         */
+        public long getTotal() {
+            return mTotal;
+        }
+
+        /**
+         * Length of the span actually covered, for turning counts into rates.
+         */
+        public long getSpanNanos() {
+            return mSpanNanos;
+        }
+    }
+
+    private static final int NONE = -1;
+
+    private final Summary[] mSummaries;
+
+    private final long mSliceNanos;
+
+    /**
+     * The newest slice and where it starts, which most occurrences fall in.
+     */
+    private Summary mCurrent;
+
+    private long mCurrentStart = Long.MAX_VALUE;
+
+    // Scratch space for merging slices in rank().
+
+    private final MacIndex mMergeIndex;
+
+    private final long[] mMergeKeys;
+
+    private final long[] mMergeCounts;
+
+    private final long[] mMergeGuaranteed;
+
+    /**
+     * Sum of the smallest counts of the full slices each merged key was counted in.
+     */
+    private final long[] mMergeMinimums;
+
+    private long mLateCount;
+
+    /**
+     * @param capacity   counters per slice; keys above 1/capacity of a slice are always found
+     * @param slices     slices in the ring, so the longest span is {@code slices * sliceNanos}
+     * @param sliceNanos length of each slice
+     */
+    public HeavyHitters(int capacity, int slices, long sliceNanos) {
+        if (capacity < 1 || slices < 1 || sliceNanos < 1) {
+            throw new IllegalArgumentException("capacity, slices and sliceNanos must be positive");
+        }
+        mSummaries = new Summary[slices];
+        for (int i = 0; i < slices; i++) {
+            mSummaries[i] = new Summary(capacity);
+        }
+        mSliceNanos = sliceNanos;
+        mCurrent = mSummaries[0];
+        mMergeIndex = new MacIndex(capacity * slices);
+        mMergeKeys = new long[capacity * slices];
+        mMergeCounts = new long[capacity * slices];
+        mMergeGuaranteed = new long[capacity * slices];
+        mMergeMinimums = new long[capacity * slices];
+    }
+
+    /**
+     * Counts one occurrence of {@code key}, which must not be -1. Occurrences older than the
+     * ring reaches are counted in {@link #getLateCount()} and skipped.
+     */
+    public void add(long key, long timestampNanos) {
+        Summary summary = mCurrent;
+        if (timestampNanos - mCurrentStart >= mSliceNanos || timestampNanos < mCurrentStart) {
+            long slice = timestampNanos / mSliceNanos;
+            summary = mSummaries[(int) (slice % mSummaries.length)];
+            if (summary.mSlice != slice) {
+                if (slice < summary.mSlice) {
+                    mLateCount++;
+                    return;
+                }
+                summary.clear(slice);
+            }
+            if (slice > mCurrent.mSlice) {
+                mCurrent = summary;
+                mCurrentStart = slice * mSliceNanos;
+            }
+        }
+        summary.add(key);
+    }
+
+    /**
+     * Ranks the keys seen in the slices overlapping the {@code spanNanos} up to
+     * {@code nowNanos}, filling {@code out} with the most frequent.
+     *
+     * @return {@code out}
+     */
+    public Ranking rank(long nowNanos, long spanNanos, Ranking out) {
+        long lastSlice = nowNanos / mSliceNanos;
+        long slices = Math.min(Math.max(1, (spanNanos + mSliceNanos - 1) / mSliceNanos),
+                mSummaries.length);
+        long firstSlice = lastSlice - slices + 1;
+        mMergeIndex.clear();
+        int merged = 0;
+        long total = 0;
+        // A key missing from a full slice may have been counted up to its smallest count there.
+        long minimums = 0;
+        for (Summary summary : mSummaries) {
+            if (summary.mSlice < firstSlice || summary.mSlice > lastSlice) {
+                continue;
+            }
+            total += summary.mTotal;
+            long minimum = summary.getMinimum();
+            minimums += minimum;
+            for (int c = 0; c < summary.mSize; c++) {
+                long key = summary.mKeys[c];
+                long count = summary.mBucketCounts[summary.mBucketOf[c]];
+                int slot = mMergeIndex.get(key);
+                if (slot == MacIndex.NO_SLOT) {
+                    slot = merged++;
+                    mMergeIndex.put(key, slot);
+                    mMergeKeys[slot] = key;
+                    mMergeCounts[slot] = 0;
+                    mMergeGuaranteed[slot] = 0;
+                    mMergeMinimums[slot] = 0;
+                }
+                mMergeCounts[slot] += count;
+                mMergeGuaranteed[slot] += count - summary.mErrors[c];
+                mMergeMinimums[slot] += minimum;
+            }
+        }
+        for (int slot = 0; slot < merged; slot++) {
+            mMergeCounts[slot] += minimums - mMergeMinimums[slot];
+        }
+
+        // Insertion into the few places of the ranking.
+        int size = 0;
+        int places = out.mKeys.length;
+        for (int slot = 0; slot < merged; slot++) {
+            long count = mMergeCounts[slot];
+            if (size == places && count <= out.mCounts[size - 1]) {
+                continue;
+            }
+            int i = size < places ? size++ : size - 1;
+            while (i > 0 && out.mCounts[i - 1] < count) {
+                out.mKeys[i] = out.mKeys[i - 1];
+                out.mCounts[i] = out.mCounts[i - 1];
+                out.mGuaranteed[i] = out.mGuaranteed[i - 1];
+                i--;
+            }
+            out.mKeys[i] = mMergeKeys[slot];
+            out.mCounts[i] = count;
+            out.mGuaranteed[i] = mMergeGuaranteed[slot];
+        }
+        out.mSize = size;
+        out.mTotal = total;
+        out.mSpanNanos = Math.max(0, nowNanos - firstSlice * mSliceNanos);
+        return out;
+    }
+
+    /**
+     * Occurrences too old for the ring, and skipped.
+     */
+    public long getLateCount() {
+        return mLateCount;
+    }
+
+    public void clear() {
+        for (Summary summary : mSummaries) {
+            summary.clear(Long.MIN_VALUE);
+        }
+        mCurrent = mSummaries[0];
+        mCurrentStart = Long.MAX_VALUE;
+        mLateCount = 0;
+    }
+
+    /**
+     * Space-Saving counters for one slice, in buckets of equal count linked from the smallest
+     * count up.
+     */
+    private static final class Summary {
+
+        long mSlice = Long.MIN_VALUE;
+
+        long mTotal;
+
+        int mSize;
+
+        private final MacIndex mIndex;
+
+        // Counters: the key, its possible overcount, its bucket and its neighbours there.
+
+        final long[] mKeys;
+
+        final long[] mErrors;
+
+        final int[] mBucketOf;
+
+        private final int[] mNext;
+
+        private final int[] mPrevious;
+
+        // Buckets, at most one per counter: the count, first counter and neighbours by count.
+
+        final long[] mBucketCounts;
+
+        private final int[] mBucketFirst;
+
+        private final int[] mBucketNext;
+
+        private final int[] mBucketPrevious;
+
+        private int mMinBucket = NONE;
+
+        private int mFreeBucket = NONE;
+
+        Summary(int capacity) {
+            mIndex = new MacIndex(capacity);
+            mKeys = new long[capacity];
+            mErrors = new long[capacity];
+            mBucketOf = new int[capacity];
+            mNext = new int[capacity];
+            mPrevious = new int[capacity];
+            mBucketCounts = new long[capacity];
+            mBucketFirst = new int[capacity];
+            mBucketNext = new int[capacity];
+            mBucketPrevious = new int[capacity];
+            clear(Long.MIN_VALUE);
+        }
+
+        /**
+         * The count a key not being counted may have reached: the smallest count once every
+         * counter is taken, and 0 before.
+         */
+        long getMinimum() {
+            return mSize < mKeys.length ? 0 : mBucketCounts[mMinBucket];
+        }
+
+        void clear(long slice) {
+            mSlice = slice;
+            mTotal = 0;
+            if (mSize > 0) {
+                mIndex.clear();
+            }
+            mSize = 0;
+            mMinBucket = NONE;
+            // Chain every bucket into the free list.
+            for (int b = 0; b < mBucketNext.length; b++) {
+                mBucketNext[b] = b + 1 < mBucketNext.length ? b + 1 : NONE;
+            }
+            mFreeBucket = 0;
+        }
+
+        void add(long key) {
+            mTotal++;
+            int c = mIndex.get(key);
+            if (c != MacIndex.NO_SLOT) {
+                increment(c);
+            } else if (mSize < mKeys.length) {
+                c = mSize++;
+                mKeys[c] = key;
+                mErrors[c] = 0;
+                mIndex.put(key, c);
+                int b = mMinBucket;
+                if (b == NONE || mBucketCounts[b] != 1) {
+                    b = newBucket(1, NONE, b);
+                }
+                attach(c, b);
+            } else {
+                // Take over the least counted key's counter, and its count as the error.
+                int b = mMinBucket;
+                c = mBucketFirst[b];
+                mIndex.remove(mKeys[c]);
+                mKeys[c] = key;
+                mErrors[c] = mBucketCounts[b];
+                mIndex.put(key, c);
+                increment(c);
+            }
+        }
+
+        private void increment(int c) {
+            int b = mBucketOf[c];
+            long count = mBucketCounts[b] + 1;
+            int next = mBucketNext[b];
+            if (next != NONE && mBucketCounts[next] == count) {
+                detach(c);
+                attach(c, next);
+            } else if (mBucketFirst[b] == c && mNext[c] == NONE) {
+                // Alone in its bucket, which can simply count up.
+                mBucketCounts[b] = count;
+            } else {
+                detach(c);
+                attach(c, newBucket(count, b, next));
+            }
+        }
+
+        private void attach(int c, int b) {
+            int first = mBucketFirst[b];
+            mNext[c] = first;
+            mPrevious[c] = NONE;
+            if (first != NONE) {
+                mPrevious[first] = c;
+            }
+            mBucketFirst[b] = c;
+            mBucketOf[c] = b;
+        }
+
+        /**
+         * Unlinks counter {@code c} from its bucket, freeing the bucket if that empties it.
+         */
+        private void detach(int c) {
+            int b = mBucketOf[c];
+            int next = mNext[c];
+            int previous = mPrevious[c];
+            if (previous != NONE) {
+                mNext[previous] = next;
+            } else {
+                mBucketFirst[b] = next;
+            }
+            if (next != NONE) {
+                mPrevious[next] = previous;
+            }
+            if (mBucketFirst[b] == NONE) {
+                int before = mBucketPrevious[b];
+                int after = mBucketNext[b];
+                if (before != NONE) {
+                    mBucketNext[before] = after;
+                } else {
+                    mMinBucket = after;
+                }
+                if (after != NONE) {
+                    mBucketPrevious[after] = before;
+                }
+                mBucketNext[b] = mFreeBucket;
+                mFreeBucket = b;
+            }
+        }
+
+        /**
+         * Takes an empty bucket off the free list and links it between {@code before} and
+         * {@code after}, either of which may be {@link #NONE}.
+         */
+        private int newBucket(long count, int before, int after) {
+            int b = mFreeBucket;
+            mFreeBucket = mBucketNext[b];
+            mBucketCounts[b] = count;
+            mBucketFirst[b] = NONE;
+            mBucketPrevious[b] = before;
+            mBucketNext[b] = after;
+            if (before != NONE) {
+                mBucketNext[before] = b;
+            } else {
+                mMinBucket = b;
+            }
+            if (after != NONE) {
+                mBucketPrevious[after] = b;
+            }
+            return b;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * HyperLogLog sketch estimating how many distinct long keys, such as packed addresses, were
+ * added to it.
+ *
+ * Uses 2^precision byte registers; the default of 12 takes 4 KB and has a standard error of
+ * about 1.6%, however many keys are added. Small counts fall back to linear counting, so they
+ * are close to exact. Sketches with the same precision merge into the sketch of the union.
+ *
+ * A sketch serializes as its precision, a form byte and either the nonzero registers as
+ * (index delta, value) varint pairs or, once that is larger, every register packed into four
+ * bits above the smallest, with the rare larger values listed after. A minute of a few hundred
+ * devices takes well under a kilobyte and a dense sketch of the default precision about 2 KB.
+ */
+public class HyperLogLog {
+
+    public static final int DEFAULT_PRECISION = 12;
+
+    private static final int FORM_SPARSE = 0;
+
+    private static final int FORM_PACKED = 1;
+
+    /**
+     * Packed registers hold their value above the base up to this; larger values are listed
+     * separately.
+     */
+    private static final int PACKED_OVERFLOW = 15;
+
+    /**
+     * 2^-rank for every register value.
+     */
+    private static final double[] INVERSE_POWERS = new double[65];
+
+    static {
+        for (int rank = 0; rank < INVERSE_POWERS.length; rank++) {
+            INVERSE_POWERS[rank] = Math.scalb(1.0, -rank);
+        }
+    }
+
+    private final int mPrecision;
+
+    private final byte[] mRegisters;
+
+    private int mNonZero;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("precision must be between 4 and 16");
+        }
+        mPrecision = precision;
+        mRegisters = new byte[1 << precision];
+    }
+
+    public int getPrecision() {
+        return mPrecision;
+    }
+
+    public void add(long key) {
+        long hash = mix(key);
+        int index = (int) (hash >>> (64 - mPrecision));
+        // Rank of the first set bit in the remaining bits, with a sentinel bit to bound it.
+        long rest = (hash << mPrecision) | (1L << (mPrecision - 1));
+        int rank = Long.numberOfLeadingZeros(rest) + 1;
+        if (rank > mRegisters[index]) {
+            if (mRegisters[index] == 0) {
+                mNonZero++;
+            }
+            mRegisters[index] = (byte) rank;
+        }
+    }
+
+    public boolean isEmpty() {
+        return mNonZero == 0;
+    }
+
+    /**
+     * Estimated number of distinct keys added.
+     */
+    public long estimate() {
+        int m = mRegisters.length;
+        int zeros = m - mNonZero;
+        if (zeros == m) {
+            return 0;
+        }
+        double sum = 0;
+        for (byte register : mRegisters) {
+            sum += INVERSE_POWERS[register];
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double raw = alpha * m * m / sum;
+        if (raw <= 2.5 * m && zeros > 0) {
+            return Math.round(m * Math.log(m / (double) zeros));
+        }
+        return Math.round(raw);
+    }
+
+    /**
+     * Adds every key of {@code other}, which must have the same precision, to this sketch.
+     */
+    public void merge(HyperLogLog other) {
+        if (other.mPrecision != mPrecision) {
+            throw new IllegalArgumentException("Precisions differ");
+        }
+        byte[] registers = other.mRegisters;
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] > mRegisters[i]) {
+                setRegister(i, registers[i]);
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(mRegisters, (byte) 0);
+        mNonZero = 0;
+    }
+
+    /**
+     * Bytes {@link #writeTo} will write.
+     */
+    public int getSerializedSize() {
+        return 2 + Math.min(sparseSize(), packedSize());
+    }
+
+    public void writeTo(ByteBuffer out) {
+        out.put((byte) mPrecision);
+        if (sparseSize() <= packedSize()) {
+            out.put((byte) FORM_SPARSE);
+            putVarint(out, mNonZero);
+            int previous = 0;
+            for (int i = 0; i < mRegisters.length; i++) {
+                if (mRegisters[i] != 0) {
+                    putVarint(out, i - previous);
+                    out.put(mRegisters[i]);
+                    previous = i;
+                }
+            }
+            return;
+        }
+        out.put((byte) FORM_PACKED);
+        int base = minRegister();
+        out.put((byte) base);
+        int overflows = 0;
+        for (int i = 0; i < mRegisters.length; i += 2) {
+            int high = Math.min(mRegisters[i] - base, PACKED_OVERFLOW);
+            int low = Math.min(mRegisters[i + 1] - base, PACKED_OVERFLOW);
+            out.put((byte) (high << 4 | low));
+            if (high == PACKED_OVERFLOW) {
+                overflows++;
+            }
+            if (low == PACKED_OVERFLOW) {
+                overflows++;
+            }
+        }
+        putVarint(out, overflows);
+        int previous = 0;
+        for (int i = 0; i < mRegisters.length; i++) {
+            if (mRegisters[i] - base >= PACKED_OVERFLOW) {
+                putVarint(out, i - previous);
+                out.put(mRegisters[i]);
+                previous = i;
+            }
+        }
+    }
+
+    /**
+     * Merges the sketch serialized at {@code in}'s position into this one, leaving the position
+     * after it.
+     *
+     * @throws IOException if the bytes are not a sketch of this precision
+     */
+    public void mergeFrom(ByteBuffer in) throws IOException {
+        if (in.remaining() < 2 || in.get() != mPrecision) {
+            throw new IOException("Not a sketch of precision " + mPrecision);
+        }
+        int form = in.get();
+        int m = mRegisters.length;
+        if (form == FORM_PACKED) {
+            if (in.remaining() < 1 + m / 2) {
+                throw new IOException("Truncated sketch");
+            }
+            int base = in.get();
+            for (int i = 0; i < m; i += 2) {
+                int pair = in.get() & 0xFF;
+                int high = pair >>> 4;
+                int low = pair & 0xF;
+                // Overflowed registers are at least that large, and set exactly below.
+                if (high + base > mRegisters[i]) {
+                    setRegister(i, (byte) (high + base));
+                }
+                if (low + base > mRegisters[i + 1]) {
+                    setRegister(i + 1, (byte) (low + base));
+                }
+            }
+            mergePairs(in, getVarint(in));
+        } else if (form == FORM_SPARSE) {
+            mergePairs(in, getVarint(in));
+        } else {
+            throw new IOException("Unknown sketch form " + form);
+        }
+    }
+
+    private void mergePairs(ByteBuffer in, int count) throws IOException {
+        int index = 0;
+        for (int i = 0; i < count; i++) {
+            index += getVarint(in);
+            if (index < 0 || index >= mRegisters.length || !in.hasRemaining()) {
+                throw new IOException("Corrupt sketch");
+            }
+            byte register = in.get();
+            if (register > mRegisters[index]) {
+                setRegister(index, register);
+            }
+        }
+    }
+
+    private void setRegister(int index, byte value) {
+        if (mRegisters[index] == 0) {
+            mNonZero++;
+        }
+        mRegisters[index] = value;
+    }
+
+    private int sparseSize() {
+        int size = varintSize(mNonZero);
+        int previous = 0;
+        for (int i = 0; i < mRegisters.length; i++) {
+            if (mRegisters[i] != 0) {
+                size += varintSize(i - previous) + 1;
+                previous = i;
+            }
+        }
+        return size;
+    }
+
+    private int packedSize() {
+        int base = minRegister();
+        int overflows = 0;
+        int size = 1 + mRegisters.length / 2;
+        int previous = 0;
+        for (int i = 0; i < mRegisters.length; i++) {
+            if (mRegisters[i] - base >= PACKED_OVERFLOW) {
+                overflows++;
+                size += varintSize(i - previous) + 1;
+                previous = i;
+            }
+        }
+        return size + varintSize(overflows);
+    }
+
+    private int minRegister() {
+        if (mNonZero < mRegisters.length) {
+            return 0;
+        }
+        int min = Integer.MAX_VALUE;
+        for (byte register : mRegisters) {
+            min = Math.min(min, register);
+        }
+        return min;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new IOException("Truncated sketch");
+            }
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt sketch");
+    }
+
+    private static long mix(long key) {
+        // Murmur3 finalizer, as in MacIndex.
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates a device's advertising interval, jitter and packet loss from its recent sighting
+ * times, the sliding window {@link RssiHistory} already keeps in its shared pool, so nothing
+ * more is stored per device and the ingestion thread does no extra work.
+ *
+ * Advertisers send every T plus a random delay of up to 10 ms, and scanners miss many of the
+ * packets, so the gaps between sightings are roughly whole multiples of T. The period is found
+ * GCD-style: each of the few shortest gaps, divided by 1 to {@link #MAX_DIVISOR}, is a
+ * candidate, refined by least squares over the gaps' multiples of it, and the longest
+ * candidate that nearly every gap is close to a whole multiple of wins. Gaps of more than
+ * {@link #MAX_MISSED} intervals are taken as the scanner pausing rather than packet loss and
+ * left out. Jitter is the standard deviation of the gaps from their multiples, and the loss
+ * ratio is the share of expected packets never seen, which includes what the scan duty cycle
+ * hides.
+ *
+ * Periods shorter than about three times the jitter (under 30 ms) can't be told apart from
+ * their multiples, and are reported approximately. Not thread safe; each reader needs its
+ * own.
+ */
+public class IntervalEstimator {
+
+    /**
+     * Gaps shorter than this are the same packet heard twice.
+     */
+    private static final long DUPLICATE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * Gaps this close to a multiple of a candidate period always fit it: the advertising delay
+     * alone moves each packet by up to 10 ms.
+     */
+    private static final long JITTER_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Candidates are taken from this many of the shortest gaps, in case one is spurious.
+     */
+    private static final int BASE_GAPS = 3;
+
+    /**
+     * Up to this many packets in a row may have been missed around every shortest gap.
+     */
+    private static final int MAX_DIVISOR = 4;
+
+    private static final int MAX_MISSED = 16;
+
+    /**
+     * Share of gaps, in eighths, that must be close to a multiple for a period to be accepted.
+     */
+    private static final int MIN_FIT_EIGHTHS = 7;
+
+    /**
+     * An estimate, copied out by {@link #estimate}.
+     */
+    public static final class Estimate {
+        public long intervalNanos;
+        public long jitterNanos;
+        public double lossRatio;
+
+        /**
+         * Gaps the estimate was made from.
+         */
+        public int gaps;
+    }
+
+    private long[] mTimestamps;
+
+    private int[] mRssi;
+
+    private long[] mGaps;
+
+    private long[] mSorted;
+
+    /**
+     * @param window the most sightings that will be passed in, e.g.
+     *               {@link RssiHistory#getWindow()}
+     */
+    public IntervalEstimator(int window) {
+        mTimestamps = new long[window];
+        mRssi = new int[window];
+        mGaps = new long[window];
+        mSorted = new long[window];
+    }
+
+    /**
+     * Estimates from a device's samples in an {@link RssiHistory}.
+     *
+     * @return false if the slot no longer belongs to {@code address} or there are too few
+     * sightings to go on
+     */
+    public boolean read(RssiHistory history, int slot, long address, Estimate out) {
+        int count = history.readSamples(slot, address, mTimestamps, mRssi);
+        return count > 0 && estimate(mTimestamps, count, out);
+    }
+
+    /**
+     * Estimates from sighting times, in any order; the array is sorted in place.
+     *
+     * @return false if there are too few distinct gaps to go on
+     */
+    public boolean estimate(long[] timestampsNanos, int count, Estimate out) {
+        Arrays.sort(timestampsNanos, 0, count);
+        int gaps = 0;
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && timestampsNanos[i] - previous < DUPLICATE_NANOS) {
+                continue;
+            }
+            if (i > 0) {
+                mGaps[gaps++] = timestampsNanos[i] - previous;
+            }
+            previous = timestampsNanos[i];
+        }
+        if (gaps < 2) {
+            return false;
+        }
+        System.arraycopy(mGaps, 0, mSorted, 0, gaps);
+        Arrays.sort(mSorted, 0, gaps);
+
+        long period = 0;
+        for (int base = 0; base < Math.min(BASE_GAPS, gaps); base++) {
+            if (base > 0 && mSorted[base] == mSorted[base - 1]) {
+                continue;
+            }
+            for (int divisor = 1; divisor <= MAX_DIVISOR; divisor++) {
+                long candidate = mSorted[base] / divisor;
+                if (candidate <= period) {
+                    break;
+                }
+                // The shortest gaps are biased short by jitter; refine before judging.
+                candidate = refine(gaps, refine(gaps, candidate));
+                if (candidate > period && fits(gaps, candidate)) {
+                    period = candidate;
+                    break;
+                }
+            }
+        }
+        if (period == 0) {
+            return false;
+        }
+
+        long expected = 0;
+        int used = 0;
+        double sumSquares = 0;
+        for (int i = 0; i < gaps; i++) {
+            long multiple = multipleOf(mGaps[i], period);
+            if (multiple <= MAX_MISSED) {
+                double residual = mGaps[i] - multiple * period;
+                sumSquares += residual * residual;
+                expected += multiple;
+                used++;
+            }
+        }
+        out.intervalNanos = period;
+        out.jitterNanos = (long) Math.sqrt(sumSquares / used);
+        out.lossRatio = (expected - used) / (double) expected;
+        out.gaps = used;
+        return true;
+    }
+
+    /**
+     * Fits a period by least squares through the origin to the gaps' multiples of a rough
+     * one, or returns the rough one if no gap is short enough to count.
+     */
+    private long refine(int gaps, long period) {
+        long sumGaps = 0;
+        long sumMultiples = 0;
+        for (int i = 0; i < gaps; i++) {
+            long multiple = multipleOf(mGaps[i], period);
+            if (multiple <= MAX_MISSED) {
+                sumGaps += mGaps[i];
+                sumMultiples += multiple;
+            }
+        }
+        return sumMultiples == 0 ? period : sumGaps / sumMultiples;
+    }
+
+    /**
+     * True if nearly all gaps short enough to count are close to a multiple of the period.
+     */
+    private boolean fits(int gaps, long period) {
+        // Never so loose that a gap could be close to two multiples.
+        long tolerance = Math.min(Math.max(JITTER_NANOS, period / 8), period / 3);
+        int counted = 0;
+        int close = 0;
+        for (int i = 0; i < gaps; i++) {
+            long multiple = multipleOf(mGaps[i], period);
+            if (multiple > MAX_MISSED) {
+                continue;
+            }
+            counted++;
+            if (Math.abs(mGaps[i] - multiple * period) <= tolerance) {
+                close++;
+            }
+        }
+        return counted >= 2 && close * 8 >= counted * MIN_FIT_EIGHTHS;
+    }
+
+    private static long multipleOf(long gap, long period) {
+        return Math.max(1, (gap + period / 2) / period);
+    }
+}
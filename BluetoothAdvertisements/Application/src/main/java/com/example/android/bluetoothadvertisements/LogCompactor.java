@@ -0,0 +1,582 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Compresses closed advertisement log segments and compacts them, on a background thread of
+ * the lowest priority.
+ *
+ * Each raw segment the {@link AdvertisementLogWriter} closes is rewritten as a
+ * {@link CompressedSegment}, after which the raw file is deleted. Input is read twice, first
+ * to find the scan records that repeat, which go to the segment's dictionary. Every
+ * compression is followed by a compaction pass over the compressed segments, which:
+ * <ul>
+ * <li>deletes segments whose records are all older than the retention window,</li>
+ * <li>merges runs of consecutive small segments into one of up to {@code mergeTargetBytes},
+ *     dropping expired records on the way, and</li>
+ * <li>rewrites a segment on its own if some of its records have expired.</li>
+ * </ul>
+ *
+ * Every compressed segment written, by compression or merging, gets a {@link BeaconIndex}
+ * built from the records on their way through, renamed into place just before the segment.
+ * A failure to index is counted but leaves the segment alone; queries scan it instead.
+ *
+ * Output is written to a temporary file, synced and renamed into place before any input is
+ * deleted, so the log is complete whenever the process dies. What an interrupted pass leaves
+ * behind, such as a raw segment next to its compressed copy, or segments already merged into
+ * a later one, is ignored by {@link AdvertisementLogReader#selectLogFiles} and deleted by the
+ * next pass.
+ */
+public class LogCompactor implements AdvertisementLogWriter.SegmentListener, Closeable {
+
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+
+    private final long mRetentionNanos;
+
+    private final long mMergeTargetBytes;
+
+    private final ExecutorService mExecutor;
+
+    /**
+     * Held for writing by the background passes and for reading by {@link #pause}. Shared by
+     * every instance, since the service may start a new one on the log while paused.
+     */
+    private static final ReadWriteLock sPauseLock = new ReentrantReadWriteLock();
+
+    // Statistics, written by the compaction thread only.
+
+    private volatile int mCompressedSegments;
+
+    private volatile long mRawBytes;
+
+    private volatile long mCompressedBytes;
+
+    private volatile long mCompressNanos;
+
+    private volatile int mMergedSegments;
+
+    private volatile int mIndexedSegments;
+
+    private volatile long mIndexBytes;
+
+    private volatile long mIndexNanos;
+
+    private volatile long mExpiredRecords;
+
+    private volatile int mFailures;
+
+    private volatile IOException mLastFailure;
+
+    /**
+     * @param retentionNanos   drop records older than this
+     * @param mergeTargetBytes merge compressed segments smaller than half this into segments
+     *                         of up to this size
+     */
+    public LogCompactor(File directory, long retentionNanos, long mergeTargetBytes) {
+        mDirectory = directory;
+        mRetentionNanos = retentionNanos;
+        mMergeTargetBytes = mergeTargetBytes;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "LogCompactor");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues compression of a segment the writer has closed, then a compaction pass.
+     */
+    @Override
+    public void onSegmentClosed(final File segment) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sPauseLock.writeLock().lock();
+                try {
+                    long now = nowNanos();
+                    compress(segment, now - mRetentionNanos);
+                    compact(now);
+                } catch (IOException e) {
+                    recordFailure(e);
+                } finally {
+                    sPauseLock.writeLock().unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues compression of the raw segments left closed by earlier runs, those before
+     * {@code activeSequence}, which the writer is using, then a compaction pass.
+     */
+    public void submitPending(final long activeSequence) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sPauseLock.writeLock().lock();
+                try {
+                    long now = nowNanos();
+                    cleanUp();
+                    for (File segment : AdvertisementLogReader.listSegments(mDirectory)) {
+                        if (AdvertisementLogWriter.parseSegmentSequence(segment.getName())
+                                < activeSequence) {
+                            compress(segment, now - mRetentionNanos);
+                        }
+                    }
+                    compact(now);
+                } catch (IOException e) {
+                    recordFailure(e);
+                } finally {
+                    sPauseLock.writeLock().unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Holds off the background passes of every compactor, which rename and delete log files,
+     * so that a reader can walk the files safely; see {@link LogExporter}. Waits for a running
+     * pass to finish. Several threads may pause at once, and each must call {@link #resume}
+     * when done.
+     */
+    public static void pause() {
+        sPauseLock.readLock().lock();
+    }
+
+    /**
+     * Lets the background passes carry on after {@link #pause}, from the same thread.
+     */
+    public static void resume() {
+        sPauseLock.readLock().unlock();
+    }
+
+    /**
+     * Stops accepting work. Queued work still runs on the background thread; whatever doesn't
+     * finish before the process dies is picked up by {@link #submitPending} next time.
+     */
+    @Override
+    public void close() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Waits for the work queued before {@link #close} to finish.
+     *
+     * @return false if it timed out first
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Rewrites a closed raw segment as a compressed one, leaving out records older than
+     * {@code cutoffNanos}, and deletes it.
+     */
+    public void compress(File segment, long cutoffNanos) throws IOException {
+        long start = System.nanoTime();
+        long sequence = AdvertisementLogWriter.parseSegmentSequence(segment.getName());
+        File target = new File(mDirectory, CompressedSegment.segmentName(sequence));
+        File temp = new File(mDirectory, target.getName() + TEMP_SUFFIX);
+        long rawBytes = segment.length();
+
+        CompressedSegmentWriter writer = new CompressedSegmentWriter(temp, sequence);
+        BeaconIndexWriter index = new BeaconIndexWriter();
+        boolean done = false;
+        try {
+            AdvertisementLogReader reader = new AdvertisementLogReader(mDirectory);
+            CopyVisitor copier = new CopyVisitor(writer, index, cutoffNanos);
+            long read;
+            try {
+                reader.readSegment(segment, new CandidateVisitor(writer, cutoffNanos));
+                read = reader.readSegment(segment, copier);
+            } finally {
+                writer.close();
+            }
+            copier.check();
+            mExpiredRecords += read - writer.getRecordCount();
+            if (writer.getRecordCount() > 0) {
+                writeIndex(index, writer, target);
+                rename(temp, target);
+            }
+            done = true;
+        } finally {
+            if (!done || writer.getRecordCount() == 0) {
+                temp.delete();
+            }
+        }
+        if (!segment.delete()) {
+            throw new IOException("Unable to delete compressed segment " + segment);
+        }
+        mCompressedSegments++;
+        mRawBytes += rawBytes;
+        mCompressedBytes += target.length();
+        mCompressNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Runs one compaction pass over the compressed segments.
+     *
+     * @param nowNanos current time, nanoseconds since the epoch; the retention window ends here
+     */
+    public void compact(long nowNanos) throws IOException {
+        cleanUp();
+        long cutoff = nowNanos - mRetentionNanos;
+        List<CompressedSegment> group = new ArrayList<>();
+        long groupBytes = 0;
+        boolean groupExpires = false;
+        try {
+            for (File file : AdvertisementLogReader.listLogFiles(mDirectory)) {
+                if (CompressedSegment.parseSegmentSequence(file.getName()) < 0) {
+                    // Raw segments end a run, so a merged segment's range only ever covers
+                    // compressed ones.
+                    mergeAndClose(group, groupExpires, cutoff);
+                    groupBytes = 0;
+                    groupExpires = false;
+                    continue;
+                }
+                CompressedSegment segment = CompressedSegment.open(file);
+                if (segment.getRecordCount() == 0 || segment.getMaxTimestampNanos() < cutoff) {
+                    segment.close();
+                    deleteSegment(file);
+                    mExpiredRecords += segment.getRecordCount();
+                    continue;
+                }
+                long size = segment.getSizeBytes();
+                boolean expires = segment.getMinTimestampNanos() < cutoff;
+                if (size >= mMergeTargetBytes / 2 && !expires) {
+                    segment.close();
+                    mergeAndClose(group, groupExpires, cutoff);
+                    groupBytes = 0;
+                    groupExpires = false;
+                    continue;
+                }
+                if (groupBytes + size > mMergeTargetBytes) {
+                    mergeAndClose(group, groupExpires, cutoff);
+                    groupBytes = 0;
+                    groupExpires = false;
+                }
+                group.add(segment);
+                groupBytes += size;
+                groupExpires |= expires;
+            }
+            mergeAndClose(group, groupExpires, cutoff);
+        } finally {
+            for (CompressedSegment segment : group) {
+                segment.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes temporary files and segments made redundant by an interrupted pass.
+     */
+    public void cleanUp() throws IOException {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Set<File> live =
+                new HashSet<>(Arrays.asList(AdvertisementLogReader.selectLogFiles(files)));
+        for (File file : live.toArray(new File[live.size()])) {
+            if (CompressedSegment.parseSegmentSequence(file.getName()) >= 0) {
+                live.add(BeaconIndex.indexFile(file));
+            }
+        }
+        for (File file : files) {
+            String name = file.getName();
+            boolean segment = AdvertisementLogWriter.parseSegmentSequence(name) >= 0
+                    || CompressedSegment.parseSegmentSequence(name) >= 0
+                    || name.endsWith(BeaconIndex.INDEX_SUFFIX);
+            if (name.endsWith(TEMP_SUFFIX) || segment && !live.contains(file)) {
+                delete(file);
+            }
+        }
+    }
+
+    /**
+     * Merges the group into one segment named after its last, if there is more than one or
+     * some of its records have expired, then closes and clears it.
+     */
+    private void mergeAndClose(List<CompressedSegment> group, boolean expires, long cutoffNanos)
+            throws IOException {
+        try {
+            if (group.size() > 1 || expires && group.size() == 1) {
+                merge(group, cutoffNanos);
+            }
+        } finally {
+            for (CompressedSegment segment : group) {
+                segment.close();
+            }
+            group.clear();
+        }
+    }
+
+    private void merge(List<CompressedSegment> group, long cutoffNanos) throws IOException {
+        File target = group.get(group.size() - 1).getFile();
+        File temp = new File(mDirectory, target.getName() + TEMP_SUFFIX);
+        CompressedSegmentWriter writer =
+                new CompressedSegmentWriter(temp, group.get(0).getFirstSequence());
+        BeaconIndexWriter index = new BeaconIndexWriter();
+        boolean done = false;
+        try {
+            CopyVisitor copier = new CopyVisitor(writer, index, cutoffNanos);
+            long records = 0;
+            try {
+                CandidateVisitor candidates = new CandidateVisitor(writer, cutoffNanos);
+                for (CompressedSegment segment : group) {
+                    segment.read(cutoffNanos, Long.MAX_VALUE, candidates);
+                }
+                for (CompressedSegment segment : group) {
+                    records += segment.getRecordCount();
+                    segment.read(cutoffNanos, Long.MAX_VALUE, copier);
+                    copier.check();
+                }
+            } finally {
+                writer.close();
+            }
+            writeIndex(index, writer, target);
+            rename(temp, target);
+            done = true;
+            mExpiredRecords += records - writer.getRecordCount();
+        } finally {
+            if (!done) {
+                temp.delete();
+            }
+        }
+        // The merged segment now covers the others; see AdvertisementLogReader#selectLogFiles.
+        for (int i = 0; i < group.size() - 1; i++) {
+            deleteSegment(group.get(i).getFile());
+        }
+        mMergedSegments += group.size();
+    }
+
+    /**
+     * Writes the index of a compressed segment about to be renamed to {@code target} next to
+     * it. Until the segment follows, the index doesn't match what's there and is ignored.
+     */
+    private void writeIndex(BeaconIndexWriter index, CompressedSegmentWriter writer,
+                            File target) {
+        long start = System.nanoTime();
+        File indexFile = BeaconIndex.indexFile(target);
+        File temp = new File(mDirectory, indexFile.getName() + TEMP_SUFFIX);
+        try {
+            index.write(temp, writer.getChecksum(), writer.getRecordCount());
+            rename(temp, indexFile);
+            mIndexedSegments++;
+            mIndexBytes += index.getSizeBytes();
+            mIndexNanos += System.nanoTime() - start;
+        } catch (IOException e) {
+            temp.delete();
+            recordFailure(e);
+        }
+    }
+
+    /**
+     * Shows a writer the scan records it is about to be given, so it can put those that
+     * repeat in the segment's dictionary.
+     */
+    private static final class CandidateVisitor implements AdvertisementLogReader.RecordVisitor {
+
+        private final CompressedSegmentWriter mWriter;
+
+        private final long mCutoffNanos;
+
+        CandidateVisitor(CompressedSegmentWriter writer, long cutoffNanos) {
+            mWriter = writer;
+            mCutoffNanos = cutoffNanos;
+        }
+
+        @Override
+        public boolean onRecord(long timestampNanos, long address, int rssi, int txPower,
+                                ByteBuffer scanRecord) {
+            if (timestampNanos >= mCutoffNanos) {
+                mWriter.addCandidate(scanRecord);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Appends the records it visits to a writer and its index, skipping those before a
+     * cutoff.
+     */
+    private static final class CopyVisitor implements AdvertisementLogReader.RecordVisitor {
+
+        private final CompressedSegmentWriter mWriter;
+
+        private final BeaconIndexWriter mIndex;
+
+        private final long mCutoffNanos;
+
+        private IOException mFailure;
+
+        CopyVisitor(CompressedSegmentWriter writer, BeaconIndexWriter index,
+                    long cutoffNanos) {
+            mWriter = writer;
+            mIndex = index;
+            mCutoffNanos = cutoffNanos;
+        }
+
+        @Override
+        public boolean onRecord(long timestampNanos, long address, int rssi, int txPower,
+                                ByteBuffer scanRecord) {
+            if (timestampNanos < mCutoffNanos) {
+                return true;
+            }
+            try {
+                mIndex.add(mWriter.getRecordCount(), rssi, scanRecord);
+                mWriter.append(timestampNanos, address, rssi, txPower, scanRecord);
+                return true;
+            } catch (IOException e) {
+                mFailure = e;
+                return false;
+            }
+        }
+
+        /**
+         * Rethrows a write failure that stopped the copy.
+         */
+        void check() throws IOException {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Unable to rename " + from + " to " + to);
+        }
+    }
+
+    /**
+     * Deletes a compressed segment and its index.
+     */
+    private static void deleteSegment(File segment) throws IOException {
+        delete(segment);
+        delete(BeaconIndex.indexFile(segment));
+    }
+
+    private static void delete(File file) throws IOException {
+        if (!file.delete() && file.exists()) {
+            throw new IOException("Unable to delete " + file);
+        }
+    }
+
+    private static long nowNanos() {
+        return System.currentTimeMillis() * 1000000L;
+    }
+
+    private void recordFailure(IOException e) {
+        mLastFailure = e;
+        mFailures++;
+    }
+
+    public int getCompressedSegmentCount() {
+        return mCompressedSegments;
+    }
+
+    /**
+     * Size of the raw segments compressed so far.
+     */
+    public long getRawBytes() {
+        return mRawBytes;
+    }
+
+    /**
+     * Size of the compressed segments they became, before any merging.
+     */
+    public long getCompressedBytes() {
+        return mCompressedBytes;
+    }
+
+    public int getMergedSegmentCount() {
+        return mMergedSegments;
+    }
+
+    /**
+     * Records dropped because they fell out of the retention window.
+     */
+    public long getExpiredRecordCount() {
+        return mExpiredRecords;
+    }
+
+    public int getIndexedSegmentCount() {
+        return mIndexedSegments;
+    }
+
+    /**
+     * Size of the beacon indexes written so far.
+     */
+    public long getIndexBytes() {
+        return mIndexBytes;
+    }
+
+    public int getFailureCount() {
+        return mFailures;
+    }
+
+    /**
+     * Summarizes the work done so far.
+     */
+    public void describe(StringBuilder out) {
+        long rawBytes = mRawBytes;
+        long compressedBytes = mCompressedBytes;
+        long nanos = mCompressNanos;
+        out.append("Log compaction: ").append(mCompressedSegments)
+                .append(" segments compressed");
+        if (compressedBytes > 0 && nanos > 0) {
+            out.append(String.format(", %.1f MB to %.1f MB (%.1fx) at %.1f MB/s",
+                    rawBytes / 1e6, compressedBytes / 1e6, rawBytes / (double) compressedBytes,
+                    rawBytes * 1e3 / nanos));
+        }
+        out.append(", ").append(mMergedSegments).append(" merged, ")
+                .append(mExpiredRecords).append(" records expired\n");
+        int indexed = mIndexedSegments;
+        if (indexed > 0) {
+            out.append(String.format("Beacon indexes: %d written, %.1f KB and %.1f ms each\n",
+                    indexed, mIndexBytes / 1e3 / indexed, mIndexNanos / 1e6 / indexed));
+        }
+        IOException failure = mLastFailure;
+        if (failure != null) {
+            out.append("Compaction failures: ").append(mFailures).append(", last: ")
+                    .append(failure.getMessage()).append('\n');
+        }
+    }
+}
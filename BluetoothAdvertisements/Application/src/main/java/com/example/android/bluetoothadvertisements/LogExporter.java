@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streams the advertisement log, or a time range of it, into an export file through an
+ * {@link ExportFormat}, without loading it into memory.
+ *
+ * A reader thread walks the log files oldest first and fills {@link ExportChunk}s, which the
+ * thread calling {@link #export} formats and writes while the next ones are being read. Only
+ * a fixed number of chunks exist, passed back and forth through two blocking queues, so memory
+ * use is set by the chunk size and count whatever the size of the log, and a slow output
+ * stream holds the reader up rather than letting chunks pile up.
+ *
+ * Progress is reported once per chunk, on the exporting thread, so an {@code AsyncTask} can
+ * hand it to {@code publishProgress}. {@link #cancel} may be called from any thread; an
+ * interrupt of the exporting thread, as from {@code AsyncTask.cancel(true)}, cancels too.
+ * Either way {@link #export} throws {@link InterruptedIOException}, and the partial output is
+ * left for the caller to delete.
+ *
+ * Compaction renames and deletes log files, so it is paused, through
+ * {@link LogCompactor#pause}, for the duration of the export.
+ */
+public class LogExporter {
+
+    /**
+     * Receives progress reports on the exporting thread.
+     */
+    public interface ProgressListener {
+
+        /**
+         * @param records records written so far
+         * @param percent of the log files read so far
+         */
+        void onProgress(long records, int percent);
+    }
+
+    private final File mDirectory;
+
+    private final int mChunkRecords;
+
+    private final int mChunkBytes;
+
+    private final int mChunkCount;
+
+    private volatile boolean mCancelled;
+
+    /**
+     * @param chunkRecords records per chunk
+     * @param chunkBytes   bytes of scan records per chunk
+     * @param chunkCount   chunks in flight, at least 2 so reading and writing overlap
+     */
+    public LogExporter(File directory, int chunkRecords, int chunkBytes, int chunkCount) {
+        if (chunkCount < 2) {
+            throw new IllegalArgumentException("At least 2 chunks are needed");
+        }
+        mDirectory = directory;
+        mChunkRecords = chunkRecords;
+        mChunkBytes = chunkBytes;
+        mChunkCount = chunkCount;
+    }
+
+    /**
+     * Stops a running export. Takes effect at the next chunk.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Writes the records received between {@code fromNanos} and {@code toNanos} inclusive to
+     * {@code out}, in log order, and flushes it. Blocks until done.
+     *
+     * @param listener receives progress, or null
+     * @return the number of records written
+     * @throws InterruptedIOException if the export was cancelled or the thread interrupted
+     */
+    public long export(long fromNanos, long toNanos, ExportFormat format, OutputStream out,
+                       ProgressListener listener) throws IOException {
+        LogCompactor.pause();
+        try {
+            BlockingQueue<ExportChunk> free = new ArrayBlockingQueue<>(mChunkCount);
+            BlockingQueue<ExportChunk> full = new ArrayBlockingQueue<>(mChunkCount + 1);
+            for (int i = 0; i < mChunkCount; i++) {
+                free.add(new ExportChunk(mChunkRecords, mChunkBytes));
+            }
+            ChunkReader reader = new ChunkReader(fromNanos, toNanos, free, full);
+            Thread thread = new Thread(reader, "LogExporter");
+            thread.start();
+            try {
+                return write(reader, format, out, listener, free, full);
+            } finally {
+                thread.interrupt();
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        thread.join();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } finally {
+            LogCompactor.resume();
+        }
+    }
+
+    private long write(ChunkReader reader, ExportFormat format, OutputStream out,
+                       ProgressListener listener, BlockingQueue<ExportChunk> free,
+                       BlockingQueue<ExportChunk> full) throws IOException {
+        long records = 0;
+        format.begin(out);
+        while (true) {
+            if (mCancelled) {
+                throw new InterruptedIOException("Export cancelled");
+            }
+            ExportChunk chunk;
+            try {
+                chunk = full.take();
+            } catch (InterruptedException e) {
+                mCancelled = true;
+                throw new InterruptedIOException("Export cancelled");
+            }
+            if (chunk == reader.mEnd) {
+                break;
+            }
+            format.write(chunk, out);
+            records += chunk.size();
+            int percent = reader.mPercent;
+            chunk.clear();
+            free.add(chunk);
+            if (listener != null) {
+                listener.onProgress(records, percent);
+            }
+        }
+        if (reader.mFailure != null) {
+            throw reader.mFailure;
+        }
+        format.finish(out);
+        out.flush();
+        if (listener != null) {
+            listener.onProgress(records, 100);
+        }
+        return records;
+    }
+
+    /**
+     * Fills chunks from the log files on the reader thread. Every full chunk, and finally
+     * {@link #mEnd}, is put on the full queue, which has room for all the chunks, so the
+     * reader only ever waits for a free chunk.
+     */
+    private final class ChunkReader implements Runnable, AdvertisementLogReader.RecordVisitor {
+
+        private final long mFromNanos;
+
+        private final long mToNanos;
+
+        private final BlockingQueue<ExportChunk> mFree;
+
+        private final BlockingQueue<ExportChunk> mFull;
+
+        /**
+         * Marks the end of the log, or a failure, on the full queue.
+         */
+        final ExportChunk mEnd = new ExportChunk(1, AdvertisementLogWriter.MAX_SCAN_RECORD_LENGTH);
+
+        volatile IOException mFailure;
+
+        volatile int mPercent;
+
+        private ExportChunk mChunk;
+
+        ChunkReader(long fromNanos, long toNanos, BlockingQueue<ExportChunk> free,
+                    BlockingQueue<ExportChunk> full) {
+            mFromNanos = fromNanos;
+            mToNanos = toNanos;
+            mFree = free;
+            mFull = full;
+        }
+
+        @Override
+        public void run() {
+            boolean interrupted = false;
+            boolean finished = false;
+            try {
+                AdvertisementLogReader reader = new AdvertisementLogReader(mDirectory);
+                File[] files = AdvertisementLogReader.listLogFiles(mDirectory);
+                mChunk = mFree.take();
+                for (int i = 0; i < files.length && !mCancelled; i++) {
+                    try {
+                        if (reader.readFile(files[i], mFromNanos, mToNanos, this) < 0) {
+                            // Interrupted while waiting for a chunk.
+                            interrupted = true;
+                            return;
+                        }
+                    } catch (FileNotFoundException e) {
+                        // Deleted since the listing.
+                        continue;
+                    }
+                    mPercent = (int) ((i + 1) * 100L / files.length);
+                }
+                if (!mChunk.isEmpty()) {
+                    mFull.add(mChunk);
+                }
+                finished = true;
+            } catch (IOException e) {
+                mFailure = e;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (RuntimeException e) {
+                mFailure = new IOException("Unable to read the log", e);
+            } finally {
+                // The writer waits for the end, with compaction paused, however the reader
+                // stops, unless the writer interrupted it and has stopped waiting.
+                if (!interrupted) {
+                    if (!finished && mFailure == null) {
+                        mFailure = new IOException("Log reader stopped unexpectedly");
+                    }
+                    mFull.add(mEnd);
+                }
+            }
+        }
+
+        @Override
+        public boolean onRecord(long timestampNanos, long address, int rssi, int txPower,
+                                ByteBuffer scanRecord) {
+            if (!mChunk.fits(scanRecord.remaining())) {
+                mFull.add(mChunk);
+                try {
+                    mChunk = mFree.take();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            mChunk.add(timestampNanos, address, rssi, txPower, scanRecord);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compressor for single blocks in the LZ4 block format: a sequence of tokens, each a run of
+ * literal bytes followed by a copy of earlier output given as a 16-bit offset and a length.
+ *
+ * This is the fast, greedy variant: matches are found through a hash table of the last
+ * position each 4-byte sequence was seen at, with no chains or lazy matching. It suits scan
+ * records well, where the same payloads and addresses recur within a few kilobytes. Blocks are
+ * independent; there is no frame format, so callers store the compressed and uncompressed
+ * lengths themselves.
+ *
+ * Instances hold the hash table, so compressing doesn't allocate; they are not thread safe.
+ * Decompression is static and checks every length and offset, throwing {@link IOException}
+ * on input that would read or write out of bounds.
+ */
+public class Lz4Block {
+
+    private static final int MIN_MATCH = 4;
+
+    /**
+     * The format requires the last five bytes to be literals, and the last match to start at
+     * least twelve bytes from the end.
+     */
+    private static final int LAST_LITERALS = 5;
+
+    private static final int MATCH_FIND_LIMIT = 12;
+
+    private static final int MAX_OFFSET = 65535;
+
+    private static final int HASH_LOG = 12;
+
+    private final int[] mHashTable = new int[1 << HASH_LOG];
+
+    /**
+     * Largest possible output for {@code length} bytes of input, which is slightly more than
+     * the input when it doesn't compress at all.
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses {@code length} bytes of {@code src} from {@code offset} into {@code dst},
+     * which must have room for {@link #maxCompressedLength(int)} bytes.
+     *
+     * @return the compressed length
+     */
+    public int compress(byte[] src, int offset, int length, byte[] dst) {
+        int[] table = mHashTable;
+        Arrays.fill(table, -1);
+        int end = offset + length;
+        int matchLimit = end - LAST_LITERALS;
+        int findLimit = end - MATCH_FIND_LIMIT;
+        int anchor = offset;
+        int ip = offset;
+        int op = 0;
+
+        while (ip <= findLimit) {
+            int sequence = readInt(src, ip);
+            int hash = hash(sequence);
+            int ref = table[hash];
+            table[hash] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                // Step faster through data that doesn't compress.
+                ip += 1 + ((ip - anchor) >>> 6);
+                continue;
+            }
+            while (ip > anchor && ref > offset && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit
+                    && src[ip + matchLength] == src[ref + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+            ip += matchLength;
+            anchor = ip;
+            if (ip - 2 >= offset && ip - 2 <= findLimit) {
+                table[hash(readInt(src, ip - 2))] = ip - 2;
+            }
+        }
+        return writeLiterals(src, anchor, end - anchor, dst, op);
+    }
+
+    /**
+     * Decompresses {@code length} bytes of {@code src} from {@code offset} into {@code dst}.
+     *
+     * @return the decompressed length
+     * @throws IOException if the input is not a valid block or doesn't fit in {@code dst}
+     */
+    public static int decompress(byte[] src, int offset, int length, byte[] dst)
+            throws IOException {
+        int ip = offset;
+        int end = offset + length;
+        int op = 0;
+        while (ip < end) {
+            int token = src[ip++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (ip >= end) {
+                        throw new IOException("Truncated literal length");
+                    }
+                    b = src[ip++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > end - ip || literals > dst.length - op) {
+                throw new IOException("Literals out of bounds");
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == end) {
+                return op;
+            }
+
+            if (end - ip < 2) {
+                throw new IOException("Truncated match offset");
+            }
+            int matchOffset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+            if (matchOffset == 0 || matchOffset > op) {
+                throw new IOException("Match offset out of bounds: " + matchOffset);
+            }
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= end) {
+                        throw new IOException("Truncated match length");
+                    }
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dst.length - op) {
+                throw new IOException("Match out of bounds");
+            }
+            int ref = op - matchOffset;
+            if (matchOffset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                // Overlapping copy: repeats the last matchOffset bytes.
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+        throw new IOException("Block ends without literals");
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literals, int matchOffset,
+            int matchLength, byte[] dst, int op) {
+        int extraMatch = matchLength - MIN_MATCH;
+        int token = op++;
+        op = writeLength(literals, dst, op);
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) matchOffset;
+        dst[op++] = (byte) (matchOffset >>> 8);
+        if (extraMatch >= 15) {
+            op = writeLengthTail(extraMatch - 15, dst, op);
+        }
+        dst[token] = (byte) (Math.min(literals, 15) << 4 | Math.min(extraMatch, 15));
+        return op;
+    }
+
+    private static int writeLiterals(byte[] src, int literalStart, int literals, byte[] dst,
+            int op) {
+        int token = op++;
+        op = writeLength(literals, dst, op);
+        System.arraycopy(src, literalStart, dst, op, literals);
+        dst[token] = (byte) (Math.min(literals, 15) << 4);
+        return op + literals;
+    }
+
+    /**
+     * Writes the bytes that follow the token for a literal run of the given length.
+     */
+    private static int writeLength(int literals, byte[] dst, int op) {
+        return literals >= 15 ? writeLengthTail(literals - 15, dst, op) : op;
+    }
+
+    private static int writeLengthTail(int remainder, byte[] dst, int op) {
+        while (remainder >= 255) {
+            dst[op++] = (byte) 255;
+            remainder -= 255;
+        }
+        dst[op++] = (byte) remainder;
+        return op;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16 | bytes[offset + 3] << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
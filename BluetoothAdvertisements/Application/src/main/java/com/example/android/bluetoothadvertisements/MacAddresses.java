@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for handling 48-bit Bluetooth device addresses packed into the low bits of a
+ * {@code long}, so they can be compared, hashed and stored without allocating Strings.
+ */
+public final class MacAddresses {
+
+    /**
+     * Number of bytes in a Bluetooth device address.
+     */
+    public static final int LENGTH = 6;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private MacAddresses() {
+    }
+
+    /**
+     * Packs an address of the form "00:11:22:AA:BB:CC" (as returned by
+     * {@code BluetoothDevice.getAddress()}) into a long, most significant byte first.
+     *
+     * @throws IllegalArgumentException if the address is not in the expected format.
+     */
+    public static long pack(String address) {
+        if (address == null || address.length() != 17) {
+            throw new IllegalArgumentException("Invalid Bluetooth address: " + address);
+        }
+        long packed = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            int offset = i * 3;
+            if (i > 0 && address.charAt(offset - 1) != ':') {
+                throw new IllegalArgumentException("Invalid Bluetooth address: " + address);
+            }
+            int high = Character.digit(address.charAt(offset), 16);
+            int low = Character.digit(address.charAt(offset + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid Bluetooth address: " + address);
+            }
+            packed = (packed << 8) | (high << 4) | low;
+        }
+        return packed;
+    }
+
+    /**
+     * Formats a packed address back into the colon separated upper-case form.
+     */
+    public static String unpack(long packed) {
+        char[] chars = new char[17];
+        for (int i = 0; i < LENGTH; i++) {
+            int value = (int) (packed >>> (8 * (LENGTH - 1 - i))) & 0xFF;
+            int offset = i * 3;
+            chars[offset] = HEX_DIGITS[value >>> 4];
+            chars[offset + 1] = HEX_DIGITS[value & 0x0F];
+            if (i < LENGTH - 1) {
+                chars[offset + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Writes the 6 address bytes at the buffer's current position.
+     */
+    public static void put(ByteBuffer buffer, long packed) {
+        buffer.putShort((short) (packed >>> 32));
+        buffer.putInt((int) packed);
+    }
+
+    /**
+     * Reads 6 address bytes from the buffer's current position.
+     */
+    public static long get(ByteBuffer buffer) {
+        long high = buffer.getShort() & 0xFFFFL;
+        long low = buffer.getInt() & 0xFFFFFFFFL;
+        return (high << 32) | low;
+    }
+
+    /**
+     * Writes the 6 address bytes at {@code index}, leaving the buffer's position alone.
+     */
+    public static void put(ByteBuffer buffer, int index, long packed) {
+        buffer.putShort(index, (short) (packed >>> 32));
+        buffer.putInt(index + 2, (int) packed);
+    }
+
+    /**
+     * Reads 6 address bytes at {@code index}, leaving the buffer's position alone.
+     */
+    public static long get(ByteBuffer buffer, int index) {
+        long high = buffer.getShort(index) & 0xFFFFL;
+        long low = buffer.getInt(index + 2) & 0xFFFFFFFFL;
+        return (high << 32) | low;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.Arrays;
+
+/**
+ * Maps packed device addresses (see {@link MacAddresses}) to int slots using open addressing
+ * with linear probing over primitive arrays, so lookups neither box nor allocate.
+ *
+ * Addresses only use the low 48 bits of a long, which leaves -1 free to mark empty buckets.
+ * Removal uses backward-shift deletion, so there are no tombstones and lookups stay short no
+ * matter how many devices come and go. Not thread safe.
+ */
+public class MacIndex {
+
+    /**
+     * Returned by {@link #get(long)} when the address is not in the index.
+     */
+    public static final int NO_SLOT = -1;
+
+    private static final long EMPTY = -1L;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+
+    private int[] mValues;
+
+    private int mMask;
+
+    private int mSize;
+
+    public MacIndex() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize number of devices to hold before the table needs to grow
+     */
+    public MacIndex(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the slot stored for the address, or {@link #NO_SLOT}.
+     */
+    public int get(long address) {
+        int bucket = bucketOf(address);
+        while (true) {
+            long key = mKeys[bucket];
+            if (key == address) {
+                return mValues[bucket];
+            }
+            if (key == EMPTY) {
+                return NO_SLOT;
+            }
+            bucket = (bucket + 1) & mMask;
+        }
+    }
+
+    /**
+     * Stores the slot for the address, replacing any previous one.
+     *
+     * @return the previous slot, or {@link #NO_SLOT}
+     */
+    public int put(long address, int slot) {
+        int bucket = bucketOf(address);
+        while (true) {
+            long key = mKeys[bucket];
+            if (key == address) {
+                int previous = mValues[bucket];
+                mValues[bucket] = slot;
+                return previous;
+            }
+            if (key == EMPTY) {
+                mKeys[bucket] = address;
+                mValues[bucket] = slot;
+                if (++mSize > (mKeys.length >> 1) + (mKeys.length >> 2)) {
+                    rehash(mKeys.length << 1);
+                }
+                return NO_SLOT;
+            }
+            bucket = (bucket + 1) & mMask;
+        }
+    }
+
+    /**
+     * Removes the address from the index.
+     *
+     * @return the slot it was mapped to, or {@link #NO_SLOT}
+     */
+    public int remove(long address) {
+        int bucket = bucketOf(address);
+        while (true) {
+            long key = mKeys[bucket];
+            if (key == EMPTY) {
+                return NO_SLOT;
+            }
+            if (key == address) {
+                int previous = mValues[bucket];
+                shiftBack(bucket);
+                mSize--;
+                return previous;
+            }
+            bucket = (bucket + 1) & mMask;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        mSize = 0;
+    }
+
+    /**
+     * Closes the gap left at {@code hole} by moving back any later entries of the same probe
+     * run that would otherwise become unreachable.
+     */
+    private void shiftBack(int hole) {
+        int bucket = hole;
+        while (true) {
+            bucket = (bucket + 1) & mMask;
+            long key = mKeys[bucket];
+            if (key == EMPTY) {
+                break;
+            }
+            int home = bucketOf(key);
+            // Move the entry if its home bucket is not cyclically within (hole, bucket].
+            boolean movable = hole <= bucket
+                    ? home <= hole || home > bucket
+                    : home <= hole && home > bucket;
+            if (movable) {
+                mKeys[hole] = key;
+                mValues[hole] = mValues[bucket];
+                hole = bucket;
+            }
+        }
+        mKeys[hole] = EMPTY;
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        allocate(capacity);
+        for (int i = 0; i < keys.length; i++) {
+            long key = keys[i];
+            if (key != EMPTY) {
+                int bucket = bucketOf(key);
+                while (mKeys[bucket] != EMPTY) {
+                    bucket = (bucket + 1) & mMask;
+                }
+                mKeys[bucket] = key;
+                mValues[bucket] = values[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mMask = capacity - 1;
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    private int bucketOf(long address) {
+        // Murmur3 finalizer; vendor prefixes make the raw low bits poorly distributed.
+        long h = address;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & mMask;
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -111,9 +111,8 @@ public class MainActivity extends FragmentActivity {
     private void setupFragments() {
         FragmentTransaction transaction = getSupportFragmentManager().beginTransaction();
 
+        // Scanning is done by ScanLoggingService, which gets its own BluetoothAdapter.
         ScannerFragment scannerFragment = new ScannerFragment();
-        // Fragments can't access system services directly, so pass it the BluetoothAdapter
-        scannerFragment.setBluetoothAdapter(mBluetoothAdapter);
         transaction.replace(R.id.scanner_fragment_container, scannerFragment);
 
         AdvertiserFragment advertiserFragment = new AdvertiserFragment();
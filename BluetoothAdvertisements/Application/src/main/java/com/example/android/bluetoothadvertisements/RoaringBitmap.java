@@ -0,0 +1,695 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compressed set of non-negative ints, split into chunks of 65536 by their high 16 bits
+ * (after Chambi, Lemire et al., "Better bitmap performance with Roaring bitmaps").
+ *
+ * Each chunk's low 16 bits are stored in whichever container is smaller: a sorted
+ * {@code char[]} while the chunk holds at most {@link #ARRAY_MAX} values, a 65536-bit
+ * {@code long[]} beyond that. So a posting list of a rare beacon costs two bytes a record, and
+ * one that matches most records an eighth of a byte, and intersections work container by
+ * container, with bitwise ANDs where both sides are dense. Values are usually added in
+ * increasing order, as postings are built, which appends to the last container.
+ *
+ * Serialized as:
+ * <pre>
+ *   int container count, then for each container:
+ *     char high 16 bits, char cardinality - 1,
+ *     then the sorted low 16 bits as chars if cardinality <= {@link #ARRAY_MAX},
+ *     otherwise 1024 longs
+ * </pre>
+ * Not thread safe.
+ */
+public class RoaringBitmap {
+
+    /**
+     * Largest array container; past this a bitmap container is smaller.
+     */
+    public static final int ARRAY_MAX = 4096;
+
+    private static final int BITMAP_LONGS = 1024;
+
+    /**
+     * High 16 bits of each container, ascending.
+     */
+    private char[] mKeys = new char[4];
+
+    /**
+     * Each container: a {@code char[]} of low bits, or a {@code long[]} bitmap.
+     */
+    private Object[] mContainers = new Object[4];
+
+    /**
+     * Values in each container.
+     */
+    private int[] mCardinalities = new int[4];
+
+    private int mSize;
+
+    public RoaringBitmap() {
+    }
+
+    /**
+     * Returns the set of values from {@code start} inclusive to {@code end} exclusive.
+     */
+    public static RoaringBitmap range(int start, int end) {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        bitmap.addRange(start, end);
+        return bitmap;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public int getCardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < mSize; i++) {
+            cardinality += mCardinalities[i];
+        }
+        return cardinality;
+    }
+
+    /**
+     * Adds a value, fastest when it is larger than any already in the set.
+     */
+    public void add(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        char key = (char) (value >>> 16);
+        char low = (char) value;
+        int index = mSize > 0 && mKeys[mSize - 1] == key ? mSize - 1 : findKey(key);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, key, new char[4], 0);
+        }
+        Object container = mContainers[index];
+        if (container instanceof long[]) {
+            long[] bitmap = (long[]) container;
+            long bit = 1L << low;
+            if ((bitmap[low >>> 6] & bit) == 0) {
+                bitmap[low >>> 6] |= bit;
+                mCardinalities[index]++;
+            }
+            return;
+        }
+        char[] array = (char[]) container;
+        int cardinality = mCardinalities[index];
+        int position;
+        if (cardinality == 0 || array[cardinality - 1] < low) {
+            position = cardinality;
+        } else {
+            position = Arrays.binarySearch(array, 0, cardinality, low);
+            if (position >= 0) {
+                return;
+            }
+            position = -position - 1;
+        }
+        if (cardinality == ARRAY_MAX) {
+            long[] bitmap = toBitmap(array, cardinality);
+            bitmap[low >>> 6] |= 1L << low;
+            mContainers[index] = bitmap;
+            mCardinalities[index] = cardinality + 1;
+            return;
+        }
+        if (cardinality == array.length) {
+            array = Arrays.copyOf(array, Math.min(ARRAY_MAX, cardinality * 2));
+            mContainers[index] = array;
+        }
+        System.arraycopy(array, position, array, position + 1, cardinality - position);
+        array[position] = low;
+        mCardinalities[index] = cardinality + 1;
+    }
+
+    /**
+     * Adds the values from {@code start} inclusive to {@code end} exclusive.
+     */
+    public void addRange(int start, int end) {
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid range " + start + ".." + end);
+        }
+        int value = start;
+        while (value < end) {
+            int chunkEnd = (int) Math.min(end, ((long) (value >>> 16) + 1) << 16);
+            if (chunkEnd - value <= ARRAY_MAX) {
+                for (; value < chunkEnd; value++) {
+                    add(value);
+                }
+                continue;
+            }
+            char key = (char) (value >>> 16);
+            int index = findKey(key);
+            long[] bitmap;
+            if (index < 0) {
+                bitmap = new long[BITMAP_LONGS];
+                insertContainer(-index - 1, key, bitmap, 0);
+                index = -index - 1;
+            } else if (mContainers[index] instanceof long[]) {
+                bitmap = (long[]) mContainers[index];
+            } else {
+                bitmap = toBitmap((char[]) mContainers[index], mCardinalities[index]);
+                mContainers[index] = bitmap;
+            }
+            int low = value & 0xFFFF;
+            int high = (chunkEnd - 1 & 0xFFFF) + 1;
+            for (int word = low >>> 6; word <= (high - 1) >>> 6; word++) {
+                long mask = -1L;
+                if (word == low >>> 6) {
+                    mask &= -1L << low;
+                }
+                if (word == (high - 1) >>> 6) {
+                    mask &= -1L >>> (64 - high & 63);
+                }
+                bitmap[word] |= mask;
+            }
+            mCardinalities[index] = bitCount(bitmap);
+            value = chunkEnd;
+        }
+    }
+
+    public boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int index = findKey((char) (value >>> 16));
+        if (index < 0) {
+            return false;
+        }
+        char low = (char) value;
+        Object container = mContainers[index];
+        if (container instanceof long[]) {
+            return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch((char[]) container, 0, mCardinalities[index], low) >= 0;
+    }
+
+    /**
+     * Returns the smallest value in the set at least {@code from}, or -1 if there is none.
+     */
+    public int nextValue(int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        char key = (char) (from >>> 16);
+        int index = findKey(key);
+        int low = from & 0xFFFF;
+        if (index < 0) {
+            index = -index - 1;
+            low = 0;
+        }
+        for (; index < mSize; index++) {
+            if (mKeys[index] != key) {
+                low = 0;
+            }
+            int found = nextInContainer(index, low);
+            if (found >= 0) {
+                return mKeys[index] << 16 | found;
+            }
+            low = 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the values in the set that are also in {@code other}.
+     */
+    public RoaringBitmap and(RoaringBitmap other) {
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < mSize && j < other.mSize) {
+            if (mKeys[i] < other.mKeys[j]) {
+                i++;
+            } else if (mKeys[i] > other.mKeys[j]) {
+                j++;
+            } else {
+                result.appendNonEmpty(mKeys[i], and(mContainers[i], mCardinalities[i],
+                        other.mContainers[j], other.mCardinalities[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the values in either set.
+     */
+    public RoaringBitmap or(RoaringBitmap other) {
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < mSize || j < other.mSize) {
+            if (j == other.mSize || i < mSize && mKeys[i] < other.mKeys[j]) {
+                result.appendNonEmpty(mKeys[i], copy(mContainers[i], mCardinalities[i]));
+                i++;
+            } else if (i == mSize || mKeys[i] > other.mKeys[j]) {
+                result.appendNonEmpty(other.mKeys[j],
+                        copy(other.mContainers[j], other.mCardinalities[j]));
+                j++;
+            } else {
+                result.appendNonEmpty(mKeys[i], or(mContainers[i], mCardinalities[i],
+                        other.mContainers[j], other.mCardinalities[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the values in any of the sets, merging each chunk of them all at once rather
+     * than two sets at a time.
+     */
+    public static RoaringBitmap or(List<RoaringBitmap> bitmaps) {
+        RoaringBitmap result = new RoaringBitmap();
+        int[] positions = new int[bitmaps.size()];
+        while (true) {
+            int key = -1;
+            for (int i = 0; i < positions.length; i++) {
+                RoaringBitmap bitmap = bitmaps.get(i);
+                if (positions[i] < bitmap.mSize
+                        && (key < 0 || bitmap.mKeys[positions[i]] < key)) {
+                    key = bitmap.mKeys[positions[i]];
+                }
+            }
+            if (key < 0) {
+                return result;
+            }
+            long[] words = new long[BITMAP_LONGS];
+            for (int i = 0; i < positions.length; i++) {
+                RoaringBitmap bitmap = bitmaps.get(i);
+                int position = positions[i];
+                if (position == bitmap.mSize || bitmap.mKeys[position] != key) {
+                    continue;
+                }
+                Object container = bitmap.mContainers[position];
+                if (container instanceof long[]) {
+                    long[] other = (long[]) container;
+                    for (int word = 0; word < BITMAP_LONGS; word++) {
+                        words[word] |= other[word];
+                    }
+                } else {
+                    char[] array = (char[]) container;
+                    for (int k = bitmap.mCardinalities[position] - 1; k >= 0; k--) {
+                        words[array[k] >>> 6] |= 1L << array[k];
+                    }
+                }
+                positions[i]++;
+            }
+            result.appendNonEmpty((char) key, shrink(words));
+        }
+    }
+
+    /**
+     * Returns the values in the set that are not in {@code other}.
+     */
+    public RoaringBitmap andNot(RoaringBitmap other) {
+        RoaringBitmap result = new RoaringBitmap();
+        int j = 0;
+        for (int i = 0; i < mSize; i++) {
+            while (j < other.mSize && other.mKeys[j] < mKeys[i]) {
+                j++;
+            }
+            if (j < other.mSize && other.mKeys[j] == mKeys[i]) {
+                result.appendNonEmpty(mKeys[i], andNot(mContainers[i], mCardinalities[i],
+                        other.mContainers[j], other.mCardinalities[j]));
+            } else {
+                result.appendNonEmpty(mKeys[i], copy(mContainers[i], mCardinalities[i]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Bytes {@link #serialize} writes.
+     */
+    public int getSerializedSize() {
+        int size = 4;
+        for (int i = 0; i < mSize; i++) {
+            size += 4 + (mCardinalities[i] <= ARRAY_MAX ? 2 * mCardinalities[i]
+                    : 8 * BITMAP_LONGS);
+        }
+        return size;
+    }
+
+    /**
+     * Writes the set at the buffer's position, advancing it.
+     */
+    public void serialize(ByteBuffer buffer) {
+        buffer.putInt(mSize);
+        for (int i = 0; i < mSize; i++) {
+            int cardinality = mCardinalities[i];
+            buffer.putChar(mKeys[i]);
+            buffer.putChar((char) (cardinality - 1));
+            Object container = mContainers[i];
+            if (cardinality <= ARRAY_MAX) {
+                char[] array = container instanceof char[] ? (char[]) container
+                        : toArray((long[]) container, cardinality);
+                for (int k = 0; k < cardinality; k++) {
+                    buffer.putChar(array[k]);
+                }
+            } else {
+                for (long word : (long[]) container) {
+                    buffer.putLong(word);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a set written by {@link #serialize} at the buffer's position, advancing it.
+     *
+     * @throws IOException if it is malformed
+     */
+    public static RoaringBitmap deserialize(ByteBuffer buffer) throws IOException {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        if (buffer.remaining() < 4) {
+            throw new IOException("Truncated bitmap");
+        }
+        int size = buffer.getInt();
+        if (size < 0 || size > 65536 || buffer.remaining() < 4L * size) {
+            throw new IOException("Corrupt bitmap");
+        }
+        int previousKey = -1;
+        for (int i = 0; i < size; i++) {
+            if (buffer.remaining() < 4) {
+                throw new IOException("Truncated bitmap");
+            }
+            char key = buffer.getChar();
+            int cardinality = buffer.getChar() + 1;
+            if (key <= previousKey) {
+                throw new IOException("Corrupt bitmap");
+            }
+            previousKey = key;
+            if (cardinality <= ARRAY_MAX) {
+                if (buffer.remaining() < 2 * cardinality) {
+                    throw new IOException("Truncated bitmap");
+                }
+                char[] array = new char[cardinality];
+                buffer.asCharBuffer().get(array);
+                buffer.position(buffer.position() + 2 * cardinality);
+                for (int k = 1; k < cardinality; k++) {
+                    if (array[k] <= array[k - 1]) {
+                        throw new IOException("Corrupt bitmap");
+                    }
+                }
+                bitmap.appendNonEmpty(key, array, cardinality);
+            } else {
+                if (buffer.remaining() < 8 * BITMAP_LONGS) {
+                    throw new IOException("Truncated bitmap");
+                }
+                long[] words = new long[BITMAP_LONGS];
+                buffer.asLongBuffer().get(words);
+                buffer.position(buffer.position() + 8 * BITMAP_LONGS);
+                if (bitCount(words) != cardinality) {
+                    throw new IOException("Corrupt bitmap");
+                }
+                bitmap.appendNonEmpty(key, words, cardinality);
+            }
+        }
+        return bitmap;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RoaringBitmap)) {
+            return false;
+        }
+        RoaringBitmap other = (RoaringBitmap) o;
+        if (mSize != other.mSize) {
+            return false;
+        }
+        for (int i = 0; i < mSize; i++) {
+            if (mKeys[i] != other.mKeys[i] || mCardinalities[i] != other.mCardinalities[i]
+                    || andNot(mContainers[i], mCardinalities[i], other.mContainers[i],
+                    other.mCardinalities[i]) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int value = nextValue(0); value >= 0; value = nextValue(value + 1)) {
+            hash = hash * 31 + value;
+        }
+        return hash;
+    }
+
+    // Containers.
+
+    private int findKey(char key) {
+        return Arrays.binarySearch(mKeys, 0, mSize, key);
+    }
+
+    private void insertContainer(int index, char key, Object container, int cardinality) {
+        if (mSize == mKeys.length) {
+            int capacity = mSize * 2;
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mContainers = Arrays.copyOf(mContainers, capacity);
+            mCardinalities = Arrays.copyOf(mCardinalities, capacity);
+        }
+        System.arraycopy(mKeys, index, mKeys, index + 1, mSize - index);
+        System.arraycopy(mContainers, index, mContainers, index + 1, mSize - index);
+        System.arraycopy(mCardinalities, index, mCardinalities, index + 1, mSize - index);
+        mKeys[index] = key;
+        mContainers[index] = container;
+        mCardinalities[index] = cardinality;
+        mSize++;
+    }
+
+    /**
+     * Appends a container with a key above all others, unless it is null, meaning empty.
+     */
+    private void appendNonEmpty(char key, Object container) {
+        if (container != null) {
+            appendNonEmpty(key, container, cardinality(container));
+        }
+    }
+
+    private void appendNonEmpty(char key, Object container, int cardinality) {
+        insertContainer(mSize, key, container, cardinality);
+    }
+
+    private int nextInContainer(int index, int low) {
+        Object container = mContainers[index];
+        if (container instanceof long[]) {
+            long[] bitmap = (long[]) container;
+            int word = low >>> 6;
+            long bits = bitmap[word] & (-1L << low);
+            while (true) {
+                if (bits != 0) {
+                    return word << 6 | Long.numberOfTrailingZeros(bits);
+                }
+                if (++word == BITMAP_LONGS) {
+                    return -1;
+                }
+                bits = bitmap[word];
+            }
+        }
+        char[] array = (char[]) container;
+        int position = Arrays.binarySearch(array, 0, mCardinalities[index], (char) low);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        return position < mCardinalities[index] ? array[position] : -1;
+    }
+
+    /**
+     * Cardinality of a container built by one of the operations below, which size their
+     * arrays exactly.
+     */
+    private static int cardinality(Object container) {
+        return container instanceof long[] ? bitCount((long[]) container)
+                : ((char[]) container).length;
+    }
+
+    private static int bitCount(long[] bitmap) {
+        int count = 0;
+        for (long word : bitmap) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    private static long[] toBitmap(char[] array, int cardinality) {
+        long[] bitmap = new long[BITMAP_LONGS];
+        for (int i = 0; i < cardinality; i++) {
+            bitmap[array[i] >>> 6] |= 1L << array[i];
+        }
+        return bitmap;
+    }
+
+    private static char[] toArray(long[] bitmap, int cardinality) {
+        char[] array = new char[cardinality];
+        int count = 0;
+        for (int word = 0; word < BITMAP_LONGS; word++) {
+            long bits = bitmap[word];
+            while (bits != 0) {
+                array[count++] = (char) (word << 6 | Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Returns the container in its smaller form, or null if it is empty.
+     */
+    private static Object shrink(long[] bitmap) {
+        int cardinality = bitCount(bitmap);
+        if (cardinality == 0) {
+            return null;
+        }
+        return cardinality <= ARRAY_MAX ? toArray(bitmap, cardinality) : bitmap;
+    }
+
+    private static Object copy(Object container, int cardinality) {
+        return container instanceof long[] ? ((long[]) container).clone()
+                : Arrays.copyOf((char[]) container, cardinality);
+    }
+
+    private static Object and(Object a, int aCardinality, Object b, int bCardinality) {
+        if (a instanceof long[] && b instanceof long[]) {
+            long[] x = (long[]) a;
+            long[] y = (long[]) b;
+            long[] result = new long[BITMAP_LONGS];
+            for (int i = 0; i < BITMAP_LONGS; i++) {
+                result[i] = x[i] & y[i];
+            }
+            return shrink(result);
+        }
+        if (a instanceof long[]) {
+            return and(b, bCardinality, a, aCardinality);
+        }
+        char[] array = (char[]) a;
+        char[] result = new char[aCardinality];
+        int count = 0;
+        if (b instanceof long[]) {
+            long[] bitmap = (long[]) b;
+            for (int i = 0; i < aCardinality; i++) {
+                if ((bitmap[array[i] >>> 6] & (1L << array[i])) != 0) {
+                    result[count++] = array[i];
+                }
+            }
+        } else {
+            char[] other = (char[]) b;
+            int j = 0;
+            for (int i = 0; i < aCardinality && j < bCardinality; ) {
+                if (array[i] < other[j]) {
+                    i++;
+                } else if (array[i] > other[j]) {
+                    j++;
+                } else {
+                    result[count++] = array[i];
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return count == 0 ? null : Arrays.copyOf(result, count);
+    }
+
+    private static Object or(Object a, int aCardinality, Object b, int bCardinality) {
+        if (a instanceof char[] && b instanceof char[]
+                && aCardinality + bCardinality <= ARRAY_MAX) {
+            char[] x = (char[]) a;
+            char[] y = (char[]) b;
+            char[] result = new char[aCardinality + bCardinality];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < aCardinality || j < bCardinality) {
+                if (j == bCardinality || i < aCardinality && x[i] < y[j]) {
+                    result[count++] = x[i++];
+                } else if (i == aCardinality || x[i] > y[j]) {
+                    result[count++] = y[j++];
+                } else {
+                    result[count++] = x[i++];
+                    j++;
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+        long[] result = a instanceof long[] ? ((long[]) a).clone()
+                : toBitmap((char[]) a, aCardinality);
+        if (b instanceof long[]) {
+            long[] y = (long[]) b;
+            for (int i = 0; i < BITMAP_LONGS; i++) {
+                result[i] |= y[i];
+            }
+        } else {
+            char[] y = (char[]) b;
+            for (int i = 0; i < bCardinality; i++) {
+                result[y[i] >>> 6] |= 1L << y[i];
+            }
+        }
+        return shrink(result);
+    }
+
+    private static Object andNot(Object a, int aCardinality, Object b, int bCardinality) {
+        if (a instanceof long[]) {
+            long[] result = ((long[]) a).clone();
+            if (b instanceof long[]) {
+                long[] y = (long[]) b;
+                for (int i = 0; i < BITMAP_LONGS; i++) {
+                    result[i] &= ~y[i];
+                }
+            } else {
+                char[] y = (char[]) b;
+                for (int i = 0; i < bCardinality; i++) {
+                    result[y[i] >>> 6] &= ~(1L << y[i]);
+                }
+            }
+            return shrink(result);
+        }
+        char[] array = (char[]) a;
+        char[] result = new char[aCardinality];
+        int count = 0;
+        if (b instanceof long[]) {
+            long[] bitmap = (long[]) b;
+            for (int i = 0; i < aCardinality; i++) {
+                if ((bitmap[array[i] >>> 6] & (1L << array[i])) == 0) {
+                    result[count++] = array[i];
+                }
+            }
+        } else {
+            char[] other = (char[]) b;
+            int j = 0;
+            for (int i = 0; i < aCardinality; i++) {
+                while (j < bCardinality && other[j] < array[i]) {
+                    j++;
+                }
+                if (j == bCardinality || other[j] != array[i]) {
+                    result[count++] = array[i];
+                }
+            }
+        }
+        return count == 0 ? null : Arrays.copyOf(result, count);
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Answers time-range questions from the windows {@link RollupWriter} persisted: the series of
+ * windows of one resolution, the totals and unique devices over a range, and an hour-by-day
+ * heatmap.
+ *
+ * A day file, read through a {@link MappedByteBuffer}, is laid out as:
+ * <pre>
+ *   header   int magic, short version, byte resolution, byte reserved,
+ *            long day start in epoch millis
+ *   records  int body length, int CRC-32C of the body, body from {@link RollupWindow#writeTo}
+ * </pre>
+ *
+ * Files are mapped and indexed once, then kept; a file that has grown since is only indexed
+ * from where it left off. Each record's checksum is verified the first time it is read, and a
+ * record that fails it ends the file, as it would for {@link RollupWriter}. Repeated queries
+ * over a week cost a few thousand small decodes. Ranges are taken in whole windows: a window belongs to a range
+ * if it starts in it. Only closed windows are on disk, so the minute and hour in progress are
+ * not counted yet.
+ *
+ * This class has no Android dependencies and is not thread safe, but may be used while a
+ * {@link RollupWriter} appends to the same directory.
+ */
+public class RollupReader {
+
+    /**
+     * Receives windows from {@link #series}. The window is reused between calls.
+     */
+    public interface WindowVisitor {
+        /**
+         * @return false to stop the query
+         */
+        boolean onWindow(RollupWindow window);
+    }
+
+    private static final int MAX_CACHED_FILES = 32;
+
+    private final File mDirectory;
+
+    private final HashMap<String, DayFile> mFiles = new HashMap<>();
+
+    private final RollupWindow mWindow = new RollupWindow();
+
+    public RollupReader(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Visits every window of {@code resolution} starting in {@code [fromMillis, toMillis)},
+     * day by day in the order they were written, which is time order unless the scan was
+     * restarted. The windows are read without their sketches.
+     *
+     * @return false if the visitor stopped the query
+     */
+    public boolean series(int resolution, long fromMillis, long toMillis,
+                          WindowVisitor visitor) throws IOException {
+        long windowMillis = RollupWriter.windowMillis(resolution);
+        for (long day = fromMillis / RollupWriter.DAY_MILLIS;
+                day * RollupWriter.DAY_MILLIS < toMillis; day++) {
+            DayFile file = open(resolution, day);
+            if (file == null) {
+                continue;
+            }
+            for (int i = 0; i < file.mCount; i++) {
+                long start = file.mStarts[i];
+                if (start >= fromMillis && start < toMillis && start % windowMillis == 0) {
+                    ByteBuffer body = file.body(i);
+                    if (body == null) {
+                        break;
+                    }
+                    mWindow.readFrom(body, false);
+                    if (!visitor.onWindow(mWindow)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merges every window starting in {@code [fromMillis, toMillis)} into {@code out}, which
+     * starts at {@code fromMillis}. Whole hours come from hour windows and the ends from minute
+     * windows, so a week takes under two hundred sketch merges.
+     */
+    public void aggregate(long fromMillis, long toMillis, RollupWindow out) throws IOException {
+        out.reset(fromMillis);
+        long hour = RollupWindow.HOUR_MILLIS;
+        long firstHour = (fromMillis + hour - 1) / hour * hour;
+        long lastHour = toMillis / hour * hour;
+        if (firstHour < lastHour) {
+            merge(RollupWriter.RESOLUTION_MINUTE, fromMillis, firstHour, out);
+            merge(RollupWriter.RESOLUTION_HOUR, firstHour, lastHour, out);
+            merge(RollupWriter.RESOLUTION_MINUTE, lastHour, toMillis, out);
+        } else {
+            merge(RollupWriter.RESOLUTION_MINUTE, fromMillis, toMillis, out);
+        }
+    }
+
+    /**
+     * Fills one cell per hour of the {@code days} days starting at {@code fromMillis}, indexed
+     * {@code day * 24 + hour}, with the advertisements and unique devices seen in that hour.
+     * Either array may be null. An hour written in two parts, across a restart, reports the
+     * larger part's device count.
+     */
+    public void heatmap(final long fromMillis, int days, final long[] advertisements,
+                        final long[] devices) throws IOException {
+        if (advertisements != null) {
+            Arrays.fill(advertisements, 0, days * 24, 0);
+        }
+        if (devices != null) {
+            Arrays.fill(devices, 0, days * 24, 0);
+        }
+        series(RollupWriter.RESOLUTION_HOUR, fromMillis,
+                fromMillis + days * RollupWriter.DAY_MILLIS, new WindowVisitor() {
+                    @Override
+                    public boolean onWindow(RollupWindow window) {
+                        int cell = (int) ((window.getStartMillis() - fromMillis)
+                                / RollupWindow.HOUR_MILLIS);
+                        if (advertisements != null) {
+                            advertisements[cell] += window.getAdvertisementCount();
+                        }
+                        if (devices != null) {
+                            devices[cell] = Math.max(devices[cell], window.getUniqueDevices());
+                        }
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Returns the length of the intact prefix of a day file of {@code resolution}: its header
+     * and every record up to the first torn or corrupt one, or 0 if the header is unusable.
+     */
+    static long validLength(FileChannel channel, int resolution) throws IOException {
+        long size = channel.size();
+        if (size < RollupWriter.FILE_HEADER_SIZE) {
+            return 0;
+        }
+        DayFile file = new DayFile();
+        file.map(channel, size);
+        if (!file.checkHeader(resolution)) {
+            return 0;
+        }
+        file.indexChecked(RollupWriter.FILE_HEADER_SIZE);
+        return file.mValidLength;
+    }
+
+    private void merge(int resolution, long fromMillis, long toMillis, RollupWindow out)
+            throws IOException {
+        long windowMillis = RollupWriter.windowMillis(resolution);
+        for (long day = fromMillis / RollupWriter.DAY_MILLIS;
+                day * RollupWriter.DAY_MILLIS < toMillis; day++) {
+            DayFile file = open(resolution, day);
+            if (file == null) {
+                continue;
+            }
+            for (int i = 0; i < file.mCount; i++) {
+                long start = file.mStarts[i];
+                if (start >= fromMillis && start < toMillis && start % windowMillis == 0) {
+                    ByteBuffer body = file.body(i);
+                    if (body == null) {
+                        break;
+                    }
+                    out.mergeFrom(body);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the indexed day file, mapping or extending it if it is new or has changed, or
+     * null if there is none.
+     */
+    private DayFile open(int resolution, long day) throws IOException {
+        String name = RollupWriter.fileName(resolution, day);
+        File path = new File(mDirectory, name);
+        long length = path.length();
+        DayFile file = mFiles.get(name);
+        if (length < RollupWriter.FILE_HEADER_SIZE) {
+            if (file != null) {
+                mFiles.remove(name);
+            }
+            return null;
+        }
+        if (file != null && length == file.mMappedLength) {
+            return file;
+        }
+        if (file == null || length < file.mMappedLength) {
+            if (mFiles.size() >= MAX_CACHED_FILES) {
+                mFiles.clear();
+            }
+            file = new DayFile();
+            mFiles.put(name, file);
+        }
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            file.map(raf.getChannel(), length);
+        } finally {
+            raf.close();
+        }
+        if (file.mValidLength == 0) {
+            if (!file.checkHeader(resolution)) {
+                mFiles.remove(name);
+                return null;
+            }
+            file.index(RollupWriter.FILE_HEADER_SIZE);
+        } else {
+            file.index(file.mValidLength);
+        }
+        return file;
+    }
+
+    /**
+     * A mapped day file and the offsets and starts of its intact records.
+     */
+    private static final class DayFile {
+
+        ByteBuffer mBuffer;
+
+        ByteBuffer mView;
+
+        long mMappedLength;
+
+        int mValidLength;
+
+        int[] mOffsets = new int[64];
+
+        long[] mStarts = new long[64];
+
+        boolean[] mChecked = new boolean[64];
+
+        int mCount;
+
+        void map(FileChannel channel, long length) throws IOException {
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            mView = mBuffer.duplicate();
+            mMappedLength = length;
+        }
+
+        boolean checkHeader(int resolution) {
+            return mBuffer.getInt(0) == RollupWriter.FILE_MAGIC
+                    && mBuffer.getShort(4) == RollupWriter.FORMAT_VERSION
+                    && mBuffer.get(6) == resolution;
+        }
+
+        /**
+         * Indexes the records from {@code position} up to the first that does not fit.
+         */
+        void index(int position) {
+            int limit = mBuffer.limit();
+            while (position + RollupWriter.RECORD_HEADER_SIZE + 8 <= limit) {
+                int length = mBuffer.getInt(position);
+                int body = position + RollupWriter.RECORD_HEADER_SIZE;
+                if (length < 8 || length > limit - body) {
+                    break;
+                }
+                if (mCount == mOffsets.length) {
+                    mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+                    mStarts = Arrays.copyOf(mStarts, mCount * 2);
+                    mChecked = Arrays.copyOf(mChecked, mCount * 2);
+                }
+                mOffsets[mCount] = position;
+                mStarts[mCount] = mBuffer.getLong(body);
+                mChecked[mCount] = false;
+                mCount++;
+                position = body + length;
+            }
+            mValidLength = position;
+        }
+
+        /**
+         * Checks and indexes the records from {@code position} up to the first torn or corrupt
+         * one.
+         */
+        void indexChecked(int position) {
+            index(position);
+            for (int i = 0; i < mCount; i++) {
+                if (!check(i)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Returns a view of record {@code index}'s body, or null if it is corrupt, in which
+         * case it and every later record are dropped until the file is read again.
+         */
+        ByteBuffer body(int index) {
+            if (!check(index)) {
+                return null;
+            }
+            int position = mOffsets[index];
+            int body = position + RollupWriter.RECORD_HEADER_SIZE;
+            mView.clear();
+            mView.position(body);
+            mView.limit(body + mBuffer.getInt(position));
+            return mView;
+        }
+
+        private boolean check(int index) {
+            if (mChecked[index]) {
+                return true;
+            }
+            int position = mOffsets[index];
+            int body = position + RollupWriter.RECORD_HEADER_SIZE;
+            if (Crc32c.compute(mBuffer, body, mBuffer.getInt(position))
+                    != mBuffer.getInt(position + 4)) {
+                mCount = index;
+                mValidLength = position;
+                mMappedLength = -1;
+                return false;
+            }
+            mChecked[index] = true;
+            return true;
+        }
+    }
+}
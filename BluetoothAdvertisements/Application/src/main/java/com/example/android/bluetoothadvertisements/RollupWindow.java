@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Counters for one tumbling window of the scan, or for several merged: advertisements in all,
+ * by beacon frame type and by manufacturer, and a {@link HyperLogLog} of the device addresses
+ * seen.
+ *
+ * {@link RollupWriter} fills windows as advertisements arrive and persists them when they
+ * close; {@link RollupReader} reads them back into a reused instance. A window read without its
+ * sketch still reports the unique device estimate stored with it, but cannot be merged.
+ */
+public class RollupWindow {
+
+    public static final long MINUTE_MILLIS = 60000L;
+
+    public static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+
+    /**
+     * Frame types are {@link BeaconEvent} types; {@link BeaconEvent#TYPE_NONE} counts
+     * advertisements that are not beacons.
+     */
+    public static final int FRAME_TYPES = BeaconEvent.TYPE_EDDYSTONE_EID + 1;
+
+    private long mStartMillis;
+
+    private long mCount;
+
+    private final long[] mFrameCounts = new long[FRAME_TYPES];
+
+    // Manufacturers in order of first appearance, indexed by company id.
+
+    private final MacIndex mManufacturerIndex = new MacIndex();
+
+    private int[] mManufacturerIds = new int[16];
+
+    private long[] mManufacturerCounts = new long[16];
+
+    private int mManufacturerCount;
+
+    private final HyperLogLog mDevices = new HyperLogLog();
+
+    private boolean mHasSketch = true;
+
+    private long mUniqueDevices;
+
+    private boolean mUniqueDevicesStale;
+
+    public RollupWindow() {
+    }
+
+    /**
+     * Empties the window and moves it to {@code startMillis}.
+     */
+    public void reset(long startMillis) {
+        mStartMillis = startMillis;
+        mCount = 0;
+        Arrays.fill(mFrameCounts, 0);
+        if (mManufacturerCount > 0) {
+            mManufacturerIndex.clear();
+            mManufacturerCount = 0;
+        }
+        if (!mDevices.isEmpty()) {
+            mDevices.clear();
+        }
+        mHasSketch = true;
+        mUniqueDevices = 0;
+        mUniqueDevicesStale = false;
+    }
+
+    /**
+     * Counts one advertisement. Manufacturers are added separately with
+     * {@link #addManufacturer(int)}.
+     *
+     * @param address   device address packed with {@link MacAddresses#pack(String)}
+     * @param frameType a {@link BeaconEvent} type
+     */
+    public void add(long address, int frameType) {
+        mCount++;
+        mFrameCounts[frameType]++;
+        mDevices.add(address);
+        mUniqueDevicesStale = true;
+    }
+
+    /**
+     * Counts one advertisement carrying manufacturer data for {@code companyId}.
+     */
+    public void addManufacturer(int companyId) {
+        mManufacturerCounts[manufacturerSlot(companyId)]++;
+    }
+
+    /**
+     * Adds {@code other}'s counters and devices to this window, keeping this window's start.
+     *
+     * @throws IllegalStateException if {@code other} was read without its sketch
+     */
+    public void merge(RollupWindow other) {
+        if (!other.mHasSketch || !mHasSketch) {
+            throw new IllegalStateException("Window read without its sketch");
+        }
+        mCount += other.mCount;
+        for (int i = 0; i < FRAME_TYPES; i++) {
+            mFrameCounts[i] += other.mFrameCounts[i];
+        }
+        for (int i = 0; i < other.mManufacturerCount; i++) {
+            mManufacturerCounts[manufacturerSlot(other.mManufacturerIds[i])]
+                    += other.mManufacturerCounts[i];
+        }
+        mDevices.merge(other.mDevices);
+        mUniqueDevicesStale = true;
+    }
+
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    public long getAdvertisementCount() {
+        return mCount;
+    }
+
+    /**
+     * Estimated number of distinct device addresses; rotating private addresses count once per
+     * address, not per device.
+     */
+    public long getUniqueDevices() {
+        if (mUniqueDevicesStale) {
+            mUniqueDevices = mDevices.estimate();
+            mUniqueDevicesStale = false;
+        }
+        return mUniqueDevices;
+    }
+
+    public long getFrameCount(int frameType) {
+        return mFrameCounts[frameType];
+    }
+
+    public int getManufacturerCount() {
+        return mManufacturerCount;
+    }
+
+    public int getManufacturerId(int index) {
+        return mManufacturerIds[index];
+    }
+
+    public long getManufacturerAdvertisements(int index) {
+        return mManufacturerCounts[index];
+    }
+
+    /**
+     * Advertisements carrying manufacturer data for {@code companyId}.
+     */
+    public long getManufacturerAdvertisementsById(int companyId) {
+        int slot = mManufacturerIndex.get(companyId);
+        return slot == MacIndex.NO_SLOT ? 0 : mManufacturerCounts[slot];
+    }
+
+    /**
+     * Upper bound on the bytes {@link #writeTo} will write.
+     */
+    public int getMaxSerializedSize() {
+        return 8 + 10 + 10 + 10 * FRAME_TYPES + 5 + 13 * mManufacturerCount
+                + mDevices.getSerializedSize();
+    }
+
+    /**
+     * Writes the window: its start, the counters as varints, manufacturers sorted by company
+     * id, and the device sketch last so readers can stop before it.
+     */
+    public void writeTo(ByteBuffer out) {
+        out.putLong(mStartMillis);
+        putVarint(out, mCount);
+        putVarint(out, getUniqueDevices());
+        for (long frameCount : mFrameCounts) {
+            putVarint(out, frameCount);
+        }
+        long[] sorted = new long[mManufacturerCount];
+        for (int i = 0; i < mManufacturerCount; i++) {
+            sorted[i] = ((long) mManufacturerIds[i] << 32) | i;
+        }
+        Arrays.sort(sorted);
+        putVarint(out, mManufacturerCount);
+        int previous = 0;
+        for (long entry : sorted) {
+            int id = (int) (entry >>> 32);
+            putVarint(out, id - previous);
+            putVarint(out, mManufacturerCounts[(int) entry]);
+            previous = id;
+        }
+        mDevices.writeTo(out);
+    }
+
+    /**
+     * Replaces this window with one written by {@link #writeTo}, read from {@code in}'s
+     * position up to its limit.
+     *
+     * @param sketch whether to read the device sketch, which {@link #merge} needs
+     * @throws IOException if the bytes are not a window
+     */
+    public void readFrom(ByteBuffer in, boolean sketch) throws IOException {
+        if (in.remaining() < 8) {
+            throw new IOException("Truncated window");
+        }
+        reset(in.getLong());
+        mUniqueDevices = addCounters(in);
+        if (sketch) {
+            mDevices.mergeFrom(in);
+        } else {
+            mHasSketch = false;
+        }
+    }
+
+    /**
+     * Adds a window written by {@link #writeTo} to this one, as {@link #merge} would, without
+     * decoding it into a window first.
+     *
+     * @throws IOException if the bytes are not a window
+     */
+    public void mergeFrom(ByteBuffer in) throws IOException {
+        if (!mHasSketch) {
+            throw new IllegalStateException("Window read without its sketch");
+        }
+        if (in.remaining() < 8) {
+            throw new IOException("Truncated window");
+        }
+        in.getLong();
+        addCounters(in);
+        mDevices.mergeFrom(in);
+        mUniqueDevicesStale = true;
+    }
+
+    /**
+     * Adds the serialized counters at {@code in}'s position to this window's, returning the
+     * unique device estimate stored with them.
+     */
+    private long addCounters(ByteBuffer in) throws IOException {
+        mCount += getVarint(in);
+        long uniqueDevices = getVarint(in);
+        for (int i = 0; i < FRAME_TYPES; i++) {
+            mFrameCounts[i] += getVarint(in);
+        }
+        long manufacturers = getVarint(in);
+        int id = 0;
+        for (long i = 0; i < manufacturers; i++) {
+            id += (int) getVarint(in);
+            mManufacturerCounts[manufacturerSlot(id)] += getVarint(in);
+        }
+        return uniqueDevices;
+    }
+
+    private int manufacturerSlot(int companyId) {
+        int slot = mManufacturerIndex.get(companyId);
+        if (slot != MacIndex.NO_SLOT) {
+            return slot;
+        }
+        slot = mManufacturerCount++;
+        if (slot == mManufacturerIds.length) {
+            mManufacturerIds = Arrays.copyOf(mManufacturerIds, slot * 2);
+            mManufacturerCounts = Arrays.copyOf(mManufacturerCounts, slot * 2);
+        }
+        mManufacturerIds[slot] = companyId;
+        mManufacturerCounts[slot] = 0;
+        mManufacturerIndex.put(companyId, slot);
+        return slot;
+    }
+
+    private static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new IOException("Truncated window");
+            }
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt window");
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Rolls advertisements up into per-minute and per-hour {@link RollupWindow}s as they are
+ * ingested, and appends each window to a file for its day when it closes, so that
+ * {@link RollupReader} can answer questions about a week of scanning without touching the raw
+ * log.
+ *
+ * Each scan record is parsed once, for its manufacturers and its beacon frame type. Like
+ * {@link ColumnarLogWriter}, the previous window of each resolution stays open until records
+ * are {@code lateGraceNanos} past its end, and anything older is counted in
+ * {@link #getLateCount()} and skipped. Windows still open when the writer closes are written
+ * as they are, so restarting within a window leaves it in two parts.
+ *
+ * A file holds one resolution for one UTC day: a header, then records of an int body length,
+ * the CRC-32C of the body and the body written by {@link RollupWindow#writeTo}. A torn record
+ * at the end of a file is cut off before appending to it. Files older than the retention are
+ * deleted as new days start.
+ *
+ * This class has no Android dependencies and is not thread safe; callers must confine it to
+ * a single thread. The statistics may be read from any thread.
+ */
+public class RollupWriter implements Closeable {
+
+    public static final int RESOLUTION_MINUTE = 0;
+
+    public static final int RESOLUTION_HOUR = 1;
+
+    public static final int FILE_MAGIC = 0x41445652;
+
+    public static final short FORMAT_VERSION = 1;
+
+    public static final int FILE_HEADER_SIZE = 4 + 2 + 1 + 1 + 8;
+
+    public static final int RECORD_HEADER_SIZE = 4 + 4;
+
+    public static final long DAY_MILLIS = 24 * RollupWindow.HOUR_MILLIS;
+
+    private static final String FILE_PREFIX = "rollup-";
+
+    private static final String FILE_SUFFIX = ".rlp";
+
+    private static final String[] RESOLUTION_NAMES = {"m-", "h-"};
+
+    private static final long[] RESOLUTION_MILLIS = {
+            RollupWindow.MINUTE_MILLIS, RollupWindow.HOUR_MILLIS};
+
+    private final File mDirectory;
+
+    private final long mLateGraceMillis;
+
+    private final long mRetentionDays;
+
+    private final AdvertisementParser mParser = new AdvertisementParser();
+
+    private final BeaconDecoders mDecoders = BeaconDecoders.createDefault();
+
+    private final BeaconEvent mEvent = new BeaconEvent();
+
+    private final Series mMinutes = new Series(RESOLUTION_MINUTE);
+
+    private final Series mHours = new Series(RESOLUTION_HOUR);
+
+    private ByteBuffer mBuffer = ByteBuffer.allocate(8192);
+
+    private long mNewestDay = Long.MIN_VALUE;
+
+    private volatile long mRecordCount;
+
+    private volatile long mLateCount;
+
+    private volatile long mWindowCount;
+
+    private volatile long mBytesWritten;
+
+    private volatile long mTruncatedBytes;
+
+    /**
+     * @param lateGraceNanos how far past the end of a window records for it are still accepted
+     * @param retentionNanos how long files are kept, rounded up to whole days
+     */
+    public RollupWriter(File directory, long lateGraceNanos, long retentionNanos)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create rollup directory " + directory);
+        }
+        mDirectory = directory;
+        mLateGraceMillis = lateGraceNanos / 1000000L;
+        mRetentionDays = (retentionNanos / 1000000L + DAY_MILLIS - 1) / DAY_MILLIS;
+    }
+
+    /**
+     * Counts one advertisement in its minute and hour.
+     *
+     * @param timestampNanos time the advertisement was received, nanoseconds since the epoch
+     * @param address        device address packed with {@link MacAddresses#pack(String)}
+     * @param scanRecord     the advertisement's payload, or null if it had none
+     * @return false if the record was too late for its windows and skipped
+     */
+    public boolean record(long timestampNanos, long address, byte[] scanRecord)
+            throws IOException {
+        long millis = timestampNanos / 1000000L;
+        RollupWindow minute = mMinutes.windowFor(millis);
+        if (minute == null) {
+            mLateCount++;
+            return false;
+        }
+        RollupWindow hour = mHours.windowFor(millis);
+
+        mParser.parse(scanRecord);
+        int frameType = mDecoders.decode(mParser, mEvent) ? mEvent.getType()
+                : BeaconEvent.TYPE_NONE;
+        minute.add(address, frameType);
+        if (hour != null) {
+            hour.add(address, frameType);
+        }
+        for (int i = 0; i < mParser.getManufacturerDataCount(); i++) {
+            int companyId = mParser.getManufacturerId(i);
+            minute.addManufacturer(companyId);
+            if (hour != null) {
+                hour.addManufacturer(companyId);
+            }
+        }
+        mRecordCount++;
+        return true;
+    }
+
+    /**
+     * Writes the windows still open and closes the files.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            mMinutes.close();
+        } finally {
+            mHours.close();
+        }
+    }
+
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Records that arrived after their windows were written, and were skipped.
+     */
+    public long getLateCount() {
+        return mLateCount;
+    }
+
+    /**
+     * Windows written, of both resolutions.
+     */
+    public long getWindowCount() {
+        return mWindowCount;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Bytes of torn records cut off files before appending to them.
+     */
+    public long getTruncatedBytes() {
+        return mTruncatedBytes;
+    }
+
+    public void describe(StringBuilder text) {
+        text.append("Rollups: ").append(mWindowCount).append(" windows, ")
+                .append(mBytesWritten / 1024).append(" KB written, ").append(mLateCount)
+                .append(" late advertisements\n");
+    }
+
+    /**
+     * Returns the name of the file holding windows of {@code resolution} for the UTC day
+     * {@code day}, counted from the epoch. Names sort lexicographically by day.
+     */
+    public static String fileName(int resolution, long day) {
+        StringBuilder name = new StringBuilder(FILE_PREFIX).append(RESOLUTION_NAMES[resolution]);
+        String digits = Long.toString(day);
+        for (int i = digits.length(); i < 6; i++) {
+            name.append('0');
+        }
+        return name.append(digits).append(FILE_SUFFIX).toString();
+    }
+
+    /**
+     * Parses the day out of a rollup file name, or returns -1 if the name does not belong to a
+     * rollup file.
+     */
+    public static long parseFileDay(String name) {
+        if (!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX)) {
+            return -1;
+        }
+        int start = FILE_PREFIX.length() + RESOLUTION_NAMES[0].length();
+        try {
+            return Long.parseLong(name.substring(start, name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Window length of {@code resolution} in milliseconds.
+     */
+    public static long windowMillis(int resolution) {
+        return RESOLUTION_MILLIS[resolution];
+    }
+
+    private void write(int resolution, RollupWindow window, Series series) throws IOException {
+        int maxSize = RECORD_HEADER_SIZE + window.getMaxSerializedSize();
+        if (mBuffer.capacity() < maxSize) {
+            mBuffer = ByteBuffer.allocate(Math.max(maxSize, 2 * mBuffer.capacity()));
+        }
+        ByteBuffer buffer = mBuffer;
+        buffer.clear();
+        buffer.position(RECORD_HEADER_SIZE);
+        window.writeTo(buffer);
+        int length = buffer.position() - RECORD_HEADER_SIZE;
+        buffer.putInt(0, length);
+        buffer.putInt(4, Crc32c.compute(buffer, RECORD_HEADER_SIZE, length));
+        buffer.flip();
+
+        long day = window.getStartMillis() / DAY_MILLIS;
+        series.openDay(day);
+        series.append(buffer);
+        mWindowCount++;
+        mBytesWritten += buffer.limit();
+        if (resolution == RESOLUTION_MINUTE && day > mNewestDay) {
+            if (mNewestDay != Long.MIN_VALUE) {
+                deleteExpired(day);
+            }
+            mNewestDay = day;
+        }
+    }
+
+    private void deleteExpired(long today) {
+        String[] names = mDirectory.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            long day = parseFileDay(name);
+            if (day >= 0 && day < today - mRetentionDays) {
+                new File(mDirectory, name).delete();
+            }
+        }
+    }
+
+    /**
+     * Open windows and the current file of one resolution.
+     */
+    private final class Series {
+
+        private final int mResolution;
+
+        private final long mMillis;
+
+        private RollupWindow mCurrent;
+
+        private RollupWindow mPrevious;
+
+        private RollupWindow mSpare = new RollupWindow();
+
+        private RandomAccessFile mFile;
+
+        private FileChannel mChannel;
+
+        private long mDay = -1;
+
+        Series(int resolution) {
+            mResolution = resolution;
+            mMillis = RESOLUTION_MILLIS[resolution];
+        }
+
+        /**
+         * Returns the open window {@code millis} falls in, opening one if it is newer than
+         * every window so far, or null if its window has already been written.
+         */
+        RollupWindow windowFor(long millis) throws IOException {
+            long start = millis - millis % mMillis;
+            RollupWindow window;
+            if (mCurrent == null || start > mCurrent.getStartMillis()) {
+                if (mPrevious != null) {
+                    closeWindow(mPrevious);
+                }
+                mPrevious = mCurrent;
+                mCurrent = mSpare;
+                mSpare = null;
+                if (mCurrent == null) {
+                    mCurrent = new RollupWindow();
+                }
+                mCurrent.reset(start);
+                window = mCurrent;
+            } else if (start == mCurrent.getStartMillis()) {
+                window = mCurrent;
+            } else if (mPrevious != null && start == mPrevious.getStartMillis()) {
+                window = mPrevious;
+            } else {
+                return null;
+            }
+            if (mPrevious != null
+                    && millis >= mPrevious.getStartMillis() + mMillis + mLateGraceMillis) {
+                closeWindow(mPrevious);
+                mPrevious = null;
+            }
+            return window;
+        }
+
+        void openDay(long day) throws IOException {
+            if (day == mDay) {
+                return;
+            }
+            closeFile();
+            File file = new File(mDirectory, fileName(mResolution, day));
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                long validLength = RollupReader.validLength(raf.getChannel(), mResolution);
+                long length = raf.length();
+                if (validLength == 0) {
+                    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+                    header.putInt(FILE_MAGIC);
+                    header.putShort(FORMAT_VERSION);
+                    header.put((byte) mResolution);
+                    header.put((byte) 0);
+                    header.putLong(day * DAY_MILLIS);
+                    header.flip();
+                    raf.setLength(0);
+                    raf.getChannel().write(header, 0);
+                    validLength = FILE_HEADER_SIZE;
+                } else if (validLength < length) {
+                    raf.setLength(validLength);
+                }
+                if (validLength < length) {
+                    mTruncatedBytes += length - validLength;
+                }
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+            mFile = raf;
+            mChannel = raf.getChannel();
+            mDay = day;
+        }
+
+        void append(ByteBuffer buffer) throws IOException {
+            long position = mChannel.size();
+            while (buffer.hasRemaining()) {
+                position += mChannel.write(buffer, position);
+            }
+        }
+
+        void close() throws IOException {
+            try {
+                if (mPrevious != null) {
+                    closeWindow(mPrevious);
+                    mPrevious = null;
+                }
+                if (mCurrent != null) {
+                    closeWindow(mCurrent);
+                    mCurrent = null;
+                }
+            } finally {
+                closeFile();
+            }
+        }
+
+        private void closeWindow(RollupWindow window) throws IOException {
+            if (window.getAdvertisementCount() > 0) {
+                write(mResolution, window, this);
+            }
+            mSpare = window;
+        }
+
+        private void closeFile() throws IOException {
+            if (mFile != null) {
+                mFile.close();
+                mFile = null;
+                mChannel = null;
+                mDay = -1;
+            }
+        }
+    }
+}
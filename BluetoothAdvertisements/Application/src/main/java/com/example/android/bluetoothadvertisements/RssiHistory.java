@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Recent RSSI samples and running statistics for a bounded number of devices.
+ *
+ * Storage is a struct-of-arrays pool allocated up front: each device owns a slot, and each
+ * slot owns a fixed window of the sample ring plus a block of statistics (count, last value,
+ * min, max, mean and variance by Welford's method, an exponentially weighted moving average
+ * and a one-dimensional Kalman estimate). Recording a sample is O(1) and allocation-free. When
+ * every slot is taken, the least recently updated device is evicted to make room.
+ *
+ * One thread, the writer, records samples and releases devices. Any thread may read a slot
+ * with {@link #read} or {@link #readSamples} without locking: each slot carries a sequence
+ * number that is odd while the writer is updating it, and readers retry until they see the
+ * same even number before and after copying.
+ */
+public class RssiHistory {
+
+    public static final int NO_SLOT = MacIndex.NO_SLOT;
+
+    public static final double DEFAULT_EWMA_ALPHA = 0.2;
+
+    /**
+     * Kalman process noise: how fast (dB^2 per sample) the true RSSI is assumed to drift.
+     */
+    public static final double DEFAULT_PROCESS_NOISE = 0.5;
+
+    /**
+     * Kalman measurement noise: the variance (dB^2) of a single RSSI reading.
+     */
+    public static final double DEFAULT_MEASUREMENT_NOISE = 16;
+
+    // Layout of one slot's statistics block. Doubles are stored as raw long bits.
+    private static final int SEQUENCE = 0;
+    private static final int ADDRESS = 1;
+    private static final int COUNT = 2;
+    private static final int LAST_TIMESTAMP = 3;
+    private static final int LAST_RSSI = 4;
+    private static final int MIN = 5;
+    private static final int MAX = 6;
+    private static final int MEAN = 7;
+    private static final int M2 = 8;
+    private static final int EWMA = 9;
+    private static final int KALMAN_ESTIMATE = 10;
+    private static final int KALMAN_ERROR = 11;
+    // Padded to 128 bytes so neighbouring slots don't share cache lines.
+    private static final int STRIDE = 16;
+
+    private static final long NO_ADDRESS = -1;
+
+    /**
+     * Current values of one device's statistics, copied out by {@link #read}.
+     */
+    public static final class Stats {
+        public long address;
+        public long count;
+        public long lastTimestampNanos;
+        public int lastRssi;
+        public int min;
+        public int max;
+        public double mean;
+        public double variance;
+        public double ewma;
+        public double kalman;
+    }
+
+    private final int mMaxDevices;
+
+    private final int mWindow;
+
+    private final double mEwmaAlpha;
+
+    private final double mProcessNoise;
+
+    private final double mMeasurementNoise;
+
+    private final AtomicLongArray mStats;
+
+    /**
+     * Samples packed as {@code timestampNanos << 8 | (rssi & 0xFF)}, {@link #mWindow} per slot.
+     */
+    private final AtomicLongArray mSamples;
+
+    // Writer thread only.
+
+    private final MacIndex mSlots;
+
+    private final int[] mFreeSlots;
+
+    private int mFreeCount;
+
+    private long mEvictionCount;
+
+    public RssiHistory(int maxDevices, int window) {
+        this(maxDevices, window, DEFAULT_EWMA_ALPHA, DEFAULT_PROCESS_NOISE,
+                DEFAULT_MEASUREMENT_NOISE);
+    }
+
+    public RssiHistory(int maxDevices, int window, double ewmaAlpha, double processNoise,
+            double measurementNoise) {
+        if (maxDevices < 1 || window < 1) {
+            throw new IllegalArgumentException("maxDevices and window must be positive");
+        }
+        mMaxDevices = maxDevices;
+        mWindow = window;
+        mEwmaAlpha = ewmaAlpha;
+        mProcessNoise = processNoise;
+        mMeasurementNoise = measurementNoise;
+        mStats = new AtomicLongArray(maxDevices * STRIDE);
+        mSamples = new AtomicLongArray(maxDevices * window);
+        mSlots = new MacIndex(maxDevices);
+        mFreeSlots = new int[maxDevices];
+        for (int i = 0; i < maxDevices; i++) {
+            mFreeSlots[i] = maxDevices - 1 - i;
+            mStats.set(i * STRIDE + ADDRESS, NO_ADDRESS);
+        }
+        mFreeCount = maxDevices;
+    }
+
+    public int getMaxDevices() {
+        return mMaxDevices;
+    }
+
+    public int getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Returns the bytes held by the pool, which is fixed at construction.
+     */
+    public long getFootprintBytes() {
+        return 8L * (mStats.length() + mSamples.length());
+    }
+
+    // Writer thread.
+
+    /**
+     * Records one sample for a device, taking a slot for it if it doesn't have one.
+     *
+     * @param timestampNanos time of the sample, e.g. {@code ScanResult.getTimestampNanos()}
+     * @return the device's slot
+     */
+    public int record(long address, long timestampNanos, int rssi) {
+        int slot = mSlots.get(address);
+        if (slot == NO_SLOT) {
+            slot = allocate(address);
+        }
+        int base = slot * STRIDE;
+        long sequence = mStats.get(base + SEQUENCE);
+        mStats.lazySet(base + SEQUENCE, sequence + 1);
+
+        long count = mStats.get(base + COUNT);
+        mSamples.lazySet(slot * mWindow + (int) (count % mWindow),
+                (timestampNanos << 8) | (rssi & 0xFF));
+
+        double mean;
+        double m2;
+        double ewma;
+        double estimate;
+        double error;
+        int min;
+        int max;
+        if (count == 0) {
+            mean = rssi;
+            m2 = 0;
+            ewma = rssi;
+            estimate = rssi;
+            error = mMeasurementNoise;
+            min = rssi;
+            max = rssi;
+        } else {
+            double oldMean = Double.longBitsToDouble(mStats.get(base + MEAN));
+            mean = oldMean + (rssi - oldMean) / (count + 1);
+            m2 = Double.longBitsToDouble(mStats.get(base + M2)) + (rssi - oldMean) * (rssi - mean);
+            ewma = Double.longBitsToDouble(mStats.get(base + EWMA));
+            ewma += mEwmaAlpha * (rssi - ewma);
+            estimate = Double.longBitsToDouble(mStats.get(base + KALMAN_ESTIMATE));
+            error = Double.longBitsToDouble(mStats.get(base + KALMAN_ERROR)) + mProcessNoise;
+            double gain = error / (error + mMeasurementNoise);
+            estimate += gain * (rssi - estimate);
+            error *= 1 - gain;
+            min = Math.min(rssi, (int) mStats.get(base + MIN));
+            max = Math.max(rssi, (int) mStats.get(base + MAX));
+        }
+        mStats.lazySet(base + COUNT, count + 1);
+        mStats.lazySet(base + LAST_TIMESTAMP, timestampNanos);
+        mStats.lazySet(base + LAST_RSSI, rssi);
+        mStats.lazySet(base + MIN, min);
+        mStats.lazySet(base + MAX, max);
+        mStats.lazySet(base + MEAN, Double.doubleToRawLongBits(mean));
+        mStats.lazySet(base + M2, Double.doubleToRawLongBits(m2));
+        mStats.lazySet(base + EWMA, Double.doubleToRawLongBits(ewma));
+        mStats.lazySet(base + KALMAN_ESTIMATE, Double.doubleToRawLongBits(estimate));
+        mStats.lazySet(base + KALMAN_ERROR, Double.doubleToRawLongBits(error));
+
+        mStats.lazySet(base + SEQUENCE, sequence + 2);
+        return slot;
+    }
+
+    /**
+     * Returns the device's slot, or {@link #NO_SLOT}.
+     */
+    public int slotOf(long address) {
+        return mSlots.get(address);
+    }
+
+    /**
+     * Forgets a device and returns its slot to the pool.
+     *
+     * @return true if the device had a slot
+     */
+    public boolean release(long address) {
+        int slot = mSlots.remove(address);
+        if (slot == NO_SLOT) {
+            return false;
+        }
+        int base = slot * STRIDE;
+        long sequence = mStats.get(base + SEQUENCE);
+        mStats.lazySet(base + SEQUENCE, sequence + 1);
+        mStats.lazySet(base + ADDRESS, NO_ADDRESS);
+        mStats.lazySet(base + COUNT, 0);
+        mStats.lazySet(base + SEQUENCE, sequence + 2);
+        mFreeSlots[mFreeCount++] = slot;
+        return true;
+    }
+
+    public int size() {
+        return mSlots.size();
+    }
+
+    /**
+     * Number of devices evicted because the pool was full.
+     */
+    public long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    private int allocate(long address) {
+        int slot;
+        if (mFreeCount > 0) {
+            slot = mFreeSlots[--mFreeCount];
+        } else {
+            slot = leastRecentlyUpdated();
+            mSlots.remove(mStats.get(slot * STRIDE + ADDRESS));
+            mEvictionCount++;
+        }
+        int base = slot * STRIDE;
+        long sequence = mStats.get(base + SEQUENCE);
+        mStats.lazySet(base + SEQUENCE, sequence + 1);
+        mStats.lazySet(base + ADDRESS, address);
+        mStats.lazySet(base + COUNT, 0);
+        mStats.lazySet(base + SEQUENCE, sequence + 2);
+        mSlots.put(address, slot);
+        return slot;
+    }
+
+    private int leastRecentlyUpdated() {
+        int oldest = 0;
+        long oldestTimestamp = Long.MAX_VALUE;
+        for (int slot = 0; slot < mMaxDevices; slot++) {
+            long timestamp = mStats.get(slot * STRIDE + LAST_TIMESTAMP);
+            if (timestamp < oldestTimestamp) {
+                oldestTimestamp = timestamp;
+                oldest = slot;
+            }
+        }
+        return oldest;
+    }
+
+    // Any thread.
+
+    /**
+     * Copies a slot's statistics into {@code out}.
+     *
+     * @param address the device expected in the slot
+     * @return false if the slot no longer belongs to {@code address}, or has no samples
+     */
+    public boolean read(int slot, long address, Stats out) {
+        int base = slot * STRIDE;
+        while (true) {
+            long sequence = mStats.get(base + SEQUENCE);
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            long owner = mStats.get(base + ADDRESS);
+            long count = mStats.get(base + COUNT);
+            out.address = owner;
+            out.count = count;
+            out.lastTimestampNanos = mStats.get(base + LAST_TIMESTAMP);
+            out.lastRssi = (int) mStats.get(base + LAST_RSSI);
+            out.min = (int) mStats.get(base + MIN);
+            out.max = (int) mStats.get(base + MAX);
+            out.mean = Double.longBitsToDouble(mStats.get(base + MEAN));
+            double m2 = Double.longBitsToDouble(mStats.get(base + M2));
+            out.variance = count > 1 ? m2 / (count - 1) : 0;
+            out.ewma = Double.longBitsToDouble(mStats.get(base + EWMA));
+            out.kalman = Double.longBitsToDouble(mStats.get(base + KALMAN_ESTIMATE));
+            if (mStats.get(base + SEQUENCE) == sequence) {
+                return owner == address && count > 0;
+            }
+        }
+    }
+
+    /**
+     * Copies up to {@link #getWindow()} of a slot's most recent samples, oldest first.
+     *
+     * @return the number of samples copied, or -1 if the slot no longer belongs to
+     * {@code address}
+     */
+    public int readSamples(int slot, long address, long[] timestampsNanos, int[] rssi) {
+        int base = slot * STRIDE;
+        int ring = slot * mWindow;
+        while (true) {
+            long sequence = mStats.get(base + SEQUENCE);
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            long owner = mStats.get(base + ADDRESS);
+            long count = mStats.get(base + COUNT);
+            int n = (int) Math.min(Math.min(count, mWindow),
+                    Math.min(timestampsNanos.length, rssi.length));
+            for (int i = 0; i < n; i++) {
+                long packed = mSamples.get(ring + (int) ((count - n + i) % mWindow));
+                timestampsNanos[i] = packed >>> 8;
+                rssi[i] = (byte) packed;
+            }
+            if (mStats.get(base + SEQUENCE) == sequence) {
+                return owner == address ? n : -1;
+            }
+        }
+    }
+}
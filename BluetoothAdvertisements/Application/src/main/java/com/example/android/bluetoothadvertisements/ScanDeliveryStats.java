@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+/**
+ * Records how the Bluetooth stack delivers scan results: how many results arrive per callback
+ * and how long the app sleeps between callbacks. With controller-side batching each callback
+ * carries many results and the intervals stretch to the report delay, which is the wakeup
+ * reduction batching is meant to buy. Not thread safe.
+ */
+public class ScanDeliveryStats {
+
+    private final LogHistogram mBatchSizes = new LogHistogram();
+
+    private final LogHistogram mIntervalsMillis = new LogHistogram();
+
+    private long mLastDeliveryNanos = -1;
+
+    /**
+     * Records one callback from the scanner.
+     *
+     * @param resultCount number of results it delivered (1 for {@code onScanResult})
+     * @param nowNanos    monotonic time of the callback
+     */
+    public void recordDelivery(int resultCount, long nowNanos) {
+        mBatchSizes.record(resultCount);
+        if (mLastDeliveryNanos >= 0) {
+            mIntervalsMillis.record((nowNanos - mLastDeliveryNanos) / 1000000L);
+        }
+        mLastDeliveryNanos = nowNanos;
+    }
+
+    /**
+     * Forgets the previous delivery time, so the gap while not scanning isn't recorded as an
+     * interval.
+     */
+    public void onScanStopped() {
+        mLastDeliveryNanos = -1;
+    }
+
+    public void reset() {
+        mBatchSizes.reset();
+        mIntervalsMillis.reset();
+        mLastDeliveryNanos = -1;
+    }
+
+    /**
+     * Number of times the app was woken with results.
+     */
+    public long getCallbackCount() {
+        return mBatchSizes.getCount();
+    }
+
+    public long getResultCount() {
+        return mBatchSizes.getSum();
+    }
+
+    public LogHistogram getBatchSizes() {
+        return mBatchSizes;
+    }
+
+    public LogHistogram getIntervalsMillis() {
+        return mIntervalsMillis;
+    }
+
+    public void describe(StringBuilder out) {
+        long callbacks = getCallbackCount();
+        out.append("Callbacks: ").append(callbacks)
+                .append(", results: ").append(getResultCount());
+        if (callbacks > 0) {
+            out.append(String.format(" (%.1f per callback)",
+                    (double) getResultCount() / callbacks));
+        }
+        out.append("\n\nResults per callback\n");
+        mBatchSizes.describe(out, "");
+        out.append("\nInterval between callbacks\n");
+        mIntervalsMillis.describe(out, " ms");
+    }
+}
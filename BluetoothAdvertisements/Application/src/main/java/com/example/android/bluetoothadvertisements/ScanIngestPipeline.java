@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves scan results off the thread that receives them.
+ *
+ * Scan callbacks {@link #offer} results into a bounded {@link MpscRing}, which never blocks and
+ * drops results when full. A dedicated worker thread drains the ring, hands every result to
+ * {@link Listener#onItem} (for logging and other per-advertisement work) and keeps only the
+ * latest result per device. At most once per publish interval the worker hands the devices that
+ * changed to {@link Listener#onSnapshot} as an immutable {@link Snapshot}, so the UI refreshes
+ * at a fixed rate no matter how many advertisements arrive.
+ *
+ * Once per publish interval the worker also calls {@link Listener#onTick}, whether or not
+ * anything arrived, so listeners can expire devices; those passed to {@link #remove} are
+ * reported in the next snapshot's {@link Snapshot#removedKeys}.
+ *
+ * Queue depth, drop count and end-to-end latency (from {@code offer} to the snapshot that
+ * carries the result) are tracked so saturation is visible.
+ */
+public class ScanIngestPipeline<T> {
+
+    /**
+     * Receives results from the worker thread.
+     */
+    public interface Listener<T> {
+
+        /**
+         * Called on the worker thread for every result, in arrival order.
+         */
+        void onItem(T item, long key);
+
+        /**
+         * Called on the worker thread once per publish interval, just before a snapshot would
+         * be taken. {@link ScanIngestPipeline#remove} may be called from here.
+         */
+        void onTick(long nowNanos);
+
+        /**
+         * Called on the worker thread at most once per publish interval, and only if something
+         * changed.
+         */
+        void onSnapshot(Snapshot<T> snapshot);
+    }
+
+    /**
+     * Immutable set of devices that changed since the previous snapshot, plus the pipeline
+     * counters at the time it was taken.
+     */
+    public static final class Snapshot<T> {
+
+        /**
+         * Latest result of each device that changed, in first-seen order unless some were
+         * removed.
+         */
+        public final List<T> updates;
+
+        /**
+         * Keys passed to {@link ScanIngestPipeline#remove} since the previous snapshot. A
+         * device seen again after it was removed is in both lists, so apply these before the
+         * updates. Not to be modified.
+         */
+        public final long[] removedKeys;
+
+        public final long receivedCount;
+
+        public final long dropCount;
+
+        public final int queueDepth;
+
+        /**
+         * Longest time any of the {@link #updates} spent between being offered and published.
+         */
+        public final long maxLatencyNanos;
+
+        Snapshot(List<T> updates, long[] removedKeys, long receivedCount, long dropCount,
+                 int queueDepth, long maxLatencyNanos) {
+            this.updates = updates;
+            this.removedKeys = removedKeys;
+            this.receivedCount = receivedCount;
+            this.dropCount = dropCount;
+            this.queueDepth = queueDepth;
+            this.maxLatencyNanos = maxLatencyNanos;
+        }
+    }
+
+    /**
+     * Upper bound on how long the worker sleeps between drains, so the ring is emptied well
+     * before it can fill up even when the publish interval is long.
+     */
+    private static final long MAX_DRAIN_INTERVAL_NANOS = 10000000L;
+
+    private final MpscRing<T> mRing;
+
+    private final long mPublishIntervalNanos;
+
+    private final Listener<T> mListener;
+
+    private final AtomicLong mDropCount = new AtomicLong();
+
+    private final AtomicLong mReceivedCount = new AtomicLong();
+
+    private volatile long mLastLatencyNanos;
+
+    private volatile long mMaxLatencyNanos;
+
+    private volatile boolean mRunning;
+
+    private Thread mThread;
+
+    // Worker thread state.
+
+    private final MacIndex mPendingIndex = new MacIndex();
+
+    private final ArrayList<T> mPending = new ArrayList<>();
+
+    /**
+     * Key of each entry in {@link #mPending}.
+     */
+    private long[] mPendingKeys = new long[16];
+
+    private long mPendingOldestNanos = Long.MAX_VALUE;
+
+    private long[] mRemoved = new long[16];
+
+    private int mRemovedCount;
+
+    private final MpscRing.Consumer<T> mDrainer = new MpscRing.Consumer<T>() {
+        @Override
+        public void accept(T item, long key, long enqueueNanos) {
+            mListener.onItem(item, key);
+            int position = mPendingIndex.get(key);
+            if (position != MacIndex.NO_SLOT) {
+                mPending.set(position, item);
+            } else {
+                int size = mPending.size();
+                if (size == mPendingKeys.length) {
+                    mPendingKeys = Arrays.copyOf(mPendingKeys, size * 2);
+                }
+                mPendingKeys[size] = key;
+                mPendingIndex.put(key, size);
+                mPending.add(item);
+            }
+            mPendingOldestNanos = Math.min(mPendingOldestNanos, enqueueNanos);
+        }
+    };
+
+    /**
+     * @param capacity             results that may be queued before new ones are dropped
+     * @param publishIntervalNanos minimum time between snapshots
+     */
+    public ScanIngestPipeline(int capacity, long publishIntervalNanos, Listener<T> listener) {
+        mRing = new MpscRing<>(capacity);
+        mPublishIntervalNanos = publishIntervalNanos;
+        mListener = listener;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, "ScanIngest");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stops the worker after it has drained and published everything already queued.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        boolean interrupted = false;
+        while (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mThread = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a result. Never blocks; safe to call from any thread.
+     *
+     * @param key identifies the device, normally its packed address
+     * @return false if the queue was full and the result was dropped
+     */
+    public boolean offer(T item, long key) {
+        mReceivedCount.incrementAndGet();
+        if (!mRing.offer(item, key, System.nanoTime())) {
+            mDropCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Withdraws a device: drops any update for it not yet published and lists it in the next
+     * snapshot's {@link Snapshot#removedKeys}. Only call this from the worker thread, that is
+     * from a {@link Listener} callback.
+     */
+    public void remove(long key) {
+        int position = mPendingIndex.remove(key);
+        if (position != MacIndex.NO_SLOT) {
+            // Swap the last update into the gap rather than shifting the rest down.
+            int last = mPending.size() - 1;
+            if (position != last) {
+                T moved = mPending.get(last);
+                mPending.set(position, moved);
+                mPendingKeys[position] = mPendingKeys[last];
+                mPendingIndex.put(mPendingKeys[position], position);
+            }
+            mPending.remove(last);
+        }
+        if (mRemovedCount == mRemoved.length) {
+            mRemoved = Arrays.copyOf(mRemoved, mRemovedCount * 2);
+        }
+        mRemoved[mRemovedCount++] = key;
+    }
+
+    public int getQueueDepth() {
+        return mRing.size();
+    }
+
+    public int getQueueCapacity() {
+        return mRing.capacity();
+    }
+
+    public long getReceivedCount() {
+        return mReceivedCount.get();
+    }
+
+    public long getDropCount() {
+        return mDropCount.get();
+    }
+
+    /**
+     * End-to-end latency of the most recent snapshot.
+     */
+    public long getLastLatencyNanos() {
+        return mLastLatencyNanos;
+    }
+
+    /**
+     * Worst end-to-end latency since the pipeline was created.
+     */
+    public long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+
+    private void runWorker() {
+        long nextPublish = System.nanoTime() + mPublishIntervalNanos;
+        while (mRunning) {
+            mRing.drain(mDrainer, mRing.capacity());
+            long now = System.nanoTime();
+            if (now - nextPublish >= 0) {
+                mListener.onTick(now);
+                publish(now);
+                nextPublish = now + mPublishIntervalNanos;
+            }
+            if (mRing.size() == 0) {
+                LockSupport.parkNanos(this,
+                        Math.min(nextPublish - now, MAX_DRAIN_INTERVAL_NANOS));
+            }
+        }
+        while (mRing.drain(mDrainer, mRing.capacity()) > 0) {
+            // Keep draining until producers have stopped.
+        }
+        publish(System.nanoTime());
+    }
+
+    private void publish(long now) {
+        if (mPending.isEmpty() && mRemovedCount == 0) {
+            return;
+        }
+        long latency = 0;
+        if (!mPending.isEmpty()) {
+            latency = now - mPendingOldestNanos;
+            mLastLatencyNanos = latency;
+            if (latency > mMaxLatencyNanos) {
+                mMaxLatencyNanos = latency;
+            }
+        }
+        List<T> updates = Collections.unmodifiableList(new ArrayList<>(mPending));
+        long[] removed = Arrays.copyOf(mRemoved, mRemovedCount);
+        mPending.clear();
+        mPendingIndex.clear();
+        mPendingOldestNanos = Long.MAX_VALUE;
+        mRemovedCount = 0;
+        mListener.onSnapshot(new Snapshot<>(updates, removed, mReceivedCount.get(),
+                mDropCount.get(), mRing.size(), latency));
+    }
+}
@@ -0,0 +1,1007 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.drawable.Icon;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scans for BLE Advertisements and logs them independent of the UI.
+ *
+ * Started with {@code startService}, this owns the {@link BluetoothLeScanner}, the
+ * {@link ScanScheduler}, the {@link ScanIngestPipeline} and the on-disk log, and runs in the
+ * foreground so logging carries on with the app off screen and isn't restarted when the
+ * activity is re-created. UI components bind to it and register a {@link Listener} to receive
+ * the same coalesced snapshots the pipeline publishes, on the main thread. The service keeps
+ * the latest result of every device still around, so a listener registered later first
+ * receives all of them in one snapshot.
+ */
+public class ScanLoggingService extends Service {
+
+    private static final String TAG = ScanLoggingService.class.getSimpleName();
+
+    private static final int FOREGROUND_NOTIFICATION_ID = 2;
+
+    /**
+     * Lets ScannerFragment check if the Service is running without needing to start or bind to
+     * it, like {@link AdvertiserService#running}.
+     */
+    public static boolean running = false;
+
+    /**
+     * Intent action, sent from the notification, that stops logging.
+     */
+    public static final String ACTION_STOP =
+        "com.example.android.bluetoothadvertisements.stop_scan_logging";
+
+    /**
+     * Devices not seen for 10 minutes are forgotten, checked once a second.
+     */
+    private static final long DEVICE_EXPIRY_NANOS =
+            TimeUnit.NANOSECONDS.convert(10, TimeUnit.MINUTES);
+
+    private static final long DEVICE_EXPIRY_TICK_NANOS =
+            TimeUnit.NANOSECONDS.convert(1, TimeUnit.SECONDS);
+
+    private static final long[] NO_KEYS = new long[0];
+
+    /**
+     * Receives what the service sees, on the main thread.
+     */
+    public interface Listener {
+
+        /**
+         * Devices that changed or left since the previous call, with each update's slot in
+         * {@link #getRssiHistory()} and the cluster linking its rotating addresses, or
+         * {@link AddressClusterer#NO_CLUSTER}.
+         */
+        void onSnapshot(ScanIngestPipeline.Snapshot<ScanResult> snapshot, int[] rssiSlots,
+                int[] clusterIds);
+
+        /**
+         * The devices, by packed address, and the manufacturers, by company id, that sent the
+         * most advertisements lately.
+         */
+        void onNoisyAdvertisers(HeavyHitters.Ranking devices,
+                HeavyHitters.Ranking manufacturers);
+
+        /**
+         * A scan window ended, so 'last seen' times may need refreshing.
+         */
+        void onScanStopped();
+
+        void onScanFailed(int errorCode);
+
+        /**
+         * The service is being destroyed and must no longer be used.
+         */
+        void onServiceStopped();
+    }
+
+    /**
+     * Hands bound clients the service itself; they run in the same process.
+     */
+    public class LocalBinder extends Binder {
+        public ScanLoggingService getService() {
+            return ScanLoggingService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+
+    private BluetoothAdapter mBluetoothAdapter;
+
+    private BluetoothLeScanner mBluetoothLeScanner;
+
+    private ScanCallback mScanCallback;
+
+    private Handler mHandler;
+
+    private Listener mListener;
+
+    /**
+     * Persists every advertisement received, or null if the log could not be opened.
+     */
+    private AdvertisementLogWriter mLogWriter;
+
+    /**
+     * Compresses and compacts the log's closed segments in the background, or null when the
+     * log is not open.
+     */
+    private LogCompactor mLogCompactor;
+
+    /**
+     * Stores the same advertisements by hour and column for querying, or null if it could not
+     * be opened.
+     */
+    private ColumnarLogWriter mColumnarWriter;
+
+    /**
+     * Rolls advertisements up by minute and hour for dashboards, or null if it could not be
+     * opened. Read back through {@link #mRollupReader}, off the main thread.
+     */
+    private RollupWriter mRollupWriter;
+
+    /**
+     * Reads the rollups for {@link #describeRollups}. Guards itself and
+     * {@link #mRollupTotals}, since those calls may come from any thread.
+     */
+    private RollupReader mRollupReader;
+
+    private final RollupWindow mRollupTotals = new RollupWindow();
+
+    /**
+     * Gives every device seen a persistent int id, or null if it could not be opened. Interned
+     * on the ingestion thread, readable from any.
+     */
+    private DeviceDictionary mDeviceDictionary;
+
+    /**
+     * Dictionary generation last reported, on the ingestion thread, so each rollover is logged.
+     */
+    private int mReportedDictionaryGeneration;
+
+    /**
+     * Converts {@link ScanResult#getTimestampNanos()} (time since boot) into epoch time.
+     */
+    private long mBootTimeNanos;
+
+    /**
+     * Moves results off the main thread: logs every one and publishes coalesced updates a few
+     * times a second.
+     */
+    private ScanIngestPipeline<ScanResult> mPipeline;
+
+    /**
+     * Per-device RSSI samples and statistics. Written by the ingestion thread, read by bound
+     * clients without locking.
+     */
+    private RssiHistory mRssiHistory;
+
+    /**
+     * Tracks when each device was last seen, on the ingestion thread, to find ones that left.
+     */
+    private final ExpiryWheel mExpiryWheel =
+            new ExpiryWheel(DEVICE_EXPIRY_NANOS, DEVICE_EXPIRY_TICK_NANOS);
+
+    /**
+     * Links the addresses of devices that rotate them, on the ingestion thread. Addresses are
+     * forgotten along with the devices.
+     */
+    private final AddressClusterer mClusterer = new AddressClusterer(
+            Constants.CLUSTER_DEPARTURE_NANOS, Constants.CLUSTER_HANDOFF_NANOS,
+            DEVICE_EXPIRY_TICK_NANOS);
+
+    /**
+     * Counts advertisements by device and by manufacturer, on the ingestion thread, to rank the
+     * noisiest.
+     */
+    private final HeavyHitters mNoisyDevices = new HeavyHitters(
+            Constants.HEAVY_HITTER_DEVICE_CAPACITY, Constants.HEAVY_HITTER_SLICES,
+            Constants.HEAVY_HITTER_SLICE_NANOS);
+
+    private final HeavyHitters mNoisyManufacturers = new HeavyHitters(
+            Constants.HEAVY_HITTER_MANUFACTURER_CAPACITY, Constants.HEAVY_HITTER_SLICES,
+            Constants.HEAVY_HITTER_SLICE_NANOS);
+
+    private final AdvertisementParser mIngestParser = new AdvertisementParser();
+
+    private long mNextRankingNanos;
+
+    private long mNextStatsNanos;
+
+    /**
+     * Statistics of the state confined to the ingestion thread, rebuilt there and published
+     * whole so any thread can read them.
+     */
+    private volatile String mIngestStats = "";
+
+    private final StringBuilder mIngestStatsText = new StringBuilder();
+
+    // Latest rankings, on the main thread, for new listeners.
+
+    private HeavyHitters.Ranking mNoisyDeviceRanking;
+
+    private HeavyHitters.Ranking mNoisyManufacturerRanking;
+
+    // Latest result of every device still around, on the main thread, for new listeners.
+
+    private final ArrayList<ScanResult> mDevices = new ArrayList<>();
+
+    private final MacIndex mDeviceIndex = new MacIndex();
+
+    private int[] mDeviceSlots = new int[16];
+
+    private int[] mDeviceClusters = new int[16];
+
+    /**
+     * Drop count last reported, so saturation is only logged when it gets worse.
+     */
+    private long mReportedDropCount;
+
+    /**
+     * Whether the user wants results batched by the controller.
+     */
+    private boolean mBatchScanning = true;
+
+    /**
+     * Whether the current scan actually uses controller-side batching. False when batching is
+     * off, or when the chipset can't offload it and we fell back to per-result delivery.
+     */
+    private boolean mBatchingActive;
+
+    /**
+     * Set once the scanner refused a batched scan, so later scans don't ask for it again.
+     */
+    private boolean mBatchingUnsupported;
+
+    private final ScanDeliveryStats mDeliveryStats = new ScanDeliveryStats();
+
+    /**
+     * Decides when scans start and stop, and in which mode.
+     */
+    private ScanScheduler mScheduler;
+
+    private final Runnable mSchedulerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            schedulePoll(mScheduler.poll());
+        }
+    };
+
+    /**
+     * Periodically asks the controller for the results it is holding, so a slow or lost batch
+     * report doesn't leave the list stale for long.
+     */
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mScanCallback != null && mBatchingActive) {
+                mBluetoothLeScanner.flushPendingScanResults(mScanCallback);
+                mHandler.postDelayed(this, Constants.SCAN_FLUSH_INTERVAL_MILLIS);
+            }
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        running = true;
+        mHandler = new Handler();
+        mRssiHistory = new RssiHistory(Constants.RSSI_HISTORY_MAX_DEVICES,
+                Constants.RSSI_HISTORY_WINDOW);
+        mScheduler = new ScanScheduler(
+                new ScanScheduler.Clock() {
+                    @Override
+                    public long nowMillis() {
+                        return SystemClock.elapsedRealtime();
+                    }
+                },
+                new ScanScheduler.Scanner() {
+                    @Override
+                    public void startScan(int mode) {
+                        ScanLoggingService.this.startScan(mode);
+                    }
+
+                    @Override
+                    public void stopScan() {
+                        ScanLoggingService.this.stopScan();
+                    }
+                },
+                Constants.SCAN_ON_WINDOW_MILLIS, Constants.SCAN_OFF_WINDOW_MILLIS,
+                Constants.SCAN_SPARSE_RESULTS_PER_SECOND, Constants.SCAN_DENSE_RESULTS_PER_SECOND);
+
+        openLog();
+        mPipeline = new ScanIngestPipeline<>(Constants.INGEST_QUEUE_CAPACITY,
+                Constants.UI_REFRESH_INTERVAL_NANOS, new IngestListener());
+        mPipeline.start();
+
+        if (initialize()) {
+            goForeground();
+            Log.d(TAG, "Service: Starting Scanning");
+            schedulePoll(mScheduler.start());
+        } else {
+            stopSelf();
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        // Keep logging if the system has to kill the process for memory.
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        /**
+         * As with AdvertiserService, onDestroy is not guaranteed to be called quickly or at all;
+         * the log is synced periodically so little is lost if it isn't.
+         */
+        running = false;
+        Log.d(TAG, "Service: Stopping Scanning");
+        mHandler.removeCallbacks(mSchedulerRunnable);
+        mScheduler.stop();
+        // Stop the pipeline first: its worker thread owns the log until then.
+        mPipeline.stop();
+        closeLog();
+        if (mListener != null) {
+            mListener.onServiceStopped();
+            mListener = null;
+        }
+        stopForeground(true);
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    /**
+     * Get references to system Bluetooth objects.
+     *
+     * @return false if there is no scanner to use, e.g. Bluetooth is off
+     */
+    private boolean initialize() {
+        BluetoothManager bluetoothManager =
+                (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+        if (bluetoothManager != null) {
+            mBluetoothAdapter = bluetoothManager.getAdapter();
+            if (mBluetoothAdapter != null) {
+                mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+            }
+        }
+        if (mBluetoothLeScanner == null) {
+            Toast.makeText(this, getString(R.string.bt_null), Toast.LENGTH_LONG).show();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Move service to the foreground, to avoid execution limits on background processes.
+     */
+    private void goForeground() {
+        Intent notificationIntent = new Intent(this, MainActivity.class);
+        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0,
+            notificationIntent, 0);
+        Intent stopIntent = new Intent(this, ScanLoggingService.class).setAction(ACTION_STOP);
+        PendingIntent stopPendingIntent = PendingIntent.getService(this, 0, stopIntent, 0);
+        Notification n = new Notification.Builder(this)
+            .setContentTitle("Logging nearby devices via Bluetooth")
+            .setContentText("Advertisements are being recorded until stopped.")
+            .setSmallIcon(R.drawable.ic_launcher)
+            .setContentIntent(pendingIntent)
+            .addAction(buildStopAction(stopPendingIntent))
+            .build();
+        startForeground(FOREGROUND_NOTIFICATION_ID, n);
+    }
+
+    /**
+     * Builds the notification's stop action, without an icon. Before API 23 only the builder
+     * taking a resource id exists.
+     */
+    @SuppressWarnings("deprecation")
+    private Notification.Action buildStopAction(PendingIntent stopPendingIntent) {
+        String title = getString(R.string.stop_scanning);
+        Notification.Action.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            builder = new Notification.Action.Builder((Icon) null, title, stopPendingIntent);
+        } else {
+            builder = new Notification.Action.Builder(0, title, stopPendingIntent);
+        }
+        return builder.build();
+    }
+
+    // Bound clients, on the main thread.
+
+    /**
+     * Registers the listener, replacing any other, and immediately hands it every device
+     * currently known. Pass null to unregister.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+        if (listener != null && !mDevices.isEmpty()) {
+            ScanIngestPipeline.Snapshot<ScanResult> snapshot =
+                    new ScanIngestPipeline.Snapshot<>(new ArrayList<>(mDevices), NO_KEYS,
+                            mPipeline.getReceivedCount(), mPipeline.getDropCount(),
+                            mPipeline.getQueueDepth(), 0);
+            listener.onSnapshot(snapshot, Arrays.copyOf(mDeviceSlots, mDevices.size()),
+                    Arrays.copyOf(mDeviceClusters, mDevices.size()));
+        }
+        if (listener != null && mNoisyDeviceRanking != null) {
+            listener.onNoisyAdvertisers(mNoisyDeviceRanking, mNoisyManufacturerRanking);
+        }
+    }
+
+    /**
+     * RSSI statistics of the devices in the snapshots. Safe to read from any thread.
+     */
+    public RssiHistory getRssiHistory() {
+        return mRssiHistory;
+    }
+
+    /**
+     * Persistent device ids, or null if the dictionary could not be opened. Safe to read from
+     * any thread.
+     */
+    public DeviceDictionary getDeviceDictionary() {
+        return mDeviceDictionary;
+    }
+
+    public boolean isBatchScanning() {
+        return mBatchScanning;
+    }
+
+    public void setBatchScanning(boolean batchScanning) {
+        if (batchScanning != mBatchScanning) {
+            mBatchScanning = batchScanning;
+            // Restart so the new settings take effect.
+            schedulePoll(mScheduler.restart());
+        }
+    }
+
+    /**
+     * Describes how results have been delivered and how the ingestion pipeline is keeping up.
+     * What the ingestion thread owns is described as of its last refresh, at most a second
+     * ago. Called on the main thread.
+     */
+    public void describe(StringBuilder text) {
+        text.append(getString(mBatchingActive ? R.string.scan_mode_batched
+                : mBatchScanning ? R.string.scan_mode_fallback : R.string.scan_mode_single))
+                .append("\n\n");
+        mDeliveryStats.describe(text);
+        text.append('\n');
+        mScheduler.describe(text);
+        text.append("\nIngestion: received ").append(mPipeline.getReceivedCount())
+                .append(", dropped ").append(mPipeline.getDropCount())
+                .append(", queue ").append(mPipeline.getQueueDepth()).append('/')
+                .append(mPipeline.getQueueCapacity())
+                .append(", latency ")
+                .append(TimeUnit.NANOSECONDS.toMillis(mPipeline.getLastLatencyNanos()))
+                .append(" ms (max ")
+                .append(TimeUnit.NANOSECONDS.toMillis(mPipeline.getMaxLatencyNanos()))
+                .append(" ms)\nDevices: ").append(mDevices.size()).append('\n')
+                .append(mIngestStats);
+    }
+
+    /**
+     * Describes the advertisements counted over the last hour and week. Reads the rollups from
+     * disk, so call it off the main thread.
+     */
+    public void describeRollups(StringBuilder text) {
+        synchronized (mRollupReader) {
+            describeRollups(text, "Last hour", RollupWindow.HOUR_MILLIS);
+            describeRollups(text, "Last 7 days", 7 * RollupWriter.DAY_MILLIS);
+        }
+    }
+
+    /**
+     * Rebuilds {@link #mIngestStats}. Called on the ingestion thread.
+     */
+    private void describeIngestion() {
+        StringBuilder text = mIngestStatsText;
+        text.setLength(0);
+        mClusterer.describe(text);
+        if (mDeviceDictionary != null) {
+            mDeviceDictionary.describe(text);
+        }
+        if (mLogCompactor != null) {
+            mLogCompactor.describe(text);
+        }
+        if (mRollupWriter != null) {
+            mRollupWriter.describe(text);
+        }
+        mIngestStats = text.toString();
+    }
+
+    private void describeRollups(StringBuilder text, String label, long spanMillis) {
+        long now = System.currentTimeMillis();
+        try {
+            mRollupReader.aggregate(now - spanMillis, now, mRollupTotals);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read rollups", e);
+            return;
+        }
+        text.append(label).append(": ").append(mRollupTotals.getUniqueDevices())
+                .append(" addresses, ").append(mRollupTotals.getAdvertisementCount())
+                .append(" advertisements, ")
+                .append(mRollupTotals.getAdvertisementCount()
+                        - mRollupTotals.getFrameCount(BeaconEvent.TYPE_NONE))
+                .append(" from beacons\n");
+    }
+
+    private void schedulePoll(long delayMillis) {
+        mHandler.removeCallbacks(mSchedulerRunnable);
+        if (delayMillis >= 0) {
+            mHandler.postDelayed(mSchedulerRunnable, delayMillis);
+        }
+    }
+
+    /**
+     * Start one scan window, at the scheduler's request.
+     */
+    private void startScan(int scanMode) {
+        Log.d(TAG, "Starting scan, " + ScanScheduler.modeName(scanMode));
+
+        mScanCallback = new SampleScanCallback();
+        mBluetoothLeScanner.startScan(buildScanFilters(), buildScanSettings(scanMode),
+                mScanCallback);
+        if (mBatchingActive) {
+            mHandler.postDelayed(mFlushRunnable, Constants.SCAN_FLUSH_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * End the current scan window, at the scheduler's request.
+     */
+    private void stopScan() {
+        Log.d(TAG, "Stopping scan");
+
+        // Collect anything the controller is still holding, then stop the scan and wipe the
+        // callback.
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (mBatchingActive) {
+            mBluetoothLeScanner.flushPendingScanResults(mScanCallback);
+        }
+        mBluetoothLeScanner.stopScan(mScanCallback);
+        mScanCallback = null;
+        mDeliveryStats.onScanStopped();
+
+        if (mListener != null) {
+            mListener.onScanStopped();
+        }
+    }
+
+    /**
+     * Return a List of {@link ScanFilter} objects to filter by Service UUID.
+     */
+    private List<ScanFilter> buildScanFilters() {
+        List<ScanFilter> scanFilters = new ArrayList<>();
+
+        ScanFilter.Builder builder = new ScanFilter.Builder();
+        // Comment out the below line to see all BLE devices around you
+        builder.setServiceUuid(Constants.Service_UUID);
+        scanFilters.add(builder.build());
+
+        return scanFilters;
+    }
+
+    /**
+     * Return a {@link ScanSettings} object using the scan mode picked by the scheduler.
+     *
+     * When batch scanning is on and the controller can offload it, results are held by the
+     * controller and delivered together through {@code onBatchScanResults} after the report
+     * delay, instead of waking the app for every advertisement.
+     */
+    private ScanSettings buildScanSettings(int scanMode) {
+        ScanSettings.Builder builder = new ScanSettings.Builder();
+        builder.setScanMode(scanMode);
+
+        mBatchingActive = false;
+        if (mBatchScanning) {
+            if (!mBatchingUnsupported && mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                builder.setReportDelay(Constants.SCAN_REPORT_DELAY_MILLIS);
+                mBatchingActive = true;
+            } else {
+                Log.i(TAG, "Offloaded scan batching not supported, delivering each result");
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Open the advertisement log and columnar store in the app's private storage. Logging is
+     * skipped (but scanning still works) if they can't be opened.
+     */
+    private void openLog() {
+        File directory = new File(getFilesDir(), Constants.LOG_DIRECTORY);
+        mBootTimeNanos = System.currentTimeMillis() * 1000000L
+                - SystemClock.elapsedRealtimeNanos();
+        try {
+            mLogWriter = new AdvertisementLogWriter(directory, Constants.LOG_SEGMENT_SIZE,
+                    Constants.LOG_SYNC_EVERY_RECORDS, Constants.LOG_SYNC_INTERVAL_NANOS);
+            if (mLogWriter.getTruncatedBytes() > 0) {
+                Log.w(TAG, "Cut " + mLogWriter.getTruncatedBytes() + " torn bytes off the"
+                        + " advertisement log after " + mLogWriter.getRecoveredRecords()
+                        + " intact records");
+            }
+            mLogCompactor = new LogCompactor(directory, Constants.LOG_RETENTION_NANOS,
+                    Constants.LOG_MERGE_TARGET_BYTES);
+            mLogWriter.setSegmentListener(mLogCompactor);
+            mLogCompactor.submitPending(mLogWriter.getSegmentSequence());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open advertisement log", e);
+            mLogWriter = null;
+        }
+        try {
+            mColumnarWriter = new ColumnarLogWriter(
+                    new File(getFilesDir(), Constants.COLUMNAR_DIRECTORY),
+                    Constants.COLUMNAR_BLOCK_RECORDS, Constants.COLUMNAR_LATE_GRACE_NANOS,
+                    Constants.LOG_RETENTION_NANOS);
+            if (mColumnarWriter.getTruncatedBytes() > 0) {
+                Log.w(TAG, "Cut " + mColumnarWriter.getTruncatedBytes() + " unfinished bytes"
+                        + " off the columnar store, kept "
+                        + mColumnarWriter.getRecoveredRecords() + " records in "
+                        + mColumnarWriter.getRecoveredPartitions() + " partitions");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open columnar store", e);
+            mColumnarWriter = null;
+        }
+        File rollups = new File(getFilesDir(), Constants.ROLLUP_DIRECTORY);
+        try {
+            mRollupWriter = new RollupWriter(rollups, Constants.COLUMNAR_LATE_GRACE_NANOS,
+                    Constants.LOG_RETENTION_NANOS);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open rollups", e);
+            mRollupWriter = null;
+        }
+        mRollupReader = new RollupReader(rollups);
+        try {
+            mDeviceDictionary = new DeviceDictionary(
+                    new File(getFilesDir(), Constants.DEVICE_DICTIONARY_FILE),
+                    Constants.DEVICE_DICTIONARY_MAX_DEVICES);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open device dictionary", e);
+            mDeviceDictionary = null;
+        }
+    }
+
+    private void closeLog() {
+        closeRawLog();
+        if (mLogCompactor != null) {
+            // Lets the last segment's compression finish in the background.
+            mLogCompactor.close();
+            mLogCompactor = null;
+        }
+        closeColumnarStore();
+        closeRollups();
+        if (mDeviceDictionary != null) {
+            mDeviceDictionary.close();
+        }
+    }
+
+    private void closeRawLog() {
+        if (mLogWriter != null) {
+            try {
+                mLogWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close advertisement log", e);
+            }
+            mLogWriter = null;
+        }
+    }
+
+    private void closeColumnarStore() {
+        if (mColumnarWriter != null) {
+            try {
+                mColumnarWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close columnar store", e);
+            }
+            mColumnarWriter = null;
+        }
+    }
+
+    private void closeRollups() {
+        if (mRollupWriter != null) {
+            try {
+                mRollupWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close rollups", e);
+            }
+            mRollupWriter = null;
+        }
+    }
+
+    /**
+     * Append an advertisement to the raw log, the columnar store and the rollups, if they are
+     * open. Called on the ingestion thread.
+     */
+    private void logResult(ScanResult result) {
+        long timestampNanos = mBootTimeNanos + result.getTimestampNanos();
+        long address = MacAddresses.pack(result.getDevice().getAddress());
+        if (mColumnarWriter != null) {
+            try {
+                mColumnarWriter.append(timestampNanos, address, result.getRssi());
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write columnar store, disabling it", e);
+                closeColumnarStore();
+            }
+        }
+        ScanRecord scanRecord = result.getScanRecord();
+        byte[] bytes = scanRecord != null ? scanRecord.getBytes() : null;
+        if (mRollupWriter != null) {
+            try {
+                mRollupWriter.record(timestampNanos, address, bytes);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write rollups, disabling them", e);
+                closeRollups();
+            }
+        }
+        if (mLogWriter == null) {
+            return;
+        }
+        int txPower = AdvertisementLogWriter.TX_POWER_UNKNOWN;
+        if (scanRecord != null && scanRecord.getTxPowerLevel() != Integer.MIN_VALUE) {
+            txPower = scanRecord.getTxPowerLevel();
+        }
+        try {
+            mLogWriter.append(timestampNanos, address, result.getRssi(), txPower, bytes);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write advertisement log, disabling it", e);
+            closeRawLog();
+        }
+    }
+
+    /**
+     * Applies a snapshot to the latest result of each device, then passes it on. Called on the
+     * main thread.
+     */
+    private void applySnapshot(ScanIngestPipeline.Snapshot<ScanResult> snapshot, int[] slots,
+                               int[] clusters) {
+        removeDevices(snapshot.removedKeys);
+        for (int i = 0; i < slots.length; i++) {
+            ScanResult result = snapshot.updates.get(i);
+            long address = MacAddresses.pack(result.getDevice().getAddress());
+            int position = mDeviceIndex.get(address);
+            if (position == MacIndex.NO_SLOT) {
+                position = mDevices.size();
+                if (position == mDeviceSlots.length) {
+                    mDeviceSlots = Arrays.copyOf(mDeviceSlots, position * 2);
+                    mDeviceClusters = Arrays.copyOf(mDeviceClusters, position * 2);
+                }
+                mDeviceIndex.put(address, position);
+                mDevices.add(result);
+            } else {
+                mDevices.set(position, result);
+            }
+            mDeviceSlots[position] = slots[i];
+            mDeviceClusters[position] = clusters[i];
+        }
+
+        if (snapshot.dropCount > mReportedDropCount) {
+            Log.w(TAG, "Ingestion saturated: " + snapshot.dropCount + " of "
+                    + snapshot.receivedCount + " results dropped, queue depth "
+                    + snapshot.queueDepth + ", latency "
+                    + TimeUnit.NANOSECONDS.toMillis(snapshot.maxLatencyNanos) + " ms");
+            mReportedDropCount = snapshot.dropCount;
+        }
+
+        if (mListener != null) {
+            mListener.onSnapshot(snapshot, slots, clusters);
+        }
+    }
+
+    /**
+     * Keeps the latest rankings for new listeners, then passes them on. Called on the main
+     * thread.
+     */
+    private void applyNoisyAdvertisers(HeavyHitters.Ranking devices,
+                                       HeavyHitters.Ranking manufacturers) {
+        mNoisyDeviceRanking = devices;
+        mNoisyManufacturerRanking = manufacturers;
+        if (mListener != null) {
+            mListener.onNoisyAdvertisers(devices, manufacturers);
+        }
+    }
+
+    /**
+     * Forgets the given devices, compacting the list once however many are removed.
+     */
+    private void removeDevices(long[] addresses) {
+        boolean any = false;
+        for (long address : addresses) {
+            int position = mDeviceIndex.remove(address);
+            if (position != MacIndex.NO_SLOT) {
+                mDevices.set(position, null);
+                any = true;
+            }
+        }
+        if (!any) {
+            return;
+        }
+        int kept = 0;
+        for (int i = 0; i < mDevices.size(); i++) {
+            ScanResult result = mDevices.get(i);
+            if (result != null) {
+                if (kept != i) {
+                    mDevices.set(kept, result);
+                    mDeviceSlots[kept] = mDeviceSlots[i];
+                    mDeviceClusters[kept] = mDeviceClusters[i];
+                    mDeviceIndex.put(MacAddresses.pack(result.getDevice().getAddress()), kept);
+                }
+                kept++;
+            }
+        }
+        mDevices.subList(kept, mDevices.size()).clear();
+    }
+
+    /**
+     * Receives results from the ingestion thread: logs each one, expires devices that have
+     * left, and hands coalesced updates to the main thread.
+     */
+    private class IngestListener implements ScanIngestPipeline.Listener<ScanResult>,
+            ExpiryWheel.Listener {
+
+        @Override
+        public void onItem(ScanResult item, long key) {
+            if (mDeviceDictionary != null) {
+                mDeviceDictionary.intern(key);
+            }
+            logResult(item);
+            mRssiHistory.record(key, item.getTimestampNanos(), item.getRssi());
+            ScanRecord scanRecord = item.getScanRecord();
+            byte[] bytes = scanRecord != null ? scanRecord.getBytes() : null;
+            mClusterer.record(key, item.getTimestampNanos(), item.getRssi(), bytes);
+            mExpiryWheel.touch(key, item.getTimestampNanos());
+            mNoisyDevices.add(key, item.getTimestampNanos());
+            mIngestParser.parse(bytes);
+            for (int i = 0; i < mIngestParser.getManufacturerDataCount(); i++) {
+                mNoisyManufacturers.add(mIngestParser.getManufacturerId(i),
+                        item.getTimestampNanos());
+            }
+        }
+
+        @Override
+        public void onTick(long nowNanos) {
+            if (mDeviceDictionary != null
+                    && mDeviceDictionary.getGeneration() != mReportedDictionaryGeneration) {
+                mReportedDictionaryGeneration = mDeviceDictionary.getGeneration();
+                Log.w(TAG, "Device dictionary full after " + mDeviceDictionary.getMaxDevices()
+                        + " devices, started over");
+            }
+            if (mLogWriter != null) {
+                // Bounds how long records stay unsynced when scans pause or go quiet.
+                try {
+                    mLogWriter.syncIfDue(nowNanos);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to sync advertisement log, disabling it", e);
+                    closeRawLog();
+                }
+            }
+            // Scan timestamps are in the elapsed realtime base, not System.nanoTime().
+            long now = SystemClock.elapsedRealtimeNanos();
+            mClusterer.advance(now);
+            mExpiryWheel.advance(now, this);
+            if (nowNanos - mNextStatsNanos >= 0) {
+                mNextStatsNanos = nowNanos + Constants.INGEST_STATS_REFRESH_NANOS;
+                describeIngestion();
+            }
+            if (now - mNextRankingNanos >= 0) {
+                mNextRankingNanos = now + Constants.HEAVY_HITTER_REFRESH_NANOS;
+                final HeavyHitters.Ranking devices = mNoisyDevices.rank(now,
+                        Constants.HEAVY_HITTER_SPAN_NANOS,
+                        new HeavyHitters.Ranking(Constants.HEAVY_HITTER_RANKED));
+                final HeavyHitters.Ranking manufacturers = mNoisyManufacturers.rank(now,
+                        Constants.HEAVY_HITTER_SPAN_NANOS,
+                        new HeavyHitters.Ranking(Constants.HEAVY_HITTER_RANKED));
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        applyNoisyAdvertisers(devices, manufacturers);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onExpired(long key, long lastSeenNanos) {
+            Log.d(TAG, "Lost " + MacAddresses.unpack(key));
+            mRssiHistory.release(key);
+            mClusterer.forget(key);
+            mPipeline.remove(key);
+        }
+
+        @Override
+        public void onSnapshot(final ScanIngestPipeline.Snapshot<ScanResult> snapshot) {
+            // Slots and clusters are assigned on this thread, so look them up before handing
+            // over.
+            final int[] slots = new int[snapshot.updates.size()];
+            final int[] clusters = new int[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                long address =
+                        MacAddresses.pack(snapshot.updates.get(i).getDevice().getAddress());
+                slots[i] = mRssiHistory.slotOf(address);
+                clusters[i] = mClusterer.clusterOf(address);
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    applySnapshot(snapshot, slots, clusters);
+                }
+            });
+        }
+    }
+
+    /**
+     * Custom ScanCallback object - queues results for ingestion on success, reports errors to
+     * the listener on failure.
+     */
+    private class SampleScanCallback extends ScanCallback {
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            super.onBatchScanResults(results);
+            Log.d(TAG, "onBatchScanResults");
+            mDeliveryStats.recordDelivery(results.size(), SystemClock.elapsedRealtimeNanos());
+            mScheduler.onResults(results.size());
+
+            for (ScanResult result : results) {
+                mPipeline.offer(result, MacAddresses.pack(result.getDevice().getAddress()));
+            }
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            super.onScanResult(callbackType, result);
+            mDeliveryStats.recordDelivery(1, SystemClock.elapsedRealtimeNanos());
+            mScheduler.onResults(1);
+
+            mPipeline.offer(result, MacAddresses.pack(result.getDevice().getAddress()));
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            super.onScanFailed(errorCode);
+            Log.d(TAG, "onScanFailed");
+
+            if (errorCode == SCAN_FAILED_FEATURE_UNSUPPORTED && mBatchingActive) {
+                // The controller claimed batching support but refused it; retry delivering
+                // each result instead.
+                Log.w(TAG, "Batched scan refused, falling back to per-result delivery");
+                mBatchingUnsupported = true;
+                schedulePoll(mScheduler.restart());
+                return;
+            }
+            if (mListener != null) {
+                mListener.onScanFailed(errorCode);
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -35,15 +36,50 @@ public class ScanResultAdapter extends BaseAdapter {
 
     private ArrayList<ScanResult> mArrayList;
 
+    /**
+     * Position of each device's row in {@link #mArrayList}, keyed by packed address.
+     */
+    private MacIndex mIndex;
+
+    /**
+     * Each row's slot in {@link #mRssiHistory}, parallel to {@link #mArrayList}.
+     */
+    private int[] mSlots = new int[16];
+
+    /**
+     * Each row's {@link AddressClusterer} cluster, parallel to {@link #mArrayList}.
+     */
+    private int[] mClusters = new int[16];
+
+    private RssiHistory mRssiHistory;
+
+    private final RssiHistory.Stats mRssiStats = new RssiHistory.Stats();
+
+    private final IntervalEstimator mIntervalEstimator =
+            new IntervalEstimator(Constants.RSSI_HISTORY_WINDOW);
+
+    private final IntervalEstimator.Estimate mInterval = new IntervalEstimator.Estimate();
+
     private Context mContext;
 
     private LayoutInflater mInflater;
 
-    ScanResultAdapter(Context context, LayoutInflater inflater) {
+    // Reused to decode beacon frames for each row as it's bound.
+    private final AdvertisementParser mParser = new AdvertisementParser();
+
+    private final BeaconDecoders mBeaconDecoders = BeaconDecoders.createDefault();
+
+    private final BeaconEvent mBeaconEvent = new BeaconEvent();
+
+    private final StringBuilder mBeaconText = new StringBuilder();
+
+    ScanResultAdapter(Context context, LayoutInflater inflater, RssiHistory rssiHistory) {
         super();
         mContext = context;
         mInflater = inflater;
+        mRssiHistory = rssiHistory;
         mArrayList = new ArrayList<>();
+        mIndex = new MacIndex();
     }
 
     @Override
@@ -58,7 +94,7 @@ public class ScanResultAdapter extends BaseAdapter {
 
     @Override
     public long getItemId(int position) {
-        return mArrayList.get(position).getDevice().getAddress().hashCode();
+        return MacAddresses.pack(mArrayList.get(position).getDevice().getAddress());
     }
 
     @Override
@@ -72,6 +108,9 @@ public class ScanResultAdapter extends BaseAdapter {
         TextView deviceNameView = (TextView) view.findViewById(R.id.device_name);
         TextView deviceAddressView = (TextView) view.findViewById(R.id.device_address);
         TextView lastSeenView = (TextView) view.findViewById(R.id.last_seen);
+        TextView rssiStatsView = (TextView) view.findViewById(R.id.rssi_stats);
+        TextView intervalStatsView = (TextView) view.findViewById(R.id.interval_stats);
+        TextView beaconInfoView = (TextView) view.findViewById(R.id.beacon_info);
 
         ScanResult scanResult = mArrayList.get(position);
 
@@ -80,49 +119,143 @@ public class ScanResultAdapter extends BaseAdapter {
             name = mContext.getResources().getString(R.string.no_name);
         }
         deviceNameView.setText(name);
-        deviceAddressView.setText(scanResult.getDevice().getAddress());
+        if (mClusters[position] != AddressClusterer.NO_CLUSTER) {
+            deviceAddressView.setText(mContext.getResources().getString(
+                    R.string.rotating_address, scanResult.getDevice().getAddress(),
+                    mClusters[position]));
+        } else {
+            deviceAddressView.setText(scanResult.getDevice().getAddress());
+        }
         lastSeenView.setText(getTimeSinceString(mContext, scanResult.getTimestampNanos()));
 
+        long address = MacAddresses.pack(scanResult.getDevice().getAddress());
+        int slot = mSlots[position];
+        if (slot != RssiHistory.NO_SLOT && mRssiHistory != null
+                && mRssiHistory.read(slot, address, mRssiStats)) {
+            rssiStatsView.setText(String.format(
+                    "RSSI %d dBm, mean %.1f \u00B1 %.1f, smoothed %.1f, range %d..%d (n=%d)",
+                    mRssiStats.lastRssi, mRssiStats.mean, Math.sqrt(mRssiStats.variance),
+                    mRssiStats.kalman, mRssiStats.min, mRssiStats.max, mRssiStats.count));
+            rssiStatsView.setVisibility(View.VISIBLE);
+        } else {
+            rssiStatsView.setVisibility(View.GONE);
+        }
+
+        if (slot != RssiHistory.NO_SLOT && mRssiHistory != null
+                && mIntervalEstimator.read(mRssiHistory, slot, address, mInterval)) {
+            intervalStatsView.setText(String.format(
+                    "Interval %.1f ms, jitter %.1f ms, %.0f%% lost (%d gaps)",
+                    mInterval.intervalNanos / 1e6, mInterval.jitterNanos / 1e6,
+                    mInterval.lossRatio * 100, mInterval.gaps));
+            intervalStatsView.setVisibility(View.VISIBLE);
+        } else {
+            intervalStatsView.setVisibility(View.GONE);
+        }
+
+        if (decodeBeacon(scanResult)) {
+            mBeaconText.setLength(0);
+            mBeaconEvent.describe(mBeaconText);
+            beaconInfoView.setText(mBeaconText.toString());
+            beaconInfoView.setVisibility(View.VISIBLE);
+        } else {
+            beaconInfoView.setVisibility(View.GONE);
+        }
+
         return view;
     }
 
     /**
-     * Search the adapter for an existing device address and return it, otherwise return -1.
+     * Sets where RSSI statistics are read from, or null to show none. Slots passed to
+     * {@link #add} refer to this history.
      */
-    private int getPosition(String address) {
-        int position = -1;
-        for (int i = 0; i < mArrayList.size(); i++) {
-            if (mArrayList.get(i).getDevice().getAddress().equals(address)) {
-                position = i;
-                break;
-            }
-        }
-        return position;
+    public void setRssiHistory(RssiHistory rssiHistory) {
+        mRssiHistory = rssiHistory;
     }
 
+    private boolean decodeBeacon(ScanResult scanResult) {
+        if (scanResult.getScanRecord() == null) {
+            return false;
+        }
+        byte[] bytes = scanResult.getScanRecord().getBytes();
+        return bytes != null && mBeaconDecoders.decode(mParser.parse(bytes), mBeaconEvent);
+    }
 
     /**
      * Add a ScanResult item to the adapter if a result from that device isn't already present.
      * Otherwise updates the existing position with the new ScanResult.
+     *
+     * @param rssiSlot  the device's slot in the {@link RssiHistory}, or
+     *                  {@link RssiHistory#NO_SLOT}
+     * @param clusterId the cluster linking the device's rotating addresses, or
+     *                  {@link AddressClusterer#NO_CLUSTER}
      */
-    public void add(ScanResult scanResult) {
+    public void add(ScanResult scanResult, int rssiSlot, int clusterId) {
 
-        int existingPosition = getPosition(scanResult.getDevice().getAddress());
+        long address = MacAddresses.pack(scanResult.getDevice().getAddress());
+        int existingPosition = mIndex.get(address);
 
-        if (existingPosition >= 0) {
+        if (existingPosition != MacIndex.NO_SLOT) {
             // Device is already in list, update its record.
             mArrayList.set(existingPosition, scanResult);
+            mSlots[existingPosition] = rssiSlot;
+            mClusters[existingPosition] = clusterId;
         } else {
             // Add new Device's ScanResult to list.
+            int position = mArrayList.size();
+            if (position == mSlots.length) {
+                mSlots = Arrays.copyOf(mSlots, position * 2);
+                mClusters = Arrays.copyOf(mClusters, position * 2);
+            }
+            mSlots[position] = rssiSlot;
+            mClusters[position] = clusterId;
+            mIndex.put(address, position);
             mArrayList.add(scanResult);
         }
     }
 
+    /**
+     * Removes the given devices, which are packed addresses. Remaining devices keep their
+     * relative order; the list is compacted once however many are removed.
+     *
+     * @return the number of devices removed
+     */
+    public int removeAll(long[] addresses) {
+        boolean any = false;
+        for (long address : addresses) {
+            int position = mIndex.remove(address);
+            if (position != MacIndex.NO_SLOT) {
+                mArrayList.set(position, null);
+                any = true;
+            }
+        }
+        if (!any) {
+            return 0;
+        }
+        int kept = 0;
+        for (int i = 0; i < mArrayList.size(); i++) {
+            ScanResult scanResult = mArrayList.get(i);
+            if (scanResult != null) {
+                if (kept != i) {
+                    long address = MacAddresses.pack(scanResult.getDevice().getAddress());
+                    mArrayList.set(kept, scanResult);
+                    mSlots[kept] = mSlots[i];
+                    mClusters[kept] = mClusters[i];
+                    mIndex.put(address, kept);
+                }
+                kept++;
+            }
+        }
+        int removed = mArrayList.size() - kept;
+        mArrayList.subList(kept, mArrayList.size()).clear();
+        return removed;
+    }
+
     /**
      * Clear out the adapter.
      */
     public void clear() {
         mArrayList.clear();
+        mIndex.clear();
     }
 
     /**
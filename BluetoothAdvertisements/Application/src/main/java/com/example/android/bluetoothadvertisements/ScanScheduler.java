@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+/**
+ * Decides when to scan and in which mode, indefinitely, so logging doesn't stop after a fixed
+ * period.
+ *
+ * Scanning alternates between on and off windows. At the end of each on window the scheduler
+ * looks at how many results arrived, normalised by the duty cycle of the mode in use, and steps
+ * the mode towards {@link #MODE_LOW_POWER} in crowded places and {@link #MODE_LOW_LATENCY} in
+ * quiet ones. Android stops scans for apps that start more than five within 30 seconds, so
+ * every start goes through a throttle that defers it until it would be safe.
+ *
+ * This class only makes decisions; the host performs them through {@link Scanner}, supplies
+ * time through {@link Clock} and calls {@link #poll} when asked to. That keeps it free of
+ * Android dependencies so whole days can be simulated in a test. Not thread safe; use it from
+ * one thread, normally the main thread.
+ */
+public class ScanScheduler {
+
+    // Same values as the ScanSettings.SCAN_MODE_* constants.
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+
+    /**
+     * Android allows five scan starts per 30 seconds per app.
+     */
+    public static final int THROTTLE_MAX_STARTS = 5;
+
+    public static final long THROTTLE_WINDOW_MILLIS = 30000;
+
+    /**
+     * Extra room left on top of the throttle window, as the system's clock and ours may not
+     * agree exactly.
+     */
+    private static final long THROTTLE_MARGIN_MILLIS = 500;
+
+    /**
+     * Fraction of the time the controller listens in each mode, used to normalise density.
+     */
+    private static final double[] DUTY_CYCLES = {512.0 / 5120, 1024.0 / 4096, 1.0};
+
+    private static final String[] MODE_NAMES = {"low power", "balanced", "low latency"};
+
+    private static final int STATE_STOPPED = 0;
+    private static final int STATE_SCANNING = 1;
+    private static final int STATE_PAUSED = 2;
+    private static final int STATE_THROTTLED = 3;
+
+    /**
+     * Source of time, in milliseconds on a monotonic clock such as
+     * {@code SystemClock.elapsedRealtime()}.
+     */
+    public interface Clock {
+        long nowMillis();
+    }
+
+    /**
+     * Carries out the scheduler's decisions.
+     */
+    public interface Scanner {
+
+        void startScan(int mode);
+
+        void stopScan();
+    }
+
+    private final Clock mClock;
+
+    private final Scanner mScanner;
+
+    private final long mOnWindowMillis;
+
+    private final long mOffWindowMillis;
+
+    private final double mSparseResultsPerSecond;
+
+    private final double mDenseResultsPerSecond;
+
+    private int mState = STATE_STOPPED;
+
+    private int mMode = MODE_BALANCED;
+
+    /**
+     * When the current state ends: the end of an on or off window, or when the throttle lets
+     * the next start through.
+     */
+    private long mStateEndMillis;
+
+    private long mWindowStartMillis;
+
+    private long mWindowResults;
+
+    /**
+     * Times of the last {@link #THROTTLE_MAX_STARTS} starts, as a ring.
+     */
+    private final long[] mStarts = new long[THROTTLE_MAX_STARTS];
+
+    private int mStartCount;
+
+    // Statistics.
+
+    private long mRunStartMillis;
+
+    private long mRunMillis;
+
+    private long mGapStartMillis;
+
+    private final long[] mModeMillis = new long[DUTY_CYCLES.length];
+
+    private final LogHistogram mGapsMillis = new LogHistogram();
+
+    private long mThrottledStarts;
+
+    private long mThrottledMillis;
+
+    private long mModeChanges;
+
+    /**
+     * @param onWindowMillis         length of each scan
+     * @param offWindowMillis        pause between scans; 0 to scan continuously
+     * @param sparseResultsPerSecond below this normalised rate, step towards low latency
+     * @param denseResultsPerSecond  above this normalised rate, step towards low power
+     */
+    public ScanScheduler(Clock clock, Scanner scanner, long onWindowMillis,
+            long offWindowMillis, double sparseResultsPerSecond, double denseResultsPerSecond) {
+        if (onWindowMillis <= 0 || offWindowMillis < 0) {
+            throw new IllegalArgumentException("invalid windows");
+        }
+        mClock = clock;
+        mScanner = scanner;
+        mOnWindowMillis = onWindowMillis;
+        mOffWindowMillis = offWindowMillis;
+        mSparseResultsPerSecond = sparseResultsPerSecond;
+        mDenseResultsPerSecond = denseResultsPerSecond;
+    }
+
+    public boolean isRunning() {
+        return mState != STATE_STOPPED;
+    }
+
+    public boolean isScanning() {
+        return mState == STATE_SCANNING;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * Starts scheduling, beginning with a scan as soon as the throttle allows.
+     *
+     * @return milliseconds until {@link #poll} should be called
+     */
+    public long start() {
+        if (mState != STATE_STOPPED) {
+            return delayUntilNextPoll(mClock.nowMillis());
+        }
+        long now = mClock.nowMillis();
+        mRunStartMillis = now;
+        mGapStartMillis = now;
+        mState = STATE_PAUSED;
+        mStateEndMillis = now;
+        return poll();
+    }
+
+    /**
+     * Stops any scan in progress and stops scheduling.
+     */
+    public void stop() {
+        if (mState == STATE_STOPPED) {
+            return;
+        }
+        long now = mClock.nowMillis();
+        if (mState == STATE_SCANNING) {
+            endScan(now);
+        } else {
+            mGapsMillis.record(now - mGapStartMillis);
+        }
+        mRunMillis += now - mRunStartMillis;
+        mState = STATE_STOPPED;
+    }
+
+    /**
+     * Stops the current scan, if any, and starts another as soon as the throttle allows, for
+     * instance after the scan settings changed.
+     *
+     * @return milliseconds until {@link #poll} should be called, or -1 if not running
+     */
+    public long restart() {
+        if (mState == STATE_STOPPED) {
+            return -1;
+        }
+        long now = mClock.nowMillis();
+        if (mState == STATE_SCANNING) {
+            endScan(now);
+            mGapStartMillis = now;
+        }
+        mState = STATE_PAUSED;
+        mStateEndMillis = now;
+        return poll();
+    }
+
+    /**
+     * Reports results delivered by the current scan, for density estimation.
+     */
+    public void onResults(int count) {
+        if (mState == STATE_SCANNING) {
+            mWindowResults += count;
+        }
+    }
+
+    /**
+     * Performs whatever is due.
+     *
+     * @return milliseconds until this should be called again, or -1 if not running
+     */
+    public long poll() {
+        long now = mClock.nowMillis();
+        // Loop as one transition can make the next one due immediately.
+        while (mState != STATE_STOPPED && now >= mStateEndMillis) {
+            switch (mState) {
+                case STATE_SCANNING: {
+                    int mode = nextMode(now);
+                    if (mOffWindowMillis == 0 && mode == mMode) {
+                        // Scanning continuously in the same mode; no need to restart.
+                        accountWindow(now);
+                        mStateEndMillis = now + mOnWindowMillis;
+                        break;
+                    }
+                    endScan(now);
+                    if (mode != mMode) {
+                        mModeChanges++;
+                    }
+                    mMode = mode;
+                    mGapStartMillis = now;
+                    mState = STATE_PAUSED;
+                    mStateEndMillis = now + mOffWindowMillis;
+                    break;
+                }
+                case STATE_PAUSED:
+                case STATE_THROTTLED: {
+                    long allowedAt = throttleAllowsAt();
+                    if (now < allowedAt) {
+                        if (mState == STATE_PAUSED) {
+                            mThrottledStarts++;
+                            mThrottledMillis += allowedAt - now;
+                        }
+                        mState = STATE_THROTTLED;
+                        mStateEndMillis = allowedAt;
+                        break;
+                    }
+                    beginScan(now);
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+        return delayUntilNextPoll(now);
+    }
+
+    private long delayUntilNextPoll(long now) {
+        return mState == STATE_STOPPED ? -1 : Math.max(0, mStateEndMillis - now);
+    }
+
+    private void beginScan(long now) {
+        mStarts[mStartCount % THROTTLE_MAX_STARTS] = now;
+        mStartCount++;
+        mGapsMillis.record(now - mGapStartMillis);
+        mWindowStartMillis = now;
+        mWindowResults = 0;
+        mState = STATE_SCANNING;
+        mStateEndMillis = now + mOnWindowMillis;
+        mScanner.startScan(mMode);
+    }
+
+    private void endScan(long now) {
+        accountWindow(now);
+        mScanner.stopScan();
+    }
+
+    private void accountWindow(long now) {
+        mModeMillis[mMode] += now - mWindowStartMillis;
+        mWindowStartMillis = now;
+        mWindowResults = 0;
+    }
+
+    /**
+     * Earliest time a new start keeps within the throttle.
+     */
+    private long throttleAllowsAt() {
+        if (mStartCount < THROTTLE_MAX_STARTS) {
+            return Long.MIN_VALUE;
+        }
+        // The oldest of the last five starts must have left the window.
+        long oldest = mStarts[mStartCount % THROTTLE_MAX_STARTS];
+        return oldest + THROTTLE_WINDOW_MILLIS + THROTTLE_MARGIN_MILLIS;
+    }
+
+    /**
+     * Steps the mode one level according to the density seen in the window just ending.
+     */
+    private int nextMode(long now) {
+        long elapsed = now - mWindowStartMillis;
+        if (elapsed <= 0) {
+            return mMode;
+        }
+        double rate = mWindowResults * 1000.0 / elapsed / DUTY_CYCLES[mMode];
+        if (rate > mDenseResultsPerSecond && mMode > MODE_LOW_POWER) {
+            return mMode - 1;
+        }
+        if (rate < mSparseResultsPerSecond && mMode < MODE_LOW_LATENCY) {
+            return mMode + 1;
+        }
+        return mMode;
+    }
+
+    // Statistics.
+
+    public long getStartCount() {
+        return mStartCount;
+    }
+
+    /**
+     * Time spent scheduling, including the current run.
+     */
+    public long getRunMillis() {
+        return mRunMillis + (mState == STATE_STOPPED ? 0 : mClock.nowMillis() - mRunStartMillis);
+    }
+
+    /**
+     * Time spent scanning, including the current scan.
+     */
+    public long getScanningMillis() {
+        long total = 0;
+        for (long millis : mModeMillis) {
+            total += millis;
+        }
+        if (mState == STATE_SCANNING) {
+            total += mClock.nowMillis() - mWindowStartMillis;
+        }
+        return total;
+    }
+
+    public long getModeMillis(int mode) {
+        return mModeMillis[mode];
+    }
+
+    /**
+     * Lengths of the periods with no scan running, in milliseconds.
+     */
+    public LogHistogram getGapsMillis() {
+        return mGapsMillis;
+    }
+
+    /**
+     * Starts that had to wait for the throttle, and the total extra time they waited.
+     */
+    public long getThrottledStarts() {
+        return mThrottledStarts;
+    }
+
+    public long getThrottledMillis() {
+        return mThrottledMillis;
+    }
+
+    public long getModeChanges() {
+        return mModeChanges;
+    }
+
+    public static String modeName(int mode) {
+        return MODE_NAMES[mode];
+    }
+
+    public void describe(StringBuilder out) {
+        long run = getRunMillis();
+        long scanning = getScanningMillis();
+        out.append("Scheduler: ").append(isRunning() ? modeName(mMode) : "stopped")
+                .append(", ").append(mStartCount).append(" starts, ")
+                .append(mModeChanges).append(" mode changes\n");
+        if (run > 0) {
+            out.append(String.format("Coverage: %.1f%% of %d s\n",
+                    100.0 * scanning / run, run / 1000));
+        }
+        for (int mode = 0; mode < mModeMillis.length; mode++) {
+            out.append("  ").append(modeName(mode)).append(": ")
+                    .append(mModeMillis[mode] / 1000).append(" s\n");
+        }
+        out.append("Throttled starts: ").append(mThrottledStarts)
+                .append(" (").append(mThrottledMillis).append(" ms waiting)\n");
+        out.append("Gaps between scans\n");
+        mGapsMillis.describe(out, " ms");
+    }
+}
@@ -16,14 +16,16 @@
 
 package com.example.android.bluetoothadvertisements;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanFilter;
+import android.app.AlertDialog;
 import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanSettings;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.Handler;
+import android.os.IBinder;
 import android.support.v4.app.ListFragment;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -32,44 +34,135 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.TimeUnit;
-
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 
 /**
- * Scans for Bluetooth Low Energy Advertisements matching a filter and displays them to the user.
+ * Displays the Bluetooth Low Energy Advertisements found by {@link ScanLoggingService}, and
+ * starts and stops it.
+ *
+ * The service does the scanning and logging so both carry on without this fragment; the
+ * fragment only binds to it while it exists to receive snapshots of the devices around. It
+ * also exports the log to a file in the app's external files dir, through an
+ * {@link ExportTask}.
  */
 public class ScannerFragment extends ListFragment {
 
     private static final String TAG = ScannerFragment.class.getSimpleName();
 
     /**
-     * Stops scanning after 5 seconds.
+     * Export formats, in the order of {@code R.array.export_formats}.
      */
-    private static final long SCAN_PERIOD = 20000;
+    private static final String[] EXPORT_EXTENSIONS = {
+            ExportFormat.Csv.EXTENSION,
+            ExportFormat.JsonLines.EXTENSION,
+            ExportFormat.Columnar.EXTENSION};
 
-    private BluetoothAdapter mBluetoothAdapter;
+    private ScanResultAdapter mAdapter;
 
-    private BluetoothLeScanner mBluetoothLeScanner;
+    /**
+     * The bound service, or null while it isn't running.
+     */
+    private ScanLoggingService mService;
 
-    private ScanCallback mScanCallback;
+    private ExportTask mExportTask;
 
-    private ScanResultAdapter mAdapter;
+    /**
+     * Latest rankings of the noisiest advertisers, or null before the first, kept across view
+     * re-creation.
+     */
+    private HeavyHitters.Ranking mNoisyDevices;
 
-    private Handler mHandler;
+    /**
+     * Labels the devices in {@link #mNoisyDevices} with their persistent ids, where they have
+     * one. Its mapping stays readable after the service stops.
+     */
+    private DeviceDictionary mDeviceDictionary;
+
+    private HeavyHitters.Ranking mNoisyManufacturers;
 
     /**
-     * Must be called after object creation by MainActivity.
-     *
-     * @param btAdapter the local BluetoothAdapter
+     * List header showing the rankings, or null while there is no view.
      */
-    public void setBluetoothAdapter(BluetoothAdapter btAdapter) {
-        this.mBluetoothAdapter = btAdapter;
-        mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
-    }
+    private View mNoisyHeader;
+
+    /**
+     * Shows the running export's progress, or null. Tied to the activity, so it is dropped when
+     * the fragment detaches and shown again on the next progress update.
+     */
+    private AlertDialog mExportDialog;
+
+    private TextView mExportRecords;
+
+    private ProgressBar mExportProgress;
+
+    private final ScanLoggingService.Listener mServiceListener = new ScanLoggingService.Listener() {
+        @Override
+        public void onSnapshot(ScanIngestPipeline.Snapshot<ScanResult> snapshot,
+                int[] rssiSlots, int[] clusterIds) {
+            mAdapter.removeAll(snapshot.removedKeys);
+            for (int i = 0; i < rssiSlots.length; i++) {
+                mAdapter.add(snapshot.updates.get(i), rssiSlots[i], clusterIds[i]);
+            }
+            mAdapter.notifyDataSetChanged();
+        }
+
+        @Override
+        public void onNoisyAdvertisers(HeavyHitters.Ranking devices,
+                HeavyHitters.Ranking manufacturers) {
+            mNoisyDevices = devices;
+            mNoisyManufacturers = manufacturers;
+            showNoisyAdvertisers();
+        }
+
+        @Override
+        public void onScanStopped() {
+            // Update 'last seen' times.
+            mAdapter.notifyDataSetChanged();
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            if (getActivity() != null) {
+                Toast.makeText(getActivity(), "Scan failed with error: " + errorCode,
+                        Toast.LENGTH_LONG).show();
+            }
+        }
+
+        @Override
+        public void onServiceStopped() {
+            // Stopping a service doesn't disconnect its bindings, so let go here.
+            mService = null;
+        }
+    };
+
+    /**
+     * Bound without {@code BIND_AUTO_CREATE}, so this connects whenever the service is started
+     * and doesn't keep it alive once stopped.
+     */
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((ScanLoggingService.LocalBinder) binder).getService();
+            // A fresh service instance has fresh RSSI slots; start the list over.
+            mAdapter.clear();
+            mAdapter.setRssiHistory(mService.getRssiHistory());
+            mDeviceDictionary = mService.getDeviceDictionary();
+            mService.setListener(mServiceListener);
+            mAdapter.notifyDataSetChanged();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+        }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -83,9 +176,30 @@ public class ScannerFragment extends ListFragment {
         // We could get a LayoutInflater from the ApplicationContext but it messes with the
         // default theme, so generate it from getActivity() and pass it in separately.
         mAdapter = new ScanResultAdapter(getActivity().getApplicationContext(),
-                LayoutInflater.from(getActivity()));
-        mHandler = new Handler();
+                LayoutInflater.from(getActivity()), null);
 
+        // Bind through the application context too, so the binding survives rotation.
+        getActivity().getApplicationContext().bindService(getServiceIntent(getActivity()),
+                mConnection, 0);
+    }
+
+    @Override
+    public void onDetach() {
+        super.onDetach();
+        dismissExportProgress();
+    }
+
+    @Override
+    public void onDestroy() {
+        // Cancel the export when the fragment is destroyed.
+        cancelExport();
+        super.onDestroy();
+        // Logging carries on; only stop listening.
+        if (mService != null) {
+            mService.setListener(null);
+            mService = null;
+        }
+        getActivity().getApplicationContext().unbindService(mConnection);
     }
 
     @Override
@@ -106,11 +220,24 @@ public class ScannerFragment extends ListFragment {
         getListView().setDivider(null);
         getListView().setDividerHeight(0);
 
+        mNoisyHeader = LayoutInflater.from(getActivity())
+                .inflate(R.layout.header_noisy_advertisers, getListView(), false);
+        getListView().addHeaderView(mNoisyHeader, null, false);
+        showNoisyAdvertisers();
+
         setEmptyText(getString(R.string.empty_list));
 
-        // Trigger refresh on app's 1st load
-        startScanning();
+        // Trigger refresh on app's 1st load, unless the service is still logging from before.
+        if (!ScanLoggingService.running) {
+            startScanning();
+        }
+
+    }
 
+    @Override
+    public void onDestroyView() {
+        mNoisyHeader = null;
+        super.onDestroyView();
     }
 
     @Override
@@ -119,6 +246,16 @@ public class ScannerFragment extends ListFragment {
         inflater.inflate(R.menu.scanner_menu, menu);
     }
 
+    @Override
+    public void onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        MenuItem batchItem = menu.findItem(R.id.batch_scanning);
+        if (batchItem != null) {
+            batchItem.setEnabled(mService != null);
+            batchItem.setChecked(mService == null || mService.isBatchScanning());
+        }
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
 
@@ -126,107 +263,342 @@ public class ScannerFragment extends ListFragment {
             case R.id.refresh:
                 startScanning();
                 return true;
+            case R.id.stop_scanning:
+                stopScanning();
+                return true;
+            case R.id.batch_scanning:
+                if (mService != null) {
+                    mService.setBatchScanning(!mService.isBatchScanning());
+                    item.setChecked(mService.isBatchScanning());
+                }
+                return true;
+            case R.id.scan_stats:
+                showScanStats();
+                return true;
+            case R.id.export_log:
+                chooseExportFormat();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
     /**
-     * Start scanning for BLE Advertisements (& set it up to stop after a set period of time).
+     * Returns Intent addressed to the {@code ScanLoggingService} class.
+     */
+    private static Intent getServiceIntent(Context c) {
+        return new Intent(c, ScanLoggingService.class);
+    }
+
+    /**
+     * Start scanning for and logging BLE Advertisements by starting {@code ScanLoggingService},
+     * which keeps going until {@link #stopScanning()} is called or it's stopped from its
+     * notification.
      */
     public void startScanning() {
-        if (mScanCallback == null) {
+        if (!ScanLoggingService.running) {
             Log.d(TAG, "Starting Scanning");
-
-            // Will stop the scanning after a set time.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    stopScanning();
-                }
-            }, SCAN_PERIOD);
-
-            // Kick off a new scan.
-            mScanCallback = new SampleScanCallback();
-            mBluetoothLeScanner.startScan(buildScanFilters(), buildScanSettings(), mScanCallback);
-
-            String toastText = getString(R.string.scan_start_toast) + " "
-                    + TimeUnit.SECONDS.convert(SCAN_PERIOD, TimeUnit.MILLISECONDS) + " "
-                    + getString(R.string.seconds);
-            Toast.makeText(getActivity(), toastText, Toast.LENGTH_LONG).show();
+            Context c = getActivity();
+            c.startService(getServiceIntent(c));
+            Toast.makeText(c, R.string.scan_continuous_toast, Toast.LENGTH_LONG).show();
         } else {
             Toast.makeText(getActivity(), R.string.already_scanning, Toast.LENGTH_SHORT).show();
         }
     }
 
     /**
-     * Stop scanning for BLE Advertisements.
+     * Stop scanning for BLE Advertisements by stopping {@code ScanLoggingService}.
      */
     public void stopScanning() {
-        Log.d(TAG, "Stopping Scanning");
+        Context c = getActivity();
+        c.stopService(getServiceIntent(c));
+    }
+
+    /**
+     * Show how results have been delivered and how the ingestion pipeline is keeping up, once
+     * the rollup totals have been read in the background.
+     */
+    private void showScanStats() {
+        if (mService != null) {
+            // Not on the serial executor, where a running export would hold it up.
+            new StatsTask(mService).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            showScanStats(getString(R.string.scan_not_running));
+        }
+    }
+
+    private void showScanStats(CharSequence text) {
+        new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.scan_stats)
+                .setMessage(text)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
+    /**
+     * Fills the list header with the latest rankings, one line per device or manufacturer.
+     */
+    private void showNoisyAdvertisers() {
+        if (mNoisyHeader == null || mNoisyDevices == null) {
+            return;
+        }
+        TextView devicesView = (TextView) mNoisyHeader.findViewById(R.id.noisy_devices);
+        TextView manufacturersView =
+                (TextView) mNoisyHeader.findViewById(R.id.noisy_manufacturers);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < mNoisyDevices.size(); i++) {
+            long address = mNoisyDevices.getKey(i);
+            String name = MacAddresses.unpack(address);
+            int id = mDeviceDictionary != null
+                    ? mDeviceDictionary.idOf(address) : DeviceDictionary.NO_ID;
+            if (id != DeviceDictionary.NO_ID) {
+                name = getString(R.string.noisy_device, name, id);
+            }
+            appendNoisyEntry(text, name, mNoisyDevices, i);
+        }
+        devicesView.setText(text);
+        text.setLength(0);
+        for (int i = 0; i < mNoisyManufacturers.size(); i++) {
+            appendNoisyEntry(text, getString(R.string.noisy_manufacturer,
+                    (int) mNoisyManufacturers.getKey(i)), mNoisyManufacturers, i);
+        }
+        manufacturersView.setText(text);
+        manufacturersView.setVisibility(text.length() > 0 ? View.VISIBLE : View.GONE);
+        mNoisyHeader.setVisibility(mNoisyDevices.size() > 0 ? View.VISIBLE : View.GONE);
+    }
 
-        // Stop the scan, wipe the callback.
-        mBluetoothLeScanner.stopScan(mScanCallback);
-        mScanCallback = null;
+    private void appendNoisyEntry(StringBuilder text, String name, HeavyHitters.Ranking ranking,
+                                  int index) {
+        if (text.length() > 0) {
+            text.append('\n');
+        }
+        double seconds = Math.max(ranking.getSpanNanos(), 1) / 1e9;
+        text.append(getString(R.string.noisy_entry, name, ranking.getCount(index) / seconds,
+                100.0 * ranking.getCount(index) / Math.max(ranking.getTotal(), 1)));
+    }
 
-        // Even if no new results, update 'last seen' times.
-        mAdapter.notifyDataSetChanged();
+    /**
+     * Asks for a format, then exports the whole log in it.
+     */
+    private void chooseExportFormat() {
+        if (mExportTask != null) {
+            Toast.makeText(getActivity(), R.string.export_running, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.export_log)
+                .setItems(R.array.export_formats, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        startExport(ExportFormat.forExtension(EXPORT_EXTENSIONS[which]));
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Start non-blocking execution of an ExportTask writing the log to a new file.
+     */
+    private void startExport(ExportFormat format) {
+        Context c = getActivity();
+        File externalDirectory = c.getExternalFilesDir(null);
+        if (externalDirectory == null) {
+            Toast.makeText(c, R.string.export_no_storage, Toast.LENGTH_LONG).show();
+            return;
+        }
+        File file = new File(new File(externalDirectory, Constants.EXPORT_DIRECTORY),
+                "advertisements-" + System.currentTimeMillis() + "." + format.getFileExtension());
+        mExportTask = new ExportTask(new File(c.getFilesDir(), Constants.LOG_DIRECTORY),
+                format, file);
+        mExportTask.execute();
+        showExportProgress(0, 0);
     }
 
     /**
-     * Return a List of {@link ScanFilter} objects to filter by Service UUID.
+     * Cancel (and interrupt if necessary) any ongoing ExportTask execution.
      */
-    private List<ScanFilter> buildScanFilters() {
-        List<ScanFilter> scanFilters = new ArrayList<>();
+    private void cancelExport() {
+        if (mExportTask != null) {
+            mExportTask.cancelExport();
+            mExportTask = null;
+        }
+        dismissExportProgress();
+    }
 
-        ScanFilter.Builder builder = new ScanFilter.Builder();
-        // Comment out the below line to see all BLE devices around you
-        builder.setServiceUuid(Constants.Service_UUID);
-        scanFilters.add(builder.build());
+    private void showExportProgress(long records, int percent) {
+        if (getActivity() == null) {
+            return;
+        }
+        if (mExportDialog == null) {
+            View view = LayoutInflater.from(getActivity())
+                    .inflate(R.layout.dialog_export_progress, null);
+            mExportRecords = (TextView) view.findViewById(R.id.export_records);
+            mExportProgress = (ProgressBar) view.findViewById(R.id.export_progress);
+            mExportDialog = new AlertDialog.Builder(getActivity())
+                    .setTitle(R.string.export_log)
+                    .setView(view)
+                    .setCancelable(false)
+                    .setNegativeButton(android.R.string.cancel,
+                            new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(DialogInterface dialog, int which) {
+                                    cancelExport();
+                                }
+                            })
+                    .show();
+        }
+        mExportRecords.setText(getString(R.string.export_progress, records));
+        mExportProgress.setProgress(percent);
+    }
 
-        return scanFilters;
+    private void dismissExportProgress() {
+        if (mExportDialog != null) {
+            mExportDialog.dismiss();
+            mExportDialog = null;
+            mExportRecords = null;
+            mExportProgress = null;
+        }
     }
 
     /**
-     * Return a {@link ScanSettings} object set to use low power (to preserve battery life).
+     * Reports how an export ended, if the fragment is still attached. The message is only
+     * formatted then, since resources can't be read from a detached fragment.
      */
-    private ScanSettings buildScanSettings() {
-        ScanSettings.Builder builder = new ScanSettings.Builder();
-        builder.setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
-        return builder.build();
+    private void finishExport(int messageId, Object... formatArgs) {
+        mExportTask = null;
+        dismissExportProgress();
+        if (isAdded()) {
+            Toast.makeText(getActivity(), getString(messageId, formatArgs), Toast.LENGTH_LONG)
+                    .show();
+        }
     }
 
     /**
-     * Custom ScanCallback object - adds to adapter on success, displays error on failure.
+     * Reads the rollup totals on a background thread, then shows them after the service's
+     * other statistics.
      */
-    private class SampleScanCallback extends ScanCallback {
+    private class StatsTask extends AsyncTask<Void, Void, String> {
+
+        private final ScanLoggingService mStatsService;
+
+        StatsTask(ScanLoggingService service) {
+            mStatsService = service;
+        }
 
         @Override
-        public void onBatchScanResults(List<ScanResult> results) {
-            super.onBatchScanResults(results);
-            Log.d(TAG, "onBatchScanResults");
+        protected String doInBackground(Void... params) {
+            StringBuilder rollups = new StringBuilder();
+            mStatsService.describeRollups(rollups);
+            return rollups.toString();
+        }
 
-            for (ScanResult result : results) {
-                mAdapter.add(result);
+        @Override
+        protected void onPostExecute(String rollups) {
+            if (!isAdded()) {
+                return;
             }
-            mAdapter.notifyDataSetChanged();
+            StringBuilder text = new StringBuilder();
+            mStatsService.describe(text);
+            showScanStats(text.append(rollups));
+        }
+    }
+
+    /**
+     * Implementation of AsyncTask that streams the log into an export file on a background
+     * thread, through a {@link LogExporter}, publishing records written and percent done.
+     */
+    private class ExportTask extends AsyncTask<Void, Long, ExportTask.Result> {
+
+        /**
+         * Either the number of records exported or the exception that stopped the export.
+         */
+        class Result {
+            public long mRecords;
+            public Exception mException;
+            public Result(long records) {
+                mRecords = records;
+            }
+            public Result(Exception exception) {
+                mException = exception;
+            }
+        }
+
+        private final LogExporter mExporter;
+
+        private final ExportFormat mFormat;
+
+        private final File mFile;
+
+        ExportTask(File logDirectory, ExportFormat format, File file) {
+            mExporter = new LogExporter(logDirectory, Constants.EXPORT_CHUNK_RECORDS,
+                    Constants.EXPORT_CHUNK_BYTES, Constants.EXPORT_CHUNKS);
+            mFormat = format;
+            mFile = file;
+        }
+
+        void cancelExport() {
+            mExporter.cancel();
+            cancel(true);
         }
 
         @Override
-        public void onScanResult(int callbackType, ScanResult result) {
-            super.onScanResult(callbackType, result);
-            Log.d(TAG, "onScanResult");
+        protected Result doInBackground(Void... params) {
+            FileOutputStream out = null;
+            try {
+                mFile.getParentFile().mkdirs();
+                out = new FileOutputStream(mFile);
+                long records = mExporter.export(Long.MIN_VALUE, Long.MAX_VALUE, mFormat, out,
+                        new LogExporter.ProgressListener() {
+                            @Override
+                            public void onProgress(long records, int percent) {
+                                publishProgress(records, (long) percent);
+                            }
+                        });
+                out.close();
+                out = null;
+                return new Result(records);
+            } catch (IOException e) {
+                if (!(e instanceof InterruptedIOException)) {
+                    Log.e(TAG, "Export to " + mFile + " failed", e);
+                }
+                return new Result(e);
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // Already failing.
+                    }
+                    mFile.delete();
+                }
+            }
+        }
 
-            mAdapter.add(result);
-            mAdapter.notifyDataSetChanged();
+        /**
+         * Show the records written and the percentage of the log read.
+         */
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            if (values.length >= 2 && mExportTask == this) {
+                showExportProgress(values[0], values[1].intValue());
+            }
         }
 
         @Override
-        public void onScanFailed(int errorCode) {
-            super.onScanFailed(errorCode);
-            Log.d(TAG, "onScanFailed");
-            Toast.makeText(getActivity(), "Scan failed with error: " + errorCode, Toast.LENGTH_LONG)
-                    .show();
+        protected void onPostExecute(Result result) {
+            if (result.mException != null) {
+                finishExport(R.string.export_failed, result.mException.getMessage());
+            } else {
+                finishExport(R.string.export_done, result.mRecords, mFile);
+            }
+        }
+
+        @Override
+        protected void onCancelled(Result result) {
+            if (getActivity() != null) {
+                Toast.makeText(getActivity(), R.string.export_cancelled, Toast.LENGTH_SHORT)
+                        .show();
+            }
         }
     }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Feeds {@link AddressClusterer} an hour of a busy site, about 1300 advertisements a second from
+ * 2000 devices rotating their addresses every 15 minutes with a fifth of advertisements lost,
+ * and reports the cost per advertisement and how many rotations were linked correctly. Most
+ * devices are phones of a few kinds sharing fingerprints, the hard case.
+ *
+ * Run with {@code java ... AddressClustererBenchmark [devices]}; it is not a unit test.
+ */
+public class AddressClustererBenchmark {
+
+    private static final long SECOND = 1000000000L;
+
+    private static final long DURATION = 3600 * SECOND;
+
+    private static final long[] INTERVALS = {
+            500000000L, 1000000000L, 2000000000L, 3000000000L, 4000000000L,
+    };
+
+    public static void main(String[] args) {
+        int deviceCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        byte[][] payloads = {
+                AdvertisementCorpus.bytes(AdvertisementCorpus.APPLE_NEARBY),
+                AdvertisementCorpus.bytes(AdvertisementCorpus.MICROSOFT_CDP),
+                AdvertisementCorpus.bytes(AdvertisementCorpus.HEART_RATE_SENSOR),
+                AdvertisementCorpus.bytes(AdvertisementCorpus.EDDYSTONE_EID),
+                AdvertisementCorpus.bytes(AdvertisementCorpus.CUSTOM_128),
+        };
+        Random random = new Random(1);
+        PriorityQueue<Device> queue = new PriorityQueue<>();
+        List<Device> devices = new ArrayList<>();
+        for (int i = 0; i < deviceCount; i++) {
+            Device device = new Device();
+            device.mIndex = i;
+            // Mostly phones and laptops.
+            int kind = random.nextInt(10);
+            device.mPayload = payloads[kind < 5 ? 0 : kind < 7 ? 1 : kind - 5];
+            device.mInterval = INTERVALS[random.nextInt(INTERVALS.length)];
+            device.mRssi = -40 - random.nextInt(55);
+            device.mNext = (long) (random.nextDouble() * device.mInterval);
+            device.mRotation = (long) (random.nextDouble() * 900 * SECOND);
+            device.mAddresses.add(randomResolvable(random));
+            devices.add(device);
+            queue.add(device);
+        }
+
+        // Generate first, so only the clusterer is timed.
+        List<long[]> events = new ArrayList<>();
+        long[] chunk = null;
+        int count = 0;
+        int rotations = 0;
+        while (queue.peek().mNext < DURATION) {
+            Device device = queue.poll();
+            if (device.mNext >= device.mRotation) {
+                device.mAddresses.add(randomResolvable(random));
+                device.mRotation += 870 * SECOND + (long) (random.nextDouble() * 60 * SECOND);
+                rotations++;
+            }
+            if (random.nextInt(5) != 0) {
+                if (count % 4096 == 0) {
+                    chunk = new long[4096 * 3];
+                    events.add(chunk);
+                }
+                int offset = count % 4096 * 3;
+                chunk[offset] = device.mAddresses.get(device.mAddresses.size() - 1);
+                chunk[offset + 1] = device.mNext;
+                chunk[offset + 2] = device.mIndex;
+                count++;
+            }
+            device.mNext += device.mInterval;
+            queue.add(device);
+        }
+
+        AddressClusterer clusterer = null;
+        long bestNanos = Long.MAX_VALUE;
+        for (int pass = 0; pass < 3; pass++) {
+            Random noise = new Random(2);
+            // Same settings as Constants.CLUSTER_*.
+            clusterer = new AddressClusterer(20 * SECOND, 15 * SECOND, SECOND);
+            long nextTick = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                long[] block = events.get(i / 4096);
+                int offset = i % 4096 * 3;
+                long timestamp = block[offset + 1];
+                Device device = devices.get((int) block[offset + 2]);
+                clusterer.record(block[offset], timestamp, device.mRssi + noise.nextInt(5),
+                        device.mPayload);
+                if (timestamp >= nextTick) {
+                    clusterer.advance(timestamp);
+                    nextTick = timestamp + SECOND;
+                }
+            }
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+
+        int linked = 0;
+        Map<Integer, Set<Device>> clusters = new HashMap<>();
+        for (Device device : devices) {
+            for (int i = 0; i < device.mAddresses.size(); i++) {
+                int cluster = clusterer.clusterOf(device.mAddresses.get(i));
+                if (cluster == AddressClusterer.NO_CLUSTER) {
+                    continue;
+                }
+                if (i > 0 && cluster == clusterer.clusterOf(device.mAddresses.get(i - 1))) {
+                    linked++;
+                }
+                Set<Device> members = clusters.get(cluster);
+                if (members == null) {
+                    members = new HashSet<>();
+                    clusters.put(cluster, members);
+                }
+                members.add(device);
+            }
+        }
+        int wrong = 0;
+        for (Set<Device> members : clusters.values()) {
+            wrong += members.size() - 1;
+        }
+
+        System.out.printf("%,d advertisements from %,d devices, %,d rotations%n", count,
+                deviceCount, rotations);
+        System.out.printf("Clustering:  %.0f ns/advertisement (%.2f%% of a thread at 1000/s)%n",
+                bestNanos / (double) count, bestNanos / (double) count * 1000 / 1e7);
+        System.out.printf("Linked:      %,d of %,d rotations (%.1f%%), %,d ambiguous%n",
+                linked, rotations, 100.0 * linked / rotations, clusterer.getAmbiguousCount());
+        System.out.printf("Wrong:       %,d devices merged into another's cluster%n", wrong);
+        StringBuilder text = new StringBuilder();
+        clusterer.describe(text);
+        System.out.print(text);
+    }
+
+    private static long randomResolvable(Random random) {
+        return 0x400000000000L | (random.nextLong() & 0x3FFFFFFFFFFFL);
+    }
+
+    private static final class Device implements Comparable<Device> {
+        final List<Long> mAddresses = new ArrayList<>();
+        int mIndex;
+        byte[] mPayload;
+        long mInterval;
+        int mRssi;
+        long mNext;
+        long mRotation;
+
+        @Override
+        public int compareTo(Device other) {
+            return mNext < other.mNext ? -1 : mNext == other.mNext ? 0 : 1;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plays timed advertising sessions, one per address, through {@link AddressClusterer} and
+ * checks which addresses end up linked.
+ */
+public class AddressClustererTest {
+
+    private static final long SECOND = 1000000000L;
+
+    private static final long MILLI = 1000000L;
+
+    private static final long STEP = 20 * MILLI;
+
+    private static final byte[] PHONE = AdvertisementCorpus.bytes(
+            AdvertisementCorpus.APPLE_NEARBY);
+
+    private static final byte[] LAPTOP = AdvertisementCorpus.bytes(
+            AdvertisementCorpus.MICROSOFT_CDP);
+
+    private static final byte[] SENSOR = AdvertisementCorpus.bytes(
+            AdvertisementCorpus.HEART_RATE_SENSOR);
+
+    @Test
+    public void linksEachDevicesRotationsAndNothingElse() {
+        byte[][] payloads = {PHONE, LAPTOP, SENSOR};
+        Random random = new Random(7);
+        List<Session> sessions = new ArrayList<>();
+        List<List<Long>> devices = new ArrayList<>();
+        int rotations = 0;
+        for (int device = 0; device < 12; device++) {
+            List<Long> addresses = new ArrayList<>();
+            devices.add(addresses);
+            // Devices sharing a fingerprint rotate at least a minute apart.
+            long start = 0;
+            long rotation = (60 + 60 * device) * SECOND;
+            long interval = (5 + device % 3 * 5) * STEP;
+            int rssi = -45 - 3 * device;
+            while (start < 3600 * SECOND) {
+                long end = Math.min(rotation, 3600 * SECOND);
+                long address = randomResolvable(random);
+                addresses.add(address);
+                sessions.add(new Session(address, start, end, interval, rssi,
+                        payloads[device % 3]));
+                start = rotation + interval;
+                rotation += 900 * SECOND;
+                if (start < 3600 * SECOND) {
+                    rotations++;
+                }
+            }
+        }
+        // A device with a public address, which never rotates.
+        sessions.add(new Session(0x001A7DDA7113L, 0, 3600 * SECOND, 5 * STEP, -60, PHONE));
+
+        AddressClusterer clusterer = newClusterer();
+        play(clusterer, sessions, new Random(1), 3600 * SECOND);
+
+        Set<Integer> clusters = new HashSet<>();
+        for (List<Long> addresses : devices) {
+            int cluster = clusterer.clusterOf(addresses.get(0));
+            assertNotEquals(AddressClusterer.NO_CLUSTER, cluster);
+            assertTrue("two devices in cluster " + cluster, clusters.add(cluster));
+            for (long address : addresses) {
+                assertEquals(cluster, clusterer.clusterOf(address));
+            }
+            assertEquals(addresses.size(), clusterer.clusterSizeOf(addresses.get(0)));
+        }
+        assertEquals(rotations, clusterer.getLinkCount());
+        assertEquals(0, clusterer.getAmbiguousCount());
+        assertEquals(12, clusterer.getClusterCount());
+        assertEquals(AddressClusterer.NO_CLUSTER, clusterer.clusterOf(0x001A7DDA7113L));
+        long mean = clusterer.getMeanRotationNanos();
+        assertTrue(mean > 60 * SECOND && mean <= 900 * SECOND);
+
+        for (List<Long> addresses : devices) {
+            for (long address : addresses) {
+                clusterer.forget(address);
+            }
+        }
+        assertEquals(0, clusterer.size());
+        assertEquals(0, clusterer.getClusterCount());
+        assertEquals(12, clusterer.getRetiredCount());
+    }
+
+    @Test
+    public void linksOnlyCompatibleHandOffs() {
+        List<Session> sessions = new ArrayList<>();
+        // Always about, so nothing hands off to it.
+        sessions.add(new Session(0x400000000001L, 0, 300 * SECOND, 5 * STEP, -50, PHONE));
+        // Appears while the first is active, leaves at 60 s.
+        sessions.add(new Session(0x400000000002L, 10 * SECOND, 60 * SECOND, 5 * STEP, -70,
+                PHONE));
+        // Too long after it.
+        sessions.add(new Session(0x400000000003L, 90 * SECOND, 120 * SECOND, 5 * STEP, -70,
+                PHONE));
+        // Right after that, but advertising 40% slower.
+        sessions.add(new Session(0x400000000004L, 121 * SECOND, 150 * SECOND, 7 * STEP, -70,
+                PHONE));
+        // Same timing, different payload.
+        sessions.add(new Session(0x400000000005L, 121 * SECOND, 150 * SECOND, 5 * STEP, -70,
+                SENSOR));
+        // Right after, no payload at all.
+        sessions.add(new Session(0x400000000006L, 121 * SECOND, 150 * SECOND, 5 * STEP, -70,
+                null));
+        // Two compatible successors of the third; the second resembles it more closely.
+        sessions.add(new Session(0x400000000007L, 121 * SECOND, 150 * SECOND, 5 * STEP, -95,
+                PHONE));
+        sessions.add(new Session(0x400000000008L, 122 * SECOND, 150 * SECOND, 5 * STEP, -72,
+                PHONE));
+        // Two successors too alike to choose between.
+        sessions.add(new Session(0x400000000009L, 200 * SECOND, 230 * SECOND, 5 * STEP, -60,
+                PHONE));
+        sessions.add(new Session(0x40000000000AL, 231 * SECOND, 260 * SECOND, 5 * STEP, -60,
+                PHONE));
+        sessions.add(new Session(0x40000000000BL, 231 * SECOND, 260 * SECOND, 5 * STEP, -60,
+                PHONE));
+
+        AddressClusterer clusterer = newClusterer();
+        play(clusterer, sessions, new Random(1), 300 * SECOND);
+
+        assertEquals(1, clusterer.getLinkCount());
+        assertEquals(1, clusterer.getAmbiguousCount());
+        int cluster = clusterer.clusterOf(0x400000000003L);
+        assertNotEquals(AddressClusterer.NO_CLUSTER, cluster);
+        assertEquals(cluster, clusterer.clusterOf(0x400000000008L));
+        for (long address = 0x400000000001L; address <= 0x40000000000BL; address++) {
+            if (address != 0x400000000003L && address != 0x400000000008L) {
+                assertEquals(AddressClusterer.NO_CLUSTER, clusterer.clusterOf(address));
+            }
+        }
+        assertEquals(11, clusterer.size());
+        assertEquals(10, clusterer.getClusterCount());
+
+        // A forgotten address keeps its cluster until the rest of it goes too.
+        clusterer.forget(0x400000000003L);
+        assertEquals(cluster, clusterer.clusterOf(0x400000000008L));
+        assertEquals(cluster, clusterer.clusterOf(0x400000000003L));
+        clusterer.forget(0x400000000008L);
+        assertEquals(AddressClusterer.NO_CLUSTER, clusterer.clusterOf(0x400000000008L));
+        assertEquals(9, clusterer.size());
+        assertEquals(1, clusterer.getRetiredCount());
+    }
+
+    private static AddressClusterer newClusterer() {
+        // Same settings as Constants.CLUSTER_*.
+        return new AddressClusterer(20 * SECOND, 15 * SECOND, SECOND);
+    }
+
+    /**
+     * Steps through time, emitting each session's advertisements with a fifth of them lost and
+     * advancing the clusterer once a second.
+     */
+    private static void play(AddressClusterer clusterer, List<Session> sessions, Random random,
+                             long end) {
+        for (long now = 0; now <= end; now += STEP) {
+            for (Session session : sessions) {
+                if (now >= session.mStart && now <= session.mEnd
+                        && (now - session.mStart) % session.mInterval == 0
+                        && (now == session.mStart || now == session.mEnd
+                        || random.nextInt(5) != 0)) {
+                    clusterer.record(session.mAddress, now, session.mRssi + random.nextInt(3),
+                            session.mPayload);
+                }
+            }
+            if (now % SECOND == 0) {
+                clusterer.advance(now);
+            }
+        }
+    }
+
+    private static long randomResolvable(Random random) {
+        return 0x400000000000L | (random.nextLong() & 0x3FFFFFFFFFFFL);
+    }
+
+    private static final class Session {
+        final long mAddress;
+        final long mStart;
+        final long mEnd;
+        final long mInterval;
+        final int mRssi;
+        final byte[] mPayload;
+
+        Session(long address, long start, long end, long interval, int rssi, byte[] payload) {
+            mAddress = address;
+            mStart = start;
+            mEnd = end;
+            mInterval = interval;
+            mRssi = rssi;
+            mPayload = payload;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+/**
+ * Raw advertisement payloads in the shapes seen at a typical site: beacons of each frame type,
+ * phones and wearables, and a couple of malformed payloads. Shared by the parser and decoder
+ * tests and benchmarks.
+ */
+final class AdvertisementCorpus {
+
+    static final String IBEACON =
+            "0201061AFF4C000215F7826DA64FA24E988024BC5B71E0893E04D2162EC5";
+
+    static final String EDDYSTONE_UID =
+            "0201060303AAFE1716AAFE00E78B8AFF28A39E2A7AE1A4010203040506000000";
+
+    static final String EDDYSTONE_URL =
+            "0201060303AAFE0E16AAFE10EB036578616D706C6507";
+
+    static final String EDDYSTONE_TLM =
+            "0201060303AAFE1116AAFE20000BB81800000027100000A8C0";
+
+    static final String EDDYSTONE_EID =
+            "0201060303AAFE0D16AAFE30EB1122334455667788";
+
+    static final String ALTBEACON =
+            "0201061BFF1801BEAC2F234454CF6D4A0FADF2F4911BA9FFA600010002C500";
+
+    static final String APPLE_NEARBY =
+            "02011A0AFF4C0010050B1C6D2F8D";
+
+    static final String MICROSOFT_CDP =
+            "1EFF0600010920022B1C4E1E2E0A47AF3C7F89B6A3E0D17DF51A9E7CA4B6C0";
+
+    static final String HEART_RATE_SENSOR =
+            "02010603020D180E09506F6C61722048372031323334020A04";
+
+    static final String CUSTOM_128 =
+            "0201061107FB349B5F80000080001000001DB8000007094E6561726279";
+
+    static final String TRUNCATED =
+            "0201061AFF4C000215F7826DA6";
+
+    static final String PADDED =
+            "020106050944657631000000000000000000";
+
+    static final String[] ALL = {
+            IBEACON, EDDYSTONE_UID, EDDYSTONE_URL, EDDYSTONE_TLM, EDDYSTONE_EID, ALTBEACON,
+            APPLE_NEARBY, MICROSOFT_CDP, HEART_RATE_SENSOR, CUSTOM_128, TRUNCATED, PADDED,
+    };
+
+    private AdvertisementCorpus() {
+    }
+
+    static byte[] bytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    static byte[][] all() {
+        byte[][] records = new byte[ALL.length][];
+        for (int i = 0; i < ALL.length; i++) {
+            records[i] = bytes(ALL[i]);
+        }
+        return records;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fault injection for the {@link AdvertisementLogWriter} journal: a reference segment is cut
+ * short at random byte offsets, as if the process had been killed mid-write, optionally
+ * followed by the zeros or garbage a power loss can leave behind, or has a byte flipped in the
+ * middle. Recovery must keep exactly the records before the damage, and the log must accept
+ * and read back new records afterwards.
+ */
+public class AdvertisementLogRecoveryTest {
+
+    private static final int RECORDS = 2000;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("advlog", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        deleteSegments();
+        mDirectory.delete();
+    }
+
+    private void deleteSegments() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static long deviceAddress(int i) {
+        return 0xC0FFEE000000L | (i % 3000);
+    }
+
+    @Test
+    public void crc32cMatchesKnownValues() {
+        byte[] digits = "123456789".getBytes();
+        assertEquals(0xE3069283, Crc32c.compute(digits, 0, digits.length));
+        assertEquals(0x8A9136AA, Crc32c.compute(new byte[32], 0, 32));
+        ByteBuffer buffer = ByteBuffer.wrap(digits);
+        for (int split = 0; split <= digits.length; split++) {
+            int crc = Crc32c.compute(buffer, 0, split);
+            assertEquals(0xE3069283, Crc32c.update(crc, buffer, split, digits.length - split));
+        }
+    }
+
+    @Test
+    public void recoversFromWritesKilledAtRandomOffsets() throws IOException {
+        // The reference segment, and the file offset each record ends at.
+        AdvertisementLogWriter writer =
+                new AdvertisementLogWriter(mDirectory, 16 * 1024 * 1024, 100, Long.MAX_VALUE);
+        long[] ends = new long[RECORDS];
+        long offset = AdvertisementLogWriter.SEGMENT_HEADER_SIZE;
+        byte[] scanRecord = new byte[62];
+        for (int i = 0; i < RECORDS; i++) {
+            int length = i % 63;
+            scanRecord[0] = (byte) i;
+            writer.append(i, deviceAddress(i), -50, 0, scanRecord, 0, length);
+            offset += AdvertisementLogWriter.RECORD_HEADER_SIZE + length;
+            ends[i] = offset;
+        }
+        writer.close();
+        File segment = new File(mDirectory, AdvertisementLogWriter.segmentName(1));
+        byte[] image = readFile(segment);
+        assertEquals(offset, image.length);
+
+        Random random = new Random(13);
+        for (int trial = 0; trial < 400; trial++) {
+            deleteSegments();
+            int mode = trial % 4;
+            // The first trials tear the segment header, the rest anywhere.
+            int damage = random.nextInt(trial < 40
+                    ? 2 * AdvertisementLogWriter.SEGMENT_HEADER_SIZE : image.length + 1);
+            byte[] damaged;
+            if (mode == 3) {
+                // A flipped byte somewhere after the header.
+                int header = AdvertisementLogWriter.SEGMENT_HEADER_SIZE;
+                damage = header + random.nextInt(image.length - header);
+                damaged = image.clone();
+                damaged[damage] ^= 1 << random.nextInt(8);
+            } else {
+                // Killed after writing damage bytes, then nothing, zeros or garbage.
+                int tail = mode == 0 ? 0 : random.nextInt(4096);
+                damaged = new byte[damage + tail];
+                System.arraycopy(image, 0, damaged, 0, damage);
+                if (mode == 2) {
+                    byte[] garbage = new byte[tail];
+                    random.nextBytes(garbage);
+                    System.arraycopy(garbage, 0, damaged, damage, tail);
+                }
+            }
+            writeFile(segment, damaged);
+
+            // Zeros or garbage can happen to match what was cut off, so compare bytes.
+            int intact = 0;
+            while (intact < Math.min(image.length, damaged.length)
+                    && damaged[intact] == image[intact]) {
+                intact++;
+            }
+            int expected = 0;
+            while (expected < RECORDS && ends[expected] <= intact) {
+                expected++;
+            }
+            // Magic and version, and the file long enough to hold a header.
+            boolean headerIntact = intact >= 6
+                    && damaged.length >= AdvertisementLogWriter.SEGMENT_HEADER_SIZE;
+            writer = new AdvertisementLogWriter(mDirectory, 16 * 1024 * 1024, 100,
+                    Long.MAX_VALUE);
+            String context = "trial " + trial + " mode " + mode + " damage at " + damage;
+            assertEquals(context, expected, writer.getRecoveredRecords());
+            if (headerIntact) {
+                long validLength = expected == 0 ? AdvertisementLogWriter.SEGMENT_HEADER_SIZE
+                        : ends[expected - 1];
+                assertEquals(context, validLength, segment.length());
+                assertEquals(context, damaged.length - validLength, writer.getTruncatedBytes());
+            } else {
+                assertFalse(context, segment.exists());
+            }
+            writer.append(RECORDS, deviceAddress(RECORDS), -50, 0, null);
+            writer.close();
+
+            final List<Long> timestamps = new ArrayList<>();
+            new AdvertisementLogReader(mDirectory).readAll(
+                    new AdvertisementLogReader.RecordVisitor() {
+                        @Override
+                        public boolean onRecord(long timestampNanos, long address, int rssi,
+                                                int txPower, ByteBuffer record) {
+                            int i = (int) timestampNanos;
+                            assertEquals(deviceAddress(i), address);
+                            if (i < RECORDS) {
+                                assertEquals(i % 63, record.remaining());
+                                if (record.hasRemaining()) {
+                                    assertEquals((byte) i, record.get(record.position()));
+                                }
+                            }
+                            timestamps.add(timestampNanos);
+                            return true;
+                        }
+                    });
+            assertEquals(context, expected + 1, timestamps.size());
+            for (int i = 0; i < expected; i++) {
+                assertEquals(context, i, (long) timestamps.get(i));
+            }
+            assertEquals(context, RECORDS, (long) timestamps.get(expected));
+        }
+    }
+
+    @Test
+    public void recoversALargeSegmentQuickly() throws IOException {
+        final int count = 300000;
+        AdvertisementLogWriter writer =
+                new AdvertisementLogWriter(mDirectory, 64 * 1024 * 1024, 10000, Long.MAX_VALUE);
+        byte[] scanRecord = new byte[31];
+        for (int i = 0; i < count; i++) {
+            writer.append(i, deviceAddress(i), -60, 0, scanRecord);
+        }
+        writer.close();
+        File segment = new File(mDirectory, AdvertisementLogWriter.segmentName(1));
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        long length = file.length();
+        // Half a record, as if killed mid-write.
+        file.setLength(length + 20);
+        file.close();
+
+        writer = new AdvertisementLogWriter(mDirectory, 64 * 1024 * 1024, 10000, Long.MAX_VALUE);
+        writer.close();
+        assertEquals(count, writer.getRecoveredRecords());
+        assertEquals(20, writer.getTruncatedBytes());
+        assertEquals(length, segment.length());
+        double seconds = writer.getRecoveryNanos() / 1e9;
+        assertTrue("Recovered only " + (length / seconds / 1e6) + " MB/s",
+                length / seconds > 20e6);
+    }
+
+    @Test
+    public void readsSegmentsWrittenBeforeChecksums() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        buffer.putInt(AdvertisementLogWriter.SEGMENT_MAGIC);
+        buffer.putShort(AdvertisementLogWriter.FORMAT_VERSION_UNCHECKED);
+        buffer.putShort((short) 0);
+        buffer.putLong(0);
+        for (int i = 0; i < 3; i++) {
+            buffer.putInt(AdvertisementLogWriter.RECORD_HEADER_SIZE_UNCHECKED - 4 + 2);
+            buffer.putLong(i);
+            MacAddresses.put(buffer, deviceAddress(i));
+            buffer.put((byte) -70);
+            buffer.put(AdvertisementLogWriter.TX_POWER_UNKNOWN);
+            buffer.put((byte) 2).put((byte) 1);
+        }
+        // A torn fourth record.
+        buffer.putInt(30);
+        File segment = new File(mDirectory, AdvertisementLogWriter.segmentName(1));
+        writeFile(segment, Arrays.copyOf(buffer.array(), buffer.position()));
+
+        AdvertisementLogWriter writer =
+                new AdvertisementLogWriter(mDirectory, 64 * 1024, 1, Long.MAX_VALUE);
+        writer.append(3, deviceAddress(3), -70, 0, null);
+        writer.close();
+        assertEquals(3, writer.getRecoveredRecords());
+        assertEquals(4, writer.getTruncatedBytes());
+
+        final int[] seen = new int[1];
+        long read = new AdvertisementLogReader(mDirectory).readAll(
+                new AdvertisementLogReader.RecordVisitor() {
+                    @Override
+                    public boolean onRecord(long timestampNanos, long address, int rssi,
+                                            int txPower, ByteBuffer record) {
+                        assertEquals(seen[0]++, timestampNanos);
+                        assertEquals(deviceAddress((int) timestampNanos), address);
+                        assertEquals(-70, rssi);
+                        return true;
+                    }
+                });
+        assertEquals(4, read);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes synthetic advertisements through {@link AdvertisementLogWriter} and reads them back.
+ */
+public class AdvertisementLogWriterTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("advlog", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void roundTripsRecordsAcrossSegments() throws IOException {
+        final int count = 20000;
+        AdvertisementLogWriter writer =
+                new AdvertisementLogWriter(mDirectory, 64 * 1024, 500, Long.MAX_VALUE);
+        byte[] scanRecord = new byte[31];
+        for (int i = 0; i < count; i++) {
+            fillScanRecord(scanRecord, i);
+            writer.append(1000L * i, deviceAddress(i), -40 - (i % 60), i % 20,
+                    scanRecord, 0, 1 + i % 31);
+        }
+        writer.close();
+
+        assertTrue(writer.getSegmentCount() > 1);
+        assertEquals(count, writer.getRecordCount());
+
+        final int[] seen = new int[1];
+        long read = new AdvertisementLogReader(mDirectory).readAll(
+                new AdvertisementLogReader.RecordVisitor() {
+                    @Override
+                    public boolean onRecord(long timestampNanos, long address, int rssi,
+                                            int txPower, ByteBuffer record) {
+                        int i = seen[0]++;
+                        assertEquals(1000L * i, timestampNanos);
+                        assertEquals(deviceAddress(i), address);
+                        assertEquals(-40 - (i % 60), rssi);
+                        assertEquals(i % 20, txPower);
+                        assertEquals(1 + i % 31, record.remaining());
+                        assertEquals((byte) i, record.get(record.position()));
+                        return true;
+                    }
+                });
+        assertEquals(count, read);
+        assertEquals(count, seen[0]);
+    }
+
+    @Test
+    public void batchesSyncs() throws IOException {
+        AdvertisementLogWriter writer =
+                new AdvertisementLogWriter(mDirectory, 16 * 1024 * 1024, 1000, Long.MAX_VALUE);
+        long initialSyncs = writer.getSyncCount();
+        byte[] scanRecord = new byte[31];
+        for (int i = 0; i < 10000; i++) {
+            writer.append(i, deviceAddress(i), -60, 0, scanRecord);
+        }
+        assertEquals(10, writer.getSyncCount() - initialSyncs);
+        writer.close();
+    }
+
+    @Test
+    public void syncsStagedRecordsOnceDueWithoutAppends() throws IOException {
+        AdvertisementLogWriter writer =
+                new AdvertisementLogWriter(mDirectory, 16 * 1024 * 1024, 1000, 1000000000L);
+        byte[] scanRecord = new byte[31];
+        writer.append(1, deviceAddress(1), -60, 0, scanRecord);
+        writer.append(2, deviceAddress(2), -60, 0, scanRecord);
+        long syncs = writer.getSyncCount();
+        File segment = AdvertisementLogReader.listSegments(mDirectory)[0];
+        long recordSize = AdvertisementLogWriter.RECORD_HEADER_SIZE + scanRecord.length;
+
+        long now = System.nanoTime();
+        assertFalse(writer.syncIfDue(now));
+        assertTrue(writer.syncIfDue(now + 1000000000L));
+        assertEquals(syncs + 1, writer.getSyncCount());
+        assertEquals(AdvertisementLogWriter.SEGMENT_HEADER_SIZE + 2 * recordSize, segment.length());
+        // Nothing new to sync.
+        assertFalse(writer.syncIfDue(now + 2000000000L));
+        writer.close();
+    }
+
+    @Test
+    public void newWriterStartsAfterExistingSegments() throws IOException {
+        AdvertisementLogWriter first =
+                new AdvertisementLogWriter(mDirectory, 64 * 1024, 1, Long.MAX_VALUE);
+        first.append(1, deviceAddress(1), -50, 0, null);
+        first.close();
+        AdvertisementLogWriter second =
+                new AdvertisementLogWriter(mDirectory, 64 * 1024, 1, Long.MAX_VALUE);
+        second.append(2, deviceAddress(2), -50, 0, null);
+        second.close();
+
+        File[] segments = AdvertisementLogReader.listSegments(mDirectory);
+        assertEquals(2, segments.length);
+        assertEquals(AdvertisementLogWriter.segmentName(2), segments[1].getName());
+    }
+
+    @Test
+    public void sustainsLoggingRate() throws IOException {
+        final int count = 500000;
+        AdvertisementLogWriter writer =
+                new AdvertisementLogWriter(mDirectory, 64 * 1024 * 1024, 10000, 1000000000L);
+        byte[] scanRecord = new byte[31];
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            writer.append(i, deviceAddress(i), -60, 0, scanRecord);
+        }
+        writer.close();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertTrue("Only " + (count / seconds) + " records/s", count / seconds > 50000);
+    }
+
+    private static long deviceAddress(int i) {
+        return 0xC0FFEE000000L | (i % 3000);
+    }
+
+    private static void fillScanRecord(byte[] scanRecord, int seed) {
+        for (int i = 0; i < scanRecord.length; i++) {
+            scanRecord[i] = (byte) (seed + i);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Compares {@link AdvertisementParser} with a parser shaped like {@code ScanRecord.parseFromBytes},
+ * which copies every field into a new array and boxes it into lists and maps, over the payloads
+ * in {@link AdvertisementCorpus}. Both read the same fields so the work is comparable.
+ *
+ * Run with {@code java ... AdvertisementParserBenchmark}; it is not a unit test. Allocation is
+ * reported where the JVM exposes per-thread allocation counters.
+ */
+public class AdvertisementParserBenchmark {
+
+    private static final int ITERATIONS = 2000000;
+
+    private static final int ROUNDS = 5;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static void main(String[] args) {
+        byte[][] corpus = AdvertisementCorpus.all();
+        long sink = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            sink += runFlyweight(corpus);
+            double flyweightNanos = (System.nanoTime() - start) / (double) ITERATIONS;
+            double flyweightBytes = (allocatedBytes() - allocated) / (double) ITERATIONS;
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            sink += runAllocating(corpus);
+            double allocatingNanos = (System.nanoTime() - start) / (double) ITERATIONS;
+            double allocatingBytes = (allocatedBytes() - allocated) / (double) ITERATIONS;
+
+            System.out.printf("round %d: flyweight %6.1f ns %6.1f B/record,"
+                            + " allocating %6.1f ns %6.1f B/record%n",
+                    round, flyweightNanos, flyweightBytes, allocatingNanos, allocatingBytes);
+        }
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    private static long runFlyweight(byte[][] corpus) {
+        AdvertisementParser parser = new AdvertisementParser();
+        StringBuilder name = new StringBuilder();
+        long sink = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            parser.parse(corpus[i % corpus.length]);
+            sink += parser.getFlags() + parser.getTxPowerLevel();
+            for (int u = 0; u < parser.getServiceUuid16Count(); u++) {
+                sink += parser.getServiceUuid16(u);
+            }
+            for (int u = 0; u < parser.getServiceUuid128Count(); u++) {
+                sink += parser.getServiceUuid128Lsb(u);
+            }
+            for (int m = 0; m < parser.getManufacturerDataCount(); m++) {
+                sink += parser.getManufacturerId(m) + parser.getManufacturerDataLength(m);
+            }
+            for (int s = 0; s < parser.getServiceDataCount(); s++) {
+                sink += parser.getServiceDataUuid(s) + parser.getServiceDataLength(s);
+            }
+            name.setLength(0);
+            if (parser.appendLocalName(name)) {
+                sink += name.length();
+            }
+        }
+        return sink;
+    }
+
+    private static long runAllocating(byte[][] corpus) {
+        long sink = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            ParsedRecord record = ParsedRecord.parse(corpus[i % corpus.length]);
+            if (record == null) {
+                continue;
+            }
+            sink += record.flags + record.txPowerLevel;
+            for (UUID uuid : record.serviceUuids) {
+                sink += uuid.getLeastSignificantBits() + uuid.getMostSignificantBits();
+            }
+            for (Map.Entry<Integer, byte[]> entry : record.manufacturerData.entrySet()) {
+                sink += entry.getKey() + entry.getValue().length;
+            }
+            for (Map.Entry<UUID, byte[]> entry : record.serviceData.entrySet()) {
+                sink += entry.getKey().getMostSignificantBits() + entry.getValue().length;
+            }
+            if (record.localName != null) {
+                sink += record.localName.length();
+            }
+        }
+        return sink;
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * The framework's approach: one object graph per advertisement.
+     */
+    private static final class ParsedRecord {
+
+        int flags = -1;
+        int txPowerLevel = Integer.MIN_VALUE;
+        String localName;
+        final List<UUID> serviceUuids = new ArrayList<>();
+        final Map<Integer, byte[]> manufacturerData = new HashMap<>();
+        final Map<UUID, byte[]> serviceData = new HashMap<>();
+
+        static ParsedRecord parse(byte[] bytes) {
+            ParsedRecord record = new ParsedRecord();
+            int position = 0;
+            try {
+                while (position < bytes.length) {
+                    int length = bytes[position++] & 0xFF;
+                    if (length == 0) {
+                        break;
+                    }
+                    int dataLength = length - 1;
+                    int type = bytes[position++] & 0xFF;
+                    switch (type) {
+                        case AdvertisementParser.TYPE_FLAGS:
+                            record.flags = bytes[position] & 0xFF;
+                            break;
+                        case AdvertisementParser.TYPE_SERVICE_UUIDS_16_INCOMPLETE:
+                        case AdvertisementParser.TYPE_SERVICE_UUIDS_16_COMPLETE:
+                            parseUuids(bytes, position, dataLength, 2, record.serviceUuids);
+                            break;
+                        case AdvertisementParser.TYPE_SERVICE_UUIDS_32_INCOMPLETE:
+                        case AdvertisementParser.TYPE_SERVICE_UUIDS_32_COMPLETE:
+                            parseUuids(bytes, position, dataLength, 4, record.serviceUuids);
+                            break;
+                        case AdvertisementParser.TYPE_SERVICE_UUIDS_128_INCOMPLETE:
+                        case AdvertisementParser.TYPE_SERVICE_UUIDS_128_COMPLETE:
+                            parseUuids(bytes, position, dataLength, 16, record.serviceUuids);
+                            break;
+                        case AdvertisementParser.TYPE_LOCAL_NAME_SHORT:
+                        case AdvertisementParser.TYPE_LOCAL_NAME_COMPLETE:
+                            record.localName = new String(
+                                    extract(bytes, position, dataLength), UTF_8);
+                            break;
+                        case AdvertisementParser.TYPE_TX_POWER_LEVEL:
+                            record.txPowerLevel = bytes[position];
+                            break;
+                        case AdvertisementParser.TYPE_SERVICE_DATA_16:
+                        case AdvertisementParser.TYPE_SERVICE_DATA_32:
+                        case AdvertisementParser.TYPE_SERVICE_DATA_128: {
+                            int width = type == AdvertisementParser.TYPE_SERVICE_DATA_16 ? 2
+                                    : type == AdvertisementParser.TYPE_SERVICE_DATA_32 ? 4 : 16;
+                            UUID uuid = parseUuid(extract(bytes, position, width));
+                            record.serviceData.put(uuid, extract(bytes, position + width,
+                                    dataLength - width));
+                            break;
+                        }
+                        case AdvertisementParser.TYPE_MANUFACTURER_DATA: {
+                            int id = ((bytes[position + 1] & 0xFF) << 8)
+                                    + (bytes[position] & 0xFF);
+                            record.manufacturerData.put(id,
+                                    extract(bytes, position + 2, dataLength - 2));
+                            break;
+                        }
+                        default:
+                            break;
+                    }
+                    position += dataLength;
+                }
+                return record;
+            } catch (RuntimeException e) {
+                // ScanRecord gives up on the whole record when a field runs off the end.
+                return null;
+            }
+        }
+
+        private static void parseUuids(byte[] bytes, int position, int length, int width,
+                List<UUID> out) {
+            while (length > 0) {
+                out.add(parseUuid(extract(bytes, position, width)));
+                position += width;
+                length -= width;
+            }
+        }
+
+        private static UUID parseUuid(byte[] uuidBytes) {
+            if (uuidBytes.length == 16) {
+                ByteBuffer buffer = ByteBuffer.wrap(uuidBytes).order(ByteOrder.LITTLE_ENDIAN);
+                long lsb = buffer.getLong(0);
+                long msb = buffer.getLong(8);
+                return new UUID(msb, lsb);
+            }
+            long shortUuid = uuidBytes[0] & 0xFF;
+            shortUuid += (uuidBytes[1] & 0xFF) << 8;
+            if (uuidBytes.length == 4) {
+                shortUuid += (uuidBytes[2] & 0xFF) << 16;
+                shortUuid += (long) (uuidBytes[3] & 0xFF) << 24;
+            }
+            return new UUID(AdvertisementParser.BASE_UUID_MSB + (shortUuid << 32),
+                    AdvertisementParser.BASE_UUID_LSB);
+        }
+
+        private static byte[] extract(byte[] bytes, int start, int length) {
+            byte[] copy = new byte[length];
+            System.arraycopy(bytes, start, copy, 0, length);
+            return copy;
+        }
+    }
+}
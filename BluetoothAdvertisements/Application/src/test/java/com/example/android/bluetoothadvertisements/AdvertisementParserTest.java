@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses the payloads in {@link AdvertisementCorpus} with {@link AdvertisementParser}.
+ */
+public class AdvertisementParserTest {
+
+    private final AdvertisementParser mParser = new AdvertisementParser();
+
+    @Test
+    public void parsesManufacturerData() {
+        mParser.parse(AdvertisementCorpus.bytes(AdvertisementCorpus.IBEACON));
+        assertEquals(0x06, mParser.getFlags());
+        assertEquals(1, mParser.getManufacturerDataCount());
+        assertEquals(0x004C, mParser.getManufacturerId(0));
+        assertEquals(23, mParser.getManufacturerDataLength(0));
+        assertEquals(0x02, mParser.u8(mParser.getManufacturerDataOffset(0)));
+        assertEquals(0, mParser.findManufacturerData(0x004C));
+        assertEquals(-1, mParser.findManufacturerData(0x0006));
+        assertFalse(mParser.hasLocalName());
+    }
+
+    @Test
+    public void parsesServiceUuidsAndData() {
+        mParser.parse(AdvertisementCorpus.bytes(AdvertisementCorpus.EDDYSTONE_TLM));
+        assertEquals(1, mParser.getServiceUuid16Count());
+        assertEquals(0xFEAA, mParser.getServiceUuid16(0));
+        assertTrue(mParser.hasServiceUuid16(0xFEAA));
+        int index = mParser.findServiceData16(0xFEAA);
+        assertEquals(0, index);
+        assertEquals(14, mParser.getServiceDataLength(index));
+        assertEquals(0x20, mParser.u8(mParser.getServiceDataOffset(index)));
+    }
+
+    @Test
+    public void parsesNameAndTxPower() {
+        mParser.parse(AdvertisementCorpus.bytes(AdvertisementCorpus.HEART_RATE_SENSOR));
+        assertEquals("Polar H7 1234", mParser.getLocalName());
+        assertTrue(mParser.isLocalNameComplete());
+        assertEquals(4, mParser.getTxPowerLevel());
+        assertTrue(mParser.hasServiceUuid16(0x180D));
+    }
+
+    @Test
+    public void parses128BitUuids() {
+        mParser.parse(AdvertisementCorpus.bytes(AdvertisementCorpus.CUSTOM_128));
+        UUID expected = UUID.fromString("0000b81d-0000-1000-8000-00805f9b34fb");
+        assertEquals(1, mParser.getServiceUuid128Count());
+        assertEquals(expected.getMostSignificantBits(), mParser.getServiceUuid128Msb(0));
+        assertEquals(expected.getLeastSignificantBits(), mParser.getServiceUuid128Lsb(0));
+        assertTrue(mParser.hasServiceUuid16(0xB81D));
+        assertEquals("Nearby", mParser.getLocalName());
+    }
+
+    @Test
+    public void handlesTruncationAndPadding() {
+        mParser.parse(AdvertisementCorpus.bytes(AdvertisementCorpus.TRUNCATED));
+        assertTrue(mParser.isTruncated());
+        assertEquals(0x06, mParser.getFlags());
+        assertEquals(0, mParser.getManufacturerDataCount());
+
+        mParser.parse(AdvertisementCorpus.bytes(AdvertisementCorpus.PADDED));
+        assertFalse(mParser.isTruncated());
+        assertEquals("Dev1", mParser.getLocalName());
+        assertEquals(AdvertisementParser.TX_POWER_UNKNOWN, mParser.getTxPowerLevel());
+    }
+
+    @Test
+    public void readsDirectBuffers() {
+        byte[] bytes = AdvertisementCorpus.bytes(AdvertisementCorpus.IBEACON);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 8);
+        buffer.position(8);
+        buffer.put(bytes);
+        buffer.position(8);
+        mParser.parse(buffer);
+        assertEquals(0x004C, mParser.getManufacturerId(0));
+        assertEquals(8, buffer.position());
+    }
+}
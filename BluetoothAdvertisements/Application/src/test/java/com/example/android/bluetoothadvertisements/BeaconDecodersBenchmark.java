@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures parsing plus {@link BeaconDecoders#decode} over the mixed beacon, phone and
+ * sensor payloads in {@link AdvertisementCorpus}, and how much it allocates.
+ *
+ * Run with {@code java ... BeaconDecodersBenchmark}; it is not a unit test.
+ */
+public class BeaconDecodersBenchmark {
+
+    private static final int ITERATIONS = 5000000;
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        byte[][] corpus = AdvertisementCorpus.all();
+        AdvertisementParser parser = new AdvertisementParser();
+        BeaconDecoders decoders = BeaconDecoders.createDefault();
+        BeaconEvent event = new BeaconEvent();
+        long sink = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            int[] perType = new int[BeaconEvent.TYPE_EDDYSTONE_EID + 1];
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                if (decoders.decode(parser.parse(corpus[i % corpus.length]), event)) {
+                    sink += event.getIdMsb() + event.getMajor() + event.getBatteryMillivolts();
+                }
+                perType[event.getType()]++;
+            }
+            double nanos = (System.nanoTime() - start) / (double) ITERATIONS;
+            double bytes = (allocatedBytes() - allocated) / (double) ITERATIONS;
+            System.out.printf("round %d: %5.1f ns/record, %4.2f B/record, %d beacons%n",
+                    round, nanos, bytes, ITERATIONS - perType[BeaconEvent.TYPE_NONE]);
+        }
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes the beacon frames in {@link AdvertisementCorpus} with
+ * {@link BeaconDecoders#createDefault()}.
+ */
+public class BeaconDecodersTest {
+
+    private final AdvertisementParser mParser = new AdvertisementParser();
+
+    private final BeaconDecoders mDecoders = BeaconDecoders.createDefault();
+
+    private final BeaconEvent mEvent = new BeaconEvent();
+
+    private boolean decode(String hex) {
+        return mDecoders.decode(mParser.parse(AdvertisementCorpus.bytes(hex)), mEvent);
+    }
+
+    @Test
+    public void decodesIBeacon() {
+        assertTrue(decode(AdvertisementCorpus.IBEACON));
+        UUID uuid = UUID.fromString("F7826DA6-4FA2-4E98-8024-BC5B71E0893E");
+        assertEquals(BeaconEvent.TYPE_IBEACON, mEvent.getType());
+        assertEquals(BeaconDecoders.COMPANY_APPLE, mEvent.getCompanyId());
+        assertEquals(uuid.getMostSignificantBits(), mEvent.getIdMsb());
+        assertEquals(uuid.getLeastSignificantBits(), mEvent.getIdLsb());
+        assertEquals(1234, mEvent.getMajor());
+        assertEquals(5678, mEvent.getMinor());
+        assertEquals(-59, mEvent.getTxPower());
+    }
+
+    @Test
+    public void decodesAltBeaconFromAnyCompany() {
+        assertTrue(decode(AdvertisementCorpus.ALTBEACON));
+        UUID uuid = UUID.fromString("2F234454-CF6D-4A0F-ADF2-F4911BA9FFA6");
+        assertEquals(BeaconEvent.TYPE_ALTBEACON, mEvent.getType());
+        assertEquals(0x0118, mEvent.getCompanyId());
+        assertEquals(uuid.getMostSignificantBits(), mEvent.getIdMsb());
+        assertEquals(uuid.getLeastSignificantBits(), mEvent.getIdLsb());
+        assertEquals(1, mEvent.getMajor());
+        assertEquals(2, mEvent.getMinor());
+        assertEquals(-59, mEvent.getTxPower());
+    }
+
+    @Test
+    public void decodesEddystoneFrames() {
+        assertTrue(decode(AdvertisementCorpus.EDDYSTONE_UID));
+        assertEquals(BeaconEvent.TYPE_EDDYSTONE_UID, mEvent.getType());
+        assertEquals(-25, mEvent.getTxPower());
+        assertEquals(0x8B8AFF28A39E2A7AL, mEvent.getIdMsb());
+        assertEquals(0xE1A4, mEvent.getIdLsb() >>> 48);
+        assertEquals(0x010203040506L, mEvent.getInstance());
+
+        assertTrue(decode(AdvertisementCorpus.EDDYSTONE_URL));
+        StringBuilder url = new StringBuilder();
+        assertTrue(mEvent.appendUrl(url));
+        assertEquals("https://example.com", url.toString());
+
+        assertTrue(decode(AdvertisementCorpus.EDDYSTONE_TLM));
+        assertEquals(BeaconEvent.TYPE_EDDYSTONE_TLM, mEvent.getType());
+        assertEquals(3000, mEvent.getBatteryMillivolts());
+        assertEquals(24.0f, mEvent.getTemperatureCelsius(), 0f);
+        assertEquals(10000, mEvent.getAdvertisingCount());
+        assertEquals(43200, mEvent.getUptimeDeciseconds());
+
+        assertTrue(decode(AdvertisementCorpus.EDDYSTONE_EID));
+        assertEquals(BeaconEvent.TYPE_EDDYSTONE_EID, mEvent.getType());
+        assertEquals(0x1122334455667788L, mEvent.getIdMsb());
+    }
+
+    @Test
+    public void ignoresOtherAdvertisements() {
+        for (String hex : new String[] {AdvertisementCorpus.APPLE_NEARBY,
+                AdvertisementCorpus.MICROSOFT_CDP, AdvertisementCorpus.HEART_RATE_SENSOR,
+                AdvertisementCorpus.TRUNCATED, AdvertisementCorpus.PADDED}) {
+            assertFalse(hex, decode(hex));
+            assertEquals(BeaconEvent.TYPE_NONE, mEvent.getType());
+        }
+    }
+
+    @Test
+    public void usesRegisteredDecoders() {
+        // Claim Apple Nearby frames as iBeacons; the table picks the decoder, not a branch.
+        mDecoders.registerManufacturer(BeaconDecoders.COMPANY_APPLE, 0x1005,
+                new BeaconDecoders.Decoder() {
+                    @Override
+                    public boolean decode(AdvertisementParser record, int offset, int length,
+                            BeaconEvent event) {
+                        event.setType(BeaconEvent.TYPE_IBEACON);
+                        event.setMajorMinor(record.u8(offset + 2), 0);
+                        return true;
+                    }
+                });
+        assertTrue(decode(AdvertisementCorpus.APPLE_NEARBY));
+        assertEquals(0x0B, mEvent.getMajor());
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Logs a million synthetic advertisements from a site of iBeacons, Eddystone-UID beacons and
+ * phones, compresses the segments with {@link LogCompactor}, and reports what the
+ * {@link BeaconIndex} of each segment costs to build and store, then the latency of
+ * {@link BeaconQuery} by manufacturer, UUID, UUID and major, one beacon and Eddystone
+ * namespace, through the indexes and with them hidden, which scans every record.
+ *
+ * Run with {@code java ... BeaconIndexBenchmark [records]}; it is not a unit test.
+ */
+public class BeaconIndexBenchmark {
+
+    private static final long SECOND = 1000000000L;
+
+    private static final long START = 1704067200L * SECOND;
+
+    private static final int IBEACONS = 1200;
+
+    private static final int EDDYSTONES = 600;
+
+    private static final int PHONES = 500;
+
+    private static final int UUIDS = 10;
+
+    private static final int NAMESPACES = 10;
+
+    private static final int REPEATS = 15;
+
+    /**
+     * Apple, Microsoft, Samsung and Google, little-endian in the payload.
+     */
+    private static final int[] PHONE_COMPANIES = {0x004C, 0x0006, 0x0075, 0x00E0};
+
+    /**
+     * A beacon only seen for half a minute of the whole log, as analysts tend to look for.
+     */
+    private static final long VISITOR_UUID_LSB = 0x5A5A5A5A5A5A5A5AL;
+
+    public static void main(String[] args) throws IOException {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        File directory = File.createTempFile("advlog", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            run(directory, records);
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private static void run(File directory, int records) throws IOException {
+        Random random = new Random(1);
+        int devices = IBEACONS + EDDYSTONES + PHONES;
+        byte[][] payloads = new byte[devices][];
+        for (int device = 0; device < devices; device++) {
+            ByteBuffer buffer;
+            if (device < IBEACONS) {
+                payloads[device] = AdvertisementCorpus.bytes(AdvertisementCorpus.IBEACON);
+                buffer = ByteBuffer.wrap(payloads[device]);
+                buffer.putLong(17, device % UUIDS);
+                buffer.putShort(25, (short) (device / UUIDS % 16));
+                buffer.putShort(27, (short) device);
+            } else if (device < IBEACONS + EDDYSTONES) {
+                payloads[device] = AdvertisementCorpus.bytes(AdvertisementCorpus.EDDYSTONE_UID);
+                buffer = ByteBuffer.wrap(payloads[device]);
+                buffer.putShort(21, (short) (device % NAMESPACES));
+                buffer.putShort(27, (short) device);
+            } else {
+                payloads[device] = new byte[25];
+                buffer = ByteBuffer.wrap(payloads[device]);
+                buffer.put((byte) 24).put((byte) AdvertisementParser.TYPE_MANUFACTURER_DATA);
+                buffer.putShort(Short.reverseBytes((short) PHONE_COMPANIES[device % 4]));
+            }
+        }
+
+        // Same settings as Constants.LOG_*.
+        AdvertisementLogWriter writer = new AdvertisementLogWriter(directory, 16 * 1024 * 1024,
+                1000, SECOND);
+        long timestamp = START;
+        byte[] phone = new byte[21];
+        byte[] visitor = AdvertisementCorpus.bytes(AdvertisementCorpus.IBEACON);
+        ByteBuffer.wrap(visitor).putLong(17, VISITOR_UUID_LSB);
+        for (int i = 0; i < records; i++) {
+            // About 1000 advertisements a second.
+            timestamp += random.nextInt(2000000);
+            int device = random.nextInt(devices);
+            byte[] payload = payloads[device];
+            if (device >= IBEACONS + EDDYSTONES) {
+                random.nextBytes(phone);
+                System.arraycopy(phone, 0, payload, 4, phone.length);
+            }
+            if (i % 100 == 0 && Math.abs(i - records / 3) < 15000) {
+                payload = visitor;
+            }
+            writer.append(timestamp, 0xD00000000000L + device * 104729L, -40 - random.nextInt(55),
+                    AdvertisementLogWriter.TX_POWER_UNKNOWN, payload);
+        }
+        long end = timestamp;
+        writer.close();
+
+        LogCompactor compactor = new LogCompactor(directory, Long.MAX_VALUE / 2,
+                16 * 1024 * 1024);
+        for (File segment : AdvertisementLogReader.listSegments(directory)) {
+            compactor.compress(segment, 0);
+        }
+        compactor.close();
+
+        // Build cost: reading a segment, against reading it and indexing every record.
+        File[] files = AdvertisementLogReader.listLogFiles(directory);
+        long readNanos = 0;
+        long buildNanos = 0;
+        long segmentBytes = 0;
+        long indexBytes = 0;
+        int keys = 0;
+        File scratch = new File(directory, "scratch" + BeaconIndex.INDEX_SUFFIX);
+        for (File file : files) {
+            // Warms up the JIT.
+            measureBuild(file, scratch);
+        }
+        for (File file : files) {
+            long[] cost = measureBuild(file, scratch);
+            readNanos += cost[0];
+            buildNanos += cost[1];
+            segmentBytes += cost[2];
+            indexBytes += cost[3];
+            keys += cost[4];
+        }
+        scratch.delete();
+        int segments = files.length;
+        System.out.printf("%,d records in %d compressed segments, %.1f MB%n", records, segments,
+                segmentBytes / 1e6);
+        System.out.printf("Index build:  %.1f ms per segment over %.1f ms to read it,"
+                        + " %.0f keys, %.0f KB (%.1f%% of the segment)%n",
+                (buildNanos - readNanos) / 1e6 / segments, readNanos / 1e6 / segments,
+                keys / (double) segments, indexBytes / 1e3 / segments,
+                indexBytes * 100.0 / segmentBytes);
+
+        long uuidMsb = ByteBuffer.wrap(payloads[0]).getLong(9);
+        long namespaceMsb = ByteBuffer.wrap(payloads[IBEACONS]).getLong(13);
+        String[] names = {
+                "Apple, all time", "UUID, all time", "UUID+major, all time",
+                "One iBeacon, 10 min", "One iBeacon, -60 dBm", "Namespace, 1 min",
+                "Visitor UUID, all time",
+        };
+        BeaconKey.Range[] ranges = {
+                BeaconKey.Range.manufacturer(BeaconDecoders.COMPANY_APPLE),
+                BeaconKey.Range.iBeacon(uuidMsb, 3),
+                BeaconKey.Range.iBeacon(uuidMsb, 3, 5),
+                BeaconKey.Range.iBeacon(uuidMsb, 3, 5, 53),
+                BeaconKey.Range.iBeacon(uuidMsb, 3, 5, 53),
+                BeaconKey.Range.eddystoneNamespace(namespaceMsb, 7),
+                BeaconKey.Range.iBeacon(uuidMsb, VISITOR_UUID_LSB),
+        };
+        long middle = START + (end - START) / 2;
+        long[][] times = {
+                {Long.MIN_VALUE, Long.MAX_VALUE},
+                {Long.MIN_VALUE, Long.MAX_VALUE},
+                {Long.MIN_VALUE, Long.MAX_VALUE},
+                {middle, middle + 600 * SECOND},
+                {Long.MIN_VALUE, Long.MAX_VALUE},
+                {middle, middle + 60 * SECOND},
+                {Long.MIN_VALUE, Long.MAX_VALUE},
+        };
+        int[] minRssi = {-128, -128, -128, -128, -60, -128, -128};
+        long[][] latencies = new long[2][ranges.length];
+        long[][] blocks = new long[2][ranges.length];
+        long[] found = new long[ranges.length];
+        for (int q = 0; q < ranges.length; q++) {
+            long[][] nanos = new long[2][REPEATS];
+            for (int r = 0; r < REPEATS; r++) {
+                // Alternates between the indexes and scanning, hiding the indexes for the
+                // second, so that both see the same JIT and page cache.
+                for (int pass = 0; pass < 2; pass++) {
+                    hideIndexes(files, pass == 1);
+                    Sink sink = new Sink();
+                    BeaconQuery query = new BeaconQuery(directory);
+                    long start = System.nanoTime();
+                    query.run(ranges[q], times[q][0], times[q][1], minRssi[q], sink);
+                    nanos[pass][r] = System.nanoTime() - start;
+                    found[q] = sink.mCount;
+                    blocks[pass][q] = query.getBlocksRead();
+                }
+                hideIndexes(files, false);
+            }
+            for (int pass = 0; pass < 2; pass++) {
+                Arrays.sort(nanos[pass]);
+                latencies[pass][q] = nanos[pass][REPEATS / 2];
+            }
+        }
+        System.out.printf("%-24s %9s %18s %18s%n", "Query", "records", "indexed", "scanned");
+        for (int q = 0; q < ranges.length; q++) {
+            System.out.printf("%-24s %,9d %7.1f ms %4d blk %7.1f ms %4d blk%n", names[q],
+                    found[q], latencies[0][q] / 1e6, blocks[0][q], latencies[1][q] / 1e6,
+                    blocks[1][q]);
+        }
+    }
+
+    private static void hideIndexes(File[] segments, boolean hide) throws IOException {
+        for (File segment : segments) {
+            File index = BeaconIndex.indexFile(segment);
+            File hidden = new File(index.getPath() + ".hidden");
+            File from = hide ? index : hidden;
+            File to = hide ? hidden : index;
+            if (from.exists() && !from.renameTo(to)) {
+                throw new IOException("Unable to rename " + from);
+            }
+        }
+    }
+
+    /**
+     * Reads a segment, then reads it again building its index.
+     *
+     * @return nanoseconds to read, nanoseconds to read and index, the segment and index
+     *         sizes and the key count
+     */
+    private static long[] measureBuild(File file, File scratch) throws IOException {
+        CompressedSegment segment = CompressedSegment.open(file);
+        try {
+            long start = System.nanoTime();
+            segment.readAll(new Sink());
+            long readNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            final BeaconIndexWriter index = new BeaconIndexWriter();
+            segment.readAll(new AdvertisementLogReader.RecordVisitor() {
+                private int mOrdinal;
+
+                @Override
+                public boolean onRecord(long timestampNanos, long address, int rssi,
+                                        int txPower, ByteBuffer scanRecord) {
+                    index.add(mOrdinal++, rssi, scanRecord);
+                    return true;
+                }
+            });
+            index.write(scratch, segment.getChecksum(), segment.getRecordCount());
+            long buildNanos = System.nanoTime() - start;
+            return new long[]{readNanos, buildNanos, segment.getSizeBytes(),
+                    index.getSizeBytes(), index.getKeyCount()};
+        } finally {
+            segment.close();
+        }
+    }
+
+    private static final class Sink implements AdvertisementLogReader.RecordVisitor {
+        long mCount;
+
+        @Override
+        public boolean onRecord(long timestampNanos, long address, int rssi, int txPower,
+                                ByteBuffer scanRecord) {
+            mCount++;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Builds {@link BeaconIndex}es through {@link LogCompactor} and checks that
+ * {@link BeaconQuery} finds what a scan of every record does, through the indexes or, where
+ * they are missing or stale, without them.
+ */
+public class BeaconIndexTest {
+
+    private static final long SECOND = 1000000000L;
+
+    private static final long START = 1704067200L * SECOND;
+
+    private static final int IBEACON_UUIDS = 3;
+
+    private static final int MAJORS = 4;
+
+    private static final int NAMESPACES = 3;
+
+    private static final int COMPANY_MICROSOFT = 0x0006;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("advlog", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static final class Record {
+        final long mTimestamp;
+        final long mAddress;
+        final int mRssi;
+        final byte[] mScanRecord;
+
+        Record(long timestamp, long address, int rssi, byte[] scanRecord) {
+            mTimestamp = timestamp;
+            mAddress = address;
+            mRssi = rssi;
+            mScanRecord = scanRecord;
+        }
+    }
+
+    private static final class Collector implements AdvertisementLogReader.RecordVisitor {
+        final List<Record> mRecords = new ArrayList<>();
+
+        @Override
+        public boolean onRecord(long timestampNanos, long address, int rssi, int txPower,
+                                ByteBuffer scanRecord) {
+            byte[] bytes = new byte[scanRecord.remaining()];
+            scanRecord.duplicate().get(bytes);
+            mRecords.add(new Record(timestampNanos, address, rssi, bytes));
+            return true;
+        }
+    }
+
+    private static long uuidMsb(int uuid) {
+        return 0xF7826DA64FA24E98L + uuid;
+    }
+
+    private static long uuidLsb(int uuid) {
+        return 0x8024BC5B71E0893EL ^ uuid;
+    }
+
+    private static long namespaceMsb(int namespace) {
+        return 0x8B8AFF28A39E2A7AL + namespace;
+    }
+
+    private static int namespaceLsb(int namespace) {
+        return 0xE1A4 - namespace;
+    }
+
+    /**
+     * The scan record of a device: iBeacons spread over a few UUIDs and majors, Eddystone-UID
+     * beacons over a few namespaces, and phones with Microsoft or random manufacturer data.
+     */
+    private static byte[] scanRecord(int device, Random random) {
+        switch (device % 4) {
+            case 0: {
+                byte[] record = AdvertisementCorpus.bytes(AdvertisementCorpus.IBEACON);
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                int uuid = device / 4 % IBEACON_UUIDS;
+                buffer.putLong(9, uuidMsb(uuid));
+                buffer.putLong(17, uuidLsb(uuid));
+                buffer.putShort(25, (short) (device / 12 % MAJORS));
+                buffer.putShort(27, (short) device);
+                return record;
+            }
+            case 1: {
+                byte[] record = AdvertisementCorpus.bytes(AdvertisementCorpus.EDDYSTONE_UID);
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                int namespace = device / 4 % NAMESPACES;
+                buffer.putLong(13, namespaceMsb(namespace));
+                buffer.putShort(21, (short) namespaceLsb(namespace));
+                buffer.putShort(27, (short) device);
+                return record;
+            }
+            case 2:
+                return AdvertisementCorpus.bytes(AdvertisementCorpus.MICROSOFT_CDP);
+            default: {
+                byte[] record = new byte[12];
+                random.nextBytes(record);
+                record[0] = 11;
+                record[1] = (byte) AdvertisementParser.TYPE_MANUFACTURER_DATA;
+                return record;
+            }
+        }
+    }
+
+    /**
+     * Writes {@code count} advertisements from 400 devices, one every 10 ms from
+     * {@code start}, compressing each segment as it closes.
+     */
+    private List<Record> writeLog(final LogCompactor compactor, long start, int count,
+                                  int segmentBytes, Random random) throws IOException {
+        AdvertisementLogWriter writer =
+                new AdvertisementLogWriter(mDirectory, segmentBytes, 1000, Long.MAX_VALUE);
+        writer.setSegmentListener(new AdvertisementLogWriter.SegmentListener() {
+            @Override
+            public void onSegmentClosed(File segment) {
+                try {
+                    compactor.compress(segment, 0);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int device = random.nextInt(400);
+            byte[] scanRecord = scanRecord(device, random);
+            long timestamp = start + i * 10000000L;
+            long address = 0xC0FFEE000000L + device * 7919L;
+            int rssi = -30 - random.nextInt(70);
+            writer.append(timestamp, address, rssi, 0, scanRecord);
+            records.add(new Record(timestamp, address, rssi, scanRecord));
+        }
+        writer.close();
+        return records;
+    }
+
+    /**
+     * The records a query should find, by decoding every one.
+     */
+    private static List<Record> expected(List<Record> records, final BeaconKey.Range range,
+                                         long from, long to, int minRssi) {
+        BeaconKey.Extractor extractor = new BeaconKey.Extractor();
+        final boolean[] match = new boolean[1];
+        BeaconKey.KeyVisitor matcher = new BeaconKey.KeyVisitor() {
+            @Override
+            public void onKey(int kind, long first, long second, int third) {
+                match[0] |= range.contains(kind, first, second, third);
+            }
+        };
+        List<Record> expected = new ArrayList<>();
+        for (Record record : records) {
+            if (record.mTimestamp < from || record.mTimestamp > to || record.mRssi < minRssi) {
+                continue;
+            }
+            match[0] = false;
+            extractor.extract(ByteBuffer.wrap(record.mScanRecord), matcher);
+            if (match[0]) {
+                expected.add(record);
+            }
+        }
+        return expected;
+    }
+
+    private static void assertRecords(List<Record> expected, List<Record> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).mTimestamp, actual.get(i).mTimestamp);
+            assertEquals(expected.get(i).mAddress, actual.get(i).mAddress);
+            assertEquals(expected.get(i).mRssi, actual.get(i).mRssi);
+            assertArrayEquals(expected.get(i).mScanRecord, actual.get(i).mScanRecord);
+        }
+    }
+
+    private static BeaconKey.Range[] ranges() {
+        return new BeaconKey.Range[]{
+                BeaconKey.Range.manufacturer(BeaconDecoders.COMPANY_APPLE),
+                BeaconKey.Range.manufacturer(COMPANY_MICROSOFT),
+                BeaconKey.Range.iBeacon(uuidMsb(1), uuidLsb(1)),
+                BeaconKey.Range.iBeacon(uuidMsb(2), uuidLsb(2), 3),
+                BeaconKey.Range.iBeacon(uuidMsb(0), uuidLsb(0), 1, 12),
+                BeaconKey.Range.eddystoneNamespace(namespaceMsb(2), namespaceLsb(2)),
+                BeaconKey.Range.of(BeaconKey.eddystoneUid(namespaceMsb(0),
+                        (long) namespaceLsb(0) << 48 | 13)),
+                BeaconKey.Range.iBeacon(uuidMsb(9), uuidLsb(9)),
+        };
+    }
+
+    /**
+     * Runs every query over the log and checks it against a scan.
+     */
+    private void assertQueries(BeaconQuery query, List<Record> records, long end)
+            throws IOException {
+        long[][] times = {
+                {Long.MIN_VALUE, Long.MAX_VALUE},
+                {START + 100 * SECOND, START + 160 * SECOND},
+                {START + 7 * SECOND + 5000000L, START + 7 * SECOND + 5000000L},
+                {end + SECOND, Long.MAX_VALUE},
+        };
+        for (BeaconKey.Range range : ranges()) {
+            for (long[] time : times) {
+                for (int minRssi : new int[]{-128, -60, -30, 127}) {
+                    Collector found = new Collector();
+                    List<Record> expected = expected(records, range, time[0], time[1], minRssi);
+                    assertEquals(range + " from " + time[0] + " rssi " + minRssi,
+                            expected.size(), query.run(range, time[0], time[1], minRssi, found));
+                    assertRecords(expected, found.mRecords);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void roaringBitmapsMatchBitSets() throws IOException {
+        Random random = new Random(7);
+        for (int round = 0; round < 20; round++) {
+            BitSet[] sets = new BitSet[2];
+            RoaringBitmap[] bitmaps = new RoaringBitmap[2];
+            for (int k = 0; k < 2; k++) {
+                sets[k] = new BitSet();
+                bitmaps[k] = new RoaringBitmap();
+                // Chunks of every density: sparse, dense, full ranges and none at all.
+                for (int chunk = 0; chunk < 6; chunk++) {
+                    int base = chunk << 16;
+                    int kind = random.nextInt(4);
+                    if (kind == 1) {
+                        for (int i = random.nextInt(5000); i > 0; i--) {
+                            int value = base + random.nextInt(65536);
+                            sets[k].set(value);
+                            bitmaps[k].add(value);
+                        }
+                    } else if (kind == 2) {
+                        for (int value = base; value < base + 65536; value++) {
+                            if (random.nextInt(3) == 0) {
+                                sets[k].set(value);
+                                bitmaps[k].add(value);
+                            }
+                        }
+                    } else if (kind == 3) {
+                        int from = base + random.nextInt(65536);
+                        int to = from + random.nextInt(100000);
+                        sets[k].set(from, to);
+                        bitmaps[k].addRange(from, to);
+                    }
+                }
+                assertBitmap(sets[k], bitmaps[k]);
+            }
+            BitSet and = (BitSet) sets[0].clone();
+            and.and(sets[1]);
+            assertBitmap(and, bitmaps[0].and(bitmaps[1]));
+            BitSet or = (BitSet) sets[0].clone();
+            or.or(sets[1]);
+            assertBitmap(or, bitmaps[0].or(bitmaps[1]));
+            BitSet andNot = (BitSet) sets[0].clone();
+            andNot.andNot(sets[1]);
+            assertBitmap(andNot, bitmaps[0].andNot(bitmaps[1]));
+
+            ByteBuffer buffer = ByteBuffer.allocate(bitmaps[0].getSerializedSize());
+            bitmaps[0].serialize(buffer);
+            assertFalse(buffer.hasRemaining());
+            buffer.flip();
+            assertEquals(bitmaps[0], RoaringBitmap.deserialize(buffer));
+        }
+
+        RoaringBitmap bitmap = RoaringBitmap.range(10, 5000);
+        ByteBuffer buffer = ByteBuffer.allocate(bitmap.getSerializedSize());
+        bitmap.serialize(buffer);
+        buffer.putShort(10, (short) 9);
+        buffer.flip();
+        try {
+            RoaringBitmap.deserialize(buffer);
+            fail("Read values out of order");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static void assertBitmap(BitSet expected, RoaringBitmap actual) {
+        assertEquals(expected.cardinality(), actual.getCardinality());
+        assertEquals(expected.isEmpty(), actual.isEmpty());
+        int value = actual.nextValue(0);
+        for (int bit = expected.nextSetBit(0); bit >= 0; bit = expected.nextSetBit(bit + 1)) {
+            assertEquals(bit, value);
+            assertTrue(actual.contains(bit));
+            value = actual.nextValue(value + 1);
+        }
+        assertEquals(-1, value);
+        for (int i = 0; i < 100; i++) {
+            int probe = i * 4099;
+            assertEquals(expected.get(probe), actual.contains(probe));
+        }
+    }
+
+    @Test
+    public void queriesThroughIndexesMatchAScan() throws IOException {
+        LogCompactor compactor = new LogCompactor(mDirectory, Long.MAX_VALUE / 2, 1024 * 1024);
+        List<Record> records = writeLog(compactor, START, 40000, 256 * 1024, new Random(5));
+        compactor.close();
+        int segments = compactor.getCompressedSegmentCount();
+        assertTrue(segments > 3);
+        assertEquals(segments, compactor.getIndexedSegmentCount());
+        assertEquals(segments, countFiles(BeaconIndex.INDEX_SUFFIX));
+        for (File file : AdvertisementLogReader.listLogFiles(mDirectory)) {
+            CompressedSegment segment = CompressedSegment.open(file);
+            BeaconIndex index = BeaconIndex.open(BeaconIndex.indexFile(file));
+            assertTrue(index.matches(segment));
+            // 100 iBeacons and 100 Eddystone-UIDs, plus Apple, Microsoft and random companies.
+            assertTrue(index.getKeyCount() > 200);
+            segment.close();
+        }
+
+        BeaconQuery query = new BeaconQuery(mDirectory);
+        assertQueries(query, records, records.get(records.size() - 1).mTimestamp);
+        assertEquals(0, query.getScannedSegmentCount());
+
+        // One beacon over a minute only decompresses blocks in that minute, at most, and an
+        // identifier that isn't there none at all.
+        long from = START + 100 * SECOND;
+        long to = START + 160 * SECOND;
+        int blocks = 0;
+        for (File file : AdvertisementLogReader.listLogFiles(mDirectory)) {
+            CompressedSegment segment = CompressedSegment.open(file);
+            segment.read(from, to, new Collector());
+            blocks += segment.getBlocksRead();
+            segment.close();
+        }
+        BeaconQuery one = new BeaconQuery(mDirectory);
+        assertTrue(one.run(BeaconKey.Range.iBeacon(uuidMsb(0), uuidLsb(0), 1, 12), from, to,
+                -128, new Collector()) > 0);
+        assertTrue("Read " + one.getBlocksRead() + " of " + blocks,
+                one.getBlocksRead() <= blocks);
+        BeaconQuery none = new BeaconQuery(mDirectory);
+        assertEquals(0, none.run(BeaconKey.Range.iBeacon(uuidMsb(9), uuidLsb(9)),
+                Long.MIN_VALUE, Long.MAX_VALUE, -128, new Collector()));
+        assertEquals(0, none.getBlocksRead());
+        assertEquals(0, none.getCandidateCount());
+    }
+
+    @Test
+    public void queriesScanWhereIndexesAreMissingOrStale() throws IOException {
+        LogCompactor compactor = new LogCompactor(mDirectory, Long.MAX_VALUE / 2, 1024 * 1024);
+        List<Record> records = writeLog(compactor, START, 40000, 256 * 1024, new Random(9));
+        File[] files = AdvertisementLogReader.listLogFiles(mDirectory);
+        assertTrue(files.length >= 5);
+
+        // One index gone, one damaged in its keys and one in its RSSI slices, and one left
+        // from another segment.
+        assertTrue(BeaconIndex.indexFile(files[0]).delete());
+        copy(BeaconIndex.indexFile(files[3]), BeaconIndex.indexFile(files[2]));
+        flipByte(BeaconIndex.indexFile(files[1]), BeaconIndex.HEADER_SIZE + 3);
+        File slices = BeaconIndex.indexFile(files[3]);
+        flipByte(slices, slices.length() - 10);
+
+        // And the newest records still in a raw segment.
+        AdvertisementLogWriter writer =
+                new AdvertisementLogWriter(mDirectory, 16 * 1024 * 1024, 1000, Long.MAX_VALUE);
+        Random random = new Random(10);
+        long start = records.get(records.size() - 1).mTimestamp + SECOND;
+        for (int i = 0; i < 2000; i++) {
+            byte[] scanRecord = scanRecord(i % 400, random);
+            long address = 0xC0FFEE000000L + i % 400 * 7919L;
+            writer.append(start + i * 1000000L, address, -50, 0, scanRecord);
+            records.add(new Record(start + i * 1000000L, address, -50, scanRecord));
+        }
+        writer.close();
+
+        BeaconQuery query = new BeaconQuery(mDirectory);
+        Collector found = new Collector();
+        BeaconKey.Range range = BeaconKey.Range.iBeacon(uuidMsb(1), uuidLsb(1));
+        List<Record> expected = expected(records, range, Long.MIN_VALUE, Long.MAX_VALUE, -70);
+        assertEquals(expected.size(), query.run(range, Long.MIN_VALUE, Long.MAX_VALUE, -70,
+                found));
+        assertRecords(expected, found.mRecords);
+        assertEquals(5, query.getScannedSegmentCount());
+        assertEquals(files.length - 4, query.getIndexedSegmentCount());
+        assertQueries(query, records, records.get(records.size() - 1).mTimestamp);
+
+        // A stopped visitor stops the query, scanning or not.
+        final int[] seen = new int[1];
+        long stopped = query.run(range, Long.MIN_VALUE, Long.MAX_VALUE, -128,
+                new AdvertisementLogReader.RecordVisitor() {
+                    @Override
+                    public boolean onRecord(long timestampNanos, long address, int rssi,
+                                            int txPower, ByteBuffer scanRecord) {
+                        return ++seen[0] < 5;
+                    }
+                });
+        assertEquals(5, stopped);
+
+        // Merging rewrites the segments with fresh indexes, and drops orphaned ones.
+        File orphan = BeaconIndex.indexFile(new File(mDirectory,
+                CompressedSegment.segmentName(999)));
+        copy(BeaconIndex.indexFile(files[3]), orphan);
+        compactor.compact(START);
+        compactor.close();
+        assertFalse(orphan.exists());
+        assertTrue(compactor.getMergedSegmentCount() >= files.length);
+        for (File file : AdvertisementLogReader.listLogFiles(mDirectory)) {
+            if (CompressedSegment.parseSegmentSequence(file.getName()) >= 0) {
+                CompressedSegment segment = CompressedSegment.open(file);
+                assertTrue(BeaconIndex.open(BeaconIndex.indexFile(file)).matches(segment));
+                segment.close();
+            }
+        }
+        assertEquals(countFiles(CompressedSegment.SEGMENT_SUFFIX),
+                countFiles(BeaconIndex.INDEX_SUFFIX));
+        BeaconQuery merged = new BeaconQuery(mDirectory);
+        assertQueries(merged, records, records.get(records.size() - 1).mTimestamp);
+        // Only the raw segment is scanned, once by each of the 16 queries per range.
+        assertEquals(ranges().length * 16, merged.getScannedSegmentCount());
+    }
+
+    private int countFiles(String suffix) {
+        int count = 0;
+        for (String name : mDirectory.list()) {
+            if (name.endsWith(suffix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void flipByte(File file, long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0x01);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        byte[] data = new byte[(int) from.length()];
+        FileInputStream in = new FileInputStream(from);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                read += in.read(data, read, data.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Writes 10 million synthetic advertisements (three hours of a busy site, 2000 devices)
+ * through {@link ColumnarLogWriter} and reports bytes per record, against the raw log's, and
+ * the latency of typical queries through {@link ColumnarLogReader}.
+ *
+ * Run with {@code java ... ColumnarLogBenchmark [records]}; it is not a unit test.
+ */
+public class ColumnarLogBenchmark {
+
+    private static final long SECOND = 1000000000L;
+
+    private static final long START = 1704067200L * SECOND;
+
+    private static final int DEVICES = 2000;
+
+    private static final int QUERIES = 200;
+
+    public static void main(String[] args) throws IOException {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        File directory = File.createTempFile("columns", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            run(directory, records);
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private static void run(File directory, int records) throws IOException {
+        long span = 3 * ColumnarPartition.HOUR_NANOS;
+        long step = span / records;
+        Random random = new Random(1);
+        // Same settings as Constants.COLUMNAR_*.
+        ColumnarLogWriter writer = new ColumnarLogWriter(directory, 4096, 60 * SECOND,
+                Long.MAX_VALUE);
+        long start = System.nanoTime();
+        long timestamp = START;
+        for (int i = 0; i < records; i++) {
+            timestamp += step;
+            // Some devices are far busier than others, as phones and beacons are.
+            int device = (int) (DEVICES * Math.pow(random.nextDouble(), 2));
+            writer.append(timestamp + random.nextInt(1000000), 0xAC0000000000L + device * 104729L,
+                    -40 - random.nextInt(50));
+        }
+        writer.close();
+        double writeNanos = (System.nanoTime() - start) / (double) records;
+
+        long bytes = 0;
+        File[] files = directory.listFiles();
+        for (File file : files) {
+            bytes += file.length();
+        }
+        // The raw log's record header alone, before any scan record bytes.
+        int rawBytes = AdvertisementLogWriter.RECORD_HEADER_SIZE;
+        System.out.printf("%d records in %d partitions: %.2f B/record (raw log %d B + payload),"
+                        + " %.0f ns/record to write%n", records, files.length,
+                bytes / (double) records, rawBytes, writeNanos);
+
+        ColumnarLogReader reader = new ColumnarLogReader(directory);
+        final long[] sink = new long[2];
+        ColumnarLogReader.RecordVisitor visitor = new ColumnarLogReader.RecordVisitor() {
+            @Override
+            public boolean onRecord(long timestampNanos, long address, int rssi) {
+                sink[0]++;
+                sink[1] += rssi;
+                return true;
+            }
+        };
+        for (int round = 0; round < 3; round++) {
+            // One device over one hour, as in "RSSI of X between 14:00 and 15:00".
+            long queryStart = System.nanoTime();
+            long matched = sink[0];
+            for (int q = 0; q < QUERIES; q++) {
+                long from = START + ColumnarPartition.HOUR_NANOS / 2
+                        + random.nextInt(3600) * SECOND;
+                reader.query(0xAC0000000000L + random.nextInt(DEVICES) * 104729L, from,
+                        from + ColumnarPartition.HOUR_NANOS, Integer.MIN_VALUE, visitor);
+            }
+            double deviceHourMicros = (System.nanoTime() - queryStart) / 1000.0 / QUERIES;
+            double perQuery = (sink[0] - matched) / (double) QUERIES;
+
+            // A device that was never seen, which the bloom filters answer.
+            queryStart = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                reader.query(0xBB0000000000L + q, START, START + span, Integer.MIN_VALUE,
+                        visitor);
+            }
+            double absentMicros = (System.nanoTime() - queryStart) / 1000.0 / QUERIES;
+
+            // Everything, for decode throughput.
+            queryStart = System.nanoTime();
+            matched = sink[0];
+            reader.scan(START, START + span + SECOND, visitor);
+            double scanNanos = (System.nanoTime() - queryStart) / (double) (sink[0] - matched);
+
+            System.out.printf("round %d: device-hour %.0f us (%.0f records), absent device"
+                            + " %.1f us, full scan %.1f ns/record%n", round, deviceHourMicros,
+                    perQuery, absentMicros, scanNanos);
+        }
+        System.out.println("(checksum " + sink[1] + ")");
+    }
+}
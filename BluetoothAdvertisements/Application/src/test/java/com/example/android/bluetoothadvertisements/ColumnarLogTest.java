@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes synthetic advertisements through {@link ColumnarLogWriter} and checks queries through
+ * {@link ColumnarLogReader} return exactly what a brute-force filter would.
+ */
+public class ColumnarLogTest {
+
+    private static final long SECOND = 1000000000L;
+
+    private static final long HOUR = ColumnarPartition.HOUR_NANOS;
+
+    /**
+     * 2024-01-01T00:00Z, so partitions start on real hours.
+     */
+    private static final long START = 1704067200L * SECOND;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("columns", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static long deviceAddress(int device) {
+        return 0xC0FFEE000000L + device * 7919L;
+    }
+
+    private static List<long[]> collect(ColumnarLogReader reader, long address, long from,
+            long to, int minRssi) {
+        final List<long[]> out = new ArrayList<>();
+        reader.query(address, from, to, minRssi, new ColumnarLogReader.RecordVisitor() {
+            @Override
+            public boolean onRecord(long timestampNanos, long address, int rssi) {
+                out.add(new long[]{timestampNanos, address, rssi});
+                return true;
+            }
+        });
+        return out;
+    }
+
+    @Test
+    public void queriesMatchABruteForceFilter() throws IOException {
+        ColumnarLogWriter writer = new ColumnarLogWriter(mDirectory, 500, 30 * SECOND,
+                Long.MAX_VALUE);
+        Random random = new Random(7);
+        List<long[]> all = new ArrayList<>();
+        long timestamp = START;
+        // Three hours, with timestamps jittering backwards now and then as batches do.
+        while (timestamp < START + 3 * HOUR - SECOND) {
+            timestamp += random.nextInt(200) * 1000000L;
+            long recordTime = Math.max(START,
+                    timestamp - (random.nextInt(10) == 0 ? 2 * SECOND : 0));
+            long address = deviceAddress(random.nextInt(300));
+            int rssi = -30 - random.nextInt(70);
+            if (random.nextInt(1000) == 0) {
+                rssi = 5;
+            }
+            assertTrue(writer.append(recordTime, address, rssi));
+            all.add(new long[]{recordTime, address, rssi});
+        }
+        writer.close();
+        assertEquals(3, writer.getPartitionCount());
+        assertEquals(all.size(), writer.getRecordCount());
+
+        ColumnarLogReader reader = new ColumnarLogReader(mDirectory);
+        assertEquals(3, reader.getPartitionCount());
+        long[][] ranges = {
+                {START, START + 3 * HOUR},
+                {START + HOUR / 2, START + HOUR + HOUR / 3},
+                {START + 2 * HOUR + 17 * SECOND, START + 2 * HOUR + 18 * SECOND},
+        };
+        for (long[] range : ranges) {
+            for (int device : new int[]{0, 17, 299, 300}) {
+                for (int minRssi : new int[]{Integer.MIN_VALUE, -60}) {
+                    long address = deviceAddress(device);
+                    List<long[]> expected = new ArrayList<>();
+                    for (long[] record : all) {
+                        if (record[1] == address && record[0] >= range[0]
+                                && record[0] <= range[1] && record[2] >= minRssi) {
+                            expected.add(record);
+                        }
+                    }
+                    List<long[]> actual = collect(reader, address, range[0], range[1], minRssi);
+                    assertEquals(expected.size(), actual.size());
+                    for (int i = 0; i < expected.size(); i++) {
+                        for (int j = 0; j < 3; j++) {
+                            assertEquals(expected.get(i)[j], actual.get(i)[j]);
+                        }
+                    }
+                }
+            }
+        }
+
+        final int[] count = new int[1];
+        reader.scan(START, START + 3 * HOUR, new ColumnarLogReader.RecordVisitor() {
+            @Override
+            public boolean onRecord(long timestampNanos, long address, int rssi) {
+                count[0]++;
+                return true;
+            }
+        });
+        assertEquals(all.size(), count[0]);
+    }
+
+    @Test
+    public void lateRecordsJoinTheirHourWithinTheGrace() throws IOException {
+        ColumnarLogWriter writer = new ColumnarLogWriter(mDirectory, 100, 60 * SECOND,
+                Long.MAX_VALUE);
+        assertTrue(writer.append(START + HOUR - SECOND, deviceAddress(1), -50));
+        assertTrue(writer.append(START + HOUR + SECOND, deviceAddress(2), -50));
+        // Within the minute's grace: still goes to the first hour.
+        assertTrue(writer.append(START + HOUR - 2 * SECOND, deviceAddress(3), -50));
+        // Past the grace, the first hour is closed and later stragglers are skipped.
+        assertTrue(writer.append(START + HOUR + 61 * SECOND, deviceAddress(2), -50));
+        assertFalse(writer.append(START + HOUR - 3 * SECOND, deviceAddress(4), -50));
+        writer.close();
+        assertEquals(1, writer.getLateCount());
+        assertEquals(4, writer.getRecordCount());
+
+        ColumnarLogReader reader = new ColumnarLogReader(mDirectory);
+        assertEquals(1, collect(reader, deviceAddress(3), START, START + HOUR, -100).size());
+        assertEquals(0, collect(reader, deviceAddress(4), START, START + 2 * HOUR, -100).size());
+    }
+
+    @Test
+    public void incompletePartitionsAreSkipped() throws IOException {
+        ColumnarLogWriter writer = new ColumnarLogWriter(mDirectory, 100, 0, Long.MAX_VALUE);
+        for (int hour = 0; hour < 2; hour++) {
+            for (int i = 0; i < 1000; i++) {
+                writer.append(START + hour * HOUR + i * SECOND, deviceAddress(i % 10), -50);
+            }
+        }
+        writer.close();
+
+        // Chop the second hour's footer off, as if the writer had been killed.
+        File second = new File(mDirectory,
+                ColumnarLogWriter.partitionName(ColumnarPartition.hourOf(START + HOUR), 0));
+        RandomAccessFile file = new RandomAccessFile(second, "rw");
+        file.setLength(file.length() - 100);
+        file.close();
+
+        ColumnarLogReader reader = new ColumnarLogReader(mDirectory);
+        assertEquals(100, collect(reader, deviceAddress(3), START, START + 2 * HOUR,
+                Integer.MIN_VALUE).size());
+        assertEquals(1, reader.getSkippedCount());
+    }
+
+    @Test
+    public void nextWriterRecoversPartitionsOfAKilledOne() throws IOException {
+        ColumnarLogWriter killed = new ColumnarLogWriter(mDirectory, 100, 0, Long.MAX_VALUE);
+        for (int i = 0; i < 1050; i++) {
+            killed.append(START + i * SECOND, deviceAddress(i % 10), -50 - i % 20);
+        }
+        // Never closed: ten blocks are on disk, the last fifty records only in memory. Tear
+        // the tenth block too.
+        File partition = new File(mDirectory,
+                ColumnarLogWriter.partitionName(ColumnarPartition.hourOf(START), 0));
+        RandomAccessFile file = new RandomAccessFile(partition, "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+        assertEquals(0, collect(new ColumnarLogReader(mDirectory), ColumnarPartition.ANY_ADDRESS,
+                START, START + HOUR, Integer.MIN_VALUE).size());
+
+        ColumnarLogWriter writer = new ColumnarLogWriter(mDirectory, 100, 0, Long.MAX_VALUE);
+        assertEquals(1, writer.getRecoveredPartitions());
+        assertEquals(900, writer.getRecoveredRecords());
+        assertTrue(writer.getTruncatedBytes() > 0);
+        writer.append(START + 2000 * SECOND, deviceAddress(3), -40);
+        writer.close();
+
+        ColumnarLogReader reader = new ColumnarLogReader(mDirectory);
+        List<long[]> records = collect(reader, deviceAddress(3), START, START + HOUR,
+                Integer.MIN_VALUE);
+        assertEquals(91, records.size());
+        for (int i = 0; i < 90; i++) {
+            assertEquals(START + (10 * i + 3) * SECOND, records.get(i)[0]);
+            assertEquals(-50 - (10 * i + 3) % 20, records.get(i)[2]);
+        }
+        assertEquals(0, reader.getSkippedCount());
+
+        // A partition that never got past its header is deleted.
+        File empty = new File(mDirectory,
+                ColumnarLogWriter.partitionName(ColumnarPartition.hourOf(START + HOUR), 0));
+        file = new RandomAccessFile(empty, "rw");
+        file.setLength(ColumnarPartition.HEADER_SIZE - 1);
+        file.close();
+        new ColumnarLogWriter(mDirectory, 100, 0, Long.MAX_VALUE).close();
+        assertFalse(empty.exists());
+    }
+
+    @Test
+    public void deletesPartitionsOutOfRetention() throws IOException {
+        ColumnarLogWriter writer = new ColumnarLogWriter(mDirectory, 100, 0, 2 * HOUR);
+        for (int hour = 0; hour < 5; hour++) {
+            writer.append(START + hour * HOUR + SECOND, deviceAddress(hour), -50);
+        }
+        writer.close();
+
+        // Hours 0 and 1 ended more than two hours before the last record.
+        assertEquals(2, writer.getExpiredPartitions());
+        ColumnarLogReader reader = new ColumnarLogReader(mDirectory);
+        assertEquals(3, reader.getPartitionCount());
+        assertEquals(3, collect(reader, ColumnarPartition.ANY_ADDRESS, START, START + 5 * HOUR,
+                Integer.MIN_VALUE).size());
+    }
+}
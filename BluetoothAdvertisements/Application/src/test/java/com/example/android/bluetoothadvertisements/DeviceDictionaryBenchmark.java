@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Compares the heap needed to map 100,000 known devices to ids as address strings in a
+ * {@code HashMap}, as packed longs in a {@link MacIndex}, and in a {@link DeviceDictionary},
+ * plus the cost of a lookup in each.
+ *
+ * Run with {@code java ... DeviceDictionaryBenchmark}; it is not a unit test.
+ */
+public class DeviceDictionaryBenchmark {
+
+    private static final int DEVICES = 100000;
+
+    private static final int LOOKUPS = 10000000;
+
+    public static void main(String[] args) throws IOException {
+        String[] strings = new String[DEVICES];
+        long[] packed = new long[DEVICES];
+        for (int i = 0; i < DEVICES; i++) {
+            packed[i] = 0xD00000000000L + i * 2654435761L % 0xFFFFFFFFFFL;
+        }
+
+        // Strings are built inside the measurement, as getAddress() would hand them out.
+        long before = usedHeap();
+        HashMap<String, Integer> map = new HashMap<>();
+        for (int i = 0; i < DEVICES; i++) {
+            strings[i] = MacAddresses.unpack(packed[i]);
+            map.put(strings[i], i);
+        }
+        long mapBytes = usedHeap() - before;
+
+        before = usedHeap();
+        MacIndex index = new MacIndex();
+        for (int i = 0; i < DEVICES; i++) {
+            index.put(packed[i], i);
+        }
+        long indexBytes = usedHeap() - before;
+
+        File file = File.createTempFile("devices", ".dict");
+        file.delete();
+        try {
+            before = usedHeap();
+            DeviceDictionary dictionary = new DeviceDictionary(file, 2 * DEVICES);
+            for (int i = 0; i < DEVICES; i++) {
+                dictionary.intern(packed[i]);
+            }
+            long dictionaryBytes = usedHeap() - before;
+
+            System.out.printf("HashMap<String,Integer>: %,d B heap (%.1f B/device)%n",
+                    mapBytes, mapBytes / (double) DEVICES);
+            System.out.printf("MacIndex:                %,d B heap (%.1f B/device)%n",
+                    indexBytes, indexBytes / (double) DEVICES);
+            System.out.printf("DeviceDictionary:        %,d B heap (%.1f B/device), %,d B"
+                    + " file%n", dictionaryBytes, dictionaryBytes / (double) DEVICES,
+                    file.length());
+
+            for (int round = 0; round < 3; round++) {
+                long sink = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < LOOKUPS; i++) {
+                    sink += map.get(strings[i % DEVICES]);
+                }
+                double mapNanos = (System.nanoTime() - start) / (double) LOOKUPS;
+                start = System.nanoTime();
+                for (int i = 0; i < LOOKUPS; i++) {
+                    sink += index.get(packed[i % DEVICES]);
+                }
+                double indexNanos = (System.nanoTime() - start) / (double) LOOKUPS;
+                start = System.nanoTime();
+                for (int i = 0; i < LOOKUPS; i++) {
+                    sink += dictionary.idOf(packed[i % DEVICES]);
+                }
+                double dictionaryNanos = (System.nanoTime() - start) / (double) LOOKUPS;
+                System.out.printf("round %d: lookup HashMap %.1f ns, MacIndex %.1f ns,"
+                        + " DeviceDictionary %.1f ns (checksum %d)%n", round, mapNanos,
+                        indexNanos, dictionaryNanos, sink);
+            }
+            // Keep everything reachable until the end.
+            System.out.println(map.size() + index.size() + dictionary.size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
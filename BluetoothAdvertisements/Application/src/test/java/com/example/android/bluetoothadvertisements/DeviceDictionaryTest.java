@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Interns addresses into a {@link DeviceDictionary}, reopens it, and reads it concurrently with
+ * the writer.
+ */
+public class DeviceDictionaryTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("devices", ".dict");
+        assertTrue(mFile.delete());
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static long deviceAddress(int i) {
+        return 0xF00000000000L + i * 2654435761L % 0xFFFFFFFFFFL;
+    }
+
+    @Test
+    public void idsAreDenseAndSurviveReopening() throws IOException {
+        DeviceDictionary dictionary = new DeviceDictionary(mFile, 10000);
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, dictionary.intern(deviceAddress(i)));
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, dictionary.intern(deviceAddress(i)));
+            assertEquals(i, dictionary.idOf(deviceAddress(i)));
+            assertEquals(deviceAddress(i), dictionary.addressOf(i));
+        }
+        assertEquals(DeviceDictionary.NO_ID, dictionary.idOf(deviceAddress(5000)));
+        dictionary.close();
+
+        // Capacity comes from the file, not the argument.
+        dictionary = new DeviceDictionary(mFile, 1);
+        assertEquals(10000, dictionary.getMaxDevices());
+        assertEquals(5000, dictionary.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, dictionary.idOf(deviceAddress(i)));
+        }
+        assertEquals(5000, dictionary.intern(deviceAddress(5000)));
+    }
+
+    @Test
+    public void rollsOverWhenFull() throws IOException {
+        DeviceDictionary dictionary = new DeviceDictionary(mFile, 100);
+        for (int i = 0; i < 100; i++) {
+            dictionary.intern(deviceAddress(i));
+        }
+        assertEquals(99, dictionary.intern(deviceAddress(99)));
+        assertEquals(0, dictionary.getGeneration());
+
+        // The next new device starts a new generation instead of being refused.
+        assertEquals(0, dictionary.intern(deviceAddress(100)));
+        assertEquals(1, dictionary.getGeneration());
+        assertEquals(1, dictionary.size());
+        assertEquals(DeviceDictionary.NO_ID, dictionary.idOf(deviceAddress(99)));
+        assertEquals(1, dictionary.intern(deviceAddress(99)));
+        assertEquals(deviceAddress(100), dictionary.addressOf(0));
+        StringBuilder text = new StringBuilder();
+        dictionary.describe(text);
+        assertEquals("Device dictionary: 2 of 100 ids (2%), 1 rollovers\n", text.toString());
+        dictionary.close();
+
+        // A rollover cut short by the process dying is finished on open.
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(6);
+        file.writeShort(1);
+        file.close();
+        dictionary = new DeviceDictionary(mFile, 100);
+        assertEquals(0, dictionary.size());
+        assertEquals(DeviceDictionary.NO_ID, dictionary.idOf(deviceAddress(100)));
+        assertEquals(0, dictionary.intern(deviceAddress(5)));
+    }
+
+    @Test
+    public void readersNeverSeeHalfInternedDevices() throws Exception {
+        final int devices = 200000;
+        final DeviceDictionary dictionary = new DeviceDictionary(mFile, devices);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                int i = 0;
+                while (!done.get()) {
+                    int count = dictionary.size();
+                    int probe = i++ % devices;
+                    int id = dictionary.idOf(deviceAddress(probe));
+                    if (probe < count && id != probe) {
+                        failure.set("device " + probe + " missing with " + count + " known");
+                        return;
+                    }
+                    if (id != DeviceDictionary.NO_ID
+                            && dictionary.addressOf(id) != deviceAddress(probe)) {
+                        failure.set("device " + probe + " mapped to " + id);
+                        return;
+                    }
+                }
+            }
+        };
+        reader.start();
+        for (int i = 0; i < devices; i++) {
+            dictionary.intern(deviceAddress(i));
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+        assertEquals(devices, dictionary.size());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link ExpiryWheel} with random sightings and checks every device is reported exactly
+ * once, no earlier than its timeout and no later than the first advance a tick past it.
+ */
+public class ExpiryWheelTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void reportsEachDeviceOnceWithinATickOfItsTimeout() {
+        final long timeout = 600 * SECOND;
+        final long tick = SECOND;
+        ExpiryWheel wheel = new ExpiryWheel(timeout, tick);
+        final Map<Long, Long> lastSeen = new HashMap<>();
+        // The current and previous times passed to advance().
+        final long[] now = new long[2];
+        final int[] reported = new int[1];
+        ExpiryWheel.Listener listener = new ExpiryWheel.Listener() {
+            @Override
+            public void onExpired(long key, long lastSeenNanos) {
+                Long expected = lastSeen.remove(key);
+                assertNotNull("reported twice or never seen: " + key, expected);
+                assertEquals(expected.longValue(), lastSeenNanos);
+                assertTrue(now[0] - lastSeenNanos >= timeout);
+                // Not already overdue by more than a tick at the previous advance.
+                assertTrue(now[1] - lastSeenNanos < timeout + tick);
+                reported[0]++;
+            }
+        };
+
+        Random random = new Random(42);
+        // Six hours in 100 ms steps, with a population that drifts through 5000 devices and
+        // the occasional gap of several hours between advances.
+        for (now[0] = 0; now[0] < 6 * 3600 * SECOND; now[0] += SECOND / 10) {
+            for (int i = 0; i < 5; i++) {
+                long key = (now[0] / (30 * SECOND)) + random.nextInt(5000);
+                wheel.touch(key, now[0]);
+                lastSeen.put(key, now[0]);
+            }
+            if (random.nextInt(100000) == 0) {
+                now[0] += 3 * 3600 * SECOND;
+            }
+            wheel.advance(now[0], listener);
+            now[1] = now[0];
+        }
+        assertEquals(lastSeen.size(), wheel.size());
+
+        // Everything left goes after one more timeout of silence.
+        now[0] += timeout + tick;
+        wheel.advance(now[0], listener);
+        assertEquals(0, wheel.size());
+        assertTrue(lastSeen.isEmpty());
+        assertTrue(reported[0] > 5000);
+    }
+
+    @Test
+    public void removedDevicesAreNotReported() {
+        ExpiryWheel wheel = new ExpiryWheel(10 * SECOND, SECOND);
+        for (long key = 0; key < 100; key++) {
+            wheel.touch(key, key * SECOND);
+        }
+        for (long key = 0; key < 100; key += 2) {
+            assertTrue(wheel.remove(key));
+        }
+        assertFalse(wheel.remove(0));
+        final Map<Long, Boolean> reported = new HashMap<>();
+        wheel.advance(1000 * SECOND, new ExpiryWheel.Listener() {
+            @Override
+            public void onExpired(long key, long lastSeenNanos) {
+                assertTrue(key % 2 == 1);
+                reported.put(key, true);
+            }
+        });
+        assertEquals(50, reported.size());
+    }
+
+    @Test
+    public void handlesDeadlinesBeyondTheTopWheel() {
+        // With a 1 ms tick, four wheels span about 4.6 hours; use a 12 hour timeout.
+        final long timeout = 12 * 3600 * SECOND;
+        ExpiryWheel wheel = new ExpiryWheel(timeout, SECOND / 1000);
+        wheel.touch(1, 0);
+        final long[] expiredAt = {-1};
+        final long[] now = new long[1];
+        for (now[0] = 0; now[0] <= timeout + SECOND; now[0] += 60 * SECOND) {
+            wheel.advance(now[0], new ExpiryWheel.Listener() {
+                @Override
+                public void onExpired(long key, long lastSeenNanos) {
+                    expiredAt[0] = now[0];
+                }
+            });
+        }
+        assertTrue(expiredAt[0] >= timeout);
+        assertTrue(expiredAt[0] < timeout + 60 * SECOND);
+    }
+}
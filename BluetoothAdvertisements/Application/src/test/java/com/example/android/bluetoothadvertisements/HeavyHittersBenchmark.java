@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Feeds {@link HeavyHitters} ten minutes of a trade show, 40 devices advertising every 20 to
+ * 150 ms among 5000 at about a second, and reports the cost per advertisement against counting every
+ * device exactly in a {@link HashMap}, the cost of a ranking, and how many of the true top
+ * devices of the last minute it ranks.
+ *
+ * Run with {@code java ... HeavyHittersBenchmark [quiet devices]}; it is not a unit test.
+ */
+public class HeavyHittersBenchmark {
+
+    private static final long SECOND = 1000000000L;
+
+    private static final int FLOODERS = 40;
+
+    private static final int RANKED = 10;
+
+    private static final int RANKINGS = 1000;
+
+    public static void main(String[] args) {
+        int quiet = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int rate = FLOODERS * 50 + quiet;
+        int count = 600 * rate;
+        Random random = new Random(1);
+        long[] times = new long[count];
+        long[] addresses = new long[count];
+        long now = 1000 * SECOND;
+        for (int i = 0; i < count; i++) {
+            now += SECOND / rate;
+            times[i] = now;
+            int device = random.nextInt(rate);
+            // Flooders each sending 5% less than the one before, so the ranking is well
+            // defined, and the rest of their share going to quiet devices.
+            if (device < FLOODERS * 50
+                    && random.nextDouble() >= Math.pow(0.95, device % FLOODERS)) {
+                device = FLOODERS * 50 + random.nextInt(quiet);
+            }
+            addresses[i] = 0xD00000000000L + (device < FLOODERS * 50 ? device % FLOODERS
+                    : device) * 104729L;
+        }
+
+        for (int round = 0; round < 3; round++) {
+            // Same settings as Constants.HEAVY_HITTER_DEVICE_CAPACITY and the slices.
+            HeavyHitters hitters = new HeavyHitters(256, 12, 5 * SECOND);
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                hitters.add(addresses[i], times[i]);
+            }
+            double hittersNanos = (System.nanoTime() - start) / (double) count;
+
+            Map<Long, long[]> exact = new HashMap<>();
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                long[] counter = exact.get(addresses[i]);
+                if (counter == null) {
+                    counter = new long[1];
+                    exact.put(addresses[i], counter);
+                }
+                counter[0]++;
+            }
+            double exactNanos = (System.nanoTime() - start) / (double) count;
+
+            HeavyHitters.Ranking ranking = new HeavyHitters.Ranking(RANKED);
+            start = System.nanoTime();
+            for (int i = 0; i < RANKINGS; i++) {
+                hitters.rank(now, 60 * SECOND, ranking);
+            }
+            double rankMicros = (System.nanoTime() - start) / 1e3 / RANKINGS;
+
+            System.out.printf("%,d advertisements: %.1f ns each (exact HashMap %.1f ns),"
+                            + " ranking %.0f us, top %d of the last minute found: %d%n", count,
+                    hittersNanos, exactNanos, rankMicros, RANKED,
+                    topFound(times, addresses, now - ranking.getSpanNanos(), ranking));
+        }
+    }
+
+    private static int topFound(long[] times, long[] addresses, long from,
+                                HeavyHitters.Ranking ranking) {
+        Map<Long, Long> counts = new HashMap<>();
+        for (int i = 0; i < times.length; i++) {
+            if (times[i] >= from) {
+                Long count = counts.get(addresses[i]);
+                counts.put(addresses[i], count == null ? 1 : count + 1);
+            }
+        }
+        List<Long> sorted = new ArrayList<>(counts.values());
+        Collections.sort(sorted, Collections.<Long>reverseOrder());
+        long threshold = sorted.get(RANKED - 1);
+        Set<Long> top = new HashSet<>();
+        for (Map.Entry<Long, Long> entry : counts.entrySet()) {
+            if (entry.getValue() >= threshold) {
+                top.add(entry.getKey());
+            }
+        }
+        int found = 0;
+        for (int i = 0; i < ranking.size(); i++) {
+            if (top.contains(ranking.getKey(i))) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
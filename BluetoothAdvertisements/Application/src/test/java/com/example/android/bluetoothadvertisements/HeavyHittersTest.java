@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds {@link HeavyHitters} a few flooding devices among many quiet ones and checks the
+ * ranking finds the flooders with bounds that hold the true counts, and that the window
+ * slides.
+ */
+public class HeavyHittersTest {
+
+    private static final long SECOND = 1000000000L;
+
+    private static long deviceAddress(int device) {
+        return 0xC0FFEE000000L + device * 7919L;
+    }
+
+    @Test
+    public void findsFloodersAmongQuietDevices() {
+        // Same settings as Constants.HEAVY_HITTER_DEVICE_CAPACITY and the slices.
+        HeavyHitters hitters = new HeavyHitters(256, 12, 5 * SECOND);
+        Random random = new Random(3);
+        long start = 1000 * SECOND;
+        long now = start;
+        // Ten devices at 20 ms and 3000 at a second, for two minutes.
+        int flooders = 10;
+        int quiet = 3000;
+        int rate = flooders * 50 + quiet;
+        long[] times = new long[120 * rate];
+        long[] addresses = new long[times.length];
+        for (int i = 0; i < times.length; i++) {
+            now += SECOND / rate;
+            int device = random.nextInt(rate);
+            addresses[i] = deviceAddress(device < flooders * 50 ? device % flooders
+                    : flooders + device - flooders * 50);
+            times[i] = now;
+            hitters.add(addresses[i], now);
+        }
+
+        HeavyHitters.Ranking ranking =
+                hitters.rank(now, 60 * SECOND, new HeavyHitters.Ranking(10));
+        assertEquals(10, ranking.size());
+        // The current slice has only just begun, so the span covers just under a minute.
+        long from = (now / (5 * SECOND) - 11) * 5 * SECOND;
+        assertEquals(now - from, ranking.getSpanNanos());
+        Map<Long, Long> exact = new HashMap<>();
+        for (int i = 0; i < times.length; i++) {
+            if (times[i] >= from) {
+                Long count = exact.get(addresses[i]);
+                exact.put(addresses[i], count == null ? 1 : count + 1);
+            }
+        }
+        long total = 0;
+        for (long count : exact.values()) {
+            total += count;
+        }
+        assertEquals(total, ranking.getTotal());
+        Set<Long> found = new HashSet<>();
+        for (int i = 0; i < ranking.size(); i++) {
+            found.add(ranking.getKey(i));
+            if (i > 0) {
+                assertTrue(ranking.getCount(i) <= ranking.getCount(i - 1));
+            }
+            long count = exact.get(ranking.getKey(i));
+            assertTrue(ranking.getGuaranteed(i) <= count);
+            assertTrue(count <= ranking.getCount(i));
+        }
+        for (int device = 0; device < flooders; device++) {
+            assertTrue(found.contains(deviceAddress(device)));
+        }
+    }
+
+    @Test
+    public void countsExactlyWithinCapacityAndSlides() {
+        HeavyHitters hitters = new HeavyHitters(8, 4, SECOND);
+        for (int second = 0; second < 4; second++) {
+            for (int key = 0; key < 8; key++) {
+                for (int i = 0; i <= key * (second + 1); i++) {
+                    hitters.add(key, second * SECOND + i);
+                }
+            }
+        }
+        HeavyHitters.Ranking ranking = hitters.rank(4 * SECOND - 1, 4 * SECOND,
+                new HeavyHitters.Ranking(3));
+        assertEquals(3, ranking.size());
+        for (int i = 0; i < 3; i++) {
+            long key = 7 - i;
+            assertEquals(key, ranking.getKey(i));
+            // 1 + key * (second + 1) occurrences in each second.
+            assertEquals(4 + 10 * key, ranking.getCount(i));
+            assertEquals(ranking.getCount(i), ranking.getGuaranteed(i));
+        }
+
+        // The last two seconds only.
+        hitters.rank(4 * SECOND - 1, 2 * SECOND, ranking);
+        assertEquals(2 + 7 * 7, ranking.getCount(0));
+        assertEquals(2 * SECOND - 1, ranking.getSpanNanos());
+
+        // A fifth second replaces the first, and its stragglers are too late.
+        hitters.add(0, 4 * SECOND);
+        hitters.add(7, 10);
+        assertEquals(1, hitters.getLateCount());
+        hitters.rank(5 * SECOND - 1, 4 * SECOND, ranking);
+        assertEquals(3 + 7 * 9, ranking.getCount(0));
+        // 8 + 28 * (second + 1) for the second to fourth seconds, and the one in the fifth.
+        assertEquals(64 + 92 + 120 + 1, ranking.getTotal());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link IntervalEstimator} against synthetic advertisement trains: random intervals,
+ * advertising delays and packet loss, recorded through an {@link RssiHistory} as the service
+ * does.
+ */
+public class IntervalEstimatorTest {
+
+    private static final long MILLI = 1000000L;
+
+    private static final long SECOND = 1000 * MILLI;
+
+    /**
+     * Advertising intervals are set in units of 0.625 ms.
+     */
+    private static final long INTERVAL_UNIT = 625000L;
+
+    private static final int DEVICES = 10000;
+
+    // Same settings as Constants.RSSI_HISTORY_WINDOW.
+    private static final int WINDOW = 32;
+
+    @Test
+    public void estimatesTenThousandDevices() {
+        RssiHistory history = new RssiHistory(DEVICES, WINDOW);
+        Random random = new Random(3);
+        long[] intervals = new long[DEVICES];
+        double[] losses = new double[DEVICES];
+        for (int device = 0; device < DEVICES; device++) {
+            // 100 ms to 10.24 s, losing up to 60% of packets.
+            intervals[device] = INTERVAL_UNIT * (160 + random.nextInt(16384 - 160));
+            losses[device] = random.nextDouble() * 0.6;
+            // Some devices see the scanner pause for 10 seconds part way.
+            long pauseFrom = random.nextInt(10) == 0
+                    ? 1000 * SECOND + intervals[device] * (5 + random.nextInt(20)) : Long.MAX_VALUE;
+            long event = 1000 * SECOND + random.nextInt(1000) * MILLI;
+            int received = 0;
+            while (received < WINDOW) {
+                long timestamp = event + random.nextInt(10001) * 1000L;
+                boolean paused = timestamp >= pauseFrom && timestamp < pauseFrom + 10 * SECOND;
+                if (!paused && random.nextDouble() >= losses[device]) {
+                    history.record(0x400000000000L + device, timestamp, -60);
+                    received++;
+                }
+                event += intervals[device];
+            }
+        }
+
+        IntervalEstimator estimator = new IntervalEstimator(WINDOW);
+        IntervalEstimator.Estimate estimate = new IntervalEstimator.Estimate();
+        double lossError = 0;
+        double jitter = 0;
+        for (int device = 0; device < DEVICES; device++) {
+            long address = 0x400000000000L + device;
+            assertTrue("device " + device,
+                    estimator.read(history, history.slotOf(address), address, estimate));
+            assertEquals("device " + device, intervals[device], estimate.intervalNanos,
+                    MILLI);
+            assertEquals(losses[device], estimate.lossRatio, 0.3);
+            lossError += Math.abs(losses[device] - estimate.lossRatio);
+            jitter += estimate.jitterNanos;
+        }
+        assertTrue("mean loss error " + lossError / DEVICES, lossError / DEVICES < 0.05);
+        // The difference of two uniform 0-10 ms delays has a standard deviation of 4.1 ms.
+        double meanJitter = jitter / DEVICES / MILLI;
+        assertTrue("mean jitter " + meanJitter, meanJitter > 3.5 && meanJitter < 4.5);
+    }
+
+    @Test
+    public void recoversPeriodWhenNoTwoPacketsInARowArrive() {
+        long interval = 160 * INTERVAL_UNIT;
+        long[] timestamps = new long[20];
+        long time = SECOND;
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = time + (i % 4) * MILLI;
+            time += (2 + i % 2) * interval;
+        }
+        IntervalEstimator.Estimate estimate = new IntervalEstimator.Estimate();
+        assertTrue(new IntervalEstimator(timestamps.length).estimate(timestamps,
+                timestamps.length, estimate));
+        assertEquals(interval, estimate.intervalNanos, MILLI);
+        assertEquals(0.6, estimate.lossRatio, 0.01);
+        assertEquals(19, estimate.gaps);
+    }
+
+    @Test
+    public void ignoresDuplicatesAndPausesButNeedsTwoGaps() {
+        long interval = 1000 * INTERVAL_UNIT;
+        long[] timestamps = {
+                // Out of order, with one packet heard twice and a minute's pause.
+                SECOND + 3 * interval, SECOND, SECOND + 2 * interval, SECOND + interval,
+                SECOND + interval + MILLI, SECOND + 4 * interval, 61 * SECOND + 4 * interval,
+                61 * SECOND + 5 * interval,
+        };
+        IntervalEstimator estimator = new IntervalEstimator(timestamps.length);
+        IntervalEstimator.Estimate estimate = new IntervalEstimator.Estimate();
+        assertTrue(estimator.estimate(timestamps, timestamps.length, estimate));
+        assertEquals(interval, estimate.intervalNanos);
+        assertEquals(0, estimate.jitterNanos);
+        assertEquals(0, estimate.lossRatio, 0);
+        assertEquals(5, estimate.gaps);
+
+        long[] two = {SECOND, SECOND + interval, SECOND + interval + MILLI};
+        assertFalse(estimator.estimate(two, two.length, estimate));
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compresses advertisement log segments through {@link LogCompactor}, reads them back by time
+ * through {@link CompressedSegment} and {@link AdvertisementLogReader}, and compacts them.
+ */
+public class LogCompactorTest {
+
+    private static final long SECOND = 1000000000L;
+
+    private static final long START = 1704067200L * SECOND;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("advlog", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    /**
+     * One logged advertisement, as the test expects to read it back.
+     */
+    private static final class Record {
+        final long mTimestamp;
+        final long mAddress;
+        final int mRssi;
+        final byte[] mScanRecord;
+
+        Record(long timestamp, long address, int rssi, byte[] scanRecord) {
+            mTimestamp = timestamp;
+            mAddress = address;
+            mRssi = rssi;
+            mScanRecord = scanRecord;
+        }
+    }
+
+    /**
+     * Collects what a reader visits.
+     */
+    private static final class Collector implements AdvertisementLogReader.RecordVisitor {
+        final List<Record> mRecords = new ArrayList<>();
+
+        @Override
+        public boolean onRecord(long timestampNanos, long address, int rssi, int txPower,
+                                ByteBuffer scanRecord) {
+            byte[] bytes = new byte[scanRecord.remaining()];
+            scanRecord.duplicate().get(bytes);
+            mRecords.add(new Record(timestampNanos, address, rssi, bytes));
+            return true;
+        }
+    }
+
+    /**
+     * Writes {@code count} advertisements from a few hundred beacons, most repeating a fixed
+     * payload and some with a changing counter, one every 10 ms from {@code start}.
+     */
+    private static List<Record> writeLog(AdvertisementLogWriter writer, long start, int count,
+            Random random) throws IOException {
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int device = random.nextInt(300);
+            byte[] scanRecord = new byte[device % 3 == 0 ? 0 : 10 + device % 21];
+            for (int j = 0; j < scanRecord.length; j++) {
+                scanRecord[j] = (byte) (device * 31 + j);
+            }
+            if (device % 5 == 0 && scanRecord.length > 0) {
+                scanRecord[scanRecord.length - 1] = (byte) i;
+            }
+            long timestamp = start + i * 10000000L;
+            long address = 0xC0FFEE000000L + device * 7919L;
+            int rssi = -40 - random.nextInt(60);
+            writer.append(timestamp, address, rssi, 0, scanRecord);
+            records.add(new Record(timestamp, address, rssi, scanRecord));
+        }
+        return records;
+    }
+
+    private static void assertRecords(List<Record> expected, List<Record> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).mTimestamp, actual.get(i).mTimestamp);
+            assertEquals(expected.get(i).mAddress, actual.get(i).mAddress);
+            assertEquals(expected.get(i).mRssi, actual.get(i).mRssi);
+            assertArrayEquals(expected.get(i).mScanRecord, actual.get(i).mScanRecord);
+        }
+    }
+
+    private int countFiles(String suffix) {
+        int count = 0;
+        for (String name : mDirectory.list()) {
+            if (name.endsWith(suffix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void lz4RoundTripsAndRejectsCorruptBlocks() throws IOException {
+        Lz4Block lz4 = new Lz4Block();
+        Random random = new Random(3);
+        for (int length : new int[]{0, 1, 5, 12, 13, 100, 1000, 65536}) {
+            for (int kind = 0; kind < 3; kind++) {
+                byte[] input = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    input[i] = kind == 0 ? (byte) random.nextInt()
+                            : kind == 1 ? 0 : (byte) (i % 37 + random.nextInt(2));
+                }
+                byte[] compressed = new byte[Lz4Block.maxCompressedLength(length)];
+                int compressedLength = lz4.compress(input, 0, length, compressed);
+                byte[] output = new byte[length];
+                assertEquals(length, Lz4Block.decompress(compressed, 0, compressedLength, output));
+                assertArrayEquals(input, output);
+                if (kind == 1 && length >= 1000) {
+                    assertTrue(compressedLength < length / 50);
+                }
+            }
+        }
+
+        byte[] input = new byte[1000];
+        byte[] compressed = new byte[Lz4Block.maxCompressedLength(input.length)];
+        int compressedLength = lz4.compress(input, 0, input.length, compressed);
+        try {
+            Lz4Block.decompress(compressed, 0, compressedLength, new byte[999]);
+            fail("Decompressed into too small a buffer");
+        } catch (IOException expected) {
+        }
+        try {
+            Lz4Block.decompress(compressed, 0, compressedLength - 1, new byte[1000]);
+            fail("Decompressed a truncated block");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void compressedSegmentsReadBackLikeTheRawLog() throws IOException {
+        final LogCompactor compactor = new LogCompactor(mDirectory, Long.MAX_VALUE / 2,
+                1024 * 1024);
+        AdvertisementLogWriter writer =
+                new AdvertisementLogWriter(mDirectory, 256 * 1024, 1000, Long.MAX_VALUE);
+        writer.setSegmentListener(new AdvertisementLogWriter.SegmentListener() {
+            @Override
+            public void onSegmentClosed(File segment) {
+                try {
+                    compactor.compress(segment, 0);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        List<Record> records = writeLog(writer, START, 100000, new Random(5));
+        writer.close();
+        compactor.close();
+
+        assertEquals(0, countFiles(AdvertisementLogWriter.SEGMENT_SUFFIX));
+        assertEquals(writer.getSegmentCount(), countFiles(CompressedSegment.SEGMENT_SUFFIX));
+        assertEquals(writer.getSegmentCount(), compactor.getCompressedSegmentCount());
+        assertTrue("Compressed only to " + compactor.getCompressedBytes(),
+                compactor.getCompressedBytes() * 4 < compactor.getRawBytes());
+
+        Collector all = new Collector();
+        assertEquals(records.size(), new AdvertisementLogReader(mDirectory).readAll(all));
+        assertRecords(records, all.mRecords);
+
+        // Seeking by time only decompresses the blocks around the range.
+        long from = START + 123 * SECOND + 5000000L;
+        long to = from + 2 * SECOND;
+        List<Record> expected = new ArrayList<>();
+        for (Record record : records) {
+            if (record.mTimestamp >= from && record.mTimestamp <= to) {
+                expected.add(record);
+            }
+        }
+        Collector range = new Collector();
+        assertEquals(expected.size(), new AdvertisementLogReader(mDirectory).read(from, to,
+                range));
+        assertRecords(expected, range.mRecords);
+
+        File[] files = AdvertisementLogReader.listLogFiles(mDirectory);
+        int blocks = 0;
+        int blocksRead = 0;
+        for (File file : files) {
+            CompressedSegment segment = CompressedSegment.open(file);
+            segment.read(from, to, new Collector());
+            blocks += segment.getBlockCount();
+            blocksRead += segment.getBlocksRead();
+            // 300 devices, and the beacons not changing a counter repeat their scan record.
+            assertEquals(300, segment.getDeviceCount());
+            assertTrue(segment.getDictionaryEntryCount() > 100);
+            segment.close();
+        }
+        assertTrue("Only " + blocks + " blocks", blocks > 10);
+        assertTrue("Read " + blocksRead + " blocks", blocksRead <= 2);
+
+        // The footer holds the device table and dictionary, so damage to it is caught on open.
+        File last = files[files.length - 1];
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        try {
+            raf.seek(raf.length() - CompressedSegment.TRAILER_SIZE - 100);
+            int b = raf.read();
+            raf.seek(raf.getFilePointer() - 1);
+            raf.write(b ^ 0x10);
+        } finally {
+            raf.close();
+        }
+        try {
+            CompressedSegment.open(last).close();
+            fail("Opened a segment with a damaged footer");
+        } catch (IOException damaged) {
+        }
+    }
+
+    @Test
+    public void compactionMergesSmallSegmentsAndDropsExpiredRecords() throws IOException {
+        LogCompactor compactor = new LogCompactor(mDirectory, 600 * SECOND, 1024 * 1024);
+        List<Record> records = new ArrayList<>();
+        Random random = new Random(11);
+        // Twelve small segments, of 100 s of advertisements each.
+        for (int segment = 0; segment < 12; segment++) {
+            AdvertisementLogWriter writer =
+                    new AdvertisementLogWriter(mDirectory, 16 * 1024 * 1024, 1000, Long.MAX_VALUE);
+            records.addAll(writeLog(writer, START + segment * 100 * SECOND, 10000, random));
+            writer.close();
+            compactor.compress(new File(mDirectory,
+                    AdvertisementLogWriter.segmentName(writer.getSegmentSequence())), 0);
+        }
+        assertEquals(12, countFiles(CompressedSegment.SEGMENT_SUFFIX));
+
+        // Leftovers of an interrupted pass: a raw copy of a compressed segment and a temp file.
+        File twin = new File(mDirectory, AdvertisementLogWriter.segmentName(3));
+        writeFile(twin, new byte[100]);
+        File temp = new File(mDirectory, CompressedSegment.segmentName(13)
+                + LogCompactor.TEMP_SUFFIX);
+        writeFile(temp, new byte[100]);
+
+        // The window keeps the last 600 s, half of the sixth segment onwards.
+        long now = START + 1150 * SECOND;
+        compactor.compact(now);
+        assertFalse(twin.exists());
+        assertFalse(temp.exists());
+        assertTrue(compactor.getMergedSegmentCount() >= 2);
+        int files = countFiles(CompressedSegment.SEGMENT_SUFFIX);
+        assertTrue("Left " + files + " segments", files < 7);
+
+        List<Record> expected = new ArrayList<>();
+        for (Record record : records) {
+            if (record.mTimestamp >= now - 600 * SECOND) {
+                expected.add(record);
+            }
+        }
+        assertEquals(records.size() - expected.size(), compactor.getExpiredRecordCount());
+        Collector all = new Collector();
+        new AdvertisementLogReader(mDirectory).readAll(all);
+        assertRecords(expected, all.mRecords);
+
+        // The newest segment keeps its name, so the writer carries on after it.
+        AdvertisementLogWriter writer =
+                new AdvertisementLogWriter(mDirectory, 16 * 1024 * 1024, 1000, Long.MAX_VALUE);
+        assertEquals(13, writer.getSegmentSequence());
+        writer.close();
+
+        // A pass with nothing to do changes nothing.
+        String[] before = mDirectory.list();
+        Arrays.sort(before);
+        compactor.compact(now);
+        String[] after = mDirectory.list();
+        Arrays.sort(after);
+        assertArrayEquals(before, after);
+    }
+
+    @Test
+    public void compressesRolledSegmentsInTheBackground() throws Exception {
+        LogCompactor compactor = new LogCompactor(mDirectory, Long.MAX_VALUE / 2, 1024 * 1024);
+        AdvertisementLogWriter writer =
+                new AdvertisementLogWriter(mDirectory, 128 * 1024, 1000, Long.MAX_VALUE);
+        writer.setSegmentListener(compactor);
+        List<Record> records = writeLog(writer, START, 20000, new Random(17));
+        writer.close();
+        compactor.close();
+        assertTrue(compactor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(0, countFiles(AdvertisementLogWriter.SEGMENT_SUFFIX));
+        assertEquals(0, compactor.getFailureCount());
+        Collector all = new Collector();
+        new AdvertisementLogReader(mDirectory).readAll(all);
+        assertRecords(records, all.mRecords);
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Logs 2 million synthetic advertisements from a dense site (fixed-payload beacons, beacons
+ * with changing telemetry and phones with random payloads) through
+ * {@link AdvertisementLogWriter}, compresses the segments with {@link LogCompactor} and
+ * reports the compression ratio and MB/s, against LZ4 alone on the raw segments, plus the
+ * cost of reading everything back and of seeking to one second by time.
+ *
+ * Run with {@code java ... LogCompressionBenchmark [records]}; it is not a unit test.
+ */
+public class LogCompressionBenchmark {
+
+    private static final long SECOND = 1000000000L;
+
+    private static final long START = 1704067200L * SECOND;
+
+    private static final int BEACONS = 1500;
+
+    private static final int TELEMETRY_BEACONS = 300;
+
+    private static final int PHONES = 500;
+
+    private static final int SEEKS = 100;
+
+    public static void main(String[] args) throws IOException {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        File directory = File.createTempFile("advlog", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            run(directory, records);
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private static void run(File directory, int records) throws IOException {
+        Random random = new Random(1);
+        int devices = BEACONS + TELEMETRY_BEACONS + PHONES;
+        byte[][] payloads = new byte[devices][];
+        for (int device = 0; device < devices; device++) {
+            payloads[device] = new byte[device < BEACONS ? 30 : 25 + random.nextInt(6)];
+            random.nextBytes(payloads[device]);
+            // Beacons of one kind share their flags and headers.
+            payloads[device][0] = 0x02;
+            payloads[device][1] = 0x01;
+            payloads[device][2] = 0x06;
+        }
+
+        // Same settings as Constants.LOG_*.
+        AdvertisementLogWriter writer = new AdvertisementLogWriter(directory, 16 * 1024 * 1024,
+                1000, SECOND);
+        long timestamp = START;
+        for (int i = 0; i < records; i++) {
+            // About 1000 advertisements a second.
+            timestamp += random.nextInt(2000000);
+            int device = random.nextInt(devices);
+            byte[] payload = payloads[device];
+            if (device >= BEACONS + TELEMETRY_BEACONS) {
+                random.nextBytes(payload);
+            } else if (device >= BEACONS) {
+                // Battery, temperature and a counter.
+                payload[payload.length - 1]++;
+                payload[payload.length - 4] = (byte) random.nextInt(4);
+            }
+            writer.append(timestamp, 0xD00000000000L + device * 104729L, -40 - random.nextInt(55),
+                    AdvertisementLogWriter.TX_POWER_UNKNOWN, payload);
+        }
+        long end = timestamp;
+        writer.close();
+        File[] segments = AdvertisementLogReader.listSegments(directory);
+
+        long rawBytes = 0;
+        long lz4Bytes = 0;
+        long lz4Nanos = 0;
+        Lz4Block lz4 = new Lz4Block();
+        byte[] chunk = new byte[CompressedSegment.BLOCK_SIZE];
+        byte[] compressed = new byte[Lz4Block.maxCompressedLength(chunk.length)];
+        for (File segment : segments) {
+            RandomAccessFile file = new RandomAccessFile(segment, "r");
+            try {
+                int read;
+                while ((read = file.read(chunk)) > 0) {
+                    long start = System.nanoTime();
+                    lz4Bytes += lz4.compress(chunk, 0, read, compressed);
+                    lz4Nanos += System.nanoTime() - start;
+                    rawBytes += read;
+                }
+            } finally {
+                file.close();
+            }
+        }
+
+        long start = System.nanoTime();
+        long count = new AdvertisementLogReader(directory).readAll(new Sink());
+        long rawReadNanos = System.nanoTime() - start;
+
+        LogCompactor compactor = new LogCompactor(directory, Long.MAX_VALUE / 2,
+                16 * 1024 * 1024);
+        start = System.nanoTime();
+        for (File segment : segments) {
+            compactor.compress(segment, 0);
+        }
+        long compressNanos = System.nanoTime() - start;
+        compactor.close();
+        long compressedBytes = compactor.getCompressedBytes();
+
+        start = System.nanoTime();
+        new AdvertisementLogReader(directory).readAll(new Sink());
+        long readNanos = System.nanoTime() - start;
+
+        System.out.printf("%,d records, %,d raw bytes in %d segments (%.1f B/record)%n", count,
+                rawBytes, segments.length, rawBytes / (double) count);
+        System.out.printf("LZ4 alone:        %.2fx, %.0f MB/s%n",
+                rawBytes / (double) lz4Bytes, rawBytes * 1e3 / lz4Nanos);
+        System.out.printf("Delta+dict+LZ4:   %.2fx (%.1f B/record), %.0f MB/s compressing%n",
+                rawBytes / (double) compressedBytes, compressedBytes / (double) count,
+                rawBytes * 1e3 / compressNanos);
+        System.out.printf("Read everything:  raw %.0f MB/s, compressed %.0f MB/s"
+                        + " (of raw bytes)%n", rawBytes * 1e3 / rawReadNanos,
+                rawBytes * 1e3 / readNanos);
+
+        AdvertisementLogReader reader = new AdvertisementLogReader(directory);
+        Sink sink = new Sink();
+        start = System.nanoTime();
+        for (int i = 0; i < SEEKS; i++) {
+            long from = START + (long) (random.nextDouble() * (end - START - SECOND));
+            reader.read(from, from + SECOND, sink);
+        }
+        double seekMicros = (System.nanoTime() - start) / 1e3 / SEEKS;
+        System.out.printf("Seek one second:  %.0f us, %d records each%n", seekMicros,
+                sink.mCount / SEEKS);
+    }
+
+    private static final class Sink implements AdvertisementLogReader.RecordVisitor {
+        long mCount;
+
+        @Override
+        public boolean onRecord(long timestampNanos, long address, int rssi, int txPower,
+                                ByteBuffer scanRecord) {
+            mCount++;
+            return true;
+        }
+    }
+}
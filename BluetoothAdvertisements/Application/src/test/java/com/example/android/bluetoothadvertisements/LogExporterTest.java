@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Exports advertisement logs through {@link LogExporter} in each {@link ExportFormat}, checks
+ * the output, cancellation and failures, and that heap use stays flat however big the log.
+ */
+public class LogExporterTest {
+
+    private static final long SECOND = 1000000000L;
+
+    private static final long START = 1704067200L * SECOND;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("advlog", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    /**
+     * One logged advertisement, as the test expects to read it back.
+     */
+    private static final class Record {
+        final long mTimestamp;
+        final long mAddress;
+        final int mRssi;
+        final int mTxPower;
+        final byte[] mScanRecord;
+
+        Record(long timestamp, long address, int rssi, int txPower, byte[] scanRecord) {
+            mTimestamp = timestamp;
+            mAddress = address;
+            mRssi = rssi;
+            mTxPower = txPower;
+            mScanRecord = scanRecord;
+        }
+    }
+
+    /**
+     * Writes {@code count} advertisements of up to 50 devices, one every 10 ms, in raw
+     * segments of 64 KB, and compresses all but the last few segments.
+     */
+    private List<Record> writeLog(int count) throws IOException {
+        Random random = new Random(7);
+        List<Record> records = new ArrayList<>();
+        AdvertisementLogWriter writer =
+                new AdvertisementLogWriter(mDirectory, 64 * 1024, 1000, Long.MAX_VALUE);
+        for (int i = 0; i < count; i++) {
+            int device = random.nextInt(50);
+            byte[] scanRecord = new byte[device % 7 == 0 ? 0 : 5 + device];
+            for (int j = 0; j < scanRecord.length; j++) {
+                scanRecord[j] = (byte) (device + j * 13);
+            }
+            int txPower = device % 2 == 0 ? AdvertisementLogWriter.TX_POWER_UNKNOWN
+                    : -device;
+            Record record = new Record(START + i * 10000000L, 0xA00000000000L + device * 31L,
+                    -30 - random.nextInt(70), txPower, scanRecord);
+            writer.append(record.mTimestamp, record.mAddress, record.mRssi, record.mTxPower,
+                    record.mScanRecord);
+            records.add(record);
+        }
+        writer.close();
+        LogCompactor compactor = new LogCompactor(mDirectory, Long.MAX_VALUE / 2, 1024 * 1024);
+        File[] segments = AdvertisementLogReader.listSegments(mDirectory);
+        for (int i = 0; i < segments.length - 3; i++) {
+            compactor.compress(segments[i], 0);
+        }
+        compactor.close();
+        return records;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder text = new StringBuilder();
+        for (byte b : bytes) {
+            text.append(String.format("%02X", b));
+        }
+        return text.toString();
+    }
+
+    private LogExporter newExporter() {
+        return new LogExporter(mDirectory, 256, 4096, 3);
+    }
+
+    @Test
+    public void exportsCsvAndJsonLines() throws IOException {
+        List<Record> records = writeLog(20000);
+        assertTrue(AdvertisementLogReader.listLogFiles(mDirectory).length > 5);
+
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        assertEquals(records.size(), newExporter().export(Long.MIN_VALUE, Long.MAX_VALUE,
+                new ExportFormat.Csv(), csv, null));
+        String[] lines = csv.toString("US-ASCII").split("\n", -1);
+        assertEquals(records.size() + 2, lines.length);
+        assertEquals("timestamp_nanos,address,rssi,tx_power,scan_record", lines[0]);
+        assertEquals("", lines[lines.length - 1]);
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            assertEquals(record.mTimestamp + "," + MacAddresses.unpack(record.mAddress) + ","
+                    + record.mRssi + ","
+                    + (record.mTxPower == AdvertisementLogWriter.TX_POWER_UNKNOWN ? ""
+                    : record.mTxPower) + "," + hex(record.mScanRecord), lines[i + 1]);
+        }
+
+        // A time range, in JSON Lines.
+        long from = START + 50 * SECOND;
+        long to = START + 80 * SECOND - 1;
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        assertEquals(3000, newExporter().export(from, to, new ExportFormat.JsonLines(), json,
+                null));
+        lines = json.toString("US-ASCII").split("\n");
+        assertEquals(3000, lines.length);
+        Record first = records.get(5000);
+        assertEquals("{\"timestampNanos\":" + first.mTimestamp + ",\"address\":\""
+                + MacAddresses.unpack(first.mAddress) + "\",\"rssi\":" + first.mRssi
+                + ",\"txPower\":"
+                + (first.mTxPower == AdvertisementLogWriter.TX_POWER_UNKNOWN ? "null"
+                : String.valueOf(first.mTxPower))
+                + ",\"scanRecord\":\"" + hex(first.mScanRecord) + "\"}", lines[0]);
+    }
+
+    @Test
+    public void exportsColumnarRowGroups() throws IOException {
+        List<Record> records = writeLog(20000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<Integer> percents = new ArrayList<>();
+        newExporter().export(Long.MIN_VALUE, Long.MAX_VALUE, new ExportFormat.Columnar(), out,
+                new LogExporter.ProgressListener() {
+                    @Override
+                    public void onProgress(long records, int percent) {
+                        percents.add(percent);
+                    }
+                });
+        for (int i = 1; i < percents.size(); i++) {
+            assertTrue(percents.get(i) >= percents.get(i - 1));
+        }
+        assertEquals(100, (int) percents.get(percents.size() - 1));
+
+        ByteBuffer file = ByteBuffer.wrap(out.toByteArray());
+        assertEquals(ExportFormat.Columnar.FILE_MAGIC, file.getInt());
+        assertEquals(ExportFormat.Columnar.FORMAT_VERSION, file.getShort());
+        file.getShort();
+        int row = 0;
+        int groups = 0;
+        while (file.getInt(file.position()) == ExportFormat.Columnar.ROW_GROUP_MAGIC) {
+            file.getInt();
+            int rows = file.getInt();
+            long min = file.getLong();
+            long max = file.getLong();
+            int end = file.getInt() + file.position();
+            assertTrue(rows > 0 && rows <= 256);
+
+            ByteBuffer timestamps = column(file);
+            ByteBuffer addresses = column(file);
+            ByteBuffer rssi = column(file);
+            ByteBuffer txPower = column(file);
+            ByteBuffer scanRecords = column(file);
+            assertEquals(end, file.position());
+            int[] lengths = new int[rows];
+            for (int i = 0; i < rows; i++) {
+                lengths[i] = (int) getVarint(scanRecords);
+            }
+            long timestamp = min;
+            for (int i = 0; i < rows; i++) {
+                Record record = records.get(row++);
+                long zigZag = getVarint(timestamps);
+                timestamp += (zigZag >>> 1) ^ -(zigZag & 1);
+                assertEquals(record.mTimestamp, timestamp);
+                assertTrue(timestamp >= min && timestamp <= max);
+                assertEquals(record.mAddress, MacAddresses.get(addresses));
+                assertEquals(record.mRssi, rssi.get());
+                assertEquals(record.mTxPower, txPower.get());
+                byte[] scanRecord = new byte[lengths[i]];
+                scanRecords.get(scanRecord);
+                assertArrayEquals(record.mScanRecord, scanRecord);
+            }
+            assertFalse(timestamps.hasRemaining() || addresses.hasRemaining()
+                    || rssi.hasRemaining() || txPower.hasRemaining()
+                    || scanRecords.hasRemaining());
+            groups++;
+        }
+        assertEquals(records.size(), row);
+        assertEquals(ExportFormat.Columnar.FOOTER_MAGIC, file.getInt());
+        assertEquals(records.size(), file.getLong());
+        assertEquals(groups, file.getInt());
+        assertEquals(START, file.getLong());
+        assertEquals(records.get(records.size() - 1).mTimestamp, file.getLong());
+        assertFalse(file.hasRemaining());
+    }
+
+    private static ByteBuffer column(ByteBuffer file) {
+        int length = file.getInt();
+        ByteBuffer column = file.slice();
+        column.limit(length);
+        file.position(file.position() + length);
+        return column;
+    }
+
+    private static long getVarint(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    @Test
+    public void cancelsAndReportsFailures() throws Exception {
+        writeLog(20000);
+        final LogExporter exporter = newExporter();
+        try {
+            exporter.export(Long.MIN_VALUE, Long.MAX_VALUE, new ExportFormat.Csv(),
+                    new ByteArrayOutputStream(), new LogExporter.ProgressListener() {
+                        @Override
+                        public void onProgress(long records, int percent) {
+                            exporter.cancel();
+                        }
+                    });
+            fail("Export not cancelled");
+        } catch (InterruptedIOException expected) {
+        }
+        assertTrue(exporter.isCancelled());
+        assertFalse(readerThreadAlive());
+
+        // Interrupting the exporting thread cancels too.
+        try {
+            Thread.currentThread().interrupt();
+            newExporter().export(Long.MIN_VALUE, Long.MAX_VALUE, new ExportFormat.Csv(),
+                    new ByteArrayOutputStream(), null);
+            fail("Export not cancelled");
+        } catch (InterruptedIOException expected) {
+        } finally {
+            Thread.interrupted();
+        }
+        assertFalse(readerThreadAlive());
+
+        try {
+            newExporter().export(Long.MIN_VALUE, Long.MAX_VALUE, new ExportFormat.Columnar(),
+                    new OutputStream() {
+                        int mWritten;
+
+                        @Override
+                        public void write(int b) throws IOException {
+                            write(new byte[]{(byte) b}, 0, 1);
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            mWritten += len;
+                            if (mWritten > 100000) {
+                                throw new IOException("Disk full");
+                            }
+                        }
+                    }, null);
+            fail("Write failure not reported");
+        } catch (IOException expected) {
+            assertEquals("Disk full", expected.getMessage());
+        }
+        assertFalse(readerThreadAlive());
+
+        // Compaction isn't left paused: a pass can still run.
+        LogCompactor compactor = new LogCompactor(mDirectory, Long.MAX_VALUE / 2, 1024 * 1024);
+        compactor.submitPending(Long.MAX_VALUE);
+        compactor.close();
+        assertTrue(compactor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private static boolean readerThreadAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("LogExporter") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void heapStaysFlatExportingALargeLog() throws IOException {
+        // About 60 MB of log, and 130 MB of CSV.
+        Random random = new Random(13);
+        AdvertisementLogWriter writer =
+                new AdvertisementLogWriter(mDirectory, 16 * 1024 * 1024, 10000, Long.MAX_VALUE);
+        byte[] scanRecord = new byte[31];
+        for (int i = 0; i < 1000000; i++) {
+            random.nextBytes(scanRecord);
+            writer.append(START + i * 1000000L, random.nextInt(5000), -40 - random.nextInt(50),
+                    AdvertisementLogWriter.TX_POWER_UNKNOWN, scanRecord);
+        }
+        writer.close();
+
+        final Runtime runtime = Runtime.getRuntime();
+        final long baseline = usedHeap(runtime);
+        final long[] peak = new long[1];
+        final long[] bytes = new long[1];
+        // Same settings as Constants.EXPORT_*.
+        long records = new LogExporter(mDirectory, 4096, 256 * 1024, 4).export(Long.MIN_VALUE,
+                Long.MAX_VALUE, new ExportFormat.Csv(), new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                        bytes[0]++;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        bytes[0] += len;
+                    }
+                }, new LogExporter.ProgressListener() {
+                    int mCalls;
+
+                    @Override
+                    public void onProgress(long records, int percent) {
+                        if (++mCalls % 40 == 0) {
+                            peak[0] = Math.max(peak[0], usedHeap(runtime) - baseline);
+                        }
+                    }
+                });
+        assertEquals(1000000, records);
+        assertTrue(bytes[0] > 100000000);
+        // The chunks and buffers take under 2 MB; anything holding on to records would take
+        // far more than the limit.
+        assertTrue("Heap grew by " + peak[0] + " bytes", peak[0] < 8 * 1024 * 1024);
+    }
+
+    private static long usedHeap(Runtime runtime) {
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link MacIndex} against a {@link HashMap} under random insert/remove traffic.
+ */
+public class MacIndexTest {
+
+    @Test
+    public void packRoundTrips() {
+        String address = "C0:FF:EE:01:A2:3B";
+        assertEquals(0xC0FFEE01A23BL, MacAddresses.pack(address));
+        assertEquals(address, MacAddresses.unpack(MacAddresses.pack(address)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void packRejectsMalformedAddress() {
+        MacAddresses.pack("C0-FF-EE-01-A2-3B");
+    }
+
+    @Test
+    public void matchesHashMapUnderChurn() {
+        Random random = new Random(42);
+        MacIndex index = new MacIndex();
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            // A small address space forces long probe runs and plenty of removals.
+            long address = 0xAC233F000000L | random.nextInt(4096);
+            if (random.nextInt(3) == 0) {
+                Integer previous = expected.remove(address);
+                assertEquals(previous == null ? MacIndex.NO_SLOT : previous,
+                        index.remove(address));
+            } else {
+                Integer previous = expected.put(address, i);
+                assertEquals(previous == null ? MacIndex.NO_SLOT : previous,
+                        index.put(address, i));
+            }
+            assertEquals(expected.size(), index.size());
+        }
+        for (long address = 0xAC233F000000L; address < 0xAC233F001000L; address++) {
+            Integer slot = expected.get(address);
+            assertEquals(slot == null ? MacIndex.NO_SLOT : slot, index.get(address));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Rolls a week of synthetic advertisements up through {@link RollupWriter}, from a site that is
+ * busy by day and quiet by night, and reports the cost per advertisement, the bytes stored per
+ * day and how long week-long {@link RollupReader} queries take, cold and repeated.
+ *
+ * Run with {@code java ... RollupBenchmark [advertisements per second]}; it is not a unit
+ * test.
+ */
+public class RollupBenchmark {
+
+    private static final long SECOND = 1000000000L;
+
+    private static final long START = 1704067200L * SECOND;
+
+    private static final long START_MILLIS = START / 1000000L;
+
+    private static final int DAYS = 7;
+
+    private static final int DEVICES = 5000;
+
+    private static final int QUERIES = 20;
+
+    public static void main(String[] args) throws IOException {
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        File directory = File.createTempFile("rollups", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            run(directory, rate);
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private static void run(File directory, int rate) throws IOException {
+        Random random = new Random(1);
+        byte[][] payloads = AdvertisementCorpus.all();
+
+        // Same settings as Constants.COLUMNAR_LATE_GRACE_NANOS and LOG_RETENTION_NANOS.
+        RollupWriter writer = new RollupWriter(directory, 60 * SECOND, DAYS * 24 * 3600 * SECOND);
+        long end = START + DAYS * 24 * 3600 * SECOND;
+        long nanos = 0;
+        long count = 0;
+        for (long second = START; second < end; second += SECOND) {
+            // Four times as many devices around at midday as at midnight.
+            double hour = (second - START) % (24 * 3600 * SECOND) / (3600.0 * SECOND);
+            double busy = 0.625 - 0.375 * Math.cos(hour * Math.PI / 12);
+            int present = (int) (DEVICES * busy);
+            int advertisements = (int) (rate * busy * 2);
+            long start = System.nanoTime();
+            for (int i = 0; i < advertisements; i++) {
+                int device = random.nextInt(present);
+                writer.record(second + i * (SECOND / advertisements), 0xD00000000000L
+                        + device * 104729L, payloads[device % payloads.length]);
+            }
+            nanos += System.nanoTime() - start;
+            count += advertisements;
+        }
+        writer.close();
+        long bytes = 0;
+        for (File file : directory.listFiles()) {
+            bytes += file.length();
+        }
+        System.out.printf("%,d advertisements over %d days: %.0f ns each, %d windows,"
+                        + " %.0f KB per day%n", count, DAYS, nanos / (double) count,
+                writer.getWindowCount(), bytes / 1024.0 / DAYS);
+
+        final long weekEnd = START_MILLIS + DAYS * RollupWriter.DAY_MILLIS;
+        final RollupWindow totals = new RollupWindow();
+        final long[] heatmap = new long[DAYS * 24];
+        final long[] visited = new long[1];
+        Query[] queries = {
+                new Query("Week totals and unique devices") {
+                    @Override
+                    void run(RollupReader reader) throws IOException {
+                        reader.aggregate(START_MILLIS + 123456, weekEnd - 654321, totals);
+                    }
+                },
+                new Query("Last hour") {
+                    @Override
+                    void run(RollupReader reader) throws IOException {
+                        reader.aggregate(weekEnd - 3600000, weekEnd, totals);
+                    }
+                },
+                new Query("Week of minutes") {
+                    @Override
+                    void run(RollupReader reader) throws IOException {
+                        reader.series(RollupWriter.RESOLUTION_MINUTE, START_MILLIS, weekEnd,
+                                new RollupReader.WindowVisitor() {
+                                    @Override
+                                    public boolean onWindow(RollupWindow window) {
+                                        visited[0] += window.getUniqueDevices();
+                                        return true;
+                                    }
+                                });
+                    }
+                },
+                new Query("Week heatmap") {
+                    @Override
+                    void run(RollupReader reader) throws IOException {
+                        reader.heatmap(START_MILLIS, DAYS, heatmap, heatmap);
+                    }
+                },
+        };
+        // Warms the JIT up, so cold below means a reader that has not mapped the files yet.
+        RollupReader warmup = new RollupReader(directory);
+        for (Query query : queries) {
+            query.run(warmup);
+        }
+        for (Query query : queries) {
+            long start = System.nanoTime();
+            query.run(new RollupReader(directory));
+            double coldMillis = (System.nanoTime() - start) / 1e6;
+            RollupReader reader = new RollupReader(directory);
+            query.run(reader);
+            start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                query.run(reader);
+            }
+            double warmMillis = (System.nanoTime() - start) / 1e6 / QUERIES;
+            System.out.printf("%-32s cold %6.2f ms, repeated %6.2f ms%n", query.mName + ":",
+                    coldMillis, warmMillis);
+        }
+        printWeek(directory, weekEnd, totals);
+    }
+
+    private static void printWeek(File directory, long weekEnd, RollupWindow totals)
+            throws IOException {
+        new RollupReader(directory).aggregate(START_MILLIS, weekEnd, totals);
+        System.out.printf("Week: %,d advertisements from about %,d addresses (%d)%n",
+                totals.getAdvertisementCount(), totals.getUniqueDevices(), DEVICES);
+    }
+
+    private abstract static class Query {
+        final String mName;
+
+        Query(String name) {
+            mName = name;
+        }
+
+        abstract void run(RollupReader reader) throws IOException;
+    }
+}
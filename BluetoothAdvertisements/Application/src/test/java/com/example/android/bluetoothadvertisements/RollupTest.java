@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link HyperLogLog} accuracy, and that windows written by {@link RollupWriter} and
+ * queried through {@link RollupReader} match brute-force counts over the same advertisements.
+ */
+public class RollupTest {
+
+    private static final long SECOND = 1000000000L;
+
+    private static final long MINUTE = 60 * SECOND;
+
+    /**
+     * 2024-01-01T00:00Z, so windows and days start where expected.
+     */
+    private static final long START = 1704067200L * SECOND;
+
+    private static final long START_MILLIS = START / 1000000L;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("rollups", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static long deviceAddress(int device) {
+        return 0xC0FFEE000000L + device * 7919L;
+    }
+
+    @Test
+    public void hyperLogLogEstimatesSurviveMergingAndSerialization() throws IOException {
+        int[] sizes = {0, 1, 10, 100, 1000, 10000, 100000, 1000000};
+        for (int n : sizes) {
+            HyperLogLog all = new HyperLogLog();
+            HyperLogLog even = new HyperLogLog();
+            HyperLogLog odd = new HyperLogLog();
+            for (int i = 0; i < n; i++) {
+                all.add(deviceAddress(i));
+                (i % 2 == 0 ? even : odd).add(deviceAddress(i));
+            }
+            long estimate = all.estimate();
+            assertTrue(n + " estimated as " + estimate,
+                    Math.abs(estimate - n) <= Math.max(1, n * 0.05));
+
+            even.merge(odd);
+            assertEquals(estimate, even.estimate());
+
+            ByteBuffer buffer = ByteBuffer.allocate(all.getSerializedSize());
+            all.writeTo(buffer);
+            assertFalse(buffer.hasRemaining());
+            buffer.flip();
+            HyperLogLog copy = new HyperLogLog();
+            copy.mergeFrom(buffer);
+            assertFalse(buffer.hasRemaining());
+            assertEquals(estimate, copy.estimate());
+            // A few hundred devices, as in a busy minute, stay well under the dense 4 KB.
+            if (n == 100) {
+                assertTrue(buffer.limit() < 400);
+            }
+        }
+    }
+
+    @Test
+    public void queriesMatchBruteForce() throws IOException {
+        Random random = new Random(7);
+        byte[][] payloads = AdvertisementCorpus.all();
+        AdvertisementParser parser = new AdvertisementParser();
+        BeaconDecoders decoders = BeaconDecoders.createDefault();
+        BeaconEvent event = new BeaconEvent();
+
+        // Same settings as Constants.COLUMNAR_LATE_GRACE_NANOS and LOG_RETENTION_NANOS.
+        RollupWriter writer = new RollupWriter(mDirectory, 60 * SECOND, 7 * 24 * 3600 * SECOND);
+        List<long[]> records = new ArrayList<>();
+        // Three and a half hours from 22:00, crossing midnight into the next day's files.
+        long begin = START + 22 * 3600 * SECOND;
+        long end = begin + 210 * MINUTE;
+        long timestamp = begin + 30 * SECOND;
+        while (timestamp < end) {
+            timestamp += random.nextInt(40000000);
+            // Batched results arrive up to 30 seconds late, within the grace.
+            long received = random.nextInt(20) == 0
+                    ? timestamp - random.nextInt(30) * SECOND : timestamp;
+            int device = random.nextInt(random.nextBoolean() ? 50 : 2000);
+            int payload = device % payloads.length;
+            assertTrue(received + " late after " + timestamp,
+                    writer.record(received, deviceAddress(device), payloads[payload]));
+            records.add(new long[] {received / 1000000L, device, payload});
+        }
+        writer.close();
+        assertEquals(records.size(), writer.getRecordCount());
+        assertEquals(0, writer.getLateCount());
+
+        int[] frameTypes = new int[payloads.length];
+        for (int i = 0; i < payloads.length; i++) {
+            parser.parse(payloads[i]);
+            frameTypes[i] = decoders.decode(parser, event) ? event.getType()
+                    : BeaconEvent.TYPE_NONE;
+        }
+
+        RollupReader reader = new RollupReader(mDirectory);
+        final List<long[]> minutes = new ArrayList<>();
+        long from = begin / 1000000L;
+        long to = end / 1000000L + 60000;
+        reader.series(RollupWriter.RESOLUTION_MINUTE, from, to,
+                new RollupReader.WindowVisitor() {
+                    @Override
+                    public boolean onWindow(RollupWindow window) {
+                        minutes.add(new long[] {window.getStartMillis(),
+                                window.getAdvertisementCount(), window.getUniqueDevices()});
+                        return true;
+                    }
+                });
+        Map<Long, Long> counts = new HashMap<>();
+        Map<Long, Set<Long>> devices = new HashMap<>();
+        for (long[] record : records) {
+            long minute = record[0] - record[0] % 60000;
+            Long count = counts.get(minute);
+            counts.put(minute, count == null ? 1 : count + 1);
+            if (!devices.containsKey(minute)) {
+                devices.put(minute, new HashSet<Long>());
+            }
+            devices.get(minute).add(record[1]);
+        }
+        assertEquals(counts.size(), minutes.size());
+        for (long[] minute : minutes) {
+            assertEquals((long) counts.get(minute[0]), minute[1]);
+            int unique = devices.get(minute[0]).size();
+            assertTrue(Math.abs(minute[2] - unique) <= Math.max(1, unique * 0.05));
+        }
+
+        // Partial hours at both ends, across midnight, and within one hour.
+        long[][] ranges = {
+                {from + 17 * 60000, to - 23 * 60000},
+                {from + 150000, from + 25 * 60000},
+                {from, to},
+        };
+        RollupWindow totals = new RollupWindow();
+        for (long[] range : ranges) {
+            reader.aggregate(range[0], range[1], totals);
+            long count = 0;
+            long[] frames = new long[RollupWindow.FRAME_TYPES];
+            Map<Integer, Long> manufacturers = new HashMap<>();
+            Set<Long> unique = new HashSet<>();
+            long first = range[0] + (60000 - range[0] % 60000) % 60000;
+            for (long[] record : records) {
+                if (record[0] < first || record[0] >= range[1] - range[1] % 60000) {
+                    continue;
+                }
+                count++;
+                unique.add(record[1]);
+                int payload = (int) record[2];
+                frames[frameTypes[payload]]++;
+                parser.parse(payloads[payload]);
+                for (int i = 0; i < parser.getManufacturerDataCount(); i++) {
+                    Long total = manufacturers.get(parser.getManufacturerId(i));
+                    manufacturers.put(parser.getManufacturerId(i), total == null ? 1 : total + 1);
+                }
+            }
+            assertEquals(count, totals.getAdvertisementCount());
+            for (int type = 0; type < RollupWindow.FRAME_TYPES; type++) {
+                assertEquals(frames[type], totals.getFrameCount(type));
+            }
+            assertEquals(manufacturers.size(), totals.getManufacturerCount());
+            for (Map.Entry<Integer, Long> entry : manufacturers.entrySet()) {
+                assertEquals((long) entry.getValue(),
+                        totals.getManufacturerAdvertisementsById(entry.getKey()));
+            }
+            assertTrue(Math.abs(totals.getUniqueDevices() - unique.size())
+                    <= unique.size() * 0.05);
+        }
+
+        long[] heatmap = new long[48];
+        reader.heatmap(START_MILLIS, 2, heatmap, null);
+        long total = 0;
+        for (long cell : heatmap) {
+            total += cell;
+        }
+        assertEquals(records.size(), total);
+        assertEquals(0, heatmap[0]);
+    }
+
+    @Test
+    public void lateRecordsAreSkippedAndTornTailsCut() throws IOException {
+        byte[] payload = AdvertisementCorpus.bytes(AdvertisementCorpus.IBEACON);
+        RollupWriter writer = new RollupWriter(mDirectory, 60 * SECOND, 7 * 24 * 3600 * SECOND);
+        assertTrue(writer.record(START, deviceAddress(1), payload));
+        assertTrue(writer.record(START + 3 * MINUTE, deviceAddress(2), payload));
+        // The first minute closed once records were a minute past its end.
+        assertFalse(writer.record(START + 30 * SECOND, deviceAddress(3), payload));
+        assertEquals(1, writer.getLateCount());
+        writer.close();
+
+        File minutes = new File(mDirectory,
+                RollupWriter.fileName(RollupWriter.RESOLUTION_MINUTE, START_MILLIS
+                        / RollupWriter.DAY_MILLIS));
+        long intact = minutes.length();
+        RandomAccessFile file = new RandomAccessFile(minutes, "rw");
+        try {
+            file.seek(intact);
+            file.writeInt(200);
+            file.writeInt(0x12345678);
+            file.write(new byte[50]);
+        } finally {
+            file.close();
+        }
+
+        RollupReader reader = new RollupReader(mDirectory);
+        RollupWindow totals = new RollupWindow();
+        reader.aggregate(START_MILLIS, START_MILLIS + 10 * 60000, totals);
+        assertEquals(2, totals.getAdvertisementCount());
+
+        // Restarting within a minute cuts the torn record and writes the minute again.
+        writer = new RollupWriter(mDirectory, 60 * SECOND, 7 * 24 * 3600 * SECOND);
+        assertTrue(writer.record(START + 3 * MINUTE + SECOND, deviceAddress(2), payload));
+        assertTrue(writer.record(START + 5 * MINUTE, deviceAddress(4), null));
+        writer.close();
+        assertEquals(58, writer.getTruncatedBytes());
+
+        reader.aggregate(START_MILLIS, START_MILLIS + 10 * 60000, totals);
+        assertEquals(4, totals.getAdvertisementCount());
+        assertEquals(3, totals.getUniqueDevices());
+        assertEquals(3, totals.getFrameCount(BeaconEvent.TYPE_IBEACON));
+        assertEquals(1, totals.getFrameCount(BeaconEvent.TYPE_NONE));
+        final int[] windows = new int[1];
+        reader.series(RollupWriter.RESOLUTION_MINUTE, START_MILLIS, START_MILLIS + 10 * 60000,
+                new RollupReader.WindowVisitor() {
+                    @Override
+                    public boolean onWindow(RollupWindow window) {
+                        windows[0]++;
+                        return true;
+                    }
+                });
+        assertEquals(4, windows[0]);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link RssiHistory} statistics against direct computation, slot reuse, and that a
+ * reader never sees a half-written update.
+ */
+public class RssiHistoryTest {
+
+    private static final long ADDRESS = 0xAC233F000001L;
+
+    @Test
+    public void statisticsMatchDirectComputation() {
+        RssiHistory history = new RssiHistory(4, 8);
+        Random random = new Random(7);
+        int[] samples = new int[100];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = -90 + random.nextInt(40);
+            history.record(ADDRESS, 1000L * i, samples[i]);
+        }
+
+        double sum = 0;
+        int min = 0;
+        int max = -128;
+        for (int rssi : samples) {
+            sum += rssi;
+            min = Math.min(min, rssi);
+            max = Math.max(max, rssi);
+        }
+        double mean = sum / samples.length;
+        double squares = 0;
+        for (int rssi : samples) {
+            squares += (rssi - mean) * (rssi - mean);
+        }
+
+        RssiHistory.Stats stats = new RssiHistory.Stats();
+        assertTrue(history.read(history.slotOf(ADDRESS), ADDRESS, stats));
+        assertEquals(samples.length, stats.count);
+        assertEquals(samples[samples.length - 1], stats.lastRssi);
+        assertEquals(min, stats.min);
+        assertEquals(max, stats.max);
+        assertEquals(mean, stats.mean, 1e-9);
+        assertEquals(squares / (samples.length - 1), stats.variance, 1e-9);
+        assertTrue(stats.kalman > min && stats.kalman < max);
+
+        long[] timestamps = new long[16];
+        int[] rssi = new int[16];
+        assertEquals(8, history.readSamples(history.slotOf(ADDRESS), ADDRESS, timestamps, rssi));
+        for (int i = 0; i < 8; i++) {
+            assertEquals(1000L * (92 + i), timestamps[i]);
+            assertEquals(samples[92 + i], rssi[i]);
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUpdatedWhenFull() {
+        RssiHistory history = new RssiHistory(2, 4);
+        int first = history.record(1, 100, -50);
+        history.record(2, 200, -60);
+        history.record(1, 300, -50);
+        int reused = history.record(3, 400, -70);
+
+        assertEquals(1, history.getEvictionCount());
+        assertEquals(RssiHistory.NO_SLOT, history.slotOf(2));
+        assertTrue(history.slotOf(1) == first);
+        RssiHistory.Stats stats = new RssiHistory.Stats();
+        assertFalse(history.read(reused, 2, stats));
+        assertTrue(history.read(reused, 3, stats));
+        assertEquals(1, stats.count);
+
+        assertTrue(history.release(3));
+        assertFalse(history.read(reused, 3, stats));
+        assertEquals(1, history.size());
+    }
+
+    @Test
+    public void readersSeeConsistentUpdates() throws InterruptedException {
+        final RssiHistory history = new RssiHistory(1, 4);
+        final int slot = history.record(ADDRESS, 0, -40);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<>();
+
+        // Every sample in a run of 1000 has the same value, so a consistent read has
+        // min == max == mean whenever the count is a multiple of 1000.
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                RssiHistory.Stats stats = new RssiHistory.Stats();
+                long lastCount = 0;
+                while (!done.get()) {
+                    if (!history.read(slot, ADDRESS, stats)) {
+                        failure.set("lost slot");
+                        return;
+                    }
+                    if (stats.count < lastCount) {
+                        failure.set("count went backwards");
+                        return;
+                    }
+                    lastCount = stats.count;
+                    if (stats.min > stats.lastRssi || stats.max < stats.lastRssi
+                            || stats.mean < stats.min || stats.mean > stats.max) {
+                        failure.set("torn read: " + stats.min + " " + stats.lastRssi + " "
+                                + stats.max + " " + stats.mean);
+                        return;
+                    }
+                }
+            }
+        };
+        reader.start();
+        for (int i = 1; i < 2000000; i++) {
+            history.record(ADDRESS, i, -40 - (i / 1000) % 50);
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+    }
+}
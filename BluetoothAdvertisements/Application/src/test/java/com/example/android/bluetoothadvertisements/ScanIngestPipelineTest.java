@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link ScanIngestPipeline} from several producer threads at once.
+ */
+public class ScanIngestPipelineTest {
+
+    @Test
+    public void ringRejectsWhenFull() {
+        MpscRing<String> ring = new MpscRing<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer("x", i, 0));
+        }
+        assertFalse(ring.offer("y", 4, 0));
+        assertEquals(4, ring.size());
+    }
+
+    @Test
+    public void everyResultIsEitherDeliveredOrCountedAsDropped() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 200000;
+        final AtomicLong items = new AtomicLong();
+        final AtomicLong snapshots = new AtomicLong();
+        final Set<Long> keys = new HashSet<>();
+        final ScanIngestPipeline<Long> pipeline = new ScanIngestPipeline<>(1024, 1000000L,
+                new ScanIngestPipeline.Listener<Long>() {
+                    @Override
+                    public void onItem(Long item, long key) {
+                        items.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onTick(long nowNanos) {
+                    }
+
+                    @Override
+                    public void onSnapshot(ScanIngestPipeline.Snapshot<Long> snapshot) {
+                        snapshots.incrementAndGet();
+                        Set<Long> seen = new HashSet<>();
+                        for (Long key : snapshot.updates) {
+                            // One entry per device in each snapshot.
+                            assertTrue(seen.add(key));
+                        }
+                        keys.addAll(seen);
+                    }
+                });
+        pipeline.start();
+
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final long base = p * 1000L;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        Long key = base + (i % 1000);
+                        pipeline.offer(key, key);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        pipeline.stop();
+
+        long total = (long) producers * perProducer;
+        assertEquals(total, pipeline.getReceivedCount());
+        assertEquals(total, items.get() + pipeline.getDropCount());
+        assertEquals(0, pipeline.getQueueDepth());
+        assertTrue(snapshots.get() > 0);
+        assertTrue(keys.size() <= producers * 1000);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Compares the cost of {@link ScanResultAdapter#add} before and after the {@link MacIndex}
+ * change, using address strings in place of {@code ScanResult}s so it runs on the JVM.
+ *
+ * Run with {@code java ... ScanResultAdapterBenchmark}; it is not a unit test.
+ */
+public class ScanResultAdapterBenchmark {
+
+    private static final int SIGHTINGS = 2000000;
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        for (int devices : new int[] {100, 1000, 10000}) {
+            String[] addresses = new String[devices];
+            for (int i = 0; i < devices; i++) {
+                addresses[i] = MacAddresses.unpack(0xAC233F000000L + i * 7919L);
+            }
+            int[] sightings = new int[SIGHTINGS];
+            Random random = new Random(devices);
+            for (int i = 0; i < SIGHTINGS; i++) {
+                sightings[i] = random.nextInt(devices);
+            }
+
+            // The linear scan is quadratic overall; shorten its run for large populations.
+            int linearSightings = Math.min(SIGHTINGS, SIGHTINGS * 100 / devices);
+            double linear = Double.MAX_VALUE;
+            double indexed = Double.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                linear = Math.min(linear, linearAdd(addresses, sightings, linearSightings));
+                indexed = Math.min(indexed, indexedAdd(addresses, sightings, SIGHTINGS));
+            }
+            System.out.printf("%6d devices: linear %10.1f ns/add, indexed %6.1f ns/add%n",
+                    devices, linear, indexed);
+        }
+    }
+
+    /**
+     * The original {@code getPosition} walk over the list.
+     */
+    private static double linearAdd(String[] addresses, int[] sightings, int count) {
+        ArrayList<String> list = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int s = 0; s < count; s++) {
+            String address = addresses[sightings[s]];
+            int position = -1;
+            for (int i = 0; i < list.size(); i++) {
+                if (list.get(i).equals(address)) {
+                    position = i;
+                    break;
+                }
+            }
+            if (position >= 0) {
+                list.set(position, address);
+            } else {
+                list.add(address);
+            }
+        }
+        return (System.nanoTime() - start) / (double) count;
+    }
+
+    /**
+     * The current path: pack the address and look it up in the index.
+     */
+    private static double indexedAdd(String[] addresses, int[] sightings, int count) {
+        ArrayList<String> list = new ArrayList<>();
+        MacIndex index = new MacIndex();
+        long start = System.nanoTime();
+        for (int s = 0; s < count; s++) {
+            String address = addresses[sightings[s]];
+            long packed = MacAddresses.pack(address);
+            int position = index.get(packed);
+            if (position != MacIndex.NO_SLOT) {
+                list.set(position, address);
+            } else {
+                index.put(packed, list.size());
+                list.add(address);
+            }
+        }
+        return (System.nanoTime() - start) / (double) count;
+    }
+}
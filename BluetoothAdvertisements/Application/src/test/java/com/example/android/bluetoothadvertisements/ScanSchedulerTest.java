@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link ScanScheduler} through 24 hours of virtual time against a fake scanner whose
+ * surroundings go from an empty office at night to a crowded hall at midday.
+ */
+public class ScanSchedulerTest {
+
+    private static final long SECOND = 1000;
+
+    private static final long HOUR = 3600 * SECOND;
+
+    private static final long DAY = 24 * HOUR;
+
+    /**
+     * Virtual clock plus a scanner that checks it is driven correctly.
+     */
+    private static class FakeScanner implements ScanScheduler.Clock, ScanScheduler.Scanner {
+
+        long now;
+
+        boolean scanning;
+
+        int mode = -1;
+
+        final ArrayList<Long> starts = new ArrayList<>();
+
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+
+        @Override
+        public void startScan(int mode) {
+            assertFalse("started twice", scanning);
+            // Android's rule: at most five starts in any 30 second window.
+            int n = starts.size();
+            if (n >= ScanScheduler.THROTTLE_MAX_STARTS) {
+                long fifthLast = starts.get(n - ScanScheduler.THROTTLE_MAX_STARTS);
+                assertTrue("throttle violated at " + now,
+                        now - fifthLast > ScanScheduler.THROTTLE_WINDOW_MILLIS);
+            }
+            starts.add(now);
+            scanning = true;
+            this.mode = mode;
+        }
+
+        @Override
+        public void stopScan() {
+            assertTrue("stopped while idle", scanning);
+            scanning = false;
+        }
+
+        /**
+         * Advertisements per second heard when listening all the time, by hour of day.
+         */
+        static double density(long now) {
+            double hour = (now % DAY) / (double) HOUR;
+            return 1 + 1000 * Math.max(0, Math.sin((hour - 6) / 12 * Math.PI));
+        }
+    }
+
+    private static final double[] DUTY_CYCLES = {0.1, 0.25, 1.0};
+
+    /**
+     * Drives the scheduler the way a Handler would, delivering results every 100 ms.
+     */
+    private static void simulate(FakeScanner fake, ScanScheduler scheduler, long duration,
+            Random random) {
+        long end = fake.now + duration;
+        long nextPoll = fake.now + scheduler.start();
+        double pending = 0;
+        while (fake.now < end) {
+            long step = Math.min(100, Math.max(1, nextPoll - fake.now));
+            fake.now += step;
+            if (fake.scanning) {
+                pending += FakeScanner.density(fake.now) * DUTY_CYCLES[fake.mode] * step / 1000.0
+                        * (0.5 + random.nextDouble());
+                int count = (int) pending;
+                pending -= count;
+                scheduler.onResults(count);
+            }
+            if (fake.now >= nextPoll) {
+                long delay = scheduler.poll();
+                assertTrue(delay >= 0);
+                nextPoll = fake.now + delay;
+            }
+        }
+        scheduler.stop();
+        assertFalse(fake.scanning);
+    }
+
+    @Test
+    public void dutyCyclesForADayWithinTheThrottle() {
+        FakeScanner fake = new FakeScanner();
+        ScanScheduler scheduler = new ScanScheduler(fake, fake, 20 * SECOND, 10 * SECOND,
+                20, 200);
+        simulate(fake, scheduler, DAY, new Random(1));
+
+        // One start per 30 s cycle, never throttled at this pace.
+        assertEquals(DAY / (30 * SECOND), scheduler.getStartCount(), 1);
+        assertEquals(0, scheduler.getThrottledStarts());
+        assertEquals(DAY, scheduler.getRunMillis());
+        double coverage = scheduler.getScanningMillis() / (double) scheduler.getRunMillis();
+        assertEquals(2.0 / 3, coverage, 0.01);
+        assertTrue(scheduler.getGapsMillis().getMax() <= 10 * SECOND + 100);
+
+        // Quiet nights in low latency, busy days in low power.
+        assertTrue(scheduler.getModeMillis(ScanScheduler.MODE_LOW_LATENCY) > 4 * HOUR);
+        assertTrue(scheduler.getModeMillis(ScanScheduler.MODE_LOW_POWER) > 4 * HOUR);
+        assertTrue(scheduler.getModeChanges() >= 4);
+        assertTrue(scheduler.getModeChanges() < 100);
+    }
+
+    @Test
+    public void continuousScanningOnlyRestartsToChangeMode() {
+        FakeScanner fake = new FakeScanner();
+        ScanScheduler scheduler = new ScanScheduler(fake, fake, 5 * SECOND, 0, 20, 200);
+        simulate(fake, scheduler, DAY, new Random(2));
+
+        assertEquals(scheduler.getModeChanges() + 1, scheduler.getStartCount());
+        double coverage = scheduler.getScanningMillis() / (double) scheduler.getRunMillis();
+        assertTrue(coverage > 0.999);
+    }
+
+    @Test
+    public void shortWindowsAreThrottled() {
+        // Asks for a start every 3 s; the throttle stretches that to five per ~30 s.
+        FakeScanner fake = new FakeScanner();
+        ScanScheduler scheduler = new ScanScheduler(fake, fake, 2 * SECOND, SECOND, 20, 200);
+        simulate(fake, scheduler, DAY, new Random(3));
+
+        assertTrue(scheduler.getThrottledStarts() > 0);
+        long maxStarts = DAY / (30 * SECOND) * ScanScheduler.THROTTLE_MAX_STARTS;
+        assertTrue(scheduler.getStartCount() <= maxStarts);
+        assertTrue(scheduler.getStartCount() > maxStarts * 9 / 10);
+        assertTrue(scheduler.getGapsMillis().getMax() < ScanScheduler.THROTTLE_WINDOW_MILLIS);
+    }
+
+    @Test
+    public void restartCountsAgainstTheThrottle() {
+        FakeScanner fake = new FakeScanner();
+        ScanScheduler scheduler = new ScanScheduler(fake, fake, 60 * SECOND, 0, 20, 200);
+        scheduler.start();
+        long delay = 0;
+        for (int i = 0; i < 10; i++) {
+            fake.now += 100;
+            delay = scheduler.restart();
+        }
+        // Four restarts went through straight away; the rest wait for the first to age out.
+        assertEquals(ScanScheduler.THROTTLE_MAX_STARTS, fake.starts.size());
+        assertFalse(scheduler.isScanning());
+        assertTrue(delay > 25 * SECOND);
+        fake.now += delay;
+        scheduler.poll();
+        assertTrue(scheduler.isScanning());
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.bluetoothlechat.scan
+
+import android.bluetooth.le.ScanResult
+import kotlin.math.abs
+
+// An address silent this long has rotated away or left
+private const val DEPARTURE_NANOS = 20_000_000_000L
+// Its successor must have first appeared within this long after its last advertisement
+private const val HANDOFF_NANOS = 15_000_000_000L
+// The closest candidate in RSSI must beat the next one by this many dB
+private const val RSSI_MARGIN = 6
+// Bytes of service data after the UUID that go into the fingerprint
+private const val SERVICE_DATA_PREFIX = 2
+// Fingerprint of addresses seen without a payload, which are never linked
+private const val NO_FINGERPRINT = 0L
+
+/**
+ * Links the resolvable private addresses a peer rotates through, so a phone that changes its
+ * address every 15 minutes is listed once rather than once per address.
+ *
+ * Each address gets a fingerprint of its first advertisement: flags, service UUIDs, the
+ * layout of its manufacturer data (company, length and leading byte), the UUID, length and
+ * first bytes of its service data, and its TX power. Once an address has been silent for
+ * [DEPARTURE_NANOS] it is handed off to the address with the same fingerprint that first
+ * appeared within [HANDOFF_NANOS] after it, and [onLinked] is told so. Several candidates are
+ * told apart by how close their first RSSI is to the departed address's last; without a clear
+ * winner the hand-off is counted as ambiguous and not made, since hiding a peer is worse than
+ * showing it twice.
+ *
+ * A departed address is dropped once it has been handled, so a peer's cluster is simply
+ * carried forward by its newest address. Advertising intervals aren't compared: the low-power,
+ * batched scan only sees a fraction of the advertisements, too few to measure them. Only
+ * addresses shaped like resolvable private addresses (top two bits 01) are tracked.
+ *
+ * Not thread safe: call it from the scan callback's thread.
+ */
+class AddressClusterer(private val onLinked: (departed: String, successor: String) -> Unit) {
+
+    private class Entry(val fingerprint: Long, val firstSeenNanos: Long, val firstRssi: Int) {
+        var lastSeenNanos = firstSeenNanos
+        var lastRssi = firstRssi
+        // True once a departed address has been handed off to this one
+        var hasPredecessor = false
+    }
+
+    // String key is the address of the bluetooth device
+    private val entries = mutableMapOf<String, Entry>()
+
+    // Churn metrics, for describe()
+    var addressCount = 0L
+        private set
+    var linkCount = 0L
+        private set
+    var ambiguousCount = 0L
+        private set
+
+    /**
+     * Notes a sighting, using the time the controller received it.
+     */
+    fun record(result: ScanResult) {
+        val address = result.device?.address ?: return
+        if (!isResolvable(address)) return
+        val entry = entries[address]
+        if (entry == null) {
+            entries[address] = Entry(fingerprint(result), result.timestampNanos, result.rssi)
+            addressCount++
+        } else if (result.timestampNanos > entry.lastSeenNanos) {
+            entry.lastSeenNanos = result.timestampNanos
+            entry.lastRssi = result.rssi
+        }
+    }
+
+    /**
+     * Hands off every address that has been silent long enough.
+     *
+     * @param nowNanos the current SystemClock.elapsedRealtimeNanos()
+     */
+    fun advance(nowNanos: Long) {
+        val departed = entries
+            .filter { nowNanos - it.value.lastSeenNanos >= DEPARTURE_NANOS }
+            .toList()
+            // Oldest first, so a chain of rotations is followed in order
+            .sortedBy { it.second.lastSeenNanos }
+        for ((address, entry) in departed) {
+            entries.remove(address)
+            handOff(address, entry)
+        }
+    }
+
+    fun describe() = "${entries.size} addresses tracked, $addressCount seen, " +
+            "$linkCount linked, $ambiguousCount ambiguous"
+
+    private fun handOff(address: String, departed: Entry) {
+        if (departed.fingerprint == NO_FINGERPRINT) return
+        var best: String? = null
+        var bestScore = Int.MAX_VALUE
+        var secondScore = Int.MAX_VALUE
+        for ((candidateAddress, candidate) in entries) {
+            val gap = candidate.firstSeenNanos - departed.lastSeenNanos
+            if (candidate.hasPredecessor || candidate.fingerprint != departed.fingerprint ||
+                gap <= 0 || gap > HANDOFF_NANOS) {
+                continue
+            }
+            val score = abs(candidate.firstRssi - departed.lastRssi)
+            if (score < bestScore) {
+                secondScore = bestScore
+                bestScore = score
+                best = candidateAddress
+            } else if (score < secondScore) {
+                secondScore = score
+            }
+        }
+        val successor = best ?: return
+        if (secondScore != Int.MAX_VALUE && secondScore - bestScore < RSSI_MARGIN) {
+            ambiguousCount++
+            return
+        }
+        entries[successor]?.hasPredecessor = true
+        linkCount++
+        onLinked(address, successor)
+    }
+
+    private fun isResolvable(address: String) = address.isNotEmpty() && address[0] in '4'..'7'
+
+    private fun fingerprint(result: ScanResult): Long {
+        val record = result.scanRecord ?: return NO_FINGERPRINT
+        var hash = 17L
+        hash = hash * 31 + record.advertiseFlags
+        record.serviceUuids?.forEach { hash = hash * 31 + it.hashCode() }
+        record.manufacturerSpecificData?.let { data ->
+            for (i in 0 until data.size()) {
+                val value = data.valueAt(i)
+                hash = hash * 31 + data.keyAt(i)
+                hash = hash * 31 + value.size
+                if (value.isNotEmpty()) hash = hash * 31 + value[0]
+            }
+        }
+        record.serviceData?.forEach { (uuid, value) ->
+            hash = hash * 31 + uuid.hashCode()
+            hash = hash * 31 + value.size
+            for (i in 0 until minOf(SERVICE_DATA_PREFIX, value.size)) {
+                hash = hash * 31 + value[i]
+            }
+        }
+        hash = hash * 31 + record.txPowerLevel
+        return if (hash == NO_FINGERPRINT) 1L else hash
+    }
+}
@@ -20,6 +20,7 @@ import android.bluetooth.*
 import android.bluetooth.le.*
 import android.os.Handler
 import android.os.ParcelUuid
+import android.os.SystemClock
 import android.util.Log
 import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.LiveData
@@ -31,6 +32,10 @@ import com.example.bluetoothlechat.scan.DeviceScanViewState.*
 private const val TAG = "DeviceScanViewModel"
 // 30 second scan period
 private const val SCAN_PERIOD = 30000L
+// Let the controller hold results for up to 5 seconds and deliver them as one batch
+private const val REPORT_DELAY_MILLIS = 5000L
+// While batching, explicitly flush the controller's results every 10 seconds
+private const val FLUSH_INTERVAL_MILLIS = 10000L
 
 class DeviceScanViewModel(app: Application) : AndroidViewModel(app) {
 
@@ -41,6 +46,9 @@ class DeviceScanViewModel(app: Application) : AndroidViewModel(app) {
     // String key is the address of the bluetooth device
     private val scanResults = mutableMapOf<String, BluetoothDevice>()
 
+    // Drops a peer's old address once its new one has taken over, so it's listed only once
+    private val clusterer = AddressClusterer { departed, _ -> scanResults.remove(departed) }
+
     // BluetoothAdapter should never be null since BLE is required per
     // the <uses-feature> tag in the AndroidManifest.xml
     private val adapter: BluetoothAdapter = BluetoothAdapter.getDefaultAdapter()
@@ -52,6 +60,21 @@ class DeviceScanViewModel(app: Application) : AndroidViewModel(app) {
     private val scanFilters: List<ScanFilter>
     private val scanSettings: ScanSettings
 
+    // True when results are batched by the controller and delivered via onBatchScanResults
+    private var batchingEnabled = false
+
+    private val handler = Handler()
+
+    // Periodically collects whatever results the controller is holding
+    private val flushRunnable = object : Runnable {
+        override fun run() {
+            scanCallback?.let { callback ->
+                scanner?.flushPendingScanResults(callback)
+                handler.postDelayed(this, FLUSH_INTERVAL_MILLIS)
+            }
+        }
+    }
+
     init {
         // Setup scan filters and settings
         scanFilters = buildScanFilters()
@@ -81,11 +104,14 @@ class DeviceScanViewModel(app: Application) : AndroidViewModel(app) {
             _viewState.value = ActiveScan
 
             // Stop scanning after the scan period
-            Handler().postDelayed({ stopScanning() }, SCAN_PERIOD)
+            handler.postDelayed({ stopScanning() }, SCAN_PERIOD)
 
             // Kick off a new scan
             scanCallback = DeviceScanCallback()
             scanner?.startScan(scanFilters, scanSettings, scanCallback)
+            if (batchingEnabled) {
+                handler.postDelayed(flushRunnable, FLUSH_INTERVAL_MILLIS)
+            }
         } else {
             Log.d(TAG, "Already scanning")
         }
@@ -93,8 +119,15 @@ class DeviceScanViewModel(app: Application) : AndroidViewModel(app) {
 
     private fun stopScanning() {
         Log.d(TAG, "Stopping Scanning")
+        handler.removeCallbacks(flushRunnable)
+        scanCallback?.let { callback ->
+            // Collect anything the controller is still holding before stopping
+            if (batchingEnabled) scanner?.flushPendingScanResults(callback)
+        }
         scanner?.stopScan(scanCallback)
         scanCallback = null
+        clusterer.advance(SystemClock.elapsedRealtimeNanos())
+        Log.d(TAG, "Address clusters: ${clusterer.describe()}")
         // return the current results
         _viewState.value = ScanResults(scanResults)
     }
@@ -112,11 +145,21 @@ class DeviceScanViewModel(app: Application) : AndroidViewModel(app) {
 
     /**
      * Return a [ScanSettings] object set to use low power (to preserve battery life).
+     *
+     * When the chipset supports offloaded batching, results are held by the controller and
+     * delivered together through onBatchScanResults instead of waking the app for each one.
+     * Otherwise falls back to per-result delivery.
      */
     private fun buildScanSettings(): ScanSettings {
-        return ScanSettings.Builder()
+        val builder = ScanSettings.Builder()
             .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
-            .build()
+        batchingEnabled = adapter.isOffloadedScanBatchingSupported
+        if (batchingEnabled) {
+            builder.setReportDelay(REPORT_DELAY_MILLIS)
+        } else {
+            Log.d(TAG, "Offloaded scan batching not supported, delivering each result")
+        }
+        return builder.build()
     }
 
     /**
@@ -125,11 +168,14 @@ class DeviceScanViewModel(app: Application) : AndroidViewModel(app) {
     private inner class DeviceScanCallback : ScanCallback() {
         override fun onBatchScanResults(results: List<ScanResult>) {
             super.onBatchScanResults(results)
+            Log.d(TAG, "Batch of ${results.size} scan results")
             for (item in results) {
                 item.device?.let { device ->
                     scanResults[device.address] = device
                 }
+                clusterer.record(item)
             }
+            clusterer.advance(SystemClock.elapsedRealtimeNanos())
             _viewState.value = ScanResults(scanResults)
         }
 
@@ -141,6 +187,8 @@ class DeviceScanViewModel(app: Application) : AndroidViewModel(app) {
             result.device?.let { device ->
                 scanResults[device.address] = device
             }
+            clusterer.record(result)
+            clusterer.advance(SystemClock.elapsedRealtimeNanos())
             _viewState.value = ScanResults(scanResults)
         }
 
@@ -29,39 +29,76 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connections and data communication with GATT servers hosted on
+ * Bluetooth LE devices. Several devices can be connected at once; every call and broadcast
+ * names the device it concerns by address. Requests to a device go through its
+ * {@code GattOperationQueue}, since a connection only runs one GATT operation at a time.
+ *
+ * Connection events are broadcast, but characteristic values can arrive hundreds of times a
+ * second, so bound clients {@link #subscribe} to them instead and get the raw bytes directly.
+ * For sensors that stream continuously, {@link #startStreaming} tunes the link for
+ * throughput and captures their notifications to a file.
+ *
+ * Each device's attribute table is kept in a {@link GattAttributeCache}, so a device that
+ * reconnects is shown straight away while discovery runs, and the table is only rebuilt if
+ * its Database Hash or attributes changed, or it sent Service Changed.
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    // Controllers typically support 4 to 8 simultaneous LE links, shared with anything else
+    // on the phone, so stay at the low end and queue the rest.
+    private static final int MAX_CONNECTIONS = 4;
+
+    // Well inside the 30 second ATT transaction timeout, after which the link is dropped.
+    private static final long OPERATION_TIMEOUT_NANOS = 10 * 1000000000L;
+    private static final long OPERATION_RETRY_DELAY_NANOS = 500000000L;
+    private static final int OPERATION_ATTEMPTS = 3;
+
+    // Streaming asks for the largest ATT MTU, so each notification can carry up to 514 bytes.
+    private static final int STREAM_MTU = 517;
+    // A third of the shortest connection interval, 7.5 ms.
+    private static final long STREAM_EVENT_GAP_NANOS = 2500000L;
+    private static final long STREAM_DRAIN_INTERVAL_NANOS = 50000000L;
+    // About two seconds of a 1 Mbit/s stream per characteristic.
+    private static final int STREAM_RING_BYTES = 256 * 1024;
+    private static final String STREAM_DIRECTORY = "streams";
+
+    private static final String ATTRIBUTE_CACHE_DIRECTORY = "gatt";
+    private static final UUID GENERIC_ATTRIBUTE_SERVICE =
+            UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    private static final UUID SERVICE_CHANGED =
+            UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb");
+    private static final UUID DATABASE_HASH =
+            UUID.fromString("00002b2a-0000-1000-8000-00805f9b34fb");
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
     public final static String ACTION_GATT_DISCONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
+    public final static String ACTION_GATT_QUEUED =
+            "com.example.bluetooth.le.ACTION_GATT_QUEUED";
     public final static String ACTION_GATT_SERVICES_DISCOVERED =
             "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE =
-            "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA =
-            "com.example.bluetooth.le.EXTRA_DATA";
+    public final static String EXTRA_ADDRESS =
+            "com.example.bluetooth.le.EXTRA_ADDRESS";
 
     public final static UUID UUID_HEART_RATE_MEASUREMENT =
             UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
@@ -71,28 +108,22 @@ public class BluetoothLeService extends Service {
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
+            final String address = gatt.getDevice().getAddress();
             if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
+                Log.i(TAG, "Connected to GATT server " + address + ".");
+                // Service discovery is queued once the connection is up.
+                mConnections.onConnectionStateChange(address, gatt, true);
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+                Log.i(TAG, "Disconnected from GATT server " + address + ", status " + status);
+                mConnections.onConnectionStateChange(address, gatt, false);
             }
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            completeOperation(gatt, GattOperationQueue.OP_DISCOVER_SERVICES, null, status);
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+                checkAttributeTable(gatt);
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
@@ -102,56 +133,396 @@ public class BluetoothLeService extends Service {
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
+            completeOperation(gatt, GattOperationQueue.OP_READ_CHARACTERISTIC, characteristic,
+                    status);
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                if (DATABASE_HASH.equals(characteristic.getUuid())) {
+                    final String address = gatt.getDevice().getAddress();
+                    final GattTable pending = mPendingTables.remove(address);
+                    final byte[] hash = characteristic.getValue();
+                    if (pending != null) {
+                        updateAttributeTable(address, hash != null
+                                && hash.length == GattTable.DATABASE_HASH_LENGTH
+                                ? pending.withDatabaseHash(hash) : pending);
+                    }
+                }
+                publishValue(gatt, characteristic);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            completeOperation(gatt, GattOperationQueue.OP_WRITE_CHARACTERISTIC, characteristic,
+                    status);
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                     int status) {
+            completeOperation(gatt, GattOperationQueue.OP_READ_DESCRIPTOR, descriptor, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            completeOperation(gatt, GattOperationQueue.OP_WRITE_DESCRIPTOR, descriptor, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            completeOperation(gatt, GattOperationQueue.OP_REQUEST_MTU, null, status);
+            final String address = gatt.getDevice().getAddress();
+            Log.i(TAG, address + " MTU " + mtu + ", status " + status);
+            final StreamRecorder recorder = mStreams.get(address);
+            if (recorder != null && status == BluetoothGatt.GATT_SUCCESS) {
+                recorder.setMtu(mtu);
+            }
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            final String address = gatt.getDevice().getAddress();
+            final String phy = "TX " + phyName(txPhy) + " RX " + phyName(rxPhy) + " PHY";
+            Log.i(TAG, address + " " + phy + ", status " + status);
+            final StreamRecorder recorder = mStreams.get(address);
+            if (recorder != null && status == BluetoothGatt.GATT_SUCCESS) {
+                recorder.setPhy(phy);
             }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            if (SERVICE_CHANGED.equals(characteristic.getUuid())) {
+                // The stored table can no longer be trusted, whatever range the device names.
+                final String address = gatt.getDevice().getAddress();
+                Log.i(TAG, address + " changed its services");
+                mAttributeCache.invalidate(address);
+                mGattTables.remove(address);
+                enqueue(address, new GattOperationQueue.Operation(
+                        GattOperationQueue.OP_DISCOVER_SERVICES, GattOperationQueue.LANE_SETUP,
+                        null, null));
+            }
+            publishValue(gatt, characteristic);
         }
     };
 
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
-    }
+    // Opens and controls the pooled sessions on behalf of mConnections.
+    private final GattConnectionManager.Transport<BluetoothGatt> mTransport =
+            new GattConnectionManager.Transport<BluetoothGatt>() {
+        @Override
+        public BluetoothGatt open(String address) {
+            final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+            if (device == null) {
+                Log.w(TAG, "Device not found.  Unable to connect.");
+                return null;
+            }
+            // We want to directly connect to the device, so we are setting the autoConnect
+            // parameter to false.
+            Log.d(TAG, "Trying to create a new connection to " + address + ".");
+            return device.connectGatt(BluetoothLeService.this, false, mGattCallback);
+        }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
+        @Override
+        public boolean reconnect(BluetoothGatt gatt) {
+            Log.d(TAG, "Trying to use an existing BluetoothGatt for connection.");
+            return gatt.connect();
+        }
 
-        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d(TAG, "Heart rate format UINT16.");
+        @Override
+        public void disconnect(BluetoothGatt gatt) {
+            gatt.disconnect();
+        }
+
+        @Override
+        public void close(BluetoothGatt gatt) {
+            gatt.close();
+        }
+    };
+
+    // Turns each connection's state changes into broadcasts, and gives every connection that
+    // is up an operation queue.
+    private final GattConnectionManager.Listener mConnectionListener =
+            new GattConnectionManager.Listener() {
+        @Override
+        public void onStateChanged(String address, int state) {
+            Log.d(TAG, address + " is " + GattConnectionManager.stateName(state));
+            if (state == GattConnectionManager.STATE_CONNECTED) {
+                openOperationQueue(address, mConnections.getSession(address));
             } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                Log.d(TAG, "Heart rate format UINT8.");
+                closeOperationQueue(address);
             }
-            final int heartRate = characteristic.getIntValue(format, 1);
-            Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
-        } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for(byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+            if (state == GattConnectionManager.STATE_CONNECTED) {
+                broadcastUpdate(ACTION_GATT_CONNECTED, address);
+                if (mGattTables.containsKey(address)) {
+                    broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED, address);
+                }
+            } else if (state == GattConnectionManager.STATE_DISCONNECTED) {
+                broadcastUpdate(ACTION_GATT_DISCONNECTED, address);
+            } else if (state == GattConnectionManager.STATE_QUEUED) {
+                broadcastUpdate(ACTION_GATT_QUEUED, address);
+            }
+        }
+    };
+
+    private final GattConnectionManager<BluetoothGatt> mConnections =
+            new GattConnectionManager<BluetoothGatt>(mTransport, MAX_CONNECTIONS,
+                    mConnectionListener);
+
+    // One queue per connection that is up, keyed by address.
+    private final ConcurrentHashMap<String, GattOperationQueue> mOperationQueues =
+            new ConcurrentHashMap<String, GattOperationQueue>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final GattEventBus mEventBus = new GattEventBus();
+
+    // Created by initialize(), once the service has a cache directory.
+    private GattAttributeCache mAttributeCache;
+
+    // The attribute table shown for each connection that is up, keyed by address: the
+    // cached one until discovery has confirmed or replaced it.
+    private final ConcurrentHashMap<String, GattTable> mGattTables =
+            new ConcurrentHashMap<String, GattTable>();
+
+    // Discovered tables waiting for their Database Hash to be read, keyed by address.
+    private final ConcurrentHashMap<String, GattTable> mPendingTables =
+            new ConcurrentHashMap<String, GattTable>();
+
+    // Devices whose notifications are being captured, keyed by address.
+    private final ConcurrentHashMap<String, StreamRecorder> mStreams =
+            new ConcurrentHashMap<String, StreamRecorder>();
+
+    // Reports each capture once its file is closed, on the recorder's writer thread.
+    private final StreamRecorder.FinishListener mStreamFinishListener =
+            new StreamRecorder.FinishListener() {
+        @Override
+        public void onFinished(StreamRecorder recorder, IOException error) {
+            if (error != null) {
+                Log.e(TAG, "Capture to " + recorder.getFile() + " failed", error);
+            }
+            final StringBuilder stats = new StringBuilder();
+            recorder.describe(stats);
+            Log.i(TAG, stats.toString());
+        }
+    };
+
+    // When mTimeoutCheck is due to run, or Long.MAX_VALUE if it isn't scheduled.
+    private long mTimeoutCheckNanos = Long.MAX_VALUE;
+
+    private final Runnable mTimeoutCheck = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BluetoothLeService.this) {
+                mTimeoutCheckNanos = Long.MAX_VALUE;
+            }
+            final long now = SystemClock.elapsedRealtimeNanos();
+            for (GattOperationQueue queue : mOperationQueues.values()) {
+                queue.checkTimeouts(now);
+                scheduleTimeoutCheck(queue);
+            }
+        }
+    };
+
+    // Runs the operations of one connection against its BluetoothGatt.
+    private static final class GattExecutor implements GattOperationQueue.Executor {
+        private final BluetoothGatt mGatt;
+
+        GattExecutor(BluetoothGatt gatt) {
+            mGatt = gatt;
+        }
+
+        @Override
+        public boolean start(GattOperationQueue.Operation operation) {
+            switch (operation.getType()) {
+                case GattOperationQueue.OP_DISCOVER_SERVICES:
+                    return mGatt.discoverServices();
+                case GattOperationQueue.OP_READ_CHARACTERISTIC:
+                    return mGatt.readCharacteristic(
+                            (BluetoothGattCharacteristic) operation.getTarget());
+                case GattOperationQueue.OP_WRITE_CHARACTERISTIC: {
+                    // The value is only set now, so queued writes can't overwrite each other.
+                    final BluetoothGattCharacteristic characteristic =
+                            (BluetoothGattCharacteristic) operation.getTarget();
+                    characteristic.setValue(operation.getValue());
+                    return mGatt.writeCharacteristic(characteristic);
+                }
+                case GattOperationQueue.OP_READ_DESCRIPTOR:
+                    return mGatt.readDescriptor((BluetoothGattDescriptor) operation.getTarget());
+                case GattOperationQueue.OP_WRITE_DESCRIPTOR: {
+                    final BluetoothGattDescriptor descriptor =
+                            (BluetoothGattDescriptor) operation.getTarget();
+                    descriptor.setValue(operation.getValue());
+                    return mGatt.writeDescriptor(descriptor);
+                }
+                case GattOperationQueue.OP_REQUEST_MTU:
+                    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                            && mGatt.requestMtu(STREAM_MTU);
+                default:
+                    return false;
+            }
+        }
+    }
+
+    private void openOperationQueue(final String address, BluetoothGatt gatt) {
+        final GattOperationQueue queue = new GattOperationQueue(new GattExecutor(gatt),
+                OPERATION_TIMEOUT_NANOS, OPERATION_RETRY_DELAY_NANOS, OPERATION_ATTEMPTS,
+                new GattOperationQueue.Listener() {
+                    @Override
+                    public void onFinished(GattOperationQueue.Operation operation, int status) {
+                        if (status != GattOperationQueue.STATUS_SUCCESS) {
+                            Log.w(TAG, address + ": "
+                                    + GattOperationQueue.typeName(operation.getType())
+                                    + " failed after " + operation.getAttempts()
+                                    + " attempts, status " + status);
+                            if (operation.getTarget() instanceof BluetoothGattCharacteristic
+                                    && DATABASE_HASH.equals(((BluetoothGattCharacteristic)
+                                            operation.getTarget()).getUuid())) {
+                                mHandler.post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        final GattTable pending = mPendingTables.remove(address);
+                                        if (pending != null) {
+                                            updateAttributeTable(address, pending);
+                                        }
+                                    }
+                                });
+                            }
+                        }
+                    }
+                });
+        mOperationQueues.put(address, queue);
+        // Show the table from the last connection while discovery confirms it.
+        final GattTable cached = mAttributeCache.get(address);
+        if (cached != null) {
+            mGattTables.put(address, cached);
+        }
+        // Attempts to discover services after successful connection.
+        enqueue(address, new GattOperationQueue.Operation(
+                GattOperationQueue.OP_DISCOVER_SERVICES, GattOperationQueue.LANE_SETUP,
+                null, null));
+    }
+
+    private void closeOperationQueue(String address) {
+        stopStreaming(address);
+        mGattTables.remove(address);
+        mPendingTables.remove(address);
+        final GattOperationQueue queue = mOperationQueues.remove(address);
+        if (queue != null) {
+            queue.close();
+            final StringBuilder stats = new StringBuilder();
+            queue.describe(stats);
+            Log.i(TAG, address + " " + stats);
+        }
+    }
+
+    private boolean enqueue(String address, GattOperationQueue.Operation operation) {
+        final GattOperationQueue queue = mOperationQueues.get(address);
+        if (queue == null || !queue.enqueue(operation, SystemClock.elapsedRealtimeNanos())) {
+            Log.w(TAG, address + " not connected");
+            return false;
+        }
+        scheduleTimeoutCheck(queue);
+        return true;
+    }
+
+    // Reports a result to the connection's queue, which starts the next operation at once.
+    private void completeOperation(BluetoothGatt gatt, int type, Object target, int status) {
+        final GattOperationQueue queue = mOperationQueues.get(gatt.getDevice().getAddress());
+        if (queue != null
+                && queue.onComplete(type, target, status, SystemClock.elapsedRealtimeNanos())) {
+            scheduleTimeoutCheck(queue);
+        }
+    }
+
+    // Makes sure mTimeoutCheck runs by the queue's deadline. It is only moved earlier, so
+    // most operations leave it alone; when it runs it reschedules itself for what's left.
+    private void scheduleTimeoutCheck(GattOperationQueue queue) {
+        final long deadline = queue.getDeadlineNanos();
+        synchronized (this) {
+            if (deadline >= mTimeoutCheckNanos) {
+                return;
+            }
+            mTimeoutCheckNanos = deadline;
+        }
+        mHandler.removeCallbacks(mTimeoutCheck);
+        final long delayNanos = deadline - SystemClock.elapsedRealtimeNanos();
+        mHandler.postDelayed(mTimeoutCheck, Math.max(0, delayNanos / 1000000 + 1));
+    }
+
+    // Snapshots what discovery found and, where the device has a Database Hash, reads it
+    // before consulting the cache.  Also asks to hear about Service Changed.
+    private void checkAttributeTable(BluetoothGatt gatt) {
+        final String address = gatt.getDevice().getAddress();
+        final GattTable.Builder builder = new GattTable.Builder();
+        for (BluetoothGattService service : gatt.getServices()) {
+            builder.addService(service.getUuid(), service.getInstanceId());
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                builder.addCharacteristic(characteristic.getUuid(),
+                        characteristic.getInstanceId(), characteristic.getProperties());
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    builder.addDescriptor(descriptor.getUuid());
+                }
+            }
+        }
+        final GattTable table = builder.build();
+
+        final BluetoothGattService genericAttribute = gatt.getService(GENERIC_ATTRIBUTE_SERVICE);
+        if (genericAttribute != null) {
+            final BluetoothGattCharacteristic serviceChanged =
+                    genericAttribute.getCharacteristic(SERVICE_CHANGED);
+            if (serviceChanged != null) {
+                gatt.setCharacteristicNotification(serviceChanged, true);
+                writeClientConfiguration(address, serviceChanged, true);
+            }
+            final BluetoothGattCharacteristic hash =
+                    genericAttribute.getCharacteristic(DATABASE_HASH);
+            if (hash != null && (hash.getProperties()
+                    & BluetoothGattCharacteristic.PROPERTY_READ) != 0) {
+                mPendingTables.put(address, table);
+                if (enqueue(address, new GattOperationQueue.Operation(
+                        GattOperationQueue.OP_READ_CHARACTERISTIC,
+                        GattOperationQueue.LANE_SETUP, hash, null))) {
+                    return;
+                }
+                mPendingTables.remove(address);
             }
         }
+        updateAttributeTable(address, table);
+    }
+
+    // Keeps the cached table if it still matches, and tells the UI only if what it shows
+    // has changed.
+    private void updateAttributeTable(String address, GattTable discovered) {
+        GattTable table;
+        try {
+            table = mAttributeCache.update(address, discovered);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to cache the attribute table of " + address, e);
+            table = discovered;
+        }
+        if (mOperationQueues.containsKey(address) && mGattTables.put(address, table) != table) {
+            broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED, address);
+        }
+    }
+
+    private void broadcastUpdate(final String action, final String address) {
+        final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
         sendBroadcast(intent);
     }
 
+    // The platform stores each received value in a fresh array, so it is handed on as is.
+    private void publishValue(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        final byte[] value = characteristic.getValue();
+        if (value != null && mEventBus.hasSubscribers()) {
+            mEventBus.publish(gatt.getDevice().getAddress(), characteristic.getUuid(), value,
+                    SystemClock.elapsedRealtimeNanos());
+        }
+    }
+
     public class LocalBinder extends Binder {
         BluetoothLeService getService() {
             return BluetoothLeService.this;
@@ -166,8 +537,8 @@ public class BluetoothLeService extends Service {
     @Override
     public boolean onUnbind(Intent intent) {
         // After using a given device, you should make sure that BluetoothGatt.close() is called
-        // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
+        // such that resources are cleaned up properly.  In this particular example, every
+        // connection is closed when the UI is disconnected from the Service.
         close();
         return super.onUnbind(intent);
     }
@@ -196,16 +567,23 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        if (mAttributeCache == null) {
+            mAttributeCache = new GattAttributeCache(
+                    new File(getCacheDir(), ATTRIBUTE_CACHE_DIRECTORY));
+        }
+
         return true;
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device. If every connection slot
+     * is taken the attempt is queued, reported by {@code ACTION_GATT_QUEUED}, and started as
+     * soon as another device disconnects.
      *
      * @param address The device address of the destination device.
      *
-     * @return Return true if the connection is initiated successfully. The connection result
-     *         is reported asynchronously through the
+     * @return Return true if the connection is initiated or queued successfully. The
+     *         connection result is reported asynchronously through the
      *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      *         callback.
      */
@@ -214,57 +592,49 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
-
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
-            }
-        }
-
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
-        }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
-        return true;
+        return mConnections.connect(address);
     }
 
     /**
-     * Disconnects an existing connection or cancel a pending connection. The disconnection result
-     * is reported asynchronously through the
+     * Disconnects an existing connection or cancel a pending or queued connection. The
+     * disconnection result is reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
+     *
+     * @param address The device to disconnect.
      */
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void disconnect(final String address) {
+        if (mBluetoothAdapter == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        mConnections.disconnect(address);
+    }
+
+    /**
+     * Releases the resources held for one device, disconnecting it first if needed.
+     *
+     * @param address The device to release.
+     */
+    public void close(final String address) {
+        mConnections.close(address);
     }
 
     /**
-     * After using a given BLE device, the app must call this method to ensure resources are
+     * After using the BLE devices, the app must call this method to ensure resources are
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
-        }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        mConnections.closeAll();
+    }
+
+    /**
+     * @param address The device to look up.
+     *
+     * @return One of the {@code GattConnectionManager.STATE_*} constants.
+     */
+    public int getConnectionState(final String address) {
+        return mConnections.getState(address);
     }
 
     /**
@@ -272,48 +642,289 @@ public class BluetoothLeService extends Service {
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
      * callback.
      *
+     * @param address The device that owns the characteristic.
      * @param characteristic The characteristic to read from.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void readCharacteristic(final String address,
+                                   BluetoothGattCharacteristic characteristic) {
+        if (mBluetoothAdapter == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        enqueue(address, new GattOperationQueue.Operation(
+                GattOperationQueue.OP_READ_CHARACTERISTIC, GattOperationQueue.LANE_INTERACTIVE,
+                characteristic, null));
     }
 
     /**
      * Enables or disables notification on a give characteristic.
      *
+     * @param address The device that owns the characteristic.
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+    public void setCharacteristicNotification(final String address,
+                                              BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+        final BluetoothGatt gatt = mConnections.getConnectedSession(address);
+        if (mBluetoothAdapter == null || gatt == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or " + address + " not connected");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        gatt.setCharacteristicNotification(characteristic, enabled);
 
         // This is specific to Heart Rate Measurement.
         if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+            writeClientConfiguration(address, characteristic, enabled);
+        }
+    }
+
+    // Queues the write that tells the device to start or stop notifying.  Setup goes ahead of
+    // queued reads.
+    private boolean writeClientConfiguration(String address,
+                                             BluetoothGattCharacteristic characteristic,
+                                             boolean enabled) {
+        final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
+                UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
+        if (descriptor == null) {
+            Log.w(TAG, characteristic.getUuid() + " has no client configuration");
+            return false;
+        }
+        final byte[] value;
+        if (!enabled) {
+            value = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        } else if ((characteristic.getProperties()
+                & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+            value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        } else {
+            value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        }
+        return enqueue(address, new GattOperationQueue.Operation(
+                GattOperationQueue.OP_WRITE_DESCRIPTOR, GattOperationQueue.LANE_SETUP,
+                descriptor, value));
+    }
+
+    /**
+     * Tunes the link to a connected device for throughput and captures every notification of
+     * the given characteristics to a file until {@link #stopStreaming}.  Where the platform
+     * allows it, this negotiates the largest MTU, asks for a high-priority (short) connection
+     * interval and prefers the 2M PHY.  Values are also delivered to subscribers as usual.
+     *
+     * @param address The device to stream from.
+     * @param characteristics Characteristics that notify or indicate.
+     * @param sequenceOffset Where a little-endian sequence number sits in each value, to count
+     *                       lost notifications, or {@code StreamRecorder.NO_SEQUENCE}.
+     * @param sequenceBytes Width of the sequence number.
+     *
+     * @return Return true if streaming started.
+     */
+    public boolean startStreaming(final String address,
+                                  List<BluetoothGattCharacteristic> characteristics,
+                                  int sequenceOffset, int sequenceBytes) {
+        final BluetoothGatt gatt = mConnections.getConnectedSession(address);
+        if (gatt == null || mStreams.containsKey(address)) {
+            Log.w(TAG, address + " not connected or already streaming");
+            return false;
+        }
+        final File directory = new File(getFilesDir(), STREAM_DIRECTORY);
+        directory.mkdirs();
+        final long now = System.currentTimeMillis();
+        final StreamRecorder recorder = new StreamRecorder(
+                new File(directory, "stream-" + address.replace(":", "") + "-" + now + ".gst"),
+                STREAM_EVENT_GAP_NANOS, STREAM_DRAIN_INTERVAL_NANOS);
+        for (BluetoothGattCharacteristic characteristic : characteristics) {
+            recorder.addChannel(characteristic.getUuid(), STREAM_RING_BYTES, sequenceOffset,
+                    sequenceBytes);
+        }
+        try {
+            recorder.start(now);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start capture for " + address, e);
+            return false;
+        }
+        mStreams.put(address, recorder);
+        mEventBus.subscribe(address, null, recorder);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+            enqueue(address, new GattOperationQueue.Operation(
+                    GattOperationQueue.OP_REQUEST_MTU, GattOperationQueue.LANE_SETUP,
+                    null, null));
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK,
+                    BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        }
+        for (BluetoothGattCharacteristic characteristic : characteristics) {
+            gatt.setCharacteristicNotification(characteristic, true);
+            writeClientConfiguration(address, characteristic, true);
+        }
+        return true;
+    }
+
+    /**
+     * Stops a capture started by {@link #startStreaming} and returns the link to the balanced
+     * connection interval.  The file is finished on the recorder's own thread, so this never
+     * waits for the disk.
+     *
+     * @param address The device to stop streaming from.
+     */
+    public void stopStreaming(final String address) {
+        final StreamRecorder recorder = mStreams.remove(address);
+        if (recorder == null) {
+            return;
+        }
+        mEventBus.unsubscribe(recorder);
+        final BluetoothGatt gatt = mConnections.getConnectedSession(address);
+        if (gatt != null) {
+            for (BluetoothGattService service : gatt.getServices()) {
+                for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                    if (recorder.captures(characteristic.getUuid())) {
+                        gatt.setCharacteristicNotification(characteristic, false);
+                        writeClientConfiguration(address, characteristic, false);
+                    }
+                }
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+            }
+        }
+        recorder.finish(mStreamFinishListener);
+    }
+
+    /**
+     * Appends the throughput, gaps and drops of a device that is streaming.
+     *
+     * @param address The device to describe.
+     * @param out Where to append the summary.
+     */
+    public void describeStreaming(final String address, StringBuilder out) {
+        final StreamRecorder recorder = mStreams.get(address);
+        if (recorder != null) {
+            recorder.describe(out);
+        }
+    }
+
+    /**
+     * Delivers characteristic values, from reads and notifications, to the listener on the
+     * Bluetooth callback thread. The listener must not block, and must copy any value it
+     * keeps; format values for display only when they are shown.
+     *
+     * @param address Only values from this device, or null for every device.
+     * @param characteristic Only values of this characteristic, or null for all of them.
+     * @param listener Receives the raw bytes and the elapsed-realtime nanos they arrived at.
+     */
+    public void subscribe(String address, UUID characteristic,
+                          GattEventBus.ValueListener listener) {
+        mEventBus.subscribe(address, characteristic, listener);
+    }
+
+    /**
+     * Stops delivering values to the listener.
+     *
+     * @param listener A listener passed to {@link #subscribe}.
+     */
+    public void unsubscribe(GattEventBus.ValueListener listener) {
+        mEventBus.unsubscribe(listener);
+    }
+
+    /**
+     * Appends the operation counts and per-operation wait and round-trip latency histograms
+     * of a connected device.
+     *
+     * @param address The device to describe.
+     * @param out Where to append the summary.
+     */
+    public void describeOperations(final String address, StringBuilder out) {
+        final GattOperationQueue queue = mOperationQueues.get(address);
+        if (queue != null) {
+            queue.describe(out);
+        }
+    }
+
+    /**
+     * Appends how often cached attribute tables were reused, rebuilt and invalidated.
+     *
+     * @param out Where to append the summary.
+     */
+    public void describeAttributeCache(StringBuilder out) {
+        if (mAttributeCache != null) {
+            mAttributeCache.describe(out);
+        }
+    }
+
+    /**
+     * Returns the attribute table of a connected device, as last broadcast by
+     * {@code ACTION_GATT_SERVICES_DISCOVERED}.  Right after connecting this may come from the
+     * cache, before discovery has finished.
+     *
+     * @param address The device to look up.
+     *
+     * @return The table, or null if none is known yet.
+     */
+    public GattTable getGattTable(final String address) {
+        return mGattTables.get(address);
+    }
+
+    /**
+     * Finds the platform characteristic behind an entry of an attribute table.
+     *
+     * @param address The device that owns the characteristic.
+     * @param table A table returned by {@link #getGattTable}.
+     * @param service Index of the service in the table.
+     * @param characteristic Index of the characteristic in the service.
+     *
+     * @return The characteristic, or null while discovery hasn't found it yet.
+     */
+    public BluetoothGattCharacteristic getCharacteristic(final String address, GattTable table,
+                                                         int service, int characteristic) {
+        final BluetoothGatt gatt = mConnections.getConnectedSession(address);
+        if (gatt == null) return null;
+        final UUID serviceUuid = table.getServiceUuid(service);
+        final int serviceInstance = table.getServiceInstanceId(service);
+        final UUID uuid = table.getCharacteristicUuid(service, characteristic);
+        final int instance = table.getCharacteristicInstanceId(service, characteristic);
+        for (BluetoothGattService gattService : gatt.getServices()) {
+            if (gattService.getInstanceId() != serviceInstance
+                    || !gattService.getUuid().equals(serviceUuid)) {
+                continue;
+            }
+            for (BluetoothGattCharacteristic gattCharacteristic
+                    : gattService.getCharacteristics()) {
+                if (gattCharacteristic.getInstanceId() == instance
+                        && gattCharacteristic.getUuid().equals(uuid)) {
+                    return gattCharacteristic;
+                }
+            }
         }
+        return null;
     }
 
     /**
      * Retrieves a list of supported GATT services on the connected device. This should be
      * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
      *
+     * @param address The device to look up.
+     *
      * @return A {@code List} of supported services.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+    public List<BluetoothGattService> getSupportedGattServices(final String address) {
+        final BluetoothGatt gatt = mConnections.getConnectedSession(address);
+        if (gatt == null) return null;
 
-        return mBluetoothGatt.getServices();
+        return gatt.getServices();
+    }
+
+    private static String phyName(int phy) {
+        switch (phy) {
+            case BluetoothDevice.PHY_LE_1M:
+                return "1M";
+            case BluetoothDevice.PHY_LE_2M:
+                return "2M";
+            case BluetoothDevice.PHY_LE_CODED:
+                return "coded";
+            default:
+                return String.valueOf(phy);
+        }
     }
 }
@@ -18,7 +18,6 @@ package com.example.android.bluetoothlegatt;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -28,16 +27,19 @@ import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.util.Log;
+import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseExpandableListAdapter;
+import android.widget.ExpandableListAdapter;
 import android.widget.ExpandableListView;
-import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * For a given BLE device, this Activity provides the user interface to connect, display data,
@@ -57,13 +59,17 @@ public class DeviceControlActivity extends Activity {
     private String mDeviceAddress;
     private ExpandableListView mGattServicesList;
     private BluetoothLeService mBluetoothLeService;
-    private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
-            new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
+    private GattTable mGattTable;
     private boolean mConnected = false;
+    private boolean mStreaming = false;
     private BluetoothGattCharacteristic mNotifyCharacteristic;
 
-    private final String LIST_NAME = "NAME";
-    private final String LIST_UUID = "UUID";
+    // The latest value received, copied off the Bluetooth thread; guarded by mValueLock.
+    private final Object mValueLock = new Object();
+    private byte[] mValue = new byte[20];
+    private int mValueLength;
+    private UUID mValueCharacteristic;
+    private boolean mValueRenderPending;
 
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -75,6 +81,7 @@ public class DeviceControlActivity extends Activity {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            mBluetoothLeService.subscribe(mDeviceAddress, null, mValueListener);
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
         }
@@ -88,28 +95,67 @@ public class DeviceControlActivity extends Activity {
     // Handles various events fired by the Service.
     // ACTION_GATT_CONNECTED: connected to a GATT server.
     // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
+    // ACTION_GATT_QUEUED: waiting for another device to disconnect.
     // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
+    // The service may be connected to other devices too, so events for them are ignored.
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
+            if (!mDeviceAddress.equals(intent.getStringExtra(BluetoothLeService.EXTRA_ADDRESS))) {
+                return;
+            }
             if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
                 mConnected = true;
                 updateConnectionState(R.string.connected);
                 invalidateOptionsMenu();
             } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
                 mConnected = false;
+                mStreaming = false;
                 updateConnectionState(R.string.disconnected);
                 invalidateOptionsMenu();
                 clearUI();
+            } else if (BluetoothLeService.ACTION_GATT_QUEUED.equals(action)) {
+                updateConnectionState(R.string.queued);
             } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
                 // Show all the supported services and characteristics on the user interface.
-                displayGattServices(mBluetoothLeService.getSupportedGattServices());
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
+                displayGattServices(mBluetoothLeService.getGattTable(mDeviceAddress));
+            }
+        }
+    };
+
+    // Receives data from the device, the result of read or notification operations, on the
+    // Bluetooth thread.  Only the latest value is kept and it is formatted when the UI
+    // thread gets round to showing it, so a fast sensor costs one copy per value.
+    private final GattEventBus.ValueListener mValueListener = new GattEventBus.ValueListener() {
+        @Override
+        public void onValue(String address, UUID characteristic, byte[] value,
+                            long timestampNanos) {
+            synchronized (mValueLock) {
+                if (mValue.length < value.length) {
+                    mValue = new byte[value.length];
+                }
+                System.arraycopy(value, 0, mValue, 0, value.length);
+                mValueLength = value.length;
+                mValueCharacteristic = characteristic;
+                if (mValueRenderPending) {
+                    return;
+                }
+                mValueRenderPending = true;
             }
+            runOnUiThread(mRenderValue);
+        }
+    };
+
+    private final Runnable mRenderValue = new Runnable() {
+        @Override
+        public void run() {
+            final String data;
+            synchronized (mValueLock) {
+                mValueRenderPending = false;
+                data = GattValueFormatter.format(mValueCharacteristic, mValue, mValueLength);
+            }
+            displayData(data);
         }
     };
 
@@ -122,24 +168,27 @@ public class DeviceControlActivity extends Activity {
                 @Override
                 public boolean onChildClick(ExpandableListView parent, View v, int groupPosition,
                                             int childPosition, long id) {
-                    if (mGattCharacteristics != null) {
-                        final BluetoothGattCharacteristic characteristic =
-                                mGattCharacteristics.get(groupPosition).get(childPosition);
+                    // A table shown from the cache has nothing behind it until discovery is done.
+                    final BluetoothGattCharacteristic characteristic = mGattTable == null
+                            ? null : mBluetoothLeService.getCharacteristic(mDeviceAddress,
+                                    mGattTable, groupPosition, childPosition);
+                    if (characteristic != null) {
                         final int charaProp = characteristic.getProperties();
                         if ((charaProp | BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
                             // If there is an active notification on a characteristic, clear
                             // it first so it doesn't update the data field on the user interface.
                             if (mNotifyCharacteristic != null) {
                                 mBluetoothLeService.setCharacteristicNotification(
-                                        mNotifyCharacteristic, false);
+                                        mDeviceAddress, mNotifyCharacteristic, false);
                                 mNotifyCharacteristic = null;
                             }
-                            mBluetoothLeService.readCharacteristic(characteristic);
+                            mBluetoothLeService.readCharacteristic(mDeviceAddress,
+                                    characteristic);
                         }
                         if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
                             mNotifyCharacteristic = characteristic;
                             mBluetoothLeService.setCharacteristicNotification(
-                                    characteristic, true);
+                                    mDeviceAddress, characteristic, true);
                         }
                         return true;
                     }
@@ -148,7 +197,8 @@ public class DeviceControlActivity extends Activity {
     };
 
     private void clearUI() {
-        mGattServicesList.setAdapter((SimpleExpandableListAdapter) null);
+        mGattServicesList.setAdapter((ExpandableListAdapter) null);
+        mGattTable = null;
         mDataField.setText(R.string.no_data);
     }
 
@@ -193,6 +243,9 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.unsubscribe(mValueListener);
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
@@ -207,6 +260,8 @@ public class DeviceControlActivity extends Activity {
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
         }
+        menu.findItem(R.id.menu_stream).setVisible(mConnected && !mStreaming);
+        menu.findItem(R.id.menu_stop_stream).setVisible(mConnected && mStreaming);
         return true;
     }
 
@@ -217,7 +272,19 @@ public class DeviceControlActivity extends Activity {
                 mBluetoothLeService.connect(mDeviceAddress);
                 return true;
             case R.id.menu_disconnect:
-                mBluetoothLeService.disconnect();
+                mBluetoothLeService.disconnect(mDeviceAddress);
+                return true;
+            case R.id.menu_stream:
+                mStreaming = startStreaming();
+                invalidateOptionsMenu();
+                return true;
+            case R.id.menu_stop_stream:
+                final StringBuilder stats = new StringBuilder();
+                mBluetoothLeService.describeStreaming(mDeviceAddress, stats);
+                mBluetoothLeService.stopStreaming(mDeviceAddress);
+                mStreaming = false;
+                displayData(stats.toString());
+                invalidateOptionsMenu();
                 return true;
             case android.R.id.home:
                 onBackPressed();
@@ -226,6 +293,35 @@ public class DeviceControlActivity extends Activity {
         return super.onOptionsItemSelected(item);
     }
 
+    // Captures every characteristic that can notify or indicate.  The sample doesn't know
+    // the devices' value layouts, so sequence numbers aren't checked.
+    private boolean startStreaming() {
+        final List<BluetoothGattCharacteristic> streamed =
+                new ArrayList<BluetoothGattCharacteristic>();
+        final GattTable table = mGattTable;
+        for (int service = 0; table != null && service < table.getServiceCount(); service++) {
+            for (int i = 0; i < table.getCharacteristicCount(service); i++) {
+                if ((table.getCharacteristicProperties(service, i)
+                        & (BluetoothGattCharacteristic.PROPERTY_NOTIFY
+                        | BluetoothGattCharacteristic.PROPERTY_INDICATE)) == 0) {
+                    continue;
+                }
+                final BluetoothGattCharacteristic characteristic =
+                        mBluetoothLeService.getCharacteristic(mDeviceAddress, table, service, i);
+                if (characteristic != null) {
+                    streamed.add(characteristic);
+                }
+            }
+        }
+        if (streamed.isEmpty()) {
+            return false;
+        }
+        // Notifications the user turned on are now part of the capture.
+        mNotifyCharacteristic = null;
+        return mBluetoothLeService.startStreaming(mDeviceAddress, streamed,
+                StreamRecorder.NO_SEQUENCE, 0);
+    }
+
     private void updateConnectionState(final int resourceId) {
         runOnUiThread(new Runnable() {
             @Override
@@ -241,69 +337,102 @@ public class DeviceControlActivity extends Activity {
         }
     }
 
-    // Demonstrates how to iterate through the supported GATT Services/Characteristics.
-    // In this sample, we populate the data structure that is bound to the ExpandableListView
-    // on the UI.
-    private void displayGattServices(List<BluetoothGattService> gattServices) {
-        if (gattServices == null) return;
-        String uuid = null;
-        String unknownServiceString = getResources().getString(R.string.unknown_service);
-        String unknownCharaString = getResources().getString(R.string.unknown_characteristic);
-        ArrayList<HashMap<String, String>> gattServiceData = new ArrayList<HashMap<String, String>>();
-        ArrayList<ArrayList<HashMap<String, String>>> gattCharacteristicData
-                = new ArrayList<ArrayList<HashMap<String, String>>>();
-        mGattCharacteristics = new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
-
-        // Loops through available GATT Services.
-        for (BluetoothGattService gattService : gattServices) {
-            HashMap<String, String> currentServiceData = new HashMap<String, String>();
-            uuid = gattService.getUuid().toString();
-            currentServiceData.put(
-                    LIST_NAME, SampleGattAttributes.lookup(uuid, unknownServiceString));
-            currentServiceData.put(LIST_UUID, uuid);
-            gattServiceData.add(currentServiceData);
-
-            ArrayList<HashMap<String, String>> gattCharacteristicGroupData =
-                    new ArrayList<HashMap<String, String>>();
-            List<BluetoothGattCharacteristic> gattCharacteristics =
-                    gattService.getCharacteristics();
-            ArrayList<BluetoothGattCharacteristic> charas =
-                    new ArrayList<BluetoothGattCharacteristic>();
-
-            // Loops through available Characteristics.
-            for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-                charas.add(gattCharacteristic);
-                HashMap<String, String> currentCharaData = new HashMap<String, String>();
-                uuid = gattCharacteristic.getUuid().toString();
-                currentCharaData.put(
-                        LIST_NAME, SampleGattAttributes.lookup(uuid, unknownCharaString));
-                currentCharaData.put(LIST_UUID, uuid);
-                gattCharacteristicGroupData.add(currentCharaData);
-            }
-            mGattCharacteristics.add(charas);
-            gattCharacteristicData.add(gattCharacteristicGroupData);
+    // Binds the device's attribute table to the ExpandableListView on the UI.  The same table
+    // comes back when a reconnect finds it unchanged, and is then left as it is.
+    private void displayGattServices(GattTable table) {
+        if (table == null || table == mGattTable) return;
+        mGattTable = table;
+        mGattServicesList.setAdapter(new GattTableAdapter(table));
+    }
+
+    // Adapter over an attribute table, with the services as groups and their characteristics
+    // as children.  Rows are named as they are drawn, so nothing is built up front.
+    private class GattTableAdapter extends BaseExpandableListAdapter {
+        private final GattTable mTable;
+        private final String mUnknownService;
+        private final String mUnknownCharacteristic;
+        private final LayoutInflater mInflator;
+
+        public GattTableAdapter(GattTable table) {
+            mTable = table;
+            mUnknownService = getResources().getString(R.string.unknown_service);
+            mUnknownCharacteristic = getResources().getString(R.string.unknown_characteristic);
+            mInflator = getLayoutInflater();
+        }
+
+        @Override
+        public int getGroupCount() {
+            return mTable.getServiceCount();
+        }
+
+        @Override
+        public int getChildrenCount(int groupPosition) {
+            return mTable.getCharacteristicCount(groupPosition);
+        }
+
+        @Override
+        public Object getGroup(int groupPosition) {
+            return mTable.getServiceUuid(groupPosition);
         }
 
-        SimpleExpandableListAdapter gattServiceAdapter = new SimpleExpandableListAdapter(
-                this,
-                gattServiceData,
-                android.R.layout.simple_expandable_list_item_2,
-                new String[] {LIST_NAME, LIST_UUID},
-                new int[] { android.R.id.text1, android.R.id.text2 },
-                gattCharacteristicData,
-                android.R.layout.simple_expandable_list_item_2,
-                new String[] {LIST_NAME, LIST_UUID},
-                new int[] { android.R.id.text1, android.R.id.text2 }
-        );
-        mGattServicesList.setAdapter(gattServiceAdapter);
+        @Override
+        public Object getChild(int groupPosition, int childPosition) {
+            return mTable.getCharacteristicUuid(groupPosition, childPosition);
+        }
+
+        @Override
+        public long getGroupId(int groupPosition) {
+            return groupPosition;
+        }
+
+        @Override
+        public long getChildId(int groupPosition, int childPosition) {
+            return childPosition;
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return false;
+        }
+
+        @Override
+        public View getGroupView(int groupPosition, boolean isExpanded, View view,
+                                 ViewGroup parent) {
+            return bindRow(view, parent, mTable.getServiceUuid(groupPosition), mUnknownService);
+        }
+
+        @Override
+        public View getChildView(int groupPosition, int childPosition, boolean isLastChild,
+                                 View view, ViewGroup parent) {
+            return bindRow(view, parent,
+                    mTable.getCharacteristicUuid(groupPosition, childPosition),
+                    mUnknownCharacteristic);
+        }
+
+        @Override
+        public boolean isChildSelectable(int groupPosition, int childPosition) {
+            return true;
+        }
+
+        private View bindRow(View view, ViewGroup parent, UUID uuid, String unknownName) {
+            if (view == null) {
+                view = mInflator.inflate(android.R.layout.simple_expandable_list_item_2, parent,
+                        false);
+            }
+            final String uuidString = uuid.toString();
+            ((TextView) view.findViewById(android.R.id.text1))
+                    .setText(SampleGattAttributes.lookup(uuidString, unknownName));
+            ((TextView) view.findViewById(android.R.id.text2)).setText(uuidString);
+            return view;
+        }
     }
 
     private static IntentFilter makeGattUpdateIntentFilter() {
         final IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
+        intentFilter.addAction(BluetoothLeService.ACTION_GATT_QUEUED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
         return intentFilter;
     }
 }
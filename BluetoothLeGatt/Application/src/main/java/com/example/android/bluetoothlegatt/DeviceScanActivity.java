@@ -26,6 +26,7 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -46,10 +47,20 @@ public class DeviceScanActivity extends ListActivity {
     private BluetoothAdapter mBluetoothAdapter;
     private boolean mScanning;
     private Handler mHandler;
+    private ScanIngestPipeline<Sighting> mPipeline;
+    // Finds devices that have left; only used on the ingest thread.
+    private ExpiryWheel mExpiryWheel;
 
     private static final int REQUEST_ENABLE_BT = 1;
     // Stops scanning after 10 seconds.
     private static final long SCAN_PERIOD = 10000;
+    // Scan results that may be queued before new ones are dropped.
+    private static final int INGEST_QUEUE_CAPACITY = 1024;
+    // Refresh the device list at most 4 times a second.
+    private static final long UI_REFRESH_INTERVAL_NANOS = 250000000L;
+    // Devices not seen for 10 minutes are removed from the list, checked once a second.
+    private static final long DEVICE_EXPIRY_NANOS = 10 * 60 * 1000000000L;
+    private static final long DEVICE_EXPIRY_TICK_NANOS = 1000000000L;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -122,6 +133,10 @@ public class DeviceScanActivity extends ListActivity {
         // Initializes list view adapter.
         mLeDeviceListAdapter = new LeDeviceListAdapter();
         setListAdapter(mLeDeviceListAdapter);
+        mExpiryWheel = new ExpiryWheel(DEVICE_EXPIRY_NANOS, DEVICE_EXPIRY_TICK_NANOS);
+        mPipeline = new ScanIngestPipeline<Sighting>(INGEST_QUEUE_CAPACITY,
+                UI_REFRESH_INTERVAL_NANOS, mIngestListener);
+        mPipeline.start();
         scanLeDevice(true);
     }
 
@@ -139,6 +154,9 @@ public class DeviceScanActivity extends ListActivity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
+        mPipeline.stop();
+        // Drops pending list updates along with the scan period timeout.
+        mHandler.removeCallbacksAndMessages(null);
         mLeDeviceListAdapter.clear();
     }
 
@@ -181,19 +199,30 @@ public class DeviceScanActivity extends ListActivity {
     private class LeDeviceListAdapter extends BaseAdapter {
         private ArrayList<BluetoothDevice> mLeDevices;
         private ArrayList<String> mLeDeviceRssi;
+        // Name from the first advertisement that carried one, so rows don't ask the device.
+        private ArrayList<String> mLeDeviceNames;
+        // Position of each device in mLeDevices, keyed by packed address.
+        private MacIndex mIndex;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
             mLeDevices = new ArrayList<BluetoothDevice>();
             mLeDeviceRssi = new ArrayList<String>();
+            mLeDeviceNames = new ArrayList<String>();
+            mIndex = new MacIndex();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device, String rssi) {
-            if(!mLeDevices.contains(device)) {
+        public void addDevice(BluetoothDevice device, long address, String rssi, String name) {
+            int position = mIndex.get(address);
+            if (position == MacIndex.NO_SLOT) {
+                mIndex.put(address, mLeDevices.size());
                 mLeDevices.add(device);
                 mLeDeviceRssi.add(rssi);
+                mLeDeviceNames.add(name != null ? name : device.getName());
+            } else if (name != null && mLeDeviceNames.get(position) == null) {
+                mLeDeviceNames.set(position, name);
             }
         }
 
@@ -201,8 +230,43 @@ public class DeviceScanActivity extends ListActivity {
             return mLeDevices.get(position);
         }
 
+        // Removes the given devices (packed addresses), compacting the lists once.
+        public void removeAll(long[] addresses) {
+            boolean any = false;
+            for (long address : addresses) {
+                int position = mIndex.remove(address);
+                if (position != MacIndex.NO_SLOT) {
+                    mLeDevices.set(position, null);
+                    any = true;
+                }
+            }
+            if (!any) {
+                return;
+            }
+            int kept = 0;
+            for (int i = 0; i < mLeDevices.size(); i++) {
+                BluetoothDevice device = mLeDevices.get(i);
+                if (device != null) {
+                    if (kept != i) {
+                        mLeDevices.set(kept, device);
+                        mLeDeviceRssi.set(kept, mLeDeviceRssi.get(i));
+                        mLeDeviceNames.set(kept, mLeDeviceNames.get(i));
+                        mIndex.put(MacAddresses.pack(device.getAddress()), kept);
+                    }
+                    kept++;
+                }
+            }
+            int size = mLeDevices.size();
+            mLeDevices.subList(kept, size).clear();
+            mLeDeviceRssi.subList(kept, size).clear();
+            mLeDeviceNames.subList(kept, size).clear();
+        }
+
         public void clear() {
             mLeDevices.clear();
+            mLeDeviceRssi.clear();
+            mLeDeviceNames.clear();
+            mIndex.clear();
         }
 
         @Override
@@ -236,7 +300,7 @@ public class DeviceScanActivity extends ListActivity {
             }
 
             BluetoothDevice device = mLeDevices.get(i);
-            final String deviceName = device.getName();
+            final String deviceName = mLeDeviceNames.get(i);
             final String deviceRssi = mLeDeviceRssi.get(i);
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
@@ -249,23 +313,83 @@ public class DeviceScanActivity extends ListActivity {
         }
     }
 
-    // Device scan callback.
+    // Device scan callback.  Runs on a Binder thread; results are only queued here and the list
+    // is updated from coalesced snapshots.
     private BluetoothAdapter.LeScanCallback mLeScanCallback =
             new BluetoothAdapter.LeScanCallback() {
 
         @Override
         public void onLeScan(final BluetoothDevice device, final int rssi, byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
+            mPipeline.offer(new Sighting(device, rssi, scanRecord,
+                    SystemClock.elapsedRealtimeNanos()),
+                    MacAddresses.pack(device.getAddress()));
+        }
+    };
+
+    // Applies at most one batch of device updates per UI refresh interval.
+    private final ScanIngestPipeline.Listener<Sighting> mIngestListener =
+            new ScanIngestPipeline.Listener<Sighting>() {
+
+        // Only used on the ingest thread.
+        private final AdvertisementParser mParser = new AdvertisementParser();
+
+        @Override
+        public void onItem(Sighting item, long key) {
+            if (item.scanRecord != null) {
+                item.name = mParser.parse(item.scanRecord).getLocalName();
+            }
+            mExpiryWheel.touch(key, item.timestampNanos);
+        }
+
+        @Override
+        public void onTick(long nowNanos) {
+            mExpiryWheel.advance(SystemClock.elapsedRealtimeNanos(), mExpiryListener);
+        }
+
+        @Override
+        public void onSnapshot(final ScanIngestPipeline.Snapshot<Sighting> snapshot) {
+            mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-
-                    mLeDeviceListAdapter.addDevice(device, String.valueOf(rssi));
+                    mLeDeviceListAdapter.removeAll(snapshot.removedKeys);
+                    for (Sighting sighting : snapshot.updates) {
+                        mLeDeviceListAdapter.addDevice(sighting.device,
+                                MacAddresses.pack(sighting.device.getAddress()),
+                                String.valueOf(sighting.rssi), sighting.name);
+                    }
                     mLeDeviceListAdapter.notifyDataSetChanged();
                 }
             });
         }
     };
 
+    // Withdraws devices that have left from the next list update.
+    private final ExpiryWheel.Listener mExpiryListener = new ExpiryWheel.Listener() {
+
+        @Override
+        public void onExpired(long key, long lastSeenNanos) {
+            mPipeline.remove(key);
+        }
+    };
+
+    // A single advertisement received while scanning.
+    static class Sighting {
+        final BluetoothDevice device;
+        final int rssi;
+        final byte[] scanRecord;
+        // SystemClock.elapsedRealtimeNanos() when it was received.
+        final long timestampNanos;
+        // Advertised local name, filled in on the ingest thread.
+        String name;
+
+        Sighting(BluetoothDevice device, int rssi, byte[] scanRecord, long timestampNanos) {
+            this.device = device;
+            this.rssi = rssi;
+            this.scanRecord = scanRecord;
+            this.timestampNanos = timestampNanos;
+        }
+    }
+
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Arrays;
+
+/**
+ * Finds devices that haven't been seen for a while, using a hierarchical timing wheel.
+ *
+ * Time is divided into ticks. Each device sits in one bucket of one of four 64-bucket wheels:
+ * the first wheel holds deadlines up to 64 ticks away, the next up to 64^2, and so on. Every
+ * 64 ticks of a wheel, one bucket of the wheel above is cascaded down. Seeing a device again
+ * only records the new time; it is not moved until its old bucket comes due, at which point it
+ * is either reported lost or put back at its new deadline. So both {@link #touch} and each
+ * tick of {@link #advance} cost O(1) plus the devices actually due, however many are tracked.
+ *
+ * Devices are stored in primitive arrays linked into per-bucket lists by index, so nothing is
+ * allocated per device once the arrays have grown. Not thread safe.
+ */
+public class ExpiryWheel {
+
+    /**
+     * Receives devices as they expire.
+     */
+    public interface Listener {
+
+        /**
+         * @param key          the key passed to {@link #touch}, normally a packed address
+         * @param lastSeenNanos the latest timestamp it was touched with
+         */
+        void onExpired(long key, long lastSeenNanos);
+    }
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    /**
+     * Deadlines further out than the top wheel reaches are parked at its far end and
+     * rescheduled when they come round.
+     */
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private static final int NONE = -1;
+
+    private final long mTimeoutNanos;
+
+    private final long mTickNanos;
+
+    private final MacIndex mIndex = new MacIndex();
+
+    private final int[] mHeads = new int[LEVELS * SLOTS];
+
+    // Per-entry state, indexed by entry number.
+
+    private long[] mKeys;
+
+    private long[] mLastSeen;
+
+    private int[] mNext;
+
+    private int[] mPrev;
+
+    private int[] mBucket;
+
+    private int mEntryCount;
+
+    private int mFreeList = NONE;
+
+    private long mCurrentTick;
+
+    private boolean mStarted;
+
+    /**
+     * @param timeoutNanos how long a device may go unseen before it is reported
+     * @param tickNanos    resolution of the wheel; devices are reported up to one tick late
+     */
+    public ExpiryWheel(long timeoutNanos, long tickNanos) {
+        if (timeoutNanos <= 0 || tickNanos <= 0) {
+            throw new IllegalArgumentException("timeout and tick must be positive");
+        }
+        mTimeoutNanos = timeoutNanos;
+        mTickNanos = tickNanos;
+        Arrays.fill(mHeads, NONE);
+        allocateEntries(16);
+    }
+
+    public long getTimeoutNanos() {
+        return mTimeoutNanos;
+    }
+
+    public int size() {
+        return mIndex.size();
+    }
+
+    /**
+     * Records that a device was seen, adding it if it isn't tracked yet.
+     */
+    public void touch(long key, long timestampNanos) {
+        int entry = mIndex.get(key);
+        if (entry != MacIndex.NO_SLOT) {
+            if (timestampNanos > mLastSeen[entry]) {
+                mLastSeen[entry] = timestampNanos;
+            }
+            return;
+        }
+        if (!mStarted) {
+            mCurrentTick = timestampNanos / mTickNanos;
+            mStarted = true;
+        }
+        entry = newEntry();
+        mKeys[entry] = key;
+        mLastSeen[entry] = timestampNanos;
+        mIndex.put(key, entry);
+        schedule(entry, mCurrentTick + 1);
+    }
+
+    /**
+     * Stops tracking a device without reporting it.
+     *
+     * @return true if it was tracked
+     */
+    public boolean remove(long key) {
+        int entry = mIndex.remove(key);
+        if (entry == MacIndex.NO_SLOT) {
+            return false;
+        }
+        unlink(entry);
+        freeEntry(entry);
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(mHeads, NONE);
+        mIndex.clear();
+        mEntryCount = 0;
+        mFreeList = NONE;
+    }
+
+    /**
+     * Moves the wheel up to {@code nowNanos}, reporting every device whose last sighting is at
+     * least the timeout before it.
+     *
+     * @return the number of devices reported
+     */
+    public int advance(long nowNanos, Listener listener) {
+        long targetTick = nowNanos / mTickNanos;
+        if (!mStarted) {
+            mCurrentTick = targetTick;
+            mStarted = true;
+            return 0;
+        }
+        int expired = 0;
+        while (mCurrentTick < targetTick) {
+            if (mIndex.size() == 0) {
+                mCurrentTick = targetTick;
+                break;
+            }
+            mCurrentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((mCurrentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level);
+                }
+            }
+            expired += expireDue(listener);
+        }
+        return expired;
+    }
+
+    private void cascade(int level) {
+        int bucket = level * SLOTS + (int) ((mCurrentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        int entry = detach(bucket);
+        while (entry != NONE) {
+            int next = mNext[entry];
+            // May land in the current first-wheel bucket, which is processed next.
+            schedule(entry, mCurrentTick);
+            entry = next;
+        }
+    }
+
+    private int expireDue(Listener listener) {
+        int expired = 0;
+        int entry = detach((int) (mCurrentTick & SLOT_MASK));
+        while (entry != NONE) {
+            int next = mNext[entry];
+            if (deadlineTick(entry) <= mCurrentTick) {
+                long key = mKeys[entry];
+                long lastSeen = mLastSeen[entry];
+                mIndex.remove(key);
+                freeEntry(entry);
+                expired++;
+                listener.onExpired(key, lastSeen);
+            } else {
+                schedule(entry, mCurrentTick + 1);
+            }
+            entry = next;
+        }
+        return expired;
+    }
+
+    private long deadlineTick(int entry) {
+        long deadline = mLastSeen[entry] + mTimeoutNanos;
+        return (deadline + mTickNanos - 1) / mTickNanos;
+    }
+
+    /**
+     * Links an entry into the bucket for its deadline, treating deadlines before
+     * {@code earliestTick} as due then.
+     */
+    private void schedule(int entry, long earliestTick) {
+        long tick = Math.max(deadlineTick(entry), earliestTick);
+        long delta = tick - mCurrentTick;
+        if (delta > MAX_DELTA) {
+            delta = MAX_DELTA;
+            tick = mCurrentTick + MAX_DELTA;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int bucket = level * SLOTS + (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        int head = mHeads[bucket];
+        mNext[entry] = head;
+        mPrev[entry] = NONE;
+        if (head != NONE) {
+            mPrev[head] = entry;
+        }
+        mHeads[bucket] = entry;
+        mBucket[entry] = bucket;
+    }
+
+    private void unlink(int entry) {
+        int prev = mPrev[entry];
+        int next = mNext[entry];
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mHeads[mBucket[entry]] = next;
+        }
+        if (next != NONE) {
+            mPrev[next] = prev;
+        }
+    }
+
+    /**
+     * Empties a bucket and returns the first entry of its former list.
+     */
+    private int detach(int bucket) {
+        int head = mHeads[bucket];
+        mHeads[bucket] = NONE;
+        return head;
+    }
+
+    private int newEntry() {
+        if (mFreeList != NONE) {
+            int entry = mFreeList;
+            mFreeList = mNext[entry];
+            return entry;
+        }
+        if (mEntryCount == mKeys.length) {
+            allocateEntries(mKeys.length * 2);
+        }
+        return mEntryCount++;
+    }
+
+    private void freeEntry(int entry) {
+        mNext[entry] = mFreeList;
+        mFreeList = entry;
+    }
+
+    private void allocateEntries(int capacity) {
+        if (mKeys == null) {
+            mKeys = new long[capacity];
+            mLastSeen = new long[capacity];
+            mNext = new int[capacity];
+            mPrev = new int[capacity];
+            mBucket = new int[capacity];
+        } else {
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mLastSeen = Arrays.copyOf(mLastSeen, capacity);
+            mNext = Arrays.copyOf(mNext, capacity);
+            mPrev = Arrays.copyOf(mPrev, capacity);
+            mBucket = Arrays.copyOf(mBucket, capacity);
+        }
+    }
+}
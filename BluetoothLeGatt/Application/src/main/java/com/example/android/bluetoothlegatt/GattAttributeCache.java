@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers each device's {@link GattTable} across connections and restarts, one small file
+ * per device address.
+ *
+ * A table is only trusted until the device says otherwise: {@link #update} compares a freshly
+ * discovered table against the stored one by Database Hash, or by the attributes themselves
+ * for devices without one, and replaces the entry when they differ. A Service Changed
+ * indication should {@link #invalidate} the entry outright.
+ *
+ * Files start with a magic number and format version; a file that doesn't parse is treated
+ * as a miss and deleted. Entries are written to a temporary file and renamed into place, so
+ * an interrupted write leaves the previous one intact. All methods are synchronized.
+ */
+public class GattAttributeCache {
+
+    static final int FILE_MAGIC = 0x47415454; // "GATT"
+
+    static final short FORMAT_VERSION = 1;
+
+    private static final String SUFFIX = ".gtab";
+
+    private final File mDirectory;
+
+    /** Tables read or written so far; null values record files known to be missing. */
+    private final Map<String, GattTable> mTables = new HashMap<String, GattTable>();
+
+    private long mHitCount;
+
+    private long mMissCount;
+
+    private long mInvalidationCount;
+
+    /**
+     * @param directory created on the first write if needed
+     */
+    public GattAttributeCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * @return the table last stored for the device, or null
+     */
+    public synchronized GattTable get(String address) {
+        if (mTables.containsKey(address)) {
+            return mTables.get(address);
+        }
+        GattTable table = null;
+        File file = fileFor(address);
+        if (file.exists()) {
+            try {
+                table = read(file);
+            } catch (IOException e) {
+                file.delete();
+            }
+        }
+        mTables.put(address, table);
+        return table;
+    }
+
+    /**
+     * Records a freshly discovered table.
+     *
+     * @return the stored table if it describes the same database as {@code discovered},
+     *         otherwise {@code discovered}, which has then replaced it
+     * @throws IOException if the table could not be written; it is still kept in memory
+     */
+    public synchronized GattTable update(String address, GattTable discovered)
+            throws IOException {
+        GattTable cached = get(address);
+        if (cached != null && cached.isSameDatabase(discovered)) {
+            if (cached.getDatabaseHash() != null || discovered.getDatabaseHash() == null) {
+                mHitCount++;
+                return cached;
+            }
+            // Same attributes, but the device has now told us its hash: keep that too.
+        }
+        mMissCount++;
+        mTables.put(address, discovered);
+        write(fileFor(address), discovered);
+        return discovered;
+    }
+
+    /**
+     * Forgets the device's table.
+     */
+    public synchronized void invalidate(String address) {
+        if (get(address) != null) {
+            mInvalidationCount++;
+        }
+        mTables.put(address, null);
+        fileFor(address).delete();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return mInvalidationCount;
+    }
+
+    public synchronized void describe(StringBuilder out) {
+        out.append("Attribute cache: ").append(mHitCount).append(" reused, ")
+                .append(mMissCount).append(" rebuilt, ")
+                .append(mInvalidationCount).append(" invalidated\n");
+    }
+
+    private File fileFor(String address) {
+        return new File(mDirectory, address.replace(":", "") + SUFFIX);
+    }
+
+    private static GattTable read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_MAGIC || in.readShort() != FORMAT_VERSION) {
+                throw new IOException(file + " is not an attribute table");
+            }
+            return GattTable.readFrom(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(File file, GattTable table) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        File temporary = new File(mDirectory, file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temporary)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            table.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+}
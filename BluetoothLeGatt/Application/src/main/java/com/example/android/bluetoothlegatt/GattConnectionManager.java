@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps a pool of concurrent GATT connections, keyed by device address.
+ *
+ * At most {@code maxConnections} devices hold a link slot at a time; a device holds one from
+ * the moment its connection attempt starts until the link is reported down. Further
+ * {@link #connect} calls are queued and admitted first come, first served as slots free up.
+ * Every device moves through its own small state machine:
+ *
+ * <pre>
+ * DISCONNECTED -> QUEUED -> CONNECTING -> CONNECTED -> DISCONNECTING -> DISCONNECTED
+ * </pre>
+ *
+ * The platform is reached only through a {@link Transport}, with the session type left
+ * generic, so admission and queueing can be tested without Bluetooth. A device's session is
+ * kept after it disconnects so that the next {@link #connect} can reuse it, until
+ * {@link #close} releases it.
+ *
+ * All methods are synchronized. The transport and listener are called with the lock held, so
+ * they must not block; a session callback that arrives while {@link #connect} is still
+ * opening it simply waits for the session to be recorded.
+ */
+public class GattConnectionManager<G> {
+
+    /**
+     * Opens and controls sessions; backed by {@code BluetoothGatt} in the app.
+     */
+    public interface Transport<G> {
+
+        /**
+         * Opens a new session to the device and starts connecting.
+         *
+         * @return the session, or null if the attempt could not be started
+         */
+        G open(String address);
+
+        /**
+         * Starts connecting an existing, disconnected session again.
+         *
+         * @return false if the attempt could not be started
+         */
+        boolean reconnect(G session);
+
+        void disconnect(G session);
+
+        void close(G session);
+    }
+
+    /**
+     * Hears about every state change.
+     */
+    public interface Listener {
+
+        void onStateChanged(String address, int state);
+    }
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_QUEUED = 1;
+    public static final int STATE_CONNECTING = 2;
+    public static final int STATE_CONNECTED = 3;
+    public static final int STATE_DISCONNECTING = 4;
+
+    private final Transport<G> mTransport;
+
+    private final Listener mListener;
+
+    private final int mMaxConnections;
+
+    private final Map<String, Connection> mConnections = new LinkedHashMap<String, Connection>();
+
+    private final ArrayDeque<Connection> mQueue = new ArrayDeque<Connection>();
+
+    /** Devices holding a link slot: connecting, connected or disconnecting. */
+    private int mActiveCount;
+
+    private int mConnectedCount;
+
+    private long mAdmittedCount;
+
+    private long mQueuedCount;
+
+    private long mFailedCount;
+
+    private final class Connection {
+        final String mAddress;
+        G mSession;
+        int mState = STATE_DISCONNECTED;
+        /** Connect again once the link in DISCONNECTING state is down. */
+        boolean mReconnect;
+
+        Connection(String address) {
+            mAddress = address;
+        }
+    }
+
+    /**
+     * @param maxConnections how many devices may hold a link at once
+     * @param listener       may be null
+     */
+    public GattConnectionManager(Transport<G> transport, int maxConnections, Listener listener) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections must be positive");
+        }
+        mTransport = transport;
+        mMaxConnections = maxConnections;
+        mListener = listener;
+    }
+
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * Starts connecting to the device, or queues the attempt if every slot is taken. Does
+     * nothing if the device is already queued, connecting or connected.
+     *
+     * @return false only if the attempt could not be started
+     */
+    public synchronized boolean connect(String address) {
+        Connection connection = mConnections.get(address);
+        if (connection == null) {
+            connection = new Connection(address);
+            mConnections.put(address, connection);
+        }
+        switch (connection.mState) {
+            case STATE_DISCONNECTED:
+                return admit(connection);
+            case STATE_DISCONNECTING:
+                connection.mReconnect = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Drops a queued attempt, cancels one in progress or starts taking the link down. A
+     * cancelled attempt frees its slot straight away, since the platform does not always
+     * report it; an established link frees it once it is reported down.
+     */
+    public synchronized void disconnect(String address) {
+        Connection connection = mConnections.get(address);
+        if (connection == null) {
+            return;
+        }
+        connection.mReconnect = false;
+        switch (connection.mState) {
+            case STATE_QUEUED:
+                mQueue.remove(connection);
+                setState(connection, STATE_DISCONNECTED);
+                break;
+            case STATE_CONNECTING:
+                mTransport.disconnect(connection.mSession);
+                setState(connection, STATE_DISCONNECTED);
+                promote();
+                break;
+            case STATE_CONNECTED:
+                mTransport.disconnect(connection.mSession);
+                setState(connection, STATE_DISCONNECTING);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Disconnects the device, releases its session and forgets it.
+     */
+    public synchronized void close(String address) {
+        Connection connection = mConnections.remove(address);
+        if (connection != null) {
+            release(connection);
+            promote();
+        }
+    }
+
+    /**
+     * Releases every session and empties the queue.
+     */
+    public synchronized void closeAll() {
+        mQueue.clear();
+        for (Connection connection : mConnections.values()) {
+            release(connection);
+        }
+        mConnections.clear();
+    }
+
+    /**
+     * Reports a link coming up or going down. Reports for a session that is no longer the
+     * device's current one are ignored.
+     */
+    public synchronized void onConnectionStateChange(String address, G session,
+                                                     boolean connected) {
+        Connection connection = mConnections.get(address);
+        if (connection == null || connection.mSession != session) {
+            return;
+        }
+        if (connected) {
+            if (connection.mState == STATE_CONNECTING) {
+                setState(connection, STATE_CONNECTED);
+            } else if (connection.mState == STATE_DISCONNECTED) {
+                // The attempt was cancelled but came up anyway.
+                mTransport.disconnect(session);
+            }
+            return;
+        }
+        if (!holdsSlot(connection.mState)) {
+            return;
+        }
+        if (connection.mState == STATE_CONNECTING) {
+            mFailedCount++;
+        }
+        setState(connection, STATE_DISCONNECTED);
+        if (connection.mReconnect) {
+            connection.mReconnect = false;
+            admit(connection);
+        }
+        promote();
+    }
+
+    public synchronized int getState(String address) {
+        Connection connection = mConnections.get(address);
+        return connection == null ? STATE_DISCONNECTED : connection.mState;
+    }
+
+    /**
+     * @return the device's session, or null if it has none
+     */
+    public synchronized G getSession(String address) {
+        Connection connection = mConnections.get(address);
+        return connection == null ? null : connection.mSession;
+    }
+
+    /**
+     * @return the session only if its link is up
+     */
+    public synchronized G getConnectedSession(String address) {
+        Connection connection = mConnections.get(address);
+        return connection == null || connection.mState != STATE_CONNECTED
+                ? null : connection.mSession;
+    }
+
+    /**
+     * @return 1-based place in the connection queue, or 0 if the device isn't queued
+     */
+    public synchronized int getQueuePosition(String address) {
+        int position = 1;
+        for (Connection connection : mQueue) {
+            if (connection.mAddress.equals(address)) {
+                return position;
+            }
+            position++;
+        }
+        return 0;
+    }
+
+    public synchronized int getActiveCount() {
+        return mActiveCount;
+    }
+
+    public synchronized int getConnectedCount() {
+        return mConnectedCount;
+    }
+
+    public synchronized int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    public synchronized void describe(StringBuilder out) {
+        out.append("Connections: ").append(mConnectedCount).append(" up, ")
+                .append(mActiveCount).append('/').append(mMaxConnections).append(" slots, ")
+                .append(mQueue.size()).append(" queued\n");
+        out.append("Attempts: ").append(mAdmittedCount).append(" started, ")
+                .append(mQueuedCount).append(" had to queue, ")
+                .append(mFailedCount).append(" failed\n");
+    }
+
+    public static String stateName(int state) {
+        switch (state) {
+            case STATE_QUEUED:
+                return "queued";
+            case STATE_CONNECTING:
+                return "connecting";
+            case STATE_CONNECTED:
+                return "connected";
+            case STATE_DISCONNECTING:
+                return "disconnecting";
+            default:
+                return "disconnected";
+        }
+    }
+
+    /**
+     * Starts the attempt if a slot is free and nobody is waiting for one, queues it otherwise.
+     */
+    private boolean admit(Connection connection) {
+        if (mActiveCount < mMaxConnections && mQueue.isEmpty()) {
+            return start(connection);
+        }
+        mQueuedCount++;
+        mQueue.add(connection);
+        setState(connection, STATE_QUEUED);
+        return true;
+    }
+
+    private void promote() {
+        while (mActiveCount < mMaxConnections && !mQueue.isEmpty()) {
+            start(mQueue.poll());
+        }
+    }
+
+    private boolean start(Connection connection) {
+        boolean started;
+        if (connection.mSession != null) {
+            started = mTransport.reconnect(connection.mSession);
+        } else {
+            connection.mSession = mTransport.open(connection.mAddress);
+            started = connection.mSession != null;
+        }
+        mAdmittedCount++;
+        if (!started) {
+            mFailedCount++;
+            setState(connection, STATE_DISCONNECTED);
+            return false;
+        }
+        setState(connection, STATE_CONNECTING);
+        return true;
+    }
+
+    private void release(Connection connection) {
+        if (connection.mState == STATE_QUEUED) {
+            mQueue.remove(connection);
+        } else if (connection.mState == STATE_CONNECTING
+                || connection.mState == STATE_CONNECTED) {
+            mTransport.disconnect(connection.mSession);
+        }
+        if (connection.mSession != null) {
+            mTransport.close(connection.mSession);
+            connection.mSession = null;
+        }
+        connection.mReconnect = false;
+        setState(connection, STATE_DISCONNECTED);
+    }
+
+    private void setState(Connection connection, int state) {
+        int previous = connection.mState;
+        if (previous == state) {
+            return;
+        }
+        if (holdsSlot(previous)) {
+            mActiveCount--;
+        }
+        if (holdsSlot(state)) {
+            mActiveCount++;
+        }
+        if (previous == STATE_CONNECTED) {
+            mConnectedCount--;
+        }
+        if (state == STATE_CONNECTED) {
+            mConnectedCount++;
+        }
+        connection.mState = state;
+        if (mListener != null) {
+            mListener.onStateChanged(connection.mAddress, state);
+        }
+    }
+
+    private static boolean holdsSlot(int state) {
+        return state == STATE_CONNECTING || state == STATE_CONNECTED
+                || state == STATE_DISCONNECTING;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands characteristic values to in-process subscribers as they arrive.
+ *
+ * A value is delivered on the thread that publishes it, as the raw bytes plus the time it was
+ * received, to every subscriber whose filter matches. Nothing is formatted or copied on the
+ * way: subscribers that need the bytes after {@link ValueListener#onValue} returns copy them,
+ * and turn them into text only when something is shown. The subscriber list is copied on
+ * every change, so publishing takes no lock and allocates nothing.
+ */
+public class GattEventBus {
+
+    /**
+     * Receives characteristic values. Called on the publishing thread, which is a Bluetooth
+     * callback thread in the app, so it must not block.
+     */
+    public interface ValueListener {
+
+        /**
+         * @param value          the received bytes; only valid for the duration of the call
+         * @param timestampNanos when the value was received, in the publisher's clock
+         */
+        void onValue(String address, UUID characteristic, byte[] value, long timestampNanos);
+    }
+
+    private static final class Subscription {
+        final String mAddress;
+        final UUID mCharacteristic;
+        final ValueListener mListener;
+
+        Subscription(String address, UUID characteristic, ValueListener listener) {
+            mAddress = address;
+            mCharacteristic = characteristic;
+            mListener = listener;
+        }
+
+        boolean matches(String address, UUID characteristic) {
+            return (mAddress == null || mAddress.equals(address))
+                    && (mCharacteristic == null || mCharacteristic.equals(characteristic));
+        }
+    }
+
+    private static final Subscription[] NONE = new Subscription[0];
+
+    private volatile Subscription[] mSubscriptions = NONE;
+
+    private final AtomicLong mPublishedCount = new AtomicLong();
+
+    /**
+     * @param address        only values from this device, or null for all devices
+     * @param characteristic only values of this characteristic, or null for all of them
+     */
+    public synchronized void subscribe(String address, UUID characteristic,
+                                       ValueListener listener) {
+        Subscription[] subscriptions = Arrays.copyOf(mSubscriptions, mSubscriptions.length + 1);
+        subscriptions[subscriptions.length - 1] =
+                new Subscription(address, characteristic, listener);
+        mSubscriptions = subscriptions;
+    }
+
+    /**
+     * Removes every subscription of the listener.
+     */
+    public synchronized void unsubscribe(ValueListener listener) {
+        Subscription[] subscriptions = new Subscription[mSubscriptions.length];
+        int count = 0;
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mListener != listener) {
+                subscriptions[count++] = subscription;
+            }
+        }
+        mSubscriptions = count == 0 ? NONE : Arrays.copyOf(subscriptions, count);
+    }
+
+    public boolean hasSubscribers() {
+        return mSubscriptions.length > 0;
+    }
+
+    /**
+     * Delivers a value to the matching subscribers. Values from one device should be
+     * published from one thread at a time, so each subscriber sees them in order.
+     *
+     * @return how many subscribers received it
+     */
+    public int publish(String address, UUID characteristic, byte[] value, long timestampNanos) {
+        mPublishedCount.incrementAndGet();
+        int delivered = 0;
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.matches(address, characteristic)) {
+                subscription.mListener.onValue(address, characteristic, value, timestampNanos);
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    public long getPublishedCount() {
+        return mPublishedCount.get();
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Serializes the GATT operations of one connection.
+ *
+ * Android allows a single outstanding operation per connection and quietly rejects the next
+ * one until the previous callback has arrived, so callers {@link #enqueue} instead and the
+ * GATT callback reports each result through {@link #onComplete}. The next operation is started
+ * from inside that call, on the callback thread, so the link never sits idle while work is
+ * waiting.
+ *
+ * Operations wait in one of three lanes and a lane is served only once every lane above it is
+ * empty: {@link #LANE_SETUP} for service discovery, MTU and notification setup,
+ * {@link #LANE_INTERACTIVE} for what the user asked for and {@link #LANE_BULK} for
+ * background reads. An operation that cannot be started, fails or gets no answer within the
+ * timeout goes back to the head of its lane and is tried again after a short back-off, until
+ * it has had {@code maxAttempts} tries. The back-off matters after a timeout: the platform has
+ * no way to cancel an operation and refuses new ones until the late answer turns up. Such an
+ * answer is credited to the retry if that is already in flight, and otherwise dropped.
+ *
+ * For every operation type the queue keeps a histogram of the time spent waiting to start and
+ * of the round trip from start to result, in microseconds.
+ *
+ * All methods are synchronized. The executor and listener are called with the lock held, so
+ * they must not block. Timeouts and back-offs only end when {@link #checkTimeouts} is called;
+ * the owner schedules that for {@link #getDeadlineNanos}.
+ */
+public class GattOperationQueue {
+
+    /**
+     * Starts operations against the platform.
+     */
+    public interface Executor {
+
+        /**
+         * @return false if the platform refused to start the operation
+         */
+        boolean start(Operation operation);
+    }
+
+    /**
+     * Hears about every operation once it has finished for good.
+     */
+    public interface Listener {
+
+        /**
+         * @param status the GATT status of the last attempt, or one of the {@code STATUS_*}
+         *               constants
+         */
+        void onFinished(Operation operation, int status);
+    }
+
+    public static final int OP_DISCOVER_SERVICES = 0;
+    public static final int OP_READ_CHARACTERISTIC = 1;
+    public static final int OP_WRITE_CHARACTERISTIC = 2;
+    public static final int OP_READ_DESCRIPTOR = 3;
+    public static final int OP_WRITE_DESCRIPTOR = 4;
+    public static final int OP_REQUEST_MTU = 5;
+
+    private static final int OP_TYPES = 6;
+
+    private static final String[] OP_NAMES = {
+            "discover services", "read characteristic", "write characteristic",
+            "read descriptor", "write descriptor", "request MTU"
+    };
+
+    public static final int LANE_SETUP = 0;
+    public static final int LANE_INTERACTIVE = 1;
+    public static final int LANE_BULK = 2;
+
+    private static final int LANES = 3;
+
+    /** Same value as {@code BluetoothGatt.GATT_SUCCESS}. */
+    public static final int STATUS_SUCCESS = 0;
+
+    /** No result arrived within the timeout. */
+    public static final int STATUS_TIMEOUT = -1;
+
+    /** The platform refused to start the operation. */
+    public static final int STATUS_NOT_STARTED = -2;
+
+    /** The queue was closed before the operation finished. */
+    public static final int STATUS_CANCELLED = -3;
+
+    /**
+     * One GATT request. The target is the characteristic or descriptor to act on, or null for
+     * service discovery and MTU requests; the value is what a write should send.
+     */
+    public static final class Operation {
+
+        private final int mType;
+
+        private final int mLane;
+
+        private final Object mTarget;
+
+        private final byte[] mValue;
+
+        private int mAttempts;
+
+        private long mQueuedNanos;
+
+        private long mStartedNanos;
+
+        public Operation(int type, int lane, Object target, byte[] value) {
+            if (type < 0 || type >= OP_TYPES || lane < 0 || lane >= LANES) {
+                throw new IllegalArgumentException("bad type " + type + " or lane " + lane);
+            }
+            mType = type;
+            mLane = lane;
+            mTarget = target;
+            mValue = value;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public int getLane() {
+            return mLane;
+        }
+
+        public Object getTarget() {
+            return mTarget;
+        }
+
+        public byte[] getValue() {
+            return mValue;
+        }
+
+        /**
+         * @return how many times the operation has been started so far
+         */
+        public int getAttempts() {
+            return mAttempts;
+        }
+    }
+
+    private final Executor mExecutor;
+
+    private final Listener mListener;
+
+    private final long mTimeoutNanos;
+
+    private final long mRetryDelayNanos;
+
+    private final int mMaxAttempts;
+
+    private final ArrayList<ArrayDeque<Operation>> mLanes =
+            new ArrayList<ArrayDeque<Operation>>(LANES);
+
+    private Operation mCurrent;
+
+    private long mDeadlineNanos = Long.MAX_VALUE;
+
+    /** Nothing is started before this time, after a failure. */
+    private long mBackoffUntilNanos = Long.MIN_VALUE;
+
+    private boolean mClosed;
+
+    private final LogHistogram[] mWaitMicros = new LogHistogram[OP_TYPES];
+
+    private final LogHistogram[] mRoundTripMicros = new LogHistogram[OP_TYPES];
+
+    private long mCompletedCount;
+
+    private long mRetryCount;
+
+    private long mTimeoutCount;
+
+    private long mFailedCount;
+
+    /**
+     * @param timeoutNanos    how long to wait for each attempt's result
+     * @param retryDelayNanos how long the link rests before a failed operation is retried
+     * @param maxAttempts     how many times to try each operation
+     * @param listener        may be null
+     */
+    public GattOperationQueue(Executor executor, long timeoutNanos, long retryDelayNanos,
+                              int maxAttempts, Listener listener) {
+        if (timeoutNanos <= 0 || retryDelayNanos < 0 || maxAttempts <= 0) {
+            throw new IllegalArgumentException(
+                    "timeout and attempts must be positive, delay not negative");
+        }
+        mExecutor = executor;
+        mTimeoutNanos = timeoutNanos;
+        mRetryDelayNanos = retryDelayNanos;
+        mMaxAttempts = maxAttempts;
+        mListener = listener;
+        for (int lane = 0; lane < LANES; lane++) {
+            mLanes.add(new ArrayDeque<Operation>());
+        }
+        for (int type = 0; type < OP_TYPES; type++) {
+            mWaitMicros[type] = new LogHistogram();
+            mRoundTripMicros[type] = new LogHistogram();
+        }
+    }
+
+    /**
+     * Queues the operation and starts it straight away if the link is idle.
+     *
+     * @return false if the queue has been closed
+     */
+    public synchronized boolean enqueue(Operation operation, long nowNanos) {
+        if (mClosed) {
+            return false;
+        }
+        operation.mQueuedNanos = nowNanos;
+        mLanes.get(operation.mLane).add(operation);
+        startNext(nowNanos);
+        return true;
+    }
+
+    /**
+     * Reports the result the platform delivered for an operation and starts the next one.
+     *
+     * @return false if no operation of that type and target was in flight
+     */
+    public synchronized boolean onComplete(int type, Object target, int status, long nowNanos) {
+        Operation operation = mCurrent;
+        if (operation == null || operation.mType != type || operation.mTarget != target) {
+            return false;
+        }
+        mCurrent = null;
+        mDeadlineNanos = Long.MAX_VALUE;
+        if (status == STATUS_SUCCESS) {
+            mCompletedCount++;
+            mRoundTripMicros[type].record((nowNanos - operation.mStartedNanos) / 1000);
+            finish(operation, status);
+        } else {
+            retryOrFail(operation, status, nowNanos);
+        }
+        startNext(nowNanos);
+        return true;
+    }
+
+    /**
+     * Gives up on the operation in flight if its result is overdue, and starts the next one
+     * once any back-off has passed.
+     */
+    public synchronized void checkTimeouts(long nowNanos) {
+        if (mCurrent != null && nowNanos >= mDeadlineNanos) {
+            Operation operation = mCurrent;
+            mCurrent = null;
+            mDeadlineNanos = Long.MAX_VALUE;
+            mTimeoutCount++;
+            retryOrFail(operation, STATUS_TIMEOUT, nowNanos);
+        }
+        startNext(nowNanos);
+    }
+
+    /**
+     * @return when the operation in flight times out or the back-off ends, whichever
+     *         {@link #checkTimeouts} next has to act on, or {@code Long.MAX_VALUE} if neither
+     */
+    public synchronized long getDeadlineNanos() {
+        if (mCurrent != null) {
+            return mDeadlineNanos;
+        }
+        for (ArrayDeque<Operation> lane : mLanes) {
+            if (!lane.isEmpty()) {
+                return mBackoffUntilNanos;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Finishes every pending operation with {@link #STATUS_CANCELLED} and refuses new ones.
+     * Called when the link goes down.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        if (mCurrent != null) {
+            Operation operation = mCurrent;
+            mCurrent = null;
+            mDeadlineNanos = Long.MAX_VALUE;
+            finish(operation, STATUS_CANCELLED);
+        }
+        for (ArrayDeque<Operation> lane : mLanes) {
+            Operation operation;
+            while ((operation = lane.poll()) != null) {
+                finish(operation, STATUS_CANCELLED);
+            }
+        }
+    }
+
+    /**
+     * @return operations waiting or in flight
+     */
+    public synchronized int size() {
+        int size = mCurrent == null ? 0 : 1;
+        for (ArrayDeque<Operation> lane : mLanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    public synchronized boolean isBusy() {
+        return mCurrent != null;
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    public synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * @return microseconds from {@link #enqueue} to the first start, for one operation type
+     */
+    public synchronized LogHistogram getWaitHistogram(int type) {
+        return mWaitMicros[type];
+    }
+
+    /**
+     * @return microseconds from the last start to a successful result, for one operation type
+     */
+    public synchronized LogHistogram getRoundTripHistogram(int type) {
+        return mRoundTripMicros[type];
+    }
+
+    public synchronized void describe(StringBuilder out) {
+        out.append("Operations: ").append(mCompletedCount).append(" completed, ")
+                .append(mRetryCount).append(" retried, ")
+                .append(mTimeoutCount).append(" timed out, ")
+                .append(mFailedCount).append(" failed, ")
+                .append(size()).append(" pending\n");
+        for (int type = 0; type < OP_TYPES; type++) {
+            if (mWaitMicros[type].getCount() == 0) {
+                continue;
+            }
+            out.append(OP_NAMES[type]).append(" wait: ");
+            mWaitMicros[type].describe(out, "us");
+            out.append(OP_NAMES[type]).append(" round trip: ");
+            mRoundTripMicros[type].describe(out, "us");
+        }
+    }
+
+    public static String typeName(int type) {
+        return OP_NAMES[type];
+    }
+
+    /**
+     * Starts waiting operations, highest lane first, until one is accepted or a refusal
+     * starts a back-off.
+     */
+    private void startNext(long nowNanos) {
+        while (mCurrent == null && nowNanos >= mBackoffUntilNanos) {
+            Operation operation = null;
+            for (int lane = 0; lane < LANES && operation == null; lane++) {
+                operation = mLanes.get(lane).poll();
+            }
+            if (operation == null) {
+                return;
+            }
+            if (operation.mAttempts == 0) {
+                mWaitMicros[operation.mType].record(
+                        (nowNanos - operation.mQueuedNanos) / 1000);
+            }
+            operation.mAttempts++;
+            operation.mStartedNanos = nowNanos;
+            // Set before starting: the result may arrive on another thread before start()
+            // returns, and is then held up on our lock until mCurrent is in place.
+            mCurrent = operation;
+            mDeadlineNanos = nowNanos + mTimeoutNanos;
+            if (!mExecutor.start(operation)) {
+                mCurrent = null;
+                mDeadlineNanos = Long.MAX_VALUE;
+                retryOrFail(operation, STATUS_NOT_STARTED, nowNanos);
+            }
+        }
+    }
+
+    private void retryOrFail(Operation operation, int status, long nowNanos) {
+        if (operation.mAttempts < mMaxAttempts) {
+            mRetryCount++;
+            mLanes.get(operation.mLane).addFirst(operation);
+            mBackoffUntilNanos = nowNanos + mRetryDelayNanos;
+        } else {
+            mFailedCount++;
+            finish(operation, status);
+        }
+    }
+
+    private void finish(Operation operation, int status) {
+        if (mListener != null) {
+            mListener.onFinished(operation, status);
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Immutable snapshot of a device's attribute table: its services, their characteristics and
+ * the descriptors of each, plus the Database Hash the device reported, if any.
+ *
+ * Everything is held in a handful of primitive arrays, services and characteristics pointing
+ * at their first child, so a table costs a few hundred bytes however it is used, can be shared
+ * between threads and is quick to write to and read from the {@link GattAttributeCache}.
+ * Services and characteristics keep the platform's instance ids, which tell apart attributes
+ * that share a UUID.
+ */
+public final class GattTable {
+
+    /** Length of the Database Hash characteristic's value. */
+    public static final int DATABASE_HASH_LENGTH = 16;
+
+    private final long[] mServiceUuids;
+
+    private final int[] mServiceInstances;
+
+    /** Index of each service's first characteristic, plus one past the last. */
+    private final int[] mFirstCharacteristic;
+
+    private final long[] mCharacteristicUuids;
+
+    private final int[] mCharacteristicInstances;
+
+    private final int[] mCharacteristicProperties;
+
+    /** Index of each characteristic's first descriptor, plus one past the last. */
+    private final int[] mFirstDescriptor;
+
+    private final long[] mDescriptorUuids;
+
+    private final byte[] mDatabaseHash;
+
+    private final long mFingerprint;
+
+    /**
+     * Collects attributes in discovery order.
+     */
+    public static final class Builder {
+        private long[] mServiceUuids = new long[16];
+        private int[] mServiceInstances = new int[8];
+        private int[] mFirstCharacteristic = new int[9];
+        private int mServiceCount;
+        private long[] mCharacteristicUuids = new long[64];
+        private int[] mCharacteristicInstances = new int[32];
+        private int[] mCharacteristicProperties = new int[32];
+        private int[] mFirstDescriptor = new int[33];
+        private int mCharacteristicCount;
+        private long[] mDescriptorUuids = new long[64];
+        private int mDescriptorCount;
+        private byte[] mDatabaseHash;
+
+        public Builder addService(UUID uuid, int instanceId) {
+            if (mServiceCount == mServiceInstances.length) {
+                mServiceUuids = Arrays.copyOf(mServiceUuids, mServiceUuids.length * 2);
+                mServiceInstances = Arrays.copyOf(mServiceInstances, mServiceCount * 2);
+                mFirstCharacteristic = Arrays.copyOf(mFirstCharacteristic, mServiceCount * 2 + 1);
+            }
+            putUuid(mServiceUuids, mServiceCount, uuid);
+            mServiceInstances[mServiceCount] = instanceId;
+            mServiceCount++;
+            mFirstCharacteristic[mServiceCount] = mCharacteristicCount;
+            return this;
+        }
+
+        /**
+         * Adds a characteristic to the service added last.
+         */
+        public Builder addCharacteristic(UUID uuid, int instanceId, int properties) {
+            if (mServiceCount == 0) {
+                throw new IllegalStateException("no service to add the characteristic to");
+            }
+            int count = mCharacteristicCount;
+            if (count == mCharacteristicInstances.length) {
+                mCharacteristicUuids = Arrays.copyOf(mCharacteristicUuids, count * 4);
+                mCharacteristicInstances = Arrays.copyOf(mCharacteristicInstances, count * 2);
+                mCharacteristicProperties = Arrays.copyOf(mCharacteristicProperties, count * 2);
+                mFirstDescriptor = Arrays.copyOf(mFirstDescriptor, count * 2 + 1);
+            }
+            putUuid(mCharacteristicUuids, count, uuid);
+            mCharacteristicInstances[count] = instanceId;
+            mCharacteristicProperties[count] = properties;
+            mCharacteristicCount++;
+            mFirstDescriptor[mCharacteristicCount] = mDescriptorCount;
+            mFirstCharacteristic[mServiceCount] = mCharacteristicCount;
+            return this;
+        }
+
+        /**
+         * Adds a descriptor to the characteristic added last.
+         */
+        public Builder addDescriptor(UUID uuid) {
+            if (mCharacteristicCount == 0) {
+                throw new IllegalStateException("no characteristic to add the descriptor to");
+            }
+            if (mDescriptorCount * 2 == mDescriptorUuids.length) {
+                mDescriptorUuids = Arrays.copyOf(mDescriptorUuids, mDescriptorUuids.length * 2);
+            }
+            putUuid(mDescriptorUuids, mDescriptorCount, uuid);
+            mDescriptorCount++;
+            mFirstDescriptor[mCharacteristicCount] = mDescriptorCount;
+            return this;
+        }
+
+        /**
+         * @param hash the value of the Database Hash characteristic, or null if the device
+         *             doesn't have one
+         */
+        public Builder setDatabaseHash(byte[] hash) {
+            if (hash != null && hash.length != DATABASE_HASH_LENGTH) {
+                throw new IllegalArgumentException("database hash must be 16 bytes");
+            }
+            mDatabaseHash = hash == null ? null : hash.clone();
+            return this;
+        }
+
+        public GattTable build() {
+            return new GattTable(Arrays.copyOf(mServiceUuids, mServiceCount * 2),
+                    Arrays.copyOf(mServiceInstances, mServiceCount),
+                    Arrays.copyOf(mFirstCharacteristic, mServiceCount + 1),
+                    Arrays.copyOf(mCharacteristicUuids, mCharacteristicCount * 2),
+                    Arrays.copyOf(mCharacteristicInstances, mCharacteristicCount),
+                    Arrays.copyOf(mCharacteristicProperties, mCharacteristicCount),
+                    Arrays.copyOf(mFirstDescriptor, mCharacteristicCount + 1),
+                    Arrays.copyOf(mDescriptorUuids, mDescriptorCount * 2),
+                    mDatabaseHash);
+        }
+
+        private static void putUuid(long[] uuids, int index, UUID uuid) {
+            uuids[index * 2] = uuid.getMostSignificantBits();
+            uuids[index * 2 + 1] = uuid.getLeastSignificantBits();
+        }
+    }
+
+    private GattTable(long[] serviceUuids, int[] serviceInstances, int[] firstCharacteristic,
+                      long[] characteristicUuids, int[] characteristicInstances,
+                      int[] characteristicProperties, int[] firstDescriptor,
+                      long[] descriptorUuids, byte[] databaseHash) {
+        mServiceUuids = serviceUuids;
+        mServiceInstances = serviceInstances;
+        mFirstCharacteristic = firstCharacteristic;
+        mCharacteristicUuids = characteristicUuids;
+        mCharacteristicInstances = characteristicInstances;
+        mCharacteristicProperties = characteristicProperties;
+        mFirstDescriptor = firstDescriptor;
+        mDescriptorUuids = descriptorUuids;
+        mDatabaseHash = databaseHash;
+        mFingerprint = fingerprint();
+    }
+
+    public int getServiceCount() {
+        return mServiceInstances.length;
+    }
+
+    public UUID getServiceUuid(int service) {
+        return new UUID(mServiceUuids[service * 2], mServiceUuids[service * 2 + 1]);
+    }
+
+    public int getServiceInstanceId(int service) {
+        return mServiceInstances[service];
+    }
+
+    public int getCharacteristicCount(int service) {
+        return mFirstCharacteristic[service + 1] - mFirstCharacteristic[service];
+    }
+
+    public UUID getCharacteristicUuid(int service, int characteristic) {
+        int index = characteristicIndex(service, characteristic);
+        return new UUID(mCharacteristicUuids[index * 2], mCharacteristicUuids[index * 2 + 1]);
+    }
+
+    public int getCharacteristicInstanceId(int service, int characteristic) {
+        return mCharacteristicInstances[characteristicIndex(service, characteristic)];
+    }
+
+    /**
+     * @return the {@code BluetoothGattCharacteristic.PROPERTY_*} bits
+     */
+    public int getCharacteristicProperties(int service, int characteristic) {
+        return mCharacteristicProperties[characteristicIndex(service, characteristic)];
+    }
+
+    public int getDescriptorCount(int service, int characteristic) {
+        int index = characteristicIndex(service, characteristic);
+        return mFirstDescriptor[index + 1] - mFirstDescriptor[index];
+    }
+
+    public UUID getDescriptorUuid(int service, int characteristic, int descriptor) {
+        int index = mFirstDescriptor[characteristicIndex(service, characteristic)] + descriptor;
+        return new UUID(mDescriptorUuids[index * 2], mDescriptorUuids[index * 2 + 1]);
+    }
+
+    /**
+     * @return the first service with the UUID, or -1
+     */
+    public int findService(UUID uuid) {
+        for (int i = 0; i < mServiceInstances.length; i++) {
+            if (mServiceUuids[i * 2] == uuid.getMostSignificantBits()
+                    && mServiceUuids[i * 2 + 1] == uuid.getLeastSignificantBits()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first characteristic of the service with the UUID, or -1
+     */
+    public int findCharacteristic(int service, UUID uuid) {
+        for (int i = 0; i < getCharacteristicCount(service); i++) {
+            int index = characteristicIndex(service, i);
+            if (mCharacteristicUuids[index * 2] == uuid.getMostSignificantBits()
+                    && mCharacteristicUuids[index * 2 + 1] == uuid.getLeastSignificantBits()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the Database Hash the device reported, or null
+     */
+    public byte[] getDatabaseHash() {
+        return mDatabaseHash == null ? null : mDatabaseHash.clone();
+    }
+
+    /**
+     * @return a 64-bit FNV-1a hash of the attributes, standing in for the Database Hash of
+     *         devices that don't have one
+     */
+    public long getFingerprint() {
+        return mFingerprint;
+    }
+
+    /**
+     * @return a copy of this table with the Database Hash set
+     */
+    public GattTable withDatabaseHash(byte[] hash) {
+        if (hash != null && hash.length != DATABASE_HASH_LENGTH) {
+            throw new IllegalArgumentException("database hash must be 16 bytes");
+        }
+        return new GattTable(mServiceUuids, mServiceInstances, mFirstCharacteristic,
+                mCharacteristicUuids, mCharacteristicInstances, mCharacteristicProperties,
+                mFirstDescriptor, mDescriptorUuids, hash == null ? null : hash.clone());
+    }
+
+    /**
+     * Tells whether both tables describe the same attribute database: by Database Hash when
+     * both have one, by their attributes otherwise.
+     */
+    public boolean isSameDatabase(GattTable other) {
+        if (mDatabaseHash != null && other.mDatabaseHash != null) {
+            return Arrays.equals(mDatabaseHash, other.mDatabaseHash);
+        }
+        return mFingerprint == other.mFingerprint && sameAttributes(other);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof GattTable)) {
+            return false;
+        }
+        GattTable other = (GattTable) o;
+        return mFingerprint == other.mFingerprint && sameAttributes(other)
+                && Arrays.equals(mDatabaseHash, other.mDatabaseHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mFingerprint ^ (mFingerprint >>> 32));
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeShort(mServiceInstances.length);
+        for (int service = 0; service < mServiceInstances.length; service++) {
+            out.writeLong(mServiceUuids[service * 2]);
+            out.writeLong(mServiceUuids[service * 2 + 1]);
+            out.writeInt(mServiceInstances[service]);
+            out.writeShort(getCharacteristicCount(service));
+        }
+        for (int index = 0; index < mCharacteristicInstances.length; index++) {
+            out.writeLong(mCharacteristicUuids[index * 2]);
+            out.writeLong(mCharacteristicUuids[index * 2 + 1]);
+            out.writeInt(mCharacteristicInstances[index]);
+            out.writeByte(mCharacteristicProperties[index]);
+            out.writeByte(mFirstDescriptor[index + 1] - mFirstDescriptor[index]);
+        }
+        for (long uuid : mDescriptorUuids) {
+            out.writeLong(uuid);
+        }
+        out.writeBoolean(mDatabaseHash != null);
+        if (mDatabaseHash != null) {
+            out.write(mDatabaseHash);
+        }
+    }
+
+    /**
+     * Reads a table written by {@link #writeTo}.
+     */
+    public static GattTable readFrom(DataInput in) throws IOException {
+        int serviceCount = in.readUnsignedShort();
+        long[] serviceUuids = new long[serviceCount * 2];
+        int[] serviceInstances = new int[serviceCount];
+        int[] firstCharacteristic = new int[serviceCount + 1];
+        for (int service = 0; service < serviceCount; service++) {
+            serviceUuids[service * 2] = in.readLong();
+            serviceUuids[service * 2 + 1] = in.readLong();
+            serviceInstances[service] = in.readInt();
+            firstCharacteristic[service + 1] =
+                    firstCharacteristic[service] + in.readUnsignedShort();
+        }
+        int characteristicCount = firstCharacteristic[serviceCount];
+        long[] characteristicUuids = new long[characteristicCount * 2];
+        int[] characteristicInstances = new int[characteristicCount];
+        int[] characteristicProperties = new int[characteristicCount];
+        int[] firstDescriptor = new int[characteristicCount + 1];
+        for (int index = 0; index < characteristicCount; index++) {
+            characteristicUuids[index * 2] = in.readLong();
+            characteristicUuids[index * 2 + 1] = in.readLong();
+            characteristicInstances[index] = in.readInt();
+            characteristicProperties[index] = in.readUnsignedByte();
+            firstDescriptor[index + 1] = firstDescriptor[index] + in.readUnsignedByte();
+        }
+        long[] descriptorUuids = new long[firstDescriptor[characteristicCount] * 2];
+        for (int i = 0; i < descriptorUuids.length; i++) {
+            descriptorUuids[i] = in.readLong();
+        }
+        byte[] databaseHash = null;
+        if (in.readBoolean()) {
+            databaseHash = new byte[DATABASE_HASH_LENGTH];
+            in.readFully(databaseHash);
+        }
+        return new GattTable(serviceUuids, serviceInstances, firstCharacteristic,
+                characteristicUuids, characteristicInstances, characteristicProperties,
+                firstDescriptor, descriptorUuids, databaseHash);
+    }
+
+    private int characteristicIndex(int service, int characteristic) {
+        return mFirstCharacteristic[service] + characteristic;
+    }
+
+    private boolean sameAttributes(GattTable other) {
+        return Arrays.equals(mServiceUuids, other.mServiceUuids)
+                && Arrays.equals(mServiceInstances, other.mServiceInstances)
+                && Arrays.equals(mFirstCharacteristic, other.mFirstCharacteristic)
+                && Arrays.equals(mCharacteristicUuids, other.mCharacteristicUuids)
+                && Arrays.equals(mCharacteristicInstances, other.mCharacteristicInstances)
+                && Arrays.equals(mCharacteristicProperties, other.mCharacteristicProperties)
+                && Arrays.equals(mFirstDescriptor, other.mFirstDescriptor)
+                && Arrays.equals(mDescriptorUuids, other.mDescriptorUuids);
+    }
+
+    private long fingerprint() {
+        long hash = 0xcbf29ce484222325L;
+        hash = mix(hash, mServiceUuids);
+        hash = mix(hash, mServiceInstances);
+        hash = mix(hash, mFirstCharacteristic);
+        hash = mix(hash, mCharacteristicUuids);
+        hash = mix(hash, mCharacteristicInstances);
+        hash = mix(hash, mCharacteristicProperties);
+        hash = mix(hash, mFirstDescriptor);
+        return mix(hash, mDescriptorUuids);
+    }
+
+    private static long mix(long hash, long[] values) {
+        for (long value : values) {
+            for (int shift = 0; shift < 64; shift += 8) {
+                hash = (hash ^ ((value >>> shift) & 0xFF)) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, int[] values) {
+        for (int value : values) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                hash = (hash ^ ((value >>> shift) & 0xFF)) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+}
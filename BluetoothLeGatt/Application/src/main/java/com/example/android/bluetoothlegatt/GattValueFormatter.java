@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * Turns raw characteristic values into text, for when a value is actually shown.
+ */
+public class GattValueFormatter {
+
+    private static final UUID UUID_HEART_RATE_MEASUREMENT =
+            UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private GattValueFormatter() {
+    }
+
+    /**
+     * Formats a value the way the sample shows it: heart rate measurements as the rate, and
+     * everything else as its bytes read as text followed by the bytes in hex.
+     *
+     * @return the text, or null for an empty value
+     */
+    public static String format(UUID characteristic, byte[] value, int length) {
+        if (length <= 0) {
+            return null;
+        }
+        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
+        // carried out as per profile specifications:
+        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
+        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic)) {
+            int heartRate = parseHeartRate(value, length);
+            return heartRate < 0 ? null : String.valueOf(heartRate);
+        }
+        StringBuilder out = new StringBuilder(length * 4 + 1);
+        out.append(new String(value, 0, length)).append('\n');
+        appendHex(out, value, length);
+        return out.toString();
+    }
+
+    /**
+     * @return beats per minute, or -1 if the value is too short
+     */
+    public static int parseHeartRate(byte[] value, int length) {
+        // Bit 0 of the flags says whether the rate is a UINT16 or a UINT8.
+        if ((value[0] & 0x01) != 0) {
+            return length < 3 ? -1 : (value[1] & 0xFF) | (value[2] & 0xFF) << 8;
+        }
+        return length < 2 ? -1 : value[1] & 0xFF;
+    }
+
+    /**
+     * Appends each byte as two hex digits followed by a space.
+     */
+    public static void appendHex(StringBuilder out, byte[] value, int length) {
+        for (int i = 0; i < length; i++) {
+            out.append(HEX_DIGITS[(value[i] >> 4) & 0x0F])
+                    .append(HEX_DIGITS[value[i] & 0x0F])
+                    .append(' ');
+        }
+    }
+}
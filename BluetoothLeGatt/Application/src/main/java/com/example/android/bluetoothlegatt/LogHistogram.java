@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Fixed-size histogram of non-negative values with power-of-two buckets: bucket 0 holds 0,
+ * bucket {@code b} holds values in {@code [2^(b-1), 2^b)}. Recording is a couple of
+ * instructions and never allocates, so it can sit on hot paths. Not thread safe.
+ */
+public class LogHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final long[] mCounts = new long[BUCKETS];
+
+    private long mCount;
+
+    private long mSum;
+
+    private long mMin = Long.MAX_VALUE;
+
+    private long mMax;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts[bucketOf(value)]++;
+        mCount++;
+        mSum += value;
+        if (value < mMin) {
+            mMin = value;
+        }
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getSum() {
+        return mSum;
+    }
+
+    public long getMin() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public double getMean() {
+        return mCount == 0 ? 0 : (double) mSum / mCount;
+    }
+
+    /**
+     * Returns an upper bound for the given percentile (0-100): the top of the bucket it falls
+     * in, capped at the largest recorded value.
+     */
+    public long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * percentile / 100.0);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += mCounts[b];
+            if (seen >= rank && mCounts[b] > 0) {
+                return Math.min(bucketUpperBound(b), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Appends a one line summary followed by one line per non-empty bucket.
+     */
+    public void describe(StringBuilder out, String unit) {
+        out.append("n=").append(mCount)
+                .append(" mean=").append(Math.round(getMean())).append(unit)
+                .append(" p50=").append(getPercentile(50)).append(unit)
+                .append(" p99=").append(getPercentile(99)).append(unit)
+                .append(" max=").append(mMax).append(unit).append('\n');
+        for (int b = 0; b < BUCKETS; b++) {
+            if (mCounts[b] == 0) {
+                continue;
+            }
+            out.append("  ").append(bucketLowerBound(b)).append('-')
+                    .append(bucketUpperBound(b)).append(unit).append(": ")
+                    .append(mCounts[b]).append('\n');
+        }
+    }
+
+    private static int bucketOf(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    private static long bucketLowerBound(int bucket) {
+        return bucket == 0 ? 0 : 1L << (bucket - 1);
+    }
+
+    private static long bucketUpperBound(int bucket) {
+        return bucket == 0 ? 0 : bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free queue for many producer threads and a single consumer thread.
+ *
+ * Each cell carries a sequence number (after Dmitry Vyukov's bounded queue): producers claim a
+ * cell with a CAS on the tail, fill it, and publish it by advancing the cell's sequence. The
+ * consumer only reads a cell once its sequence says it is published, so the plain element and
+ * tag arrays are safely handed over through that volatile write. Each element travels with a
+ * {@code long} tag and an enqueue timestamp, which lets callers queue a key alongside the
+ * object without wrapping it.
+ *
+ * {@link #offer} never blocks; it returns false when the ring is full.
+ */
+public class MpscRing<E> {
+
+    private final int mMask;
+
+    private final AtomicLongArray mSequences;
+
+    private final Object[] mElements;
+
+    private final long[] mTags;
+
+    private final long[] mEnqueueNanos;
+
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * Only written by the consumer; volatile so producers and monitors can read the depth.
+     */
+    private volatile long mHead;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public MpscRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mElements = new Object[size];
+        mTags = new long[size];
+        mEnqueueNanos = new long[size];
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Approximate number of queued elements.
+     */
+    public int size() {
+        long size = mTail.get() - mHead;
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    /**
+     * Adds an element. Safe to call from any thread.
+     *
+     * @return false if the ring was full and the element was dropped
+     */
+    public boolean offer(E element, long tag, long enqueueNanos) {
+        while (true) {
+            long tail = mTail.get();
+            int index = (int) tail & mMask;
+            long sequence = mSequences.get(index);
+            if (sequence == tail) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mElements[index] = element;
+                    mTags[index] = tag;
+                    mEnqueueNanos[index] = enqueueNanos;
+                    mSequences.lazySet(index, tail + 1);
+                    return true;
+                }
+            } else if (sequence < tail) {
+                // The consumer hasn't freed this cell yet: full.
+                return false;
+            }
+            // Another producer claimed this cell first; retry with the new tail.
+        }
+    }
+
+    /**
+     * Removes the oldest element and hands it to the drain callback. Consumer thread only.
+     *
+     * @return false if the ring was empty
+     */
+    public boolean poll(Consumer<E> consumer) {
+        long head = mHead;
+        int index = (int) head & mMask;
+        if (mSequences.get(index) != head + 1) {
+            return false;
+        }
+        @SuppressWarnings("unchecked")
+        E element = (E) mElements[index];
+        long tag = mTags[index];
+        long enqueueNanos = mEnqueueNanos[index];
+        mElements[index] = null;
+        mSequences.lazySet(index, head + capacity());
+        mHead = head + 1;
+        consumer.accept(element, tag, enqueueNanos);
+        return true;
+    }
+
+    /**
+     * Polls until the ring is empty or {@code max} elements have been consumed.
+     *
+     * @return the number of elements consumed
+     */
+    public int drain(Consumer<E> consumer, int max) {
+        int count = 0;
+        while (count < max && poll(consumer)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Receives elements removed from the ring.
+     */
+    public interface Consumer<E> {
+        void accept(E element, long tag, long enqueueNanos);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded byte ring for one producer thread and one consumer thread, holding variable-length
+ * timestamped values back to back:
+ * <pre>
+ *   short length of the value, unsigned
+ *   long  timestamp in nanoseconds
+ *   byte[] value
+ * </pre>
+ *
+ * The producer copies each value in and publishes it by advancing the volatile tail; the
+ * consumer copies values out and frees their space by advancing the volatile head. Neither
+ * side locks, waits or allocates, and {@link #offer} drops the value when there isn't room
+ * rather than hold up the Bluetooth thread.
+ */
+public class NotificationRing {
+
+    /** Bytes in front of every value. */
+    public static final int RECORD_HEADER_SIZE = 2 + 8;
+
+    public static final int MAX_VALUE_LENGTH = 0xFFFF;
+
+    private final byte[] mBuffer;
+
+    private final int mMask;
+
+    /** Only written by the consumer. */
+    private volatile long mHead;
+
+    /** Only written by the producer. */
+    private volatile long mTail;
+
+    /** Only written by the producer. */
+    private volatile long mDropCount;
+
+    /**
+     * @param capacity bytes, rounded up to a power of two
+     */
+    public NotificationRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mBuffer = new byte[size];
+        mMask = size - 1;
+    }
+
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * @return bytes waiting to be drained
+     */
+    public int size() {
+        return (int) (mTail - mHead);
+    }
+
+    public long getDropCount() {
+        return mDropCount;
+    }
+
+    /**
+     * Copies a value in. Producer thread only.
+     *
+     * @return false if it was dropped because the ring is full or the value too long
+     */
+    public boolean offer(byte[] value, int length, long timestampNanos) {
+        long tail = mTail;
+        int needed = RECORD_HEADER_SIZE + length;
+        if (length > MAX_VALUE_LENGTH || needed > mBuffer.length - (tail - mHead)) {
+            mDropCount++;
+            return false;
+        }
+        int position = (int) tail & mMask;
+        position = putByte(position, (byte) (length >> 8));
+        position = putByte(position, (byte) length);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            position = putByte(position, (byte) (timestampNanos >> shift));
+        }
+        int first = Math.min(length, mBuffer.length - position);
+        System.arraycopy(value, 0, mBuffer, position, first);
+        System.arraycopy(value, first, mBuffer, 0, length - first);
+        mTail = tail + needed;
+        return true;
+    }
+
+    /**
+     * Moves whole records into {@code out}, in the layout above, prefixing each with
+     * {@code prefix}, for as long as they fit. Consumer thread only.
+     *
+     * @return the number of records moved
+     */
+    public int drainTo(ByteBuffer out, byte prefix) {
+        long head = mHead;
+        long tail = mTail;
+        int count = 0;
+        while (head < tail) {
+            int position = (int) head & mMask;
+            int length = (mBuffer[position] & 0xFF) << 8
+                    | (mBuffer[(position + 1) & mMask] & 0xFF);
+            int size = RECORD_HEADER_SIZE + length;
+            if (out.remaining() < 1 + size) {
+                break;
+            }
+            out.put(prefix);
+            int first = Math.min(size, mBuffer.length - position);
+            out.put(mBuffer, position, first);
+            out.put(mBuffer, 0, size - first);
+            head += size;
+            count++;
+        }
+        mHead = head;
+        return count;
+    }
+
+    private int putByte(int position, byte value) {
+        mBuffer[position] = value;
+        return (position + 1) & mMask;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Reads back a file written by {@link StreamRecorder}. The value array passed to the visitor
+ * is reused and only valid for the duration of the callback. Reading stops quietly at an
+ * incomplete last record, which is what an interrupted capture leaves behind.
+ */
+public class StreamFileReader {
+
+    /**
+     * Receives the records of a capture.
+     */
+    public interface RecordVisitor {
+
+        /**
+         * @param channel index into {@link #getCharacteristics}
+         * @return false to stop reading
+         */
+        boolean onRecord(int channel, long timestampNanos, byte[] value, int length);
+    }
+
+    private final File mFile;
+
+    private final long mStartMillis;
+
+    private final UUID[] mCharacteristics;
+
+    /**
+     * Reads the header.
+     *
+     * @throws IOException if the file can't be read or isn't a capture
+     */
+    public StreamFileReader(File file) throws IOException {
+        mFile = file;
+        DataInputStream in = open();
+        try {
+            mCharacteristics = new UUID[in.readUnsignedShort()];
+            mStartMillis = in.readLong();
+            for (int i = 0; i < mCharacteristics.length; i++) {
+                mCharacteristics[i] = new UUID(in.readLong(), in.readLong());
+            }
+        } catch (EOFException e) {
+            throw new IOException(file + " has a truncated header", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    public UUID[] getCharacteristics() {
+        return mCharacteristics.clone();
+    }
+
+    /**
+     * @return the number of records visited
+     */
+    public long read(RecordVisitor visitor) throws IOException {
+        DataInputStream in = open();
+        long count = 0;
+        try {
+            byte[] value = new byte[NotificationRing.MAX_VALUE_LENGTH];
+            // The rest of the header, already read by the constructor.
+            in.readFully(value, 0, StreamRecorder.FILE_HEADER_SIZE - 4 - 2
+                    + 16 * mCharacteristics.length);
+            while (true) {
+                int channel = in.read();
+                if (channel < 0) {
+                    break;
+                }
+                if (channel >= mCharacteristics.length) {
+                    throw new IOException(mFile + ": bad characteristic index " + channel);
+                }
+                int length;
+                long timestampNanos;
+                try {
+                    length = in.readUnsignedShort();
+                    timestampNanos = in.readLong();
+                    in.readFully(value, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                count++;
+                if (!visitor.onRecord(channel, timestampNanos, value, length)) {
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return count;
+    }
+
+    /**
+     * Opens the file and checks the magic number and version.
+     */
+    private DataInputStream open() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mFile), 64 * 1024));
+        try {
+            if (in.readInt() != StreamRecorder.FILE_MAGIC
+                    || in.readShort() != StreamRecorder.FORMAT_VERSION) {
+                throw new IOException(mFile + " is not a stream capture");
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Captures high-rate notifications from one device to a file.
+ *
+ * Subscribed to the {@link GattEventBus}, it copies every value of the characteristics it was
+ * given into that characteristic's {@link NotificationRing} on the Bluetooth thread, and a
+ * writer thread drains the rings to disk every {@code drainIntervalNanos}. A slow disk only
+ * costs dropped values, counted per characteristic, never a stalled callback. The file holds
+ * a header followed by records in arrival order per characteristic:
+ * <pre>
+ *   int   {@link #FILE_MAGIC}
+ *   short {@link #FORMAT_VERSION}
+ *   short number of characteristics
+ *   long  start, milliseconds since the Unix epoch
+ *   long, long  UUID of each characteristic
+ *   then per record:
+ *   byte  characteristic index
+ *   short value length, unsigned
+ *   long  timestamp in nanoseconds
+ *   byte[] value
+ * </pre>
+ *
+ * While capturing it measures what the link achieves: payload bytes per second, and
+ * notifications per connection event. Android doesn't report connection events, so values
+ * arriving less than {@code eventGapNanos} apart are taken to share one. If the sensor numbers
+ * its notifications, each characteristic can name where the little-endian sequence number
+ * sits, and skipped numbers are counted as gaps.
+ *
+ * {@link #onValue} must be called from one thread at a time, which is how the platform
+ * delivers the callbacks of a connection; statistics may be read from any thread. The writer
+ * thread also syncs and closes the file, so {@link #finish} can stop a capture from a thread
+ * that must not wait for the disk.
+ */
+public class StreamRecorder implements GattEventBus.ValueListener, Closeable {
+
+    /**
+     * Hears once the file has been written, synced and closed.
+     */
+    public interface FinishListener {
+
+        /**
+         * Called on the writer thread.
+         *
+         * @param error why the capture stopped early, or null if everything was written
+         */
+        void onFinished(StreamRecorder recorder, IOException error);
+    }
+
+    /**
+     * "GSTR", written at the start of every file.
+     */
+    public static final int FILE_MAGIC = 0x47535452;
+
+    public static final short FORMAT_VERSION = 1;
+
+    public static final int FILE_HEADER_SIZE = 4 + 2 + 2 + 8;
+
+    public static final int RECORD_HEADER_SIZE = 1 + NotificationRing.RECORD_HEADER_SIZE;
+
+    /** Passed as the sequence offset of a characteristic whose values aren't numbered. */
+    public static final int NO_SEQUENCE = -1;
+
+    private static final int MAX_CHANNELS = 255;
+
+    // Holds at least one value of the largest possible size.
+    private static final int STAGING_SIZE = 128 * 1024;
+
+    private final File mFile;
+
+    private final long mEventGapNanos;
+
+    private final long mDrainIntervalNanos;
+
+    private final ArrayList<Channel> mChannels = new ArrayList<Channel>();
+
+    /** Copy of mChannels for the Bluetooth thread, made by {@link #start}. */
+    private Channel[] mChannelArray = new Channel[0];
+
+    private final ByteBuffer mStaging = ByteBuffer.allocateDirect(STAGING_SIZE);
+
+    private RandomAccessFile mRandomAccessFile;
+
+    private FileChannel mFileChannel;
+
+    private Thread mWriter;
+
+    private volatile boolean mClosing;
+
+    private volatile FinishListener mFinishListener;
+
+    private volatile IOException mWriteError;
+
+    // Written by the Bluetooth thread only.
+
+    private volatile long mNotificationCount;
+
+    private volatile long mByteCount;
+
+    private volatile long mConnectionEventCount;
+
+    private volatile long mFirstNanos;
+
+    private volatile long mLastNanos;
+
+    /** Written by the writer thread only. */
+    private volatile long mBytesWritten;
+
+    private volatile int mMtu;
+
+    private volatile String mPhy;
+
+    private static final class Channel {
+        final UUID mCharacteristic;
+        final NotificationRing mRing;
+        final int mSequenceOffset;
+        final int mSequenceBytes;
+        final long mSequenceMask;
+        long mLastSequence = -1;
+        volatile long mNotificationCount;
+        volatile long mGapCount;
+        volatile long mMissingCount;
+        volatile long mReorderedCount;
+
+        Channel(UUID characteristic, int ringBytes, int sequenceOffset, int sequenceBytes) {
+            mCharacteristic = characteristic;
+            mRing = new NotificationRing(ringBytes);
+            mSequenceOffset = sequenceOffset;
+            mSequenceBytes = sequenceBytes;
+            mSequenceMask = sequenceBytes == 8 ? -1L : (1L << (8 * sequenceBytes)) - 1;
+        }
+
+        void checkSequence(byte[] value) {
+            if (mSequenceOffset < 0 || value.length < mSequenceOffset + mSequenceBytes) {
+                return;
+            }
+            long sequence = 0;
+            for (int i = mSequenceBytes - 1; i >= 0; i--) {
+                sequence = sequence << 8 | (value[mSequenceOffset + i] & 0xFF);
+            }
+            if (mLastSequence >= 0) {
+                long delta = (sequence - mLastSequence) & mSequenceMask;
+                if (delta == 0 || delta > (mSequenceMask >>> 1)) {
+                    // A repeat or a late arrival; keep counting from the newest.
+                    mReorderedCount++;
+                    return;
+                }
+                if (delta > 1) {
+                    mGapCount++;
+                    mMissingCount += delta - 1;
+                }
+            }
+            mLastSequence = sequence;
+        }
+    }
+
+    /**
+     * @param file               where to write; replaced if it exists
+     * @param eventGapNanos      values closer together than this count as one connection
+     *                           event; a third of the shortest connection interval works
+     * @param drainIntervalNanos how often the writer thread empties the rings
+     */
+    public StreamRecorder(File file, long eventGapNanos, long drainIntervalNanos) {
+        mFile = file;
+        mEventGapNanos = eventGapNanos;
+        mDrainIntervalNanos = drainIntervalNanos;
+    }
+
+    /**
+     * Adds a characteristic to capture. Must be called before {@link #start}.
+     *
+     * @param ringBytes      how much the characteristic may buffer while the disk is busy
+     * @param sequenceOffset where the sequence number starts in each value, or
+     *                       {@link #NO_SEQUENCE}
+     * @param sequenceBytes  its width, 1 to 8 bytes
+     * @return the characteristic's index in the file
+     */
+    public int addChannel(UUID characteristic, int ringBytes, int sequenceOffset,
+                          int sequenceBytes) {
+        if (mWriter != null || mChannels.size() == MAX_CHANNELS) {
+            throw new IllegalStateException("already started or too many characteristics");
+        }
+        if (sequenceOffset >= 0 && (sequenceBytes < 1 || sequenceBytes > 8)) {
+            throw new IllegalArgumentException("sequence numbers must be 1 to 8 bytes");
+        }
+        mChannels.add(new Channel(characteristic, ringBytes, sequenceOffset, sequenceBytes));
+        return mChannels.size() - 1;
+    }
+
+    /**
+     * Writes the file header and starts the writer thread.
+     */
+    public void start(long startMillis) throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mRandomAccessFile.setLength(0);
+        mFileChannel = mRandomAccessFile.getChannel();
+        mStaging.putInt(FILE_MAGIC).putShort(FORMAT_VERSION).putShort((short) mChannels.size())
+                .putLong(startMillis);
+        for (Channel channel : mChannels) {
+            mStaging.putLong(channel.mCharacteristic.getMostSignificantBits())
+                    .putLong(channel.mCharacteristic.getLeastSignificantBits());
+        }
+        writeStaging();
+        mChannelArray = mChannels.toArray(new Channel[mChannels.size()]);
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "StreamRecorder");
+        mWriter.start();
+    }
+
+    @Override
+    public void onValue(String address, UUID characteristic, byte[] value,
+                        long timestampNanos) {
+        Channel[] channels = mChannelArray;
+        for (int i = 0; i < channels.length; i++) {
+            Channel channel = channels[i];
+            if (channel.mCharacteristic.equals(characteristic)) {
+                record(channel, value, timestampNanos);
+                return;
+            }
+        }
+    }
+
+    private void record(Channel channel, byte[] value, long timestampNanos) {
+        if (mNotificationCount == 0) {
+            mFirstNanos = timestampNanos;
+            mConnectionEventCount = 1;
+        } else if (timestampNanos - mLastNanos > mEventGapNanos) {
+            mConnectionEventCount++;
+        }
+        mLastNanos = timestampNanos;
+        mNotificationCount++;
+        mByteCount += value.length;
+        channel.mNotificationCount++;
+        channel.checkSequence(value);
+        channel.mRing.offer(value, value.length, timestampNanos);
+    }
+
+    /**
+     * Tells the writer thread to write everything captured so far, sync and close the file,
+     * and then call the listener. Returns at once.
+     *
+     * @param listener may be null
+     */
+    public void finish(FinishListener listener) {
+        if (mWriter == null) {
+            if (listener != null) {
+                listener.onFinished(this, null);
+            }
+            return;
+        }
+        mFinishListener = listener;
+        mClosing = true;
+        LockSupport.unpark(mWriter);
+    }
+
+    /**
+     * Like {@link #finish}, but waits for the file to be closed.
+     *
+     * @throws IOException if any write failed; capture stopped at that point
+     */
+    @Override
+    public void close() throws IOException {
+        if (mWriter == null) {
+            return;
+        }
+        mClosing = true;
+        LockSupport.unpark(mWriter);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mWriter.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (mWriteError != null) {
+            throw mWriteError;
+        }
+    }
+
+    private void writeLoop() {
+        IOException error = null;
+        try {
+            while (true) {
+                boolean closing = mClosing;
+                if (drain() == 0) {
+                    if (closing) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, mDrainIntervalNanos);
+                }
+            }
+            mFileChannel.force(false);
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        mWriteError = error;
+        FinishListener listener = mFinishListener;
+        if (listener != null) {
+            listener.onFinished(this, error);
+        }
+    }
+
+    /**
+     * @return the number of records written
+     */
+    private int drain() throws IOException {
+        Channel[] channels = mChannelArray;
+        int total = 0;
+        for (int i = 0; i < channels.length; i++) {
+            NotificationRing ring = channels[i].mRing;
+            while (ring.size() > 0) {
+                int moved = ring.drainTo(mStaging, (byte) i);
+                total += moved;
+                if (moved == 0 || mStaging.remaining() < RECORD_HEADER_SIZE) {
+                    writeStaging();
+                }
+            }
+        }
+        writeStaging();
+        return total;
+    }
+
+    private void writeStaging() throws IOException {
+        mStaging.flip();
+        while (mStaging.hasRemaining()) {
+            mBytesWritten += mFileChannel.write(mStaging);
+        }
+        mStaging.clear();
+    }
+
+    /**
+     * Notes the MTU the link settled on, for {@link #describe}.
+     */
+    public void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    /**
+     * Notes the PHY the link settled on, for {@link #describe}.
+     */
+    public void setPhy(String phy) {
+        mPhy = phy;
+    }
+
+    /**
+     * @return whether the characteristic was added with {@link #addChannel}
+     */
+    public boolean captures(UUID characteristic) {
+        for (Channel channel : mChannels) {
+            if (channel.mCharacteristic.equals(characteristic)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getNotificationCount() {
+        return mNotificationCount;
+    }
+
+    /**
+     * @return value bytes received, not counting protocol overhead
+     */
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public long getConnectionEventCount() {
+        return mConnectionEventCount;
+    }
+
+    /**
+     * @return value bytes per second between the first and the latest notification
+     */
+    public double getBytesPerSecond() {
+        long span = mLastNanos - mFirstNanos;
+        return span <= 0 ? 0 : mByteCount * 1e9 / span;
+    }
+
+    public double getNotificationsPerEvent() {
+        long events = mConnectionEventCount;
+        return events == 0 ? 0 : (double) mNotificationCount / events;
+    }
+
+    public long getGapCount() {
+        long gaps = 0;
+        for (Channel channel : mChannelArray) {
+            gaps += channel.mGapCount;
+        }
+        return gaps;
+    }
+
+    /**
+     * @return notifications known to be lost from their sequence numbers
+     */
+    public long getMissingCount() {
+        long missing = 0;
+        for (Channel channel : mChannelArray) {
+            missing += channel.mMissingCount;
+        }
+        return missing;
+    }
+
+    /**
+     * @return values received but not written because a ring was full
+     */
+    public long getDropCount() {
+        long dropped = 0;
+        for (Channel channel : mChannelArray) {
+            dropped += channel.mRing.getDropCount();
+        }
+        return dropped;
+    }
+
+    public void describe(StringBuilder out) {
+        out.append("Streaming to ").append(mFile.getName());
+        if (mMtu > 0) {
+            out.append(", MTU ").append(mMtu);
+        }
+        if (mPhy != null) {
+            out.append(", ").append(mPhy);
+        }
+        out.append('\n');
+        out.append(mNotificationCount).append(" notifications, ")
+                .append(Math.round(getBytesPerSecond())).append(" B/s, ")
+                .append(String.format("%.2f", getNotificationsPerEvent()))
+                .append(" per connection event, ")
+                .append(mBytesWritten).append(" bytes written\n");
+        for (Channel channel : mChannelArray) {
+            out.append(channel.mCharacteristic).append(": ")
+                    .append(channel.mNotificationCount).append(" received");
+            if (channel.mSequenceOffset >= 0) {
+                out.append(", ").append(channel.mMissingCount).append(" missing in ")
+                        .append(channel.mGapCount).append(" gaps, ")
+                        .append(channel.mReorderedCount).append(" repeated or late");
+            }
+            out.append(", ").append(channel.mRing.getDropCount()).append(" dropped\n");
+        }
+    }
+}
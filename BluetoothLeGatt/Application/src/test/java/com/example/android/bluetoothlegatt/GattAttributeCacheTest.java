@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link GattTable} navigation and the {@link GattAttributeCache} reuse, replacement
+ * and invalidation rules across cache instances.
+ */
+public class GattAttributeCacheTest {
+
+    private static final UUID GENERIC_ATTRIBUTE = uuid16(0x1801);
+
+    private static final UUID SERVICE_CHANGED = uuid16(0x2a05);
+
+    private static final UUID DATABASE_HASH = uuid16(0x2b2a);
+
+    private static final UUID HEART_RATE = uuid16(0x180d);
+
+    private static final UUID HEART_RATE_MEASUREMENT = uuid16(0x2a37);
+
+    private static final UUID BODY_SENSOR_LOCATION = uuid16(0x2a38);
+
+    private static final UUID CLIENT_CONFIGURATION = uuid16(0x2902);
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    @Test
+    public void tableNavigatesAndSurvivesCache() throws IOException {
+        GattTable table = heartRateTable(false).setDatabaseHash(hash(1)).build();
+        assertEquals(2, table.getServiceCount());
+        int heartRate = table.findService(HEART_RATE);
+        assertEquals(1, heartRate);
+        assertEquals(7, table.getServiceInstanceId(heartRate));
+        assertEquals(2, table.getCharacteristicCount(heartRate));
+        assertEquals(BODY_SENSOR_LOCATION, table.getCharacteristicUuid(heartRate, 1));
+        assertEquals(0x10, table.getCharacteristicProperties(heartRate, 0));
+        assertEquals(1, table.getDescriptorCount(heartRate, 0));
+        assertEquals(CLIENT_CONFIGURATION, table.getDescriptorUuid(heartRate, 0, 0));
+        assertEquals(0, table.getDescriptorCount(heartRate, 1));
+        assertEquals(1, table.findCharacteristic(0, DATABASE_HASH));
+        assertEquals(-1, table.findService(DATABASE_HASH));
+
+        File directory = newDirectory();
+        try {
+            GattAttributeCache cache = new GattAttributeCache(directory);
+            assertNull(cache.get(ADDRESS));
+            assertSame(table, cache.update(ADDRESS, table));
+
+            GattTable read = new GattAttributeCache(directory).get(ADDRESS);
+            assertEquals(table, read);
+            assertArrayEquals(hash(1), read.getDatabaseHash());
+            assertEquals(table.getFingerprint(), read.getFingerprint());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void reusesUntilHashChangesOrServiceChanged() throws IOException {
+        File directory = newDirectory();
+        try {
+            GattAttributeCache cache = new GattAttributeCache(directory);
+            GattTable first = heartRateTable(false).setDatabaseHash(hash(1)).build();
+            cache.update(ADDRESS, first);
+
+            // Same hash after a restart: the stored table is handed back.
+            cache = new GattAttributeCache(directory);
+            GattTable stored = cache.get(ADDRESS);
+            assertSame(stored,
+                    cache.update(ADDRESS, heartRateTable(false).setDatabaseHash(hash(1)).build()));
+            assertEquals(1, cache.getHitCount());
+
+            // A new hash replaces it, even though the attributes look alike.
+            GattTable rehashed = heartRateTable(false).setDatabaseHash(hash(2)).build();
+            assertSame(rehashed, cache.update(ADDRESS, rehashed));
+            assertEquals(1, cache.getMissCount());
+
+            // Without a hash the attributes decide.
+            GattTable plain = heartRateTable(false).build();
+            GattTable extended = heartRateTable(true).build();
+            assertTrue(plain.isSameDatabase(heartRateTable(false).build()));
+            assertFalse(plain.isSameDatabase(extended));
+            assertSame(extended, cache.update("AA:BB:CC:DD:EE:FF", extended));
+            assertSame(extended, cache.update("AA:BB:CC:DD:EE:FF", heartRateTable(true).build()));
+            assertSame(plain, cache.update("AA:BB:CC:DD:EE:FF", plain));
+
+            cache.invalidate(ADDRESS);
+            assertNull(cache.get(ADDRESS));
+            assertNull(new GattAttributeCache(directory).get(ADDRESS));
+            assertEquals(1, cache.getInvalidationCount());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void corruptFileIsAMiss() throws IOException {
+        File directory = newDirectory();
+        try {
+            new GattAttributeCache(directory).update(ADDRESS, heartRateTable(false).build());
+            File file = directory.listFiles()[0];
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[] {0x47, 0x41, 0x54, 0x54, 0, 1, 0});
+            out.close();
+
+            assertNull(new GattAttributeCache(directory).get(ADDRESS));
+            assertFalse(file.exists());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static GattTable.Builder heartRateTable(boolean withSensorLocationDescriptor) {
+        GattTable.Builder builder = new GattTable.Builder()
+                .addService(GENERIC_ATTRIBUTE, 1)
+                .addCharacteristic(SERVICE_CHANGED, 2, 0x20)
+                .addDescriptor(CLIENT_CONFIGURATION)
+                .addCharacteristic(DATABASE_HASH, 5, 0x02)
+                .addService(HEART_RATE, 7)
+                .addCharacteristic(HEART_RATE_MEASUREMENT, 8, 0x10)
+                .addDescriptor(CLIENT_CONFIGURATION)
+                .addCharacteristic(BODY_SENSOR_LOCATION, 11, 0x02);
+        if (withSensorLocationDescriptor) {
+            builder.addDescriptor(uuid16(0x2901));
+        }
+        return builder;
+    }
+
+    private static byte[] hash(int seed) {
+        byte[] hash = new byte[GattTable.DATABASE_HASH_LENGTH];
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = (byte) (seed * 31 + i);
+        }
+        return hash;
+    }
+
+    private static UUID uuid16(int shortUuid) {
+        return new UUID(0x0000000000001000L | ((long) shortUuid << 32), 0x800000805f9b34fbL);
+    }
+
+    private static File newDirectory() throws IOException {
+        File directory = File.createTempFile("gatt", "");
+        directory.delete();
+        return directory;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link GattConnectionManager} against a fake GATT layer that checks the link cap is
+ * never exceeded and that closed sessions are never touched again.
+ */
+public class GattConnectionManagerTest {
+
+    private static final int CAP = 2;
+
+    private static final String A = "00:11:22:33:44:0A";
+    private static final String B = "00:11:22:33:44:0B";
+    private static final String C = "00:11:22:33:44:0C";
+    private static final String D = "00:11:22:33:44:0D";
+
+    private static class FakeGatt {
+        final String address;
+        boolean linking;
+        boolean up;
+        boolean closed;
+
+        FakeGatt(String address) {
+            this.address = address;
+        }
+    }
+
+    private static class FakeTransport implements GattConnectionManager.Transport<FakeGatt> {
+
+        final List<FakeGatt> opened = new ArrayList<>();
+
+        int reconnects;
+
+        boolean refuse;
+
+        @Override
+        public FakeGatt open(String address) {
+            if (refuse) {
+                return null;
+            }
+            FakeGatt gatt = new FakeGatt(address);
+            gatt.linking = true;
+            opened.add(gatt);
+            checkCap();
+            return gatt;
+        }
+
+        @Override
+        public boolean reconnect(FakeGatt gatt) {
+            assertFalse("reconnected a closed session", gatt.closed);
+            assertFalse("reconnected a live session", gatt.linking);
+            if (refuse) {
+                return false;
+            }
+            reconnects++;
+            gatt.linking = true;
+            checkCap();
+            return true;
+        }
+
+        @Override
+        public void disconnect(FakeGatt gatt) {
+            assertFalse("disconnected a closed session", gatt.closed);
+            if (!gatt.up) {
+                // Cancelling a pending attempt drops it at once.
+                gatt.linking = false;
+            }
+        }
+
+        @Override
+        public void close(FakeGatt gatt) {
+            assertFalse("closed twice", gatt.closed);
+            gatt.closed = true;
+            gatt.linking = false;
+        }
+
+        /** The platform reports the link down. */
+        void down(FakeGatt gatt) {
+            gatt.linking = false;
+            gatt.up = false;
+        }
+
+        private void checkCap() {
+            int linking = 0;
+            for (FakeGatt gatt : opened) {
+                if (gatt.linking) {
+                    linking++;
+                }
+            }
+            assertTrue(linking + " links for a cap of " + CAP, linking <= CAP);
+        }
+    }
+
+    private static class Recorder implements GattConnectionManager.Listener {
+
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onStateChanged(String address, int state) {
+            events.add(address.substring(address.length() - 1) + " "
+                    + GattConnectionManager.stateName(state));
+        }
+
+        String drain() {
+            String result = events.toString();
+            events.clear();
+            return result;
+        }
+    }
+
+    private final FakeTransport mTransport = new FakeTransport();
+
+    private final Recorder mRecorder = new Recorder();
+
+    private final GattConnectionManager<FakeGatt> mManager =
+            new GattConnectionManager<>(mTransport, CAP, mRecorder);
+
+    private void reportUp(String address) {
+        FakeGatt gatt = mManager.getSession(address);
+        gatt.up = true;
+        mManager.onConnectionStateChange(address, gatt, true);
+    }
+
+    private void reportDown(String address) {
+        FakeGatt gatt = mManager.getSession(address);
+        mTransport.down(gatt);
+        mManager.onConnectionStateChange(address, gatt, false);
+    }
+
+    @Test
+    public void queuesBeyondCapAndAdmitsInOrder() {
+        assertTrue(mManager.connect(A));
+        assertTrue(mManager.connect(B));
+        assertTrue(mManager.connect(C));
+        assertTrue(mManager.connect(D));
+        assertEquals("[A connecting, B connecting, C queued, D queued]", mRecorder.drain());
+        assertEquals(1, mManager.getQueuePosition(C));
+        assertEquals(2, mManager.getQueuePosition(D));
+        assertEquals(0, mManager.getQueuePosition(A));
+        assertNull(mManager.getSession(C));
+
+        // Repeated requests don't jump or double up.
+        assertTrue(mManager.connect(A));
+        assertTrue(mManager.connect(D));
+        assertEquals("[]", mRecorder.drain());
+
+        reportUp(A);
+        assertNotNull(mManager.getConnectedSession(A));
+        assertNull(mManager.getConnectedSession(B));
+        // B's attempt fails, so C gets its slot.
+        reportDown(B);
+        assertEquals("[A connected, B disconnected, C connecting]", mRecorder.drain());
+
+        // A's slot stays taken until its link is really down.
+        mManager.disconnect(A);
+        assertEquals(GattConnectionManager.STATE_DISCONNECTING, mManager.getState(A));
+        assertEquals(GattConnectionManager.STATE_QUEUED, mManager.getState(D));
+        reportDown(A);
+        assertEquals("[A disconnecting, A disconnected, D connecting]", mRecorder.drain());
+        assertEquals(2, mManager.getActiveCount());
+        assertEquals(0, mManager.getQueuedCount());
+        assertEquals(0, mManager.getConnectedCount());
+
+        // A goes to the back of the queue and reuses its session when admitted.
+        FakeGatt first = mManager.getSession(A);
+        assertTrue(mManager.connect(A));
+        reportDown(C);
+        assertSame(first, mManager.getSession(A));
+        assertEquals(1, mTransport.reconnects);
+        assertEquals("[A queued, C disconnected, A connecting]", mRecorder.drain());
+    }
+
+    @Test
+    public void cancelsReconnectsAndIgnoresStaleSessions() {
+        mManager.connect(A);
+        mManager.connect(B);
+        mManager.connect(C);
+        mManager.connect(D);
+
+        // A queued attempt is just forgotten.
+        mManager.disconnect(D);
+        assertEquals(GattConnectionManager.STATE_DISCONNECTED, mManager.getState(D));
+        // A pending attempt frees its slot straight away.
+        mManager.disconnect(B);
+        assertEquals(GattConnectionManager.STATE_CONNECTING, mManager.getState(C));
+        mRecorder.drain();
+        // If it comes up anyway it is taken down again without a state change.
+        FakeGatt cancelled = mManager.getSession(B);
+        mManager.onConnectionStateChange(B, cancelled, true);
+        assertEquals(GattConnectionManager.STATE_DISCONNECTED, mManager.getState(B));
+        assertEquals("[]", mRecorder.drain());
+
+        // Asking again while disconnecting connects once the link is down.
+        reportUp(A);
+        mManager.disconnect(A);
+        mManager.connect(A);
+        reportDown(A);
+        assertEquals("[A connected, A disconnecting, A disconnected, A connecting]",
+                mRecorder.drain());
+
+        // After close, reports about the old session don't touch the new one.
+        FakeGatt old = mManager.getSession(A);
+        mManager.close(A);
+        assertTrue(old.closed);
+        mManager.connect(A);
+        assertNotSame(old, mManager.getSession(A));
+        mManager.onConnectionStateChange(A, old, true);
+        mManager.onConnectionStateChange(A, old, false);
+        assertEquals(GattConnectionManager.STATE_CONNECTING, mManager.getState(A));
+
+        // A session that can't be opened is reported and doesn't hold a slot.
+        mManager.closeAll();
+        mRecorder.drain();
+        mTransport.refuse = true;
+        assertFalse(mManager.connect(D));
+        assertEquals("[]", mRecorder.drain());
+        assertEquals(0, mManager.getActiveCount());
+        for (FakeGatt gatt : mTransport.opened) {
+            assertTrue(gatt.closed);
+        }
+
+        StringBuilder out = new StringBuilder();
+        mManager.describe(out);
+        assertTrue(out.toString(), out.toString().startsWith("Connections: 0 up, 0/2 slots"));
+    }
+
+    @Test
+    public void randomOperationsKeepCountsConsistent() {
+        String[] addresses = new String[8];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = String.format("00:11:22:33:44:%02X", i);
+        }
+        Random random = new Random(1);
+        for (int step = 0; step < 20000; step++) {
+            String address = addresses[random.nextInt(addresses.length)];
+            FakeGatt gatt = mManager.getSession(address);
+            switch (random.nextInt(6)) {
+                case 0:
+                case 1:
+                    mManager.connect(address);
+                    break;
+                case 2:
+                    mManager.disconnect(address);
+                    break;
+                case 3:
+                    if (random.nextInt(10) == 0) {
+                        mManager.close(address);
+                    }
+                    break;
+                case 4:
+                    if (gatt != null && gatt.linking) {
+                        reportUp(address);
+                    }
+                    break;
+                default:
+                    if (gatt != null && gatt.linking) {
+                        reportDown(address);
+                    }
+                    break;
+            }
+
+            Map<Integer, Integer> byState = new HashMap<>();
+            for (String each : addresses) {
+                int state = mManager.getState(each);
+                Integer count = byState.get(state);
+                byState.put(state, count == null ? 1 : count + 1);
+                FakeGatt session = mManager.getSession(each);
+                if (state == GattConnectionManager.STATE_QUEUED
+                        || state == GattConnectionManager.STATE_DISCONNECTED) {
+                    assertTrue(session == null || !session.linking);
+                } else {
+                    assertTrue(each + " " + state, session != null && !session.closed);
+                }
+            }
+            int active = count(byState, GattConnectionManager.STATE_CONNECTING)
+                    + count(byState, GattConnectionManager.STATE_CONNECTED)
+                    + count(byState, GattConnectionManager.STATE_DISCONNECTING);
+            assertEquals(active, mManager.getActiveCount());
+            assertTrue(active <= CAP);
+            assertEquals(count(byState, GattConnectionManager.STATE_QUEUED),
+                    mManager.getQueuedCount());
+            assertEquals(count(byState, GattConnectionManager.STATE_CONNECTED),
+                    mManager.getConnectedCount());
+            // Nobody waits while a slot is free.
+            assertTrue(mManager.getQueuedCount() == 0 || active == CAP);
+        }
+    }
+
+    private static int count(Map<Integer, Integer> byState, int state) {
+        Integer count = byState.get(state);
+        return count == null ? 0 : count;
+    }
+}
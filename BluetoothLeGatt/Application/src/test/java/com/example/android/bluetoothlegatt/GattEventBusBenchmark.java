@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Pushes 20-byte notifications through the work {@code BluetoothLeService} used to do for each
+ * one (hex with {@code String.format} per byte, the text copy, and an intent-like extras map
+ * handed to a receiver) and through {@link GattEventBus} to a subscriber that keeps the latest
+ * value the way {@code DeviceControlActivity} does, and reports notifications per second.
+ * The binder round trip of {@code sendBroadcast} can't be measured here, so the old path is
+ * flattered. Formatting for display is timed separately, since it now happens once per frame
+ * rather than once per notification.
+ *
+ * Run with {@code java ... GattEventBusBenchmark [notifications]}; it is not a unit test.
+ */
+public class GattEventBusBenchmark {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private static final UUID CHARACTERISTIC =
+            UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
+
+    private static final int VALUE_LENGTH = 20;
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int notifications = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Random random = new Random(1);
+        byte[] template = new byte[VALUE_LENGTH];
+        random.nextBytes(template);
+
+        GattEventBus bus = new GattEventBus();
+        LatestValue latest = new LatestValue();
+        bus.subscribe(ADDRESS, CHARACTERISTIC, latest);
+        LegacyReceiver receiver = new LegacyReceiver();
+
+        double broadcastRate = 0;
+        double busRate = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < notifications; i++) {
+                // The platform hands over a fresh array for every notification.
+                byte[] value = template.clone();
+                value[0] = (byte) i;
+                receiver.onReceive(legacyIntent(value));
+            }
+            broadcastRate = notifications * 1e9 / (System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < notifications; i++) {
+                byte[] value = template.clone();
+                value[0] = (byte) i;
+                bus.publish(ADDRESS, CHARACTERISTIC, value, start);
+            }
+            busRate = notifications * 1e9 / (System.nanoTime() - start);
+        }
+
+        int renders = notifications / 10;
+        long start = System.nanoTime();
+        int length = 0;
+        for (int i = 0; i < renders; i++) {
+            length += GattValueFormatter.format(CHARACTERISTIC, latest.mValue, VALUE_LENGTH)
+                    .length();
+        }
+        double renderMicros = (System.nanoTime() - start) / 1e3 / renders;
+
+        System.out.printf("Broadcast path:  %,.0f notifications/s (excluding binder IPC)%n",
+                broadcastRate);
+        System.out.printf("Event bus:       %,.0f notifications/s (%.0fx)%n", busRate,
+                busRate / broadcastRate);
+        System.out.printf("Format on render: %.2f us per frame (%d chars)%n",
+                renderMicros, length / renders);
+        if (receiver.mCount != latest.mCount) {
+            throw new AssertionError(receiver.mCount + " != " + latest.mCount);
+        }
+    }
+
+    /**
+     * What {@code broadcastUpdate} built for every notification before values went through
+     * the event bus.
+     */
+    private static HashMap<String, Object> legacyIntent(byte[] data) {
+        HashMap<String, Object> intent = new HashMap<String, Object>();
+        intent.put("action", "com.example.bluetooth.le.ACTION_DATA_AVAILABLE");
+        intent.put("com.example.bluetooth.le.EXTRA_ADDRESS", ADDRESS);
+        final StringBuilder stringBuilder = new StringBuilder(data.length);
+        for (byte byteChar : data) {
+            stringBuilder.append(String.format("%02X ", byteChar));
+        }
+        intent.put("com.example.bluetooth.le.EXTRA_DATA",
+                new String(data) + "\n" + stringBuilder.toString());
+        return intent;
+    }
+
+    private static final class LegacyReceiver {
+        int mCount;
+
+        void onReceive(HashMap<String, Object> intent) {
+            if (ADDRESS.equals(intent.get("com.example.bluetooth.le.EXTRA_ADDRESS"))
+                    && intent.get("com.example.bluetooth.le.EXTRA_DATA") != null) {
+                mCount++;
+            }
+        }
+    }
+
+    /**
+     * Keeps a copy of the latest value, as {@code DeviceControlActivity} does.
+     */
+    private static final class LatestValue implements GattEventBus.ValueListener {
+        final byte[] mValue = new byte[VALUE_LENGTH];
+        int mCount;
+
+        @Override
+        public synchronized void onValue(String address, UUID characteristic, byte[] value,
+                                         long timestampNanos) {
+            System.arraycopy(value, 0, mValue, 0, value.length);
+            mCount++;
+        }
+    }
+}
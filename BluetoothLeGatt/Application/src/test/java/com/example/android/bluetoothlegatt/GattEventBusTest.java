@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link GattEventBus} filtering and the {@link GattValueFormatter} used when a value is
+ * finally shown.
+ */
+public class GattEventBusTest {
+
+    private static final String A = "00:11:22:33:44:0A";
+    private static final String B = "00:11:22:33:44:0B";
+
+    private static final UUID HEART_RATE =
+            UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
+    private static final UUID OTHER = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+
+    private static class Recorder implements GattEventBus.ValueListener {
+
+        final List<String> values = new ArrayList<>();
+
+        byte[] last;
+
+        @Override
+        public void onValue(String address, UUID characteristic, byte[] value,
+                            long timestampNanos) {
+            last = value;
+            values.add(address.substring(address.length() - 1) + " "
+                    + (characteristic.equals(HEART_RATE) ? "hr" : "other") + " @"
+                    + timestampNanos);
+        }
+    }
+
+    @Test
+    public void deliversToMatchingSubscribers() {
+        GattEventBus bus = new GattEventBus();
+        assertFalse(bus.hasSubscribers());
+        Recorder everything = new Recorder();
+        Recorder heartRateOfA = new Recorder();
+        Recorder deviceB = new Recorder();
+        bus.subscribe(null, null, everything);
+        bus.subscribe(A, HEART_RATE, heartRateOfA);
+        bus.subscribe(B, null, deviceB);
+        assertTrue(bus.hasSubscribers());
+
+        byte[] value = {0x00, 72};
+        assertEquals(2, bus.publish(A, HEART_RATE, value, 1));
+        assertEquals(1, bus.publish(A, OTHER, value, 2));
+        assertEquals(2, bus.publish(B, HEART_RATE, value, 3));
+        // The bytes are handed over without copying.
+        assertSame(value, heartRateOfA.last);
+
+        assertEquals("[A hr @1, A other @2, B hr @3]", everything.values.toString());
+        assertEquals("[A hr @1]", heartRateOfA.values.toString());
+        assertEquals("[B hr @3]", deviceB.values.toString());
+
+        bus.unsubscribe(everything);
+        assertEquals(1, bus.publish(A, HEART_RATE, value, 4));
+        bus.unsubscribe(heartRateOfA);
+        bus.unsubscribe(deviceB);
+        assertFalse(bus.hasSubscribers());
+        assertEquals(0, bus.publish(A, HEART_RATE, value, 5));
+        assertEquals(5, bus.getPublishedCount());
+    }
+
+    @Test
+    public void formatsOnlyWhenAsked() {
+        assertEquals("72", GattValueFormatter.format(HEART_RATE, new byte[] {0x00, 72}, 2));
+        // UINT16 rate, with trailing energy and RR fields ignored.
+        assertEquals("300", GattValueFormatter.format(HEART_RATE,
+                new byte[] {0x19, 0x2C, 0x01, 0x10, 0x00, 0x20, 0x03}, 7));
+        assertEquals(null, GattValueFormatter.format(HEART_RATE, new byte[] {0x01, 72}, 2));
+        assertEquals("Hi\n48 69 ", GattValueFormatter.format(OTHER,
+                new byte[] {'H', 'i', 'x'}, 2));
+        assertEquals(null, GattValueFormatter.format(OTHER, new byte[0], 0));
+
+        StringBuilder hex = new StringBuilder();
+        GattValueFormatter.appendHex(hex, new byte[] {0x00, (byte) 0xAB, 0x7F, (byte) 0xFF}, 4);
+        assertEquals("00 AB 7F FF ", hex.toString());
+    }
+}
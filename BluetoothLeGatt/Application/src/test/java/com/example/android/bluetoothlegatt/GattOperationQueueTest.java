@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link GattOperationQueue} against a fake executor that, like Android, refuses to
+ * start an operation while another one is outstanding.
+ */
+public class GattOperationQueueTest {
+
+    private static final long MILLI = 1000000L;
+
+    private static final long TIMEOUT = 100 * MILLI;
+
+    private static final long RETRY_DELAY = 10 * MILLI;
+
+    private static class FakeExecutor implements GattOperationQueue.Executor {
+
+        final List<String> started = new ArrayList<>();
+
+        GattOperationQueue.Operation outstanding;
+
+        @Override
+        public boolean start(GattOperationQueue.Operation operation) {
+            if (outstanding != null) {
+                started.add("refused " + operation.getTarget());
+                return false;
+            }
+            outstanding = operation;
+            started.add(String.valueOf(operation.getTarget()));
+            return true;
+        }
+
+        /** The platform delivers the outstanding operation's result. */
+        void answer(GattOperationQueue queue, int status, long now) {
+            GattOperationQueue.Operation operation = outstanding;
+            outstanding = null;
+            assertTrue(queue.onComplete(operation.getType(), operation.getTarget(), status,
+                    now));
+        }
+
+        String drain() {
+            String result = started.toString();
+            started.clear();
+            return result;
+        }
+    }
+
+    private static class Recorder implements GattOperationQueue.Listener {
+
+        final List<String> finished = new ArrayList<>();
+
+        @Override
+        public void onFinished(GattOperationQueue.Operation operation, int status) {
+            finished.add(operation.getTarget() + "=" + status);
+        }
+    }
+
+    private final FakeExecutor mExecutor = new FakeExecutor();
+
+    private final Recorder mRecorder = new Recorder();
+
+    private final GattOperationQueue mQueue =
+            new GattOperationQueue(mExecutor, TIMEOUT, RETRY_DELAY, 3, mRecorder);
+
+    private static GattOperationQueue.Operation read(String name, int lane) {
+        return new GattOperationQueue.Operation(GattOperationQueue.OP_READ_CHARACTERISTIC,
+                lane, name, null);
+    }
+
+    private static GattOperationQueue.Operation enableNotifications(String name) {
+        return new GattOperationQueue.Operation(GattOperationQueue.OP_WRITE_DESCRIPTOR,
+                GattOperationQueue.LANE_SETUP, name, new byte[] {1, 0});
+    }
+
+    @Test
+    public void servesLanesInOrderBackToBack() {
+        mQueue.enqueue(read("bulk1", GattOperationQueue.LANE_BULK), 0);
+        mQueue.enqueue(read("bulk2", GattOperationQueue.LANE_BULK), 0);
+        mQueue.enqueue(read("user", GattOperationQueue.LANE_INTERACTIVE), 0);
+        mQueue.enqueue(enableNotifications("cccd"), 0);
+        // Only the first starts; the rest wait without being offered to the platform.
+        assertEquals("[bulk1]", mExecutor.drain());
+        assertEquals(4, mQueue.size());
+        assertTrue(mQueue.isBusy());
+        assertEquals(TIMEOUT, mQueue.getDeadlineNanos());
+
+        // Each result starts the next operation before onComplete returns.
+        mExecutor.answer(mQueue, GattOperationQueue.STATUS_SUCCESS, 2 * MILLI);
+        assertEquals("[cccd]", mExecutor.drain());
+        mExecutor.answer(mQueue, GattOperationQueue.STATUS_SUCCESS, 5 * MILLI);
+        assertEquals("[user]", mExecutor.drain());
+        mExecutor.answer(mQueue, GattOperationQueue.STATUS_SUCCESS, 6 * MILLI);
+        assertEquals("[bulk2]", mExecutor.drain());
+        mExecutor.answer(mQueue, GattOperationQueue.STATUS_SUCCESS, 7 * MILLI);
+        assertFalse(mQueue.isBusy());
+        assertEquals(Long.MAX_VALUE, mQueue.getDeadlineNanos());
+        assertEquals("[bulk1=0, cccd=0, user=0, bulk2=0]", mRecorder.finished.toString());
+
+        // Answers nobody is waiting for are ignored.
+        assertFalse(mQueue.onComplete(GattOperationQueue.OP_READ_CHARACTERISTIC, "bulk1",
+                GattOperationQueue.STATUS_SUCCESS, 8 * MILLI));
+
+        LogHistogram reads = mQueue.getRoundTripHistogram(
+                GattOperationQueue.OP_READ_CHARACTERISTIC);
+        assertEquals(3, reads.getCount());
+        assertEquals(2000 + 1000 + 1000, reads.getSum());
+        LogHistogram waits = mQueue.getWaitHistogram(
+                GattOperationQueue.OP_READ_CHARACTERISTIC);
+        assertEquals(0 + 5000 + 6000, waits.getSum());
+        assertEquals(1, mQueue.getWaitHistogram(GattOperationQueue.OP_WRITE_DESCRIPTOR)
+                .getCount());
+        assertEquals(4, mQueue.getCompletedCount());
+
+        StringBuilder out = new StringBuilder();
+        mQueue.describe(out);
+        assertTrue(out.toString(), out.toString().startsWith("Operations: 4 completed"));
+        assertTrue(out.toString(), out.toString().contains("read characteristic round trip"));
+    }
+
+    @Test
+    public void retriesAfterBackoffAndGivesUp() {
+        mQueue.enqueue(read("a", GattOperationQueue.LANE_INTERACTIVE), 0);
+        mQueue.enqueue(read("b", GattOperationQueue.LANE_INTERACTIVE), 0);
+        assertEquals("[a]", mExecutor.drain());
+
+        // An error answer rests the link, then retries the same operation first.
+        mExecutor.answer(mQueue, 133, MILLI);
+        assertEquals("[]", mExecutor.drain());
+        assertEquals(MILLI + RETRY_DELAY, mQueue.getDeadlineNanos());
+        mQueue.checkTimeouts(MILLI + RETRY_DELAY - 1);
+        assertEquals("[]", mExecutor.drain());
+        mQueue.checkTimeouts(MILLI + RETRY_DELAY);
+        assertEquals("[a]", mExecutor.drain());
+
+        // No answer: it times out, but the platform stays busy with it.
+        long start = MILLI + RETRY_DELAY;
+        mQueue.checkTimeouts(start + TIMEOUT - 1);
+        assertTrue(mQueue.isBusy());
+        mQueue.checkTimeouts(start + TIMEOUT);
+        assertEquals(1, mQueue.getTimeoutCount());
+        // The last attempt is refused, so the operation fails and the next is tried at once;
+        // that is refused too and waits out a back-off.
+        long retry = start + TIMEOUT + RETRY_DELAY;
+        mQueue.checkTimeouts(retry);
+        assertEquals("[refused a, refused b]", mExecutor.drain());
+        assertEquals("[a=-2]", mRecorder.finished.toString());
+
+        // The platform finally answers the timed-out attempt; nobody is waiting for it.
+        GattOperationQueue.Operation late = mExecutor.outstanding;
+        mExecutor.outstanding = null;
+        assertFalse(mQueue.onComplete(late.getType(), late.getTarget(),
+                GattOperationQueue.STATUS_SUCCESS, retry + MILLI));
+        assertEquals("[]", mExecutor.drain());
+
+        mQueue.checkTimeouts(retry + RETRY_DELAY);
+        assertEquals("[b]", mExecutor.drain());
+        mExecutor.answer(mQueue, GattOperationQueue.STATUS_SUCCESS, retry + RETRY_DELAY + MILLI);
+        assertEquals("[a=-2, b=0]", mRecorder.finished.toString());
+        assertEquals(3, mQueue.getRetryCount());
+        assertEquals(1, mQueue.getFailedCount());
+        assertEquals(1, mQueue.getCompletedCount());
+        assertEquals(0, mQueue.size());
+    }
+
+    @Test
+    public void closeCancelsEverything() {
+        mQueue.enqueue(enableNotifications("cccd"), 0);
+        mQueue.enqueue(read("a", GattOperationQueue.LANE_BULK), 0);
+        mQueue.close();
+        assertEquals("[cccd=-3, a=-3]", mRecorder.finished.toString());
+        assertFalse(mQueue.enqueue(read("b", GattOperationQueue.LANE_BULK), MILLI));
+        assertEquals(0, mQueue.size());
+        assertEquals(Long.MAX_VALUE, mQueue.getDeadlineNanos());
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link NotificationRing} across wrap-around and a {@link StreamRecorder} capture read
+ * back with {@link StreamFileReader}, closed both in the caller and on the writer thread.
+ */
+public class StreamRecorderTest {
+
+    private static final long MILLI = 1000000L;
+
+    private static final UUID IMU = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
+
+    private static final UUID ECG = UUID.fromString("6e400004-b5a3-f393-e0a9-e50e24dcca9e");
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    @Test
+    public void ringWrapsAndDropsWhenFull() {
+        NotificationRing ring = new NotificationRing(50);
+        assertEquals(64, ring.getCapacity());
+        ByteBuffer out = ByteBuffer.allocate(1024);
+        int next = 0;
+        for (int round = 0; round < 100; round++) {
+            // Two 7-byte values take 34 of the 64 bytes, so records straddle the end.
+            for (int i = 0; i < 2; i++) {
+                byte[] value = new byte[7];
+                Arrays.fill(value, (byte) next);
+                assertTrue(ring.offer(value, value.length, next * MILLI));
+                next++;
+            }
+            out.clear();
+            assertEquals(2, ring.drainTo(out, (byte) 9));
+            out.flip();
+            for (int i = next - 2; i < next; i++) {
+                assertEquals(9, out.get());
+                assertEquals(7, out.getShort());
+                assertEquals(i * MILLI, out.getLong());
+                for (int j = 0; j < 7; j++) {
+                    assertEquals((byte) i, out.get());
+                }
+            }
+            assertEquals(0, ring.size());
+        }
+
+        byte[] big = new byte[30];
+        assertTrue(ring.offer(big, big.length, 0));
+        assertFalse(ring.offer(big, big.length, 0));
+        assertEquals(1, ring.getDropCount());
+        // Only whole records are drained.
+        out.clear();
+        out.limit(40);
+        assertEquals(0, ring.drainTo(out, (byte) 0));
+        out.limit(41);
+        assertEquals(1, ring.drainTo(out, (byte) 0));
+    }
+
+    @Test
+    public void capturesMeasuresAndReadsBack() throws IOException {
+        File file = File.createTempFile("stream", ".gst");
+        try {
+            StreamRecorder recorder = new StreamRecorder(file, 2500000L, MILLI);
+            assertEquals(0, recorder.addChannel(IMU, 65536, 0, 2));
+            assertEquals(1, recorder.addChannel(ECG, 65536, StreamRecorder.NO_SEQUENCE, 0));
+            recorder.start(1700000000000L);
+            assertTrue(recorder.captures(ECG));
+
+            // The IMU counter wraps at 65536; 65530, 65531 and 5 to 7 never arrive, and 10 is
+            // repeated.
+            List<Integer> numbers = new ArrayList<>();
+            for (int n = 65500; numbers.size() < 600; n++) {
+                int number = n & 0xFFFF;
+                if (number == 65530 || number == 65531 || (number >= 5 && number <= 7)) {
+                    continue;
+                }
+                numbers.add(number);
+                if (number == 10) {
+                    numbers.add(number);
+                }
+            }
+
+            // 200 connection events 7.5 ms apart, each carrying three IMU values and one ECG
+            // value 200 us apart.
+            List<String> expected = new ArrayList<>();
+            long time = 0;
+            for (int event = 0; event < 200; event++) {
+                for (int i = 0; i < 4; i++) {
+                    time = event * 7500000L + i * 200000L;
+                    if (i == 3) {
+                        recorder.onValue(ADDRESS, ECG, new byte[] {(byte) event}, time);
+                        expected.add("1 " + time + " " + (event & 0xFF));
+                    } else {
+                        int number = numbers.get(event * 3 + i);
+                        byte[] value = new byte[20];
+                        value[0] = (byte) number;
+                        value[1] = (byte) (number >> 8);
+                        recorder.onValue(ADDRESS, IMU, value, time);
+                        expected.add("0 " + time + " " + number);
+                    }
+                }
+            }
+            // Values of other characteristics are ignored.
+            recorder.onValue(ADDRESS, UUID.randomUUID(), new byte[4], time);
+            recorder.close();
+
+            assertEquals(800, recorder.getNotificationCount());
+            assertEquals(600 * 20 + 200, recorder.getByteCount());
+            assertEquals(200, recorder.getConnectionEventCount());
+            assertEquals(4.0, recorder.getNotificationsPerEvent(), 1e-9);
+            assertEquals((600 * 20 + 200) * 1e9 / time, recorder.getBytesPerSecond(), 1e-6);
+            assertEquals(2, recorder.getGapCount());
+            assertEquals(5, recorder.getMissingCount());
+            assertEquals(0, recorder.getDropCount());
+            assertEquals(file.length(), recorder.getBytesWritten());
+            StringBuilder out = new StringBuilder();
+            recorder.describe(out);
+            assertTrue(out.toString(), out.toString().contains(
+                    "5 missing in 2 gaps, 1 repeated or late, 0 dropped"));
+
+            StreamFileReader reader = new StreamFileReader(file);
+            assertEquals(1700000000000L, reader.getStartMillis());
+            assertArrayEquals(new UUID[] {IMU, ECG}, reader.getCharacteristics());
+            final List<String> imu = new ArrayList<>();
+            final List<String> ecg = new ArrayList<>();
+            long count = reader.read(new StreamFileReader.RecordVisitor() {
+                @Override
+                public boolean onRecord(int channel, long timestampNanos, byte[] value,
+                                        int length) {
+                    int number = channel == 0
+                            ? (value[0] & 0xFF) | (value[1] & 0xFF) << 8 : value[0] & 0xFF;
+                    (channel == 0 ? imu : ecg).add(channel + " " + timestampNanos + " "
+                            + number);
+                    return true;
+                }
+            });
+            assertEquals(800, count);
+            // The writer drains one characteristic at a time, so only the order within each
+            // is kept.
+            List<String> all = new ArrayList<>(imu);
+            all.addAll(ecg);
+            List<String> expectedByChannel = new ArrayList<>();
+            for (String record : expected) {
+                if (record.startsWith("0")) {
+                    expectedByChannel.add(record);
+                }
+            }
+            for (String record : expected) {
+                if (record.startsWith("1")) {
+                    expectedByChannel.add(record);
+                }
+            }
+            assertEquals(expectedByChannel, all);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void finishClosesOnWriterThread() throws Exception {
+        File file = File.createTempFile("stream", ".gst");
+        try {
+            StreamRecorder recorder = new StreamRecorder(file, 2500000L, MILLI);
+            recorder.addChannel(ECG, 65536, StreamRecorder.NO_SEQUENCE, 0);
+            recorder.start(1700000000000L);
+            for (int i = 0; i < 100; i++) {
+                recorder.onValue(ADDRESS, ECG, new byte[] {(byte) i}, i * MILLI);
+            }
+
+            final CountDownLatch finished = new CountDownLatch(1);
+            final AtomicReference<Thread> thread = new AtomicReference<>();
+            final AtomicReference<IOException> error = new AtomicReference<>();
+            recorder.finish(new StreamRecorder.FinishListener() {
+                @Override
+                public void onFinished(StreamRecorder recorder, IOException e) {
+                    thread.set(Thread.currentThread());
+                    error.set(e);
+                    finished.countDown();
+                }
+            });
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+            assertNotSame(Thread.currentThread(), thread.get());
+            assertNull(error.get());
+            assertEquals(file.length(), recorder.getBytesWritten());
+            assertEquals(100, new StreamFileReader(file).read(
+                    new StreamFileReader.RecordVisitor() {
+                        @Override
+                        public boolean onRecord(int channel, long timestampNanos, byte[] value,
+                                                int length) {
+                            return true;
+                        }
+                    }));
+            // Closing afterwards only waits for what has already happened.
+            recorder.close();
+        } finally {
+            file.delete();
+        }
+    }
+}